@@ -0,0 +1,31 @@
+package com.idt;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One run of {@link DiamondChainContract#verify}, with the command it verified and the size of the transaction.
+ */
+@Name("com.idt.ContractVerify")
+@Label("Diamond Contract Verification")
+@Category({"IDT", "Contract"})
+@Description("Verification of a transaction by the DiamondChainContract")
+@StackTrace(false)
+public class ContractVerifyEvent extends Event {
+    @Label("Command")
+    public String command;
+
+    @Label("Inputs")
+    public int inputs;
+
+    @Label("Outputs")
+    public int outputs;
+
+    @Label("Failure")
+    @Description("The message of the rule that rejected the transaction, if any")
+    public String failure;
+}
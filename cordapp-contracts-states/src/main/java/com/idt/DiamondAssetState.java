@@ -2,16 +2,20 @@ package com.idt;
 
 import com.google.common.collect.ImmutableList;
 import net.corda.core.contracts.LinearState;
+import net.corda.core.contracts.StateRef;
 import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
 import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
 import net.corda.core.schemas.MappedSchema;
 import net.corda.core.schemas.PersistentState;
 import net.corda.core.schemas.QueryableState;
+import net.corda.core.serialization.ConstructorForDeserialization;
 import org.jetbrains.annotations.NotNull;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Objects;
 //import java.util.UUID;
 
 /**
@@ -46,6 +50,41 @@ public class DiamondAssetState implements LinearState, QueryableState {
 
     private ApprovalStatus approvalStatus;
 
+    public void setReissuedFrom(StateRef reissuedFrom) {
+        this.reissuedFrom = reissuedFrom;
+    }
+
+    // The exited state this one replaces when it was reissued with a fresh history, null otherwise.
+    private StateRef reissuedFrom;
+
+    public void setCoApprovers(List<Party> coApprovers) {
+        this.coApprovers = coApprovers;
+    }
+
+    public void setQuorum(int quorum) {
+        this.quorum = quorum;
+    }
+
+    // Further approvers of a high-value stone; the approval needs quorum signatures of the approver and co-approvers.
+    private List<Party> coApprovers = ImmutableList.of();
+    private int quorum = 1;
+
+    public void setCertificate(SecureHash certificate, String certificateEntry) {
+        this.certificate = certificate;
+        this.certificateEntry = certificateEntry;
+    }
+
+    // The attachment holding the grading certificate, and the certificate's entry in it; null when there is none.
+    private SecureHash certificate;
+    private String certificateEntry;
+
+    public void setPieces(int pieces) {
+        this.pieces = pieces;
+    }
+
+    // The number of stones: 1 for a single stone, the total of the merged stones for a lot.
+    private int pieces = 1;
+
     public DiamondType getDiamondType() {
         return diamondType;
     }
@@ -110,6 +149,30 @@ public class DiamondAssetState implements LinearState, QueryableState {
         return approvalStatus;
     }
 
+    public StateRef getReissuedFrom() {
+        return reissuedFrom;
+    }
+
+    public List<Party> getCoApprovers() {
+        return coApprovers;
+    }
+
+    public int getQuorum() {
+        return quorum;
+    }
+
+    public SecureHash getCertificate() {
+        return certificate;
+    }
+
+    public String getCertificateEntry() {
+        return certificateEntry;
+    }
+
+    public int getPieces() {
+        return pieces;
+    }
+
 
 
     public DiamondAssetState(UniqueIdentifier linearId, DiamondType diamondType, Party source, String description, double carats, double cost, float percent, Party approver) {
@@ -132,9 +195,70 @@ public class DiamondAssetState implements LinearState, QueryableState {
         this.approvalStatus = ApprovalStatus.PENDING;
     }
 
+    /**
+     * Restores every field, so that AMQP, which builds states through their constructor, keeps the fields that the
+     * flows set after construction.
+     */
+    @ConstructorForDeserialization
+    public DiamondAssetState(UniqueIdentifier linearId, DiamondType diamondType, Party source, double boxValue,
+                             LocalDateTime dateSold, String description, int creditDuration, double carats, double cost,
+                             float percent, double amount, Party owner, LocalDateTime dateIssued,
+                             LocalDateTime lastPurchaseDate, Party approver, LocalDateTime approvalDate,
+                             ApprovalStatus approvalStatus, StateRef reissuedFrom, List<Party> coApprovers, int quorum,
+                             SecureHash certificate, String certificateEntry, int pieces) {
+        this.linearId = linearId;
+        this.diamondType = diamondType;
+        this.source = source;
+        this.boxValue = boxValue;
+        this.dateSold = dateSold;
+        this.description = description;
+        this.creditDuration = creditDuration;
+        this.carats = carats;
+        this.cost = cost;
+        this.percent = percent;
+        this.amount = amount;
+        this.owner = owner;
+        this.dateIssued = dateIssued;
+        this.lastPurchaseDate = lastPurchaseDate;
+        this.approver = approver;
+        this.approvalDate = approvalDate;
+        this.approvalStatus = approvalStatus;
+        this.reissuedFrom = reissuedFrom;
+        this.coApprovers = coApprovers == null ? ImmutableList.of() : ImmutableList.copyOf(coApprovers);
+        this.quorum = quorum;
+        this.certificate = certificate;
+        this.certificateEntry = certificateEntry;
+        this.pieces = pieces;
+    }
+
+    /**
+     * A copy of this state with the given approval status.
+     */
+    public DiamondAssetState withApprovalStatus(ApprovalStatus approvalStatus) {
+        return new DiamondAssetState(linearId, diamondType, source, boxValue, dateSold, description, creditDuration, carats,
+                cost, percent, amount, owner, dateIssued, lastPurchaseDate, approver, approvalDate, approvalStatus,
+                reissuedFrom, coApprovers, quorum, certificate, certificateEntry, pieces);
+    }
+
+    /**
+     * Whether the other state is this one with at most a different approval status.
+     */
+    public boolean differsOnlyInApproval(DiamondAssetState other) {
+        return linearId.equals(other.linearId) && diamondType==other.diamondType && source.equals(other.source)
+                && boxValue==other.boxValue && Objects.equals(dateSold, other.dateSold)
+                && description.equals(other.description) && creditDuration==other.creditDuration
+                && carats==other.carats && cost==other.cost && percent==other.percent && amount==other.amount
+                && owner.equals(other.owner) && dateIssued.equals(other.dateIssued)
+                && Objects.equals(lastPurchaseDate, other.lastPurchaseDate) && approver.equals(other.approver)
+                && Objects.equals(approvalDate, other.approvalDate) && Objects.equals(reissuedFrom, other.reissuedFrom)
+                && coApprovers.equals(other.coApprovers) && quorum==other.quorum
+                && Objects.equals(certificate, other.certificate) && Objects.equals(certificateEntry, other.certificateEntry)
+                && pieces==other.pieces;
+    }
+
     /** The public keys of the involved parties. */
     @Override public List<AbstractParty> getParticipants() {
-        return ImmutableList.of(source, owner, approver);
+        return ImmutableList.<AbstractParty>builder().add(source, owner, approver).addAll(coApprovers).build();
     }
 
     @NotNull
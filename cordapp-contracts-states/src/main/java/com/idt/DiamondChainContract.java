@@ -1,11 +1,27 @@
 package com.idt;
 
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.Attachment;
 import net.corda.core.contracts.Command;
 import net.corda.core.contracts.CommandData;
 import net.corda.core.contracts.CommandWithParties;
 import net.corda.core.contracts.Contract;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.CompositeKey;
 import net.corda.core.identity.Party;
 import net.corda.core.transactions.LedgerTransaction;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
 //import org.apache.logging.log4j.core.tools.picocli.CommandLine;
 import static net.corda.core.contracts.ContractsDSL.requireSingleCommand;
 import static net.corda.core.contracts.ContractsDSL.requireThat;
@@ -16,30 +32,70 @@ import static net.corda.core.contracts.ContractsDSL.requireThat;
 public class DiamondChainContract implements Contract {
     // This is used to identify our contract when building a transaction.
     public static final String DC_CONTRACT_ID = "com.idt.DiamondChainContract";
+    // Merges and splits must conserve carats, cost and box value to within this amount.
+    private static final double CONSERVATION_TOLERANCE = 0.005;
     /**
      * A transaction is considered valid if the verify() function of the contract of each of the transaction's input
      * and output states does not throw an exception.
      */
     @Override
     public void verify(LedgerTransaction tx) {
+        //The rules are in verifyCommands; this times them as a ContractVerifyEvent when JFR events are on
+        if(!JfrEvents.ENABLED){
+            verifyCommands(tx);
+            return;
+        }
+        final ContractVerifyEvent event = new ContractVerifyEvent();
+        event.begin();
+        try {
+            verifyCommands(tx);
+        } catch (RuntimeException ex) {
+            event.failure = ex.getMessage();
+            throw ex;
+        } finally {
+            event.end();
+            if(event.shouldCommit()){
+                final List<CommandWithParties<Commands>> commands = tx.commandsOfType(Commands.class);
+                event.command = commands.isEmpty() ? null : commands.get(0).getValue().getClass().getSimpleName();
+                event.inputs = tx.getInputs().size();
+                event.outputs = tx.getOutputs().size();
+                event.commit();
+            }
+        }
+    }
+
+    private void verifyCommands(LedgerTransaction tx) {
         //final CommandWithParties<DiamondChainContract.Commands> cmd = requireSingleCommand(tx.getCommands(), DiamondChainContract.Commands.class);
         final CommandWithParties<CommandData> cmd = tx.getCommands().get(0);
         //#1-Verify Create
-        if(tx.commandsOfType(DiamondChainContract.Commands.Create.class).get(0)!=null) {
+        if(!tx.commandsOfType(DiamondChainContract.Commands.Create.class).isEmpty()) {
+            //Several assets can be issued together, e.g. by a batched create
             requireThat(check -> {
                 check.using("No inputs should be consumed when issuing the asset", tx.getInputs().isEmpty());
-                check.using("There should be one output state of the type DiamondAssetState", tx.getOutputs().size()==1);
+                check.using("There should be at least one output state", !tx.getOutputs().isEmpty());
+                check.using("All output states should be of the type DiamondAssetState", tx.outputsOfType(DiamondAssetState.class).size()==tx.getOutputs().size());
+                final Set<UniqueIdentifier> linearIds = new HashSet<>();
                 //DiamondAssetState specific constraints
-                final DiamondAssetState out = tx.outputsOfType(DiamondAssetState.class).get(0);
-                final Party source = out.getSource();
-                final Party approver = out.getApprover();
-                check.using("Source must not be the same as Approver", source!=approver);
-                check.using("Approval status is Pending", out.getApprovalStatus()==ApprovalStatus.PENDING);
+                for(DiamondAssetState out : tx.outputsOfType(DiamondAssetState.class)){
+                    final Party source = out.getSource();
+                    final Party approver = out.getApprover();
+                    check.using("Source must not be the same as Approver", source!=approver);
+                    check.using("Approval status is Pending", out.getApprovalStatus()==ApprovalStatus.PENDING);
+                    check.using("Each issued asset must have its own linear id", linearIds.add(out.getLinearId()));
+                    final Set<Party> approvers = new HashSet<>(out.getCoApprovers());
+                    approvers.add(approver);
+                    check.using("Co-approvers must be distinct from each other and from the approver", approvers.size()==out.getCoApprovers().size()+1);
+                    check.using("The source must not be a co-approver", !approvers.contains(source));
+                    check.using("The quorum must be between 1 and the number of approvers", out.getQuorum()>=1 && out.getQuorum()<=approvers.size());
+                    check.using("The grading certificate must be attached", out.getCertificate()==null || certificateAttached(tx, out));
+                    check.using("An issued asset must have at least one stone", out.getPieces()>=1);
+                }
                 return null;
             });
         }
         //#2-Verify Approve
-        else if(tx.commandsOfType(DiamondChainContract.Commands.Approve.class).get(0)!=null){
+        else if(!tx.commandsOfType(DiamondChainContract.Commands.Approve.class).isEmpty()){
+            final CommandWithParties<DiamondChainContract.Commands.Approve> approveCmd = tx.commandsOfType(DiamondChainContract.Commands.Approve.class).get(0);
             requireThat(check -> {
                 check.using("Input should be consumed when approving the asset", tx.getInputs().size()==1);
                 final DiamondAssetState input = (DiamondAssetState) tx.getInput(0);
@@ -51,12 +107,14 @@ public class DiamondChainContract implements Contract {
                 check.using("Source must not be the same as Approver", source!=approver);
                 check.using("Approver is the same as the owning party and not null", approver!=null);
                 check.using("The previous approval status should be PENDING", input.getApprovalStatus()==ApprovalStatus.PENDING);
-                check.using("Approval status is Approved", out.getApprovalStatus()==ApprovalStatus.APPROVED);
+                check.using("Approval status is Approved or Declined", out.getApprovalStatus()==ApprovalStatus.APPROVED || out.getApprovalStatus()==ApprovalStatus.DECLINED);
+                check.using("Only the approval status may change", input.differsOnlyInApproval(out));
+                check.using("A quorum of the approvers must sign the approval", approveCmd.getSigners().contains(approvalKey(input)));
                 return null;
             });
         }
         //#3-Verify Decline
-        else if(tx.commandsOfType(DiamondChainContract.Commands.Decline.class).get(0)!=null){
+        else if(!tx.commandsOfType(DiamondChainContract.Commands.Decline.class).isEmpty()){
             requireThat(check -> {
                 check.using("Input should be consumed when approving the asset", tx.getInputs().size()==1);
                 final DiamondAssetState input = (DiamondAssetState) tx.getInput(0);
@@ -69,14 +127,17 @@ public class DiamondChainContract implements Contract {
                 check.using("Approver is the same as the owning party and not null", approver!=null);
                 check.using("The previous approval status should be PENDING", input.getApprovalStatus()==ApprovalStatus.PENDING);
                 check.using("Approval status is Declined", out.getApprovalStatus()==ApprovalStatus.DECLINED);
+                check.using("Only the approval status may change", input.differsOnlyInApproval(out));
                 return null;
             });
         }
         //#4-Verify Transfer
-        else if(tx.commandsOfType(DiamondChainContract.Commands.Transfer.class).get(0)!=null){
+        else if(!tx.commandsOfType(DiamondChainContract.Commands.Transfer.class).isEmpty()){
+            //Only the DiamondAssetStates are counted, so a delivery-versus-payment transfer can carry Cash states,
+            //which the Cash contract verifies.
             requireThat(check -> {
-                check.using("Input should be consumed when approving the asset", tx.getInputs().size()==1);
-                check.using("There should be one output state of the type DiamondAssetState", tx.getOutputs().size()==1);
+                check.using("Input should be consumed when approving the asset", tx.inputsOfType(DiamondAssetState.class).size()==1);
+                check.using("There should be one output state of the type DiamondAssetState", tx.outputsOfType(DiamondAssetState.class).size()==1);
                 //DiamondAssetState specific constraints
                 final DiamondAssetState out = tx.outputsOfType(DiamondAssetState.class).get(0);
                 final Party newOwner = out.getOwner();
@@ -88,13 +149,139 @@ public class DiamondChainContract implements Contract {
             });
         }
         //#5-Verify Update
-        else if(tx.commandsOfType(DiamondChainContract.Commands.Update.class).get(0)!=null){
+        else if(!tx.commandsOfType(DiamondChainContract.Commands.Update.class).isEmpty()){
+            //An update revalues one or more assets: each output is an input with a new cost and percent.
+            final CommandWithParties<DiamondChainContract.Commands.Update> updateCmd = tx.commandsOfType(DiamondChainContract.Commands.Update.class).get(0);
             requireThat(check -> {
-                check.using("Input should be consumed when approving the asset", tx.getInputs().size()==1);
+                check.using("At least one input should be consumed when updating assets", !tx.getInputs().isEmpty());
+                check.using("All inputs should be of the type DiamondAssetState", tx.inputsOfType(DiamondAssetState.class).size()==tx.getInputs().size());
+                check.using("There should be one output state of the type DiamondAssetState per input", tx.getOutputs().size()==tx.getInputs().size()
+                        && tx.outputsOfType(DiamondAssetState.class).size()==tx.getOutputs().size());
+                final Map<UniqueIdentifier, DiamondAssetState> ins = new HashMap<>();
+                for(DiamondAssetState in : tx.inputsOfType(DiamondAssetState.class)){
+                    check.using("Each updated asset must be consumed once", ins.put(in.getLinearId(), in)==null);
+                }
+                //DiamondAssetState specific constraints
+                for(DiamondAssetState out : tx.outputsOfType(DiamondAssetState.class)){
+                    final DiamondAssetState in = ins.remove(out.getLinearId());
+                    check.using("Each output must update an input with the same linear id", in!=null);
+                    check.using("Approval status is Approved", out.getApprovalStatus()==ApprovalStatus.APPROVED && in.getApprovalStatus()==ApprovalStatus.APPROVED);
+                    check.using("An update must keep the type, source, owner and approvers", out.getDiamondType()==in.getDiamondType()
+                            && out.getSource().equals(in.getSource()) && out.getOwner().equals(in.getOwner())
+                            && out.getApprover().equals(in.getApprover()) && out.getCoApprovers().equals(in.getCoApprovers())
+                            && out.getQuorum()==in.getQuorum());
+                    check.using("An update must keep the description, carats and stones", out.getDescription().equals(in.getDescription())
+                            && out.getCarats()==in.getCarats() && out.getPieces()==in.getPieces());
+                    check.using("An update must keep the grading certificate", Objects.equals(out.getCertificate(), in.getCertificate())
+                            && Objects.equals(out.getCertificateEntry(), in.getCertificateEntry()));
+                    check.using("The cost must not be negative", out.getCost()>=0);
+                    check.using("The owner must sign the update", updateCmd.getSigners().contains(in.getOwner().getOwningKey()));
+                }
+                return null;
+            });
+        }
+        //#6-Verify Exit
+        else if(!tx.commandsOfType(DiamondChainContract.Commands.Exit.class).isEmpty()){
+            final CommandWithParties<DiamondChainContract.Commands.Exit> exitCmd = tx.commandsOfType(DiamondChainContract.Commands.Exit.class).get(0);
+            requireThat(check -> {
+                check.using("At least one input should be consumed when exiting assets", !tx.getInputs().isEmpty());
+                check.using("All inputs should be of the type DiamondAssetState", tx.inputsOfType(DiamondAssetState.class).size()==tx.getInputs().size());
+                check.using("No output state should be created when exiting assets", tx.getOutputs().isEmpty());
+                //DiamondAssetState specific constraints
+                for(DiamondAssetState in : tx.inputsOfType(DiamondAssetState.class)){
+                    check.using("Only approved or declined assets can be exited", in.getApprovalStatus()!=ApprovalStatus.PENDING);
+                    check.using("The owner must sign the exit", exitCmd.getSigners().contains(in.getOwner().getOwningKey()));
+                    check.using("The approver must sign the exit", exitCmd.getSigners().contains(in.getApprover().getOwningKey()));
+                }
+                return null;
+            });
+        }
+        //#7-Verify Reissue
+        else if(!tx.commandsOfType(DiamondChainContract.Commands.Reissue.class).isEmpty()){
+            //A contract cannot see the exit transaction, so the source and approver check that it consumed the referenced
+            //state and refuse to sign a second reissue of it (see DiamondReissueFlow.Responder).
+            final CommandWithParties<DiamondChainContract.Commands.Reissue> reissueCmd = tx.commandsOfType(DiamondChainContract.Commands.Reissue.class).get(0);
+            requireThat(check -> {
+                check.using("No inputs should be consumed when reissuing the asset", tx.getInputs().isEmpty());
                 check.using("There should be one output state of the type DiamondAssetState", tx.getOutputs().size()==1);
                 //DiamondAssetState specific constraints
                 final DiamondAssetState out = tx.outputsOfType(DiamondAssetState.class).get(0);
+                check.using("A reissued asset must reference the exited state it replaces", out.getReissuedFrom()!=null);
                 check.using("Approval status is Approved", out.getApprovalStatus()==ApprovalStatus.APPROVED);
+                check.using("The source must sign the reissue", reissueCmd.getSigners().contains(out.getSource().getOwningKey()));
+                check.using("The owner must sign the reissue", reissueCmd.getSigners().contains(out.getOwner().getOwningKey()));
+                check.using("The approver must sign the reissue", reissueCmd.getSigners().contains(out.getApprover().getOwningKey()));
+                return null;
+            });
+        }
+        //#8-Verify Merge
+        else if(!tx.commandsOfType(DiamondChainContract.Commands.Merge.class).isEmpty()){
+            final CommandWithParties<DiamondChainContract.Commands.Merge> mergeCmd = tx.commandsOfType(DiamondChainContract.Commands.Merge.class).get(0);
+            requireThat(check -> {
+                check.using("At least two inputs should be consumed when merging assets", tx.getInputs().size()>=2);
+                check.using("All inputs should be of the type DiamondAssetState", tx.inputsOfType(DiamondAssetState.class).size()==tx.getInputs().size());
+                check.using("There should be one output state of the type DiamondAssetState", tx.getOutputs().size()==1 && tx.outputsOfType(DiamondAssetState.class).size()==1);
+                final DiamondAssetState lot = tx.outputsOfType(DiamondAssetState.class).get(0);
+                final List<DiamondAssetState> ins = tx.inputsOfType(DiamondAssetState.class);
+                //DiamondAssetState specific constraints
+                for(DiamondAssetState in : ins){
+                    check.using("Only approved assets can be merged", in.getApprovalStatus()==ApprovalStatus.APPROVED);
+                    check.using("All merged assets must have the owner of the lot", in.getOwner().equals(lot.getOwner()));
+                    check.using("All merged assets must have the approver of the lot", in.getApprover().equals(lot.getApprover()));
+                    check.using("All merged assets must have the source of the lot", in.getSource().equals(lot.getSource()));
+                    check.using("All merged assets must have the co-approvers and quorum of the lot",
+                            in.getCoApprovers().equals(lot.getCoApprovers()) && in.getQuorum()==lot.getQuorum());
+                    check.using("All merged assets must be of the type of the lot", in.getDiamondType()==lot.getDiamondType());
+                    check.using("The lot must have a linear id of its own", !in.getLinearId().equals(lot.getLinearId()));
+                    check.using("Certified assets cannot be merged", in.getCertificate()==null);
+                }
+                check.using("Approval status is Approved", lot.getApprovalStatus()==ApprovalStatus.APPROVED);
+                check.using("A lot has no certificate", lot.getCertificate()==null && lot.getCertificateEntry()==null);
+                check.using("The lot must keep the total carats", conserved(ins, ImmutableList.of(lot), DiamondAssetState::getCarats));
+                check.using("The lot must keep the total cost", conserved(ins, ImmutableList.of(lot), DiamondAssetState::getCost));
+                check.using("The lot must keep the total box value", conserved(ins, ImmutableList.of(lot), DiamondAssetState::getBoxValue));
+                check.using("The lot must hold all the merged stones", lot.getPieces()==ins.stream().mapToInt(DiamondAssetState::getPieces).sum());
+                check.using("The owner must sign the merge", mergeCmd.getSigners().contains(lot.getOwner().getOwningKey()));
+                check.using("The approver must sign the merge", mergeCmd.getSigners().contains(lot.getApprover().getOwningKey()));
+                return null;
+            });
+        }
+        //#9-Verify Split
+        else if(!tx.commandsOfType(DiamondChainContract.Commands.Split.class).isEmpty()){
+            final CommandWithParties<DiamondChainContract.Commands.Split> splitCmd = tx.commandsOfType(DiamondChainContract.Commands.Split.class).get(0);
+            requireThat(check -> {
+                check.using("One input should be consumed when splitting an asset", tx.getInputs().size()==1 && tx.inputsOfType(DiamondAssetState.class).size()==1);
+                check.using("At least two outputs should be created when splitting an asset", tx.getOutputs().size()>=2);
+                check.using("All output states should be of the type DiamondAssetState", tx.outputsOfType(DiamondAssetState.class).size()==tx.getOutputs().size());
+                final DiamondAssetState in = tx.inputsOfType(DiamondAssetState.class).get(0);
+                final List<DiamondAssetState> outs = tx.outputsOfType(DiamondAssetState.class);
+                check.using("Only approved assets can be split", in.getApprovalStatus()==ApprovalStatus.APPROVED);
+                final Set<UniqueIdentifier> linearIds = new HashSet<>();
+                linearIds.add(in.getLinearId());
+                //DiamondAssetState specific constraints
+                for(DiamondAssetState out : outs){
+                    check.using("Each part must keep the owner", out.getOwner().equals(in.getOwner()));
+                    check.using("Each part must keep the approver", out.getApprover().equals(in.getApprover()));
+                    check.using("Each part must keep the source", out.getSource().equals(in.getSource()));
+                    check.using("Each part must keep the co-approvers and quorum",
+                            out.getCoApprovers().equals(in.getCoApprovers()) && out.getQuorum()==in.getQuorum());
+                    check.using("Each part must keep the type", out.getDiamondType()==in.getDiamondType());
+                    check.using("Approval status is Approved", out.getApprovalStatus()==ApprovalStatus.APPROVED);
+                    check.using("Each part must have some carats", out.getCarats()>0);
+                    check.using("Each part must have a linear id of its own", linearIds.add(out.getLinearId()));
+                    check.using("Each part must keep the grading certificate", Objects.equals(out.getCertificate(), in.getCertificate())
+                            && Objects.equals(out.getCertificateEntry(), in.getCertificateEntry()));
+                }
+                check.using("The parts must keep the total carats", conserved(ImmutableList.of(in), outs, DiamondAssetState::getCarats));
+                check.using("The parts must keep the total cost", conserved(ImmutableList.of(in), outs, DiamondAssetState::getCost));
+                check.using("The parts must keep the total box value", conserved(ImmutableList.of(in), outs, DiamondAssetState::getBoxValue));
+                //The stones of a lot are shared out among the parts; cutting a stone, or a lot of fewer stones than
+                //parts, makes parts of a stone each
+                check.using("The parts must keep the stones", in.getPieces()>=outs.size()
+                        ? outs.stream().allMatch(out -> out.getPieces()>=1) && outs.stream().mapToInt(DiamondAssetState::getPieces).sum()==in.getPieces()
+                        : outs.stream().allMatch(out -> out.getPieces()==1));
+                check.using("The owner must sign the split", splitCmd.getSigners().contains(in.getOwner().getOwningKey()));
+                check.using("The approver must sign the split", splitCmd.getSigners().contains(in.getApprover().getOwningKey()));
                 return null;
             });
         }
@@ -103,6 +290,58 @@ public class DiamondChainContract implements Contract {
         }
     }
 
+    /**
+     * The key an approval of the diamond must be signed with. Without co-approvers it is the approver's key; with them
+     * it is a composite key over the approver and co-approvers with the quorum as threshold, which any quorum of their
+     * signatures fulfils.
+     */
+    public static PublicKey approvalKey(DiamondAssetState diamond) {
+        if(diamond.getCoApprovers().isEmpty()){
+            return diamond.getApprover().getOwningKey();
+        }
+        final CompositeKey.Builder builder = new CompositeKey.Builder();
+        builder.addKey(diamond.getApprover().getOwningKey(), 1);
+        for(Party coApprover : diamond.getCoApprovers()){
+            builder.addKey(coApprover.getOwningKey(), 1);
+        }
+        return builder.build(diamond.getQuorum());
+    }
+
+    /**
+     * Whether the attachment holding the asset's certificate is attached and, when the asset names an entry, has it.
+     */
+    private static boolean certificateAttached(LedgerTransaction tx, DiamondAssetState diamond) {
+        for(Attachment attachment : tx.getAttachments()){
+            if(!attachment.getId().equals(diamond.getCertificate())){
+                continue;
+            }
+            if(diamond.getCertificateEntry()==null){
+                return true;
+            }
+            try(JarInputStream jar = attachment.openAsJAR()){
+                for(JarEntry entry = jar.getNextJarEntry(); entry!=null; entry = jar.getNextJarEntry()){
+                    if(entry.getName().equals(diamond.getCertificateEntry())){
+                        return true;
+                    }
+                }
+            } catch(IOException e){
+                return false;
+            }
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * Whether the inputs and outputs have the same total of the quantity, to within the hundredth that carats and
+     * prices are quoted in, so that rounding the parts of a split cannot reject it.
+     */
+    private static boolean conserved(List<DiamondAssetState> ins, List<DiamondAssetState> outs, ToDoubleFunction<DiamondAssetState> quantity) {
+        final double in = ins.stream().mapToDouble(quantity).sum();
+        final double out = outs.stream().mapToDouble(quantity).sum();
+        return Math.abs(in - out) < CONSERVATION_TOLERANCE;
+    }
+
     public interface Commands extends CommandData {
         public class Create implements Commands {
             @Override
@@ -134,5 +373,29 @@ public class DiamondChainContract implements Contract {
                 return obj instanceof Update;
             }
         }
+        public class Exit implements Commands {
+            @Override
+            public boolean equals(Object obj){
+                return obj instanceof Exit;
+            }
+        }
+        public class Reissue implements Commands {
+            @Override
+            public boolean equals(Object obj){
+                return obj instanceof Reissue;
+            }
+        }
+        public class Merge implements Commands {
+            @Override
+            public boolean equals(Object obj){
+                return obj instanceof Merge;
+            }
+        }
+        public class Split implements Commands {
+            @Override
+            public boolean equals(Object obj){
+                return obj instanceof Split;
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,24 @@
+package com.idt;
+
+/**
+ * Whether the CorDapp emits its JDK Flight Recorder events.
+ *
+ * The events need a JDK that ships jdk.jfr (8u262 or later); on older JDKs, or with -Didt.jfr.disabled=true, no event
+ * object is ever created. When a recording is running without the events enabled, see config/jfr/idt.jfc, each
+ * instrumented call only pays for an allocation the JIT usually eliminates.
+ */
+public final class JfrEvents {
+    public static final boolean ENABLED = !Boolean.getBoolean("idt.jfr.disabled") && available();
+
+    private JfrEvents() {
+    }
+
+    private static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event", false, JfrEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+}
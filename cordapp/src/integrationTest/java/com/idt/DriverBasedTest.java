@@ -18,6 +18,7 @@ import java.util.List;
 
 import static net.corda.testing.driver.Driver.driver;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class DriverBasedTest {
     TestIdentity bankA = new TestIdentity(new CordaX500Name("BankA", "", "GB"));
@@ -70,13 +71,14 @@ public class DriverBasedTest {
                     WebserverHandle webserverHandle = dsl.startWebserver(nodeHandle).get();
 
                     NetworkHostAndPort nodeAddress = webserverHandle.getListenAddress();
-                    String url = String.format("http://%s/api/idt/templateGetEndpoint", nodeAddress);
+                    String url = String.format("http://%s/api/idt/me", nodeAddress);
 
                     Request request = new Request.Builder().url(url).build();
                     OkHttpClient client = new OkHttpClient();
                     Response response = client.newCall(request).execute();
 
-                    assertEquals("Template GET endpoint.", response.body().string());
+                    assertEquals(200, response.code());
+                    assertTrue(response.body().string().contains(nodeHandle.getNodeInfo().getLegalIdentities().get(0).getName().getOrganisation()));
                 }
             } catch (Exception e) {
                 throw new RuntimeException("Caught exception during test", e);
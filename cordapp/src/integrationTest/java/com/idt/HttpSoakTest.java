@@ -0,0 +1,237 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.testing.driver.DriverParameters;
+import net.corda.testing.driver.NodeHandle;
+import net.corda.testing.driver.NodeParameters;
+import net.corda.testing.driver.WebserverHandle;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.corda.testing.driver.Driver.driver;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Soaks the web API of a source, an approver and a buyer node with an open-loop mix of create, approve, transfer and
+ * query calls, and fails when the latency SLO or the error budget is missed.
+ *
+ * Requests arrive at idt.soak.rate per second for idt.soak.durationSeconds, whether or not earlier ones have completed,
+ * and latency is measured from each request's scheduled arrival, so a slow server cannot hide its queueing delay. The
+ * mix is idt.soak.mix, e.g. "create=3,approve=2,transfer=1,query=4"; an approve or transfer with no stone ready for it
+ * runs as a query instead. The report is printed and written to idt.soak.out.
+ */
+public class HttpSoakTest {
+    private static final double RATE = Double.parseDouble(System.getProperty("idt.soak.rate", "10"));
+    private static final long DURATION_SECONDS = Long.getLong("idt.soak.durationSeconds", 60L);
+    private static final String MIX = System.getProperty("idt.soak.mix", "create=3,approve=2,transfer=1,query=4");
+    private static final double SLO_P50_MILLIS = Double.parseDouble(System.getProperty("idt.soak.sloP50Millis", "1000"));
+    private static final double SLO_P99_MILLIS = Double.parseDouble(System.getProperty("idt.soak.sloP99Millis", "5000"));
+    private static final double MAX_ERROR_RATE = Double.parseDouble(System.getProperty("idt.soak.maxErrorRate", "0.01"));
+    private static final String QUERY_PATH = System.getProperty("idt.soak.queryPath", "/api/idt/diamonds");
+    private static final String OUT = System.getProperty("idt.soak.out", "build/soak-report.txt");
+
+    private static final CordaX500Name SOURCE = new CordaX500Name("PartyA", "London", "GB");
+    private static final CordaX500Name APPROVER = new CordaX500Name("PartyB", "New York", "US");
+    private static final CordaX500Name BUYER = new CordaX500Name("PartyC", "Paris", "FR");
+    private static final RequestBody EMPTY = RequestBody.create(MediaType.parse("text/plain"), "");
+
+    private final OkHttpClient client = new OkHttpClient.Builder()
+            .readTimeout(2, TimeUnit.MINUTES)
+            .build();
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    // Stones waiting for approval, and approved stones the source can transfer.
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<String> approved = new ConcurrentLinkedQueue<>();
+
+    private String sourceUrl;
+    private String approverUrl;
+
+    private static class Stats {
+        private final Queue<Long> latencies = new ConcurrentLinkedQueue<>();
+        private final AtomicLong errors = new AtomicLong();
+
+        long[] sorted() {
+            final long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+    }
+
+    /**
+     * The operations of the mix in proportion to their weights, e.g. [create, create, create, approve, ...].
+     */
+    private static List<String> parseMix(String mix) {
+        final List<String> operations = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            final String[] parts = entry.trim().split("=");
+            for (int i = 0; i < Integer.parseInt(parts[1].trim()); i++) {
+                operations.add(parts[0].trim());
+            }
+        }
+        return operations;
+    }
+
+    private boolean call(Request request) throws Exception {
+        try (Response response = client.newCall(request).execute()) {
+            return response.isSuccessful();
+        }
+    }
+
+    /**
+     * Runs one operation and returns the operation that was actually run.
+     */
+    private String run(String operation) throws Exception {
+        switch (operation) {
+            case "create": {
+                final String id = UUID.randomUUID().toString();
+                final String url = String.format("%s/api/idt/create?externalId=%s&description=Soak&carats=1.1&cost=1000&percent=5&approver=%s",
+                        sourceUrl, id, APPROVER);
+                if (!call(new Request.Builder().url(url).put(EMPTY).build())) {
+                    throw new IllegalStateException("create failed");
+                }
+                pending.add(id);
+                return operation;
+            }
+            case "approve": {
+                final String id = pending.poll();
+                if (id == null) {
+                    return run("query");
+                }
+                if (!call(new Request.Builder().url(approverUrl + "/api/idt/approve/" + id).build())) {
+                    throw new IllegalStateException("approve failed");
+                }
+                approved.add(id);
+                return operation;
+            }
+            case "transfer": {
+                final String id = approved.poll();
+                if (id == null) {
+                    return run("query");
+                }
+                final String url = String.format("%s/api/idt/transfer?externalId=%s&newOwnerName=%s", sourceUrl, id, BUYER);
+                if (!call(new Request.Builder().url(url).put(EMPTY).build())) {
+                    throw new IllegalStateException("transfer failed");
+                }
+                return operation;
+            }
+            case "query": {
+                if (!call(new Request.Builder().url(sourceUrl + QUERY_PATH).build())) {
+                    throw new IllegalStateException("query failed");
+                }
+                return operation;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    private void record(String operation, long latencyNanos, boolean failed) {
+        final Stats opStats = stats.computeIfAbsent(operation, op -> new Stats());
+        opStats.latencies.add(latencyNanos);
+        if (failed) {
+            opStats.errors.incrementAndGet();
+        }
+    }
+
+    private void soak() throws Exception {
+        final List<String> mix = parseMix(MIX);
+        final Random random = new Random(42);
+        final long intervalNanos = (long) (1e9 / RATE);
+        final long total = (long) (RATE * DURATION_SECONDS);
+        final ScheduledExecutorService arrivals = Executors.newSingleThreadScheduledExecutor();
+        // Unbounded, so that slow responses never delay later arrivals.
+        final ExecutorService workers = Executors.newCachedThreadPool();
+        final long start = System.nanoTime();
+        for (long i = 0; i < total; i++) {
+            final long scheduled = start + i * intervalNanos;
+            final String operation = mix.get(random.nextInt(mix.size()));
+            arrivals.schedule(() -> workers.execute(() -> {
+                String ran = operation;
+                boolean failed = false;
+                try {
+                    ran = run(operation);
+                } catch (Exception ex) {
+                    failed = true;
+                }
+                record(ran, System.nanoTime() - scheduled, failed);
+            }), scheduled - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        arrivals.shutdown();
+        arrivals.awaitTermination(DURATION_SECONDS + 60, TimeUnit.SECONDS);
+        workers.shutdown();
+        workers.awaitTermination(10, TimeUnit.MINUTES);
+        final double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+        final Stats all = new Stats();
+        final StringBuilder report = new StringBuilder(String.format(
+                "Soak: %.1f req/s offered for %d s, mix %s%n%-10s %8s %8s %9s %9s %9s %9s %8s%n",
+                RATE, DURATION_SECONDS, MIX, "operation", "count", "req/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "errors"));
+        for (Map.Entry<String, Stats> entry : new TreeMap<>(stats).entrySet()) {
+            all.latencies.addAll(entry.getValue().latencies);
+            all.errors.addAndGet(entry.getValue().errors.get());
+            report.append(line(entry.getKey(), entry.getValue(), elapsedSeconds));
+        }
+        report.append(line("all", all, elapsedSeconds));
+        System.out.print(report);
+        final File out = new File(OUT);
+        if (out.getParentFile() != null) {
+            out.getParentFile().mkdirs();
+        }
+        try (PrintWriter writer = new PrintWriter(out)) {
+            writer.print(report);
+        }
+
+        final long[] sorted = all.sorted();
+        final double errorRate = sorted.length == 0 ? 1 : all.errors.get() / (double) sorted.length;
+        assertTrue(String.format("p50 %.1f ms exceeds the SLO of %.1f ms", percentile(sorted, 0.50), SLO_P50_MILLIS),
+                percentile(sorted, 0.50) <= SLO_P50_MILLIS);
+        assertTrue(String.format("p99 %.1f ms exceeds the SLO of %.1f ms", percentile(sorted, 0.99), SLO_P99_MILLIS),
+                percentile(sorted, 0.99) <= SLO_P99_MILLIS);
+        assertTrue(String.format("Error rate %.4f exceeds %.4f", errorRate, MAX_ERROR_RATE), errorRate <= MAX_ERROR_RATE);
+    }
+
+    private static String line(String operation, Stats opStats, double elapsedSeconds) {
+        final long[] sorted = opStats.sorted();
+        return String.format("%-10s %8d %8.2f %9.1f %9.1f %9.1f %9.1f %8d%n", operation, sorted.length,
+                sorted.length / elapsedSeconds, percentile(sorted, 0.50), percentile(sorted, 0.90),
+                percentile(sorted, 0.99), percentile(sorted, 1.0), opStats.errors.get());
+    }
+
+    @Test
+    public void mixedWorkloadMeetsTheLatencySlo() {
+        driver(new DriverParameters().withStartNodesInProcess(true)
+                .withExtraCordappPackagesToScan(ImmutableList.of("com.idt")), dsl -> {
+            try {
+                final NodeHandle source = dsl.startNode(new NodeParameters().withProvidedName(SOURCE)).get();
+                final NodeHandle approver = dsl.startNode(new NodeParameters().withProvidedName(APPROVER)).get();
+                dsl.startNode(new NodeParameters().withProvidedName(BUYER)).get();
+                final WebserverHandle sourceWeb = dsl.startWebserver(source).get();
+                final WebserverHandle approverWeb = dsl.startWebserver(approver).get();
+                sourceUrl = "http://" + sourceWeb.getListenAddress();
+                approverUrl = "http://" + approverWeb.getListenAddress();
+                soak();
+            } catch (Exception e) {
+                throw new RuntimeException("Caught exception during soak", e);
+            }
+            return null;
+        });
+    }
+}
@@ -0,0 +1,61 @@
+package com.idt;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Times every API request as an {@link ApiRequestEvent}. An endpoint that starts a flow sets the {@link #FLOW_ID}
+ * request attribute, so a slow request can be matched with the {@link FlowStepEvent}s of its flow.
+ */
+@Provider
+public class ApiEventFilter implements ContainerRequestFilter, ContainerResponseFilter {
+    public static final String FLOW_ID = "idt.flowId";
+    private static final String EVENT = ApiEventFilter.class.getName() + ".event";
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    @Context
+    private HttpServletRequest httpRequest;
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+        if (!JfrEvents.ENABLED) {
+            return;
+        }
+        final ApiRequestEvent event = new ApiRequestEvent();
+        event.begin();
+        request.setProperty(EVENT, event);
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+        final Object property = request.getProperty(EVENT);
+        if (!(property instanceof ApiRequestEvent)) {
+            return;
+        }
+        final ApiRequestEvent event = (ApiRequestEvent) property;
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.method = request.getMethod();
+        event.endpoint = resourceInfo != null && resourceInfo.getResourceMethod() != null
+                ? resourceInfo.getResourceMethod().getName()
+                : null;
+        event.path = request.getUriInfo().getPath();
+        event.status = response.getStatus();
+        event.caller = request.getHeaderString("X-Client-Id") != null
+                ? request.getHeaderString("X-Client-Id")
+                : httpRequest != null ? httpRequest.getRemoteAddr() : null;
+        final Object flowId = httpRequest != null ? httpRequest.getAttribute(FLOW_ID) : null;
+        event.flowId = flowId != null ? flowId.toString() : null;
+        event.commit();
+    }
+}
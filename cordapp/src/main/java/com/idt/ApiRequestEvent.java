@@ -0,0 +1,38 @@
+package com.idt;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One request to a {@link DiamondChainApi} endpoint, from the request filter until its response headers are written.
+ */
+@Name("com.idt.ApiRequest")
+@Label("Diamond API Request")
+@Category({"IDT", "API"})
+@Description("A request to the diamond web API")
+@StackTrace(false)
+public class ApiRequestEvent extends Event {
+    @Label("Method")
+    public String method;
+
+    @Label("Endpoint")
+    @Description("The name of the resource method that served the request")
+    public String endpoint;
+
+    @Label("Path")
+    public String path;
+
+    @Label("Status")
+    public int status;
+
+    @Label("Caller")
+    public String caller;
+
+    @Label("Flow Id")
+    @Description("The run id of the flow the request started or attached to, if any")
+    public String flowId;
+}
@@ -0,0 +1,104 @@
+package com.idt;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import net.corda.core.identity.CordaX500Name;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Assigns new diamonds to a pool of approvers by consistent hashing of their linear id.
+ *
+ * Each approver owns idt.approverPool.vnodes points on a hash ring per unit of declared capacity, and a diamond goes
+ * to the owner of the first point at or after the hash of its linear id. The share of diamonds an approver receives is
+ * proportional to its weight, and adding an approver only moves to it the diamonds that land on its new points; no
+ * diamond moves between the existing approvers.
+ *
+ * The pool is read from idt.approverPool as entries separated by ';', each an X500 name optionally followed by
+ * '@' and its weight, e.g. "O=PartyB,L=New York,C=US@2;O=PartyD,L=Antwerp,C=BE".
+ */
+public class ApproverPool {
+    public static final String PROPERTY = "idt.approverPool";
+    private static final int VIRTUAL_NODES = Integer.getInteger("idt.approverPool.vnodes", 160);
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final Map<CordaX500Name, Integer> weights;
+    private final TreeMap<Long, CordaX500Name> ring = new TreeMap<>();
+
+    public ApproverPool(Map<CordaX500Name, Integer> weights) {
+        this.weights = Collections.unmodifiableMap(new LinkedHashMap<>(weights));
+        for (Map.Entry<CordaX500Name, Integer> approver : weights.entrySet()) {
+            if (approver.getValue() <= 0) {
+                throw new IllegalArgumentException("Weight of approver " + approver.getKey() + " must be positive.");
+            }
+            final String name = approver.getKey().toString();
+            for (int i = 0; i < approver.getValue() * VIRTUAL_NODES; i++) {
+                // On the rare collision the point stays with the name that sorts first, whatever the insertion order.
+                ring.merge(hash(name + "#" + i), approver.getKey(),
+                        (current, candidate) -> current.toString().compareTo(candidate.toString()) <= 0 ? current : candidate);
+            }
+        }
+    }
+
+    /**
+     * Parses a pool specification in the format of idt.approverPool.
+     */
+    public static ApproverPool parse(String spec) {
+        final Map<CordaX500Name, Integer> weights = new LinkedHashMap<>();
+        if (spec != null) {
+            for (String entry : spec.split(";")) {
+                if (entry.trim().isEmpty()) {
+                    continue;
+                }
+                final int at = entry.lastIndexOf('@');
+                final String name = at < 0 ? entry : entry.substring(0, at);
+                final int weight = at < 0 ? 1 : Integer.parseInt(entry.substring(at + 1).trim());
+                weights.put(CordaX500Name.parse(name.trim()), weight);
+            }
+        }
+        return new ApproverPool(weights);
+    }
+
+    /**
+     * The pool configured through idt.approverPool, empty when the property is not set.
+     */
+    public static ApproverPool fromSystemProperties() {
+        return parse(System.getProperty(PROPERTY));
+    }
+
+    public boolean isEmpty() {
+        return ring.isEmpty();
+    }
+
+    public Map<CordaX500Name, Integer> getWeights() {
+        return weights;
+    }
+
+    /**
+     * The approver assigned to the diamond with the given linear id.
+     */
+    public CordaX500Name assign(UUID linearId) {
+        return assign(linearId, null);
+    }
+
+    /**
+     * The approver assigned to the diamond with the given linear id, skipping the excluded party, so that a source
+     * that is itself in the pool is never assigned its own diamonds.
+     */
+    public CordaX500Name assign(UUID linearId, CordaX500Name excluded) {
+        final long key = hash(linearId.toString());
+        for (SortedMap<Long, CordaX500Name> arc : Arrays.asList(ring.tailMap(key), ring.headMap(key))) {
+            for (CordaX500Name approver : arc.values()) {
+                if (!approver.equals(excluded)) {
+                    return approver;
+                }
+            }
+        }
+        throw new IllegalStateException("The approver pool has no approver other than " + excluded + ".");
+    }
+
+    private static long hash(String key) {
+        return HASH.hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+}
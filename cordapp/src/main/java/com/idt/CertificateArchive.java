@@ -0,0 +1,153 @@
+package com.idt;
+
+import net.corda.core.crypto.SecureHash;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Packs grading certificates into the zip archives that Corda stores as attachments, and computes the attachment hash
+ * while doing so.
+ *
+ * The archive is streamed to a temporary file through a SHA-256 digest, so neither the upload nor the archive is held
+ * in memory, and its hash is known before anything is sent to the node. Archives are deterministic, with fixed entry
+ * times and no comments, so the same certificates always give the same hash and an upload can be skipped when the
+ * node already has the attachment.
+ */
+public class CertificateArchive {
+    private static final long ENTRY_TIME = LocalDateTime.of(1980, 1, 1, 0, 0)
+            .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final SecureHash hash;
+    private final List<String> entries;
+
+    private CertificateArchive(Path file, SecureHash hash, List<String> entries) {
+        this.file = file;
+        this.hash = hash;
+        this.entries = entries;
+    }
+
+    public Path getFile() { return file; }
+    public SecureHash getHash() { return hash; }
+    public List<String> getEntries() { return entries; }
+
+    /**
+     * Packs one certificate, as an entry named after its SHA-256, e.g. "3A0F...C1.pdf". Entries of different single
+     * uploads thus never share a name, which Corda would reject as overlapping attachments when several stones with
+     * their own certificates are issued together.
+     */
+    public static CertificateArchive single(InputStream certificate, long maxBytes) throws IOException {
+        // The name has to be known before the entry is written, so the certificate is hashed into a file first.
+        final Path pdf = Files.createTempFile("idt-certificate", ".pdf");
+        try {
+            final MessageDigest digest = sha256();
+            try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(pdf), BUFFER_SIZE), digest)) {
+                transfer(certificate, out, maxBytes);
+            }
+            final String name = new SecureHash.SHA256(digest.digest()) + ".pdf";
+            return pack((zip, entries) -> {
+                try (InputStream in = Files.newInputStream(pdf)) {
+                    copy(in, zip, name, maxBytes);
+                }
+                entries.add(name);
+            });
+        } finally {
+            Files.deleteIfExists(pdf);
+        }
+    }
+
+    /**
+     * Repacks the files of an uploaded zip, in their order, into one archive, e.g. the certificates of an intake.
+     */
+    public static CertificateArchive batch(InputStream upload, long maxBytes) throws IOException {
+        return pack((zip, entries) -> {
+            final ZipInputStream in = new ZipInputStream(upload);
+            final Set<String> names = new HashSet<>();
+            long total = 0;
+            for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                final String name = entry.getName();
+                if (name.startsWith("/") || name.contains("..") || name.contains("\\")) {
+                    throw new IllegalArgumentException("Certificate " + name + " has an unsafe name.");
+                }
+                if (!names.add(name)) {
+                    throw new IllegalArgumentException("Certificate " + name + " occurs twice.");
+                }
+                total += copy(in, zip, name, maxBytes - total);
+                entries.add(name);
+            }
+            if (entries.isEmpty()) {
+                throw new IllegalArgumentException("The upload holds no certificates.");
+            }
+        });
+    }
+
+    private interface Packer {
+        void pack(ZipOutputStream zip, List<String> entries) throws IOException;
+    }
+
+    private static CertificateArchive pack(Packer packer) throws IOException {
+        final Path file = Files.createTempFile("idt-certificates", ".zip");
+        final MessageDigest digest = sha256();
+        final List<String> entries = new ArrayList<>();
+        try (ZipOutputStream zip = new ZipOutputStream(new DigestOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE), digest))) {
+            packer.pack(zip, entries);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+        return new CertificateArchive(file, new SecureHash.SHA256(digest.digest()), Collections.unmodifiableList(entries));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static long copy(InputStream in, ZipOutputStream zip, String name, long maxBytes) throws IOException {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setTime(ENTRY_TIME);
+        zip.putNextEntry(entry);
+        final long copied = transfer(in, zip, maxBytes);
+        zip.closeEntry();
+        return copied;
+    }
+
+    private static long transfer(InputStream in, OutputStream out, long maxBytes) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long copied = 0;
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+            copied += read;
+            if (copied > maxBytes) {
+                throw new IllegalArgumentException("The certificates exceed " + maxBytes + " bytes.");
+            }
+            out.write(buffer, 0, read);
+        }
+        return copied;
+    }
+
+    /**
+     * Deletes the temporary archive.
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+}
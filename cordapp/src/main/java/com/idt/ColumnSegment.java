@@ -0,0 +1,329 @@
+package com.idt;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An immutable file holding a block of rows column by column.
+ *
+ * The file starts with an uncompressed header: the row count and, for every column, its name, type, min and max and
+ * the position of its data. Each column is compressed separately, so a scan reads the header, decides from the
+ * statistics whether the segment can match at all, and then decompresses only the columns it uses.
+ *
+ * LONG columns are delta encoded, which suits timestamps. STRING columns are dictionary encoded: a column keeps the
+ * distinct values in a dictionary block of its own and stores the code of each row's value, so a party name is stored
+ * once per segment, and whether a value occurs at all is answered by reading the dictionary alone. Their min and max
+ * are the smallest and largest code.
+ */
+public class ColumnSegment {
+    private static final int MAGIC = 0x49445443; // "IDTC"
+    private static final int VERSION = 1;
+
+    public enum Type { LONG, DOUBLE, STRING }
+
+    /**
+     * A column's type, statistics and place in the file.
+     */
+    public static class ColumnInfo {
+        private final String name;
+        private final Type type;
+        private final double min;
+        private final double max;
+        private final long offset;
+        private final int length;
+        private final long dictionaryOffset;
+        private final int dictionaryLength;
+
+        ColumnInfo(String name, Type type, double min, double max, long offset, int length, long dictionaryOffset, int dictionaryLength) {
+            this.name = name;
+            this.type = type;
+            this.min = min;
+            this.max = max;
+            this.offset = offset;
+            this.length = length;
+            this.dictionaryOffset = dictionaryOffset;
+            this.dictionaryLength = dictionaryLength;
+        }
+
+        public String getName() { return name; }
+        public Type getType() { return type; }
+        public double getMin() { return min; }
+        public double getMax() { return max; }
+    }
+
+    /**
+     * Collects the columns of a segment and writes it.
+     */
+    public static class Writer {
+        private final int rows;
+        private final Map<String, Object> columns = new LinkedHashMap<>();
+        private final Map<String, Type> types = new LinkedHashMap<>();
+
+        public Writer(int rows) {
+            this.rows = rows;
+        }
+
+        public Writer longs(String name, long[] values) {
+            return add(name, Type.LONG, values, values.length);
+        }
+
+        public Writer doubles(String name, double[] values) {
+            return add(name, Type.DOUBLE, values, values.length);
+        }
+
+        public Writer strings(String name, String[] values) {
+            return add(name, Type.STRING, values, values.length);
+        }
+
+        private Writer add(String name, Type type, Object values, int length) {
+            if (length < rows) {
+                throw new IllegalArgumentException("Column " + name + " has " + length + " values for " + rows + " rows.");
+            }
+            columns.put(name, values);
+            types.put(name, type);
+            return this;
+        }
+
+        /**
+         * Writes the segment to a temporary file and moves it into place, so readers never see a partial segment.
+         */
+        public void write(Path path) throws IOException {
+            final List<byte[]> blocks = new ArrayList<>();
+            final List<byte[]> dictionaries = new ArrayList<>();
+            final List<double[]> stats = new ArrayList<>();
+            for (Map.Entry<String, Object> column : columns.entrySet()) {
+                final Map<String, Integer> dictionary = new LinkedHashMap<>();
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+                    switch (types.get(column.getKey())) {
+                        case LONG: {
+                            final long[] values = (long[]) column.getValue();
+                            long previous = 0;
+                            for (int i = 0; i < rows; i++) {
+                                out.writeLong(values[i] - previous);
+                                previous = values[i];
+                                min = Math.min(min, values[i]);
+                                max = Math.max(max, values[i]);
+                            }
+                            break;
+                        }
+                        case DOUBLE: {
+                            final double[] values = (double[]) column.getValue();
+                            for (int i = 0; i < rows; i++) {
+                                out.writeDouble(values[i]);
+                                min = Math.min(min, values[i]);
+                                max = Math.max(max, values[i]);
+                            }
+                            break;
+                        }
+                        case STRING: {
+                            final String[] values = (String[]) column.getValue();
+                            for (int i = 0; i < rows; i++) {
+                                final int code = dictionary.computeIfAbsent(values[i] == null ? "" : values[i], value -> dictionary.size());
+                                out.writeInt(code);
+                                min = Math.min(min, code);
+                                max = Math.max(max, code);
+                            }
+                            break;
+                        }
+                    }
+                }
+                blocks.add(bytes.toByteArray());
+                stats.add(new double[]{min, max});
+                final ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+                if (!dictionary.isEmpty()) {
+                    try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(dictionaryBytes))) {
+                        out.writeInt(dictionary.size());
+                        for (String value : dictionary.keySet()) {
+                            out.writeUTF(value);
+                        }
+                    }
+                }
+                dictionaries.add(dictionaryBytes.toByteArray());
+            }
+
+            final ByteArrayOutputStream header = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(header);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rows);
+            out.writeInt(columns.size());
+            final List<String> names = new ArrayList<>(columns.keySet());
+            // The offsets are relative to the end of the header, whose size does not depend on them.
+            long offset = 0;
+            for (int i = 0; i < names.size(); i++) {
+                out.writeUTF(names.get(i));
+                out.writeByte(types.get(names.get(i)).ordinal());
+                out.writeDouble(stats.get(i)[0]);
+                out.writeDouble(stats.get(i)[1]);
+                out.writeLong(offset);
+                out.writeInt(dictionaries.get(i).length);
+                offset += dictionaries.get(i).length;
+                out.writeLong(offset);
+                out.writeInt(blocks.get(i).length);
+                offset += blocks.get(i).length;
+            }
+            out.flush();
+
+            final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                final DataOutputStream headerLength = new DataOutputStream(file);
+                headerLength.writeInt(header.size());
+                header.writeTo(file);
+                for (int i = 0; i < blocks.size(); i++) {
+                    file.write(dictionaries.get(i));
+                    file.write(blocks.get(i));
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private final Path path;
+    private final int rows;
+    private final Map<String, ColumnInfo> columns = new LinkedHashMap<>();
+    private final long dataStart;
+    private final Map<String, List<String>> dictionaries = new HashMap<>();
+
+    private ColumnSegment(Path path) throws IOException {
+        this.path = path;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            final int headerLength = in.readInt();
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(path + " is not a column segment of version " + VERSION);
+            }
+            this.rows = in.readInt();
+            final int columnCount = in.readInt();
+            for (int i = 0; i < columnCount; i++) {
+                final String name = in.readUTF();
+                final Type type = Type.values()[in.readByte()];
+                final double min = in.readDouble();
+                final double max = in.readDouble();
+                final long dictionaryOffset = in.readLong();
+                final int dictionaryLength = in.readInt();
+                columns.put(name, new ColumnInfo(name, type, min, max, in.readLong(), in.readInt(), dictionaryOffset, dictionaryLength));
+            }
+            this.dataStart = 4L + headerLength;
+        }
+    }
+
+    /**
+     * Reads the header of a segment; the columns are read when they are asked for.
+     */
+    public static ColumnSegment open(Path path) throws IOException {
+        return new ColumnSegment(path);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public ColumnInfo info(String column) {
+        final ColumnInfo info = columns.get(column);
+        if (info == null) {
+            throw new IllegalArgumentException("Segment " + path + " has no column " + column);
+        }
+        return info;
+    }
+
+    /**
+     * The values of a STRING column, by code.
+     */
+    public synchronized List<String> dictionary(String column) throws IOException {
+        List<String> dictionary = dictionaries.get(column);
+        if (dictionary == null) {
+            final ColumnInfo info = expect(column, Type.STRING);
+            final List<String> values = new ArrayList<>();
+            if (info.dictionaryLength > 0) {
+                try (DataInputStream in = block(dataStart + info.dictionaryOffset, info.dictionaryLength)) {
+                    final int size = in.readInt();
+                    for (int i = 0; i < size; i++) {
+                        values.add(in.readUTF());
+                    }
+                }
+            }
+            dictionary = Collections.unmodifiableList(values);
+            dictionaries.put(column, dictionary);
+        }
+        return dictionary;
+    }
+
+    /**
+     * The code of a value in a STRING column, or -1 when no row of the segment has it there.
+     */
+    public int code(String column, String value) throws IOException {
+        return dictionary(column).indexOf(value);
+    }
+
+    public long[] longs(String column) throws IOException {
+        final ColumnInfo info = expect(column, Type.LONG);
+        final long[] values = new long[rows];
+        try (DataInputStream in = block(dataStart + info.offset, info.length)) {
+            long previous = 0;
+            for (int i = 0; i < rows; i++) {
+                previous += in.readLong();
+                values[i] = previous;
+            }
+        }
+        return values;
+    }
+
+    public double[] doubles(String column) throws IOException {
+        final ColumnInfo info = expect(column, Type.DOUBLE);
+        final double[] values = new double[rows];
+        try (DataInputStream in = block(dataStart + info.offset, info.length)) {
+            for (int i = 0; i < rows; i++) {
+                values[i] = in.readDouble();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The dictionary codes of a STRING column.
+     */
+    public int[] codes(String column) throws IOException {
+        final ColumnInfo info = expect(column, Type.STRING);
+        final int[] values = new int[rows];
+        try (DataInputStream in = block(dataStart + info.offset, info.length)) {
+            for (int i = 0; i < rows; i++) {
+                values[i] = in.readInt();
+            }
+        }
+        return values;
+    }
+
+    private ColumnInfo expect(String column, Type type) {
+        final ColumnInfo info = info(column);
+        if (info.type != type) {
+            throw new IllegalArgumentException("Column " + column + " is of type " + info.type + ", not " + type);
+        }
+        return info;
+    }
+
+    private DataInputStream block(long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Segment " + path + " is truncated");
+                }
+            }
+        }
+        return new DataInputStream(new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(buffer.array()), 8192)));
+    }
+}
@@ -0,0 +1,161 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Coalesces concurrent create requests for the same approver into a single {@link DiamondBatchCreateFlow}.
+ *
+ * The first request for an approver opens a batch that is issued after idt.create.batchWindowMillis, or as soon as it
+ * holds idt.create.maxBatch requests. Every request of the batch completes with the shared transaction. If the batch
+ * fails, for instance because one external id is already in use, each of its requests is retried on its own, so a
+ * bad request cannot fail the others. Batching is off while the window is 0, the default.
+ */
+public class CreateBatcher {
+    private static final Logger logger = LoggerFactory.getLogger(CreateBatcher.class);
+
+    /**
+     * Starts a flow that issues the given DiamondAssets with the approver.
+     */
+    public interface Starter {
+        CompletableFuture<SignedTransaction> start(Party approver, List<DiamondBatchCreateFlow.Item> items) throws Exception;
+    }
+
+    private final long windowMillis;
+    private final int maxBatch;
+    private final Starter batchStarter;
+    private final Starter singleStarter;
+    private final Map<Party, Batch> open = new HashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("idt-create-batch-timer").build());
+    // Starting a flow can wait for admission, so it does not run on the timer thread.
+    private final ExecutorService dispatcher = Executors.newFixedThreadPool(4,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("idt-create-batch-%d").build());
+
+    public CreateBatcher(Starter batchStarter, Starter singleStarter) {
+        this(Long.getLong("idt.create.batchWindowMillis", 0L), Integer.getInteger("idt.create.maxBatch", 50),
+                batchStarter, singleStarter);
+    }
+
+    public CreateBatcher(long windowMillis, int maxBatch, Starter batchStarter, Starter singleStarter) {
+        this.windowMillis = windowMillis;
+        this.maxBatch = maxBatch;
+        this.batchStarter = batchStarter;
+        this.singleStarter = singleStarter;
+    }
+
+    public boolean isEnabled() {
+        return windowMillis > 0 && maxBatch > 1;
+    }
+
+    /**
+     * Adds a create request to the open batch of its approver. The future completes with the transaction that issued it.
+     */
+    public CompletableFuture<SignedTransaction> submit(Party approver, DiamondBatchCreateFlow.Item item) {
+        final Request request = new Request(item);
+        Batch full = null;
+        synchronized (this) {
+            Batch batch = open.get(approver);
+            if (batch == null) {
+                final Batch opened = new Batch(approver);
+                opened.timer = timer.schedule(() -> close(opened), windowMillis, TimeUnit.MILLISECONDS);
+                open.put(approver, opened);
+                batch = opened;
+            }
+            batch.requests.add(request);
+            if (batch.requests.size() >= maxBatch) {
+                open.remove(approver);
+                batch.timer.cancel(false);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            final Batch dispatched = full;
+            dispatcher.execute(() -> dispatch(dispatched));
+        }
+        return request.result;
+    }
+
+    private void close(Batch batch) {
+        synchronized (this) {
+            if (open.get(batch.approver) != batch) {
+                return;
+            }
+            open.remove(batch.approver);
+        }
+        dispatcher.execute(() -> dispatch(batch));
+    }
+
+    private void dispatch(Batch batch) {
+        if (batch.requests.size() == 1) {
+            startSingle(batch.approver, batch.requests.get(0));
+            return;
+        }
+        final List<DiamondBatchCreateFlow.Item> items = new ArrayList<>(batch.requests.size());
+        for (Request request : batch.requests) {
+            items.add(request.item);
+        }
+        start(batchStarter, batch.approver, items).whenComplete((signedTx, error) -> {
+            if (error == null) {
+                for (Request request : batch.requests) {
+                    request.result.complete(signedTx);
+                }
+            } else {
+                logger.warn("Batch of {} creates for {} failed, issuing them one by one: {}", items.size(),
+                        batch.approver.getName(), error.getMessage());
+                for (Request request : batch.requests) {
+                    dispatcher.execute(() -> startSingle(batch.approver, request));
+                }
+            }
+        });
+    }
+
+    private void startSingle(Party approver, Request request) {
+        start(singleStarter, approver, ImmutableList.of(request.item)).whenComplete((signedTx, error) -> {
+            if (error == null) {
+                request.result.complete(signedTx);
+            } else {
+                request.result.completeExceptionally(error);
+            }
+        });
+    }
+
+    private static CompletableFuture<SignedTransaction> start(Starter starter, Party approver, List<DiamondBatchCreateFlow.Item> items) {
+        try {
+            return starter.start(approver, items);
+        } catch (Exception ex) {
+            final CompletableFuture<SignedTransaction> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+    }
+
+    private static class Batch {
+        private final Party approver;
+        private final List<Request> requests = new ArrayList<>();
+        private ScheduledFuture<?> timer;
+
+        Batch(Party approver) {
+            this.approver = approver;
+        }
+    }
+
+    private static class Request {
+        private final DiamondBatchCreateFlow.Item item;
+        private final CompletableFuture<SignedTransaction> result = new CompletableFuture<>();
+
+        Request(DiamondBatchCreateFlow.Item item) {
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableSet;
+import net.corda.client.rpc.CordaRPCClient;
+import net.corda.client.rpc.CordaRPCClientConfiguration;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+import net.corda.core.utilities.NetworkHostAndPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Keeps a {@link DiamondColumnStore} up to date with a node's vault and queries it, so historical analytics run
+ * against local files instead of the node's database.
+ *
+ * "ingest" copies the DiamondAssetState versions recorded and consumed since the store's watermarks, paging through
+ * the vault in time order, and with a follow interval keeps doing so. "query" aggregates the store, e.g. the carats
+ * traded per month per owner:
+ *
+ *   query build/columns event=CONSUMED groupBy=month,owner from=2018-01-01T00:00:00Z
+ */
+public class DiamondAnalyticsClient {
+    private static final Logger logger = LoggerFactory.getLogger(DiamondAnalyticsClient.class);
+    private static final int PAGE_SIZE = 1000;
+    private static final int SEGMENT_ROWS = Integer.getInteger("idt.columns.segmentRows", 100_000);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 3 && args[0].equals("ingest")) {
+            final NetworkHostAndPort nodeAddress = NetworkHostAndPort.parse(args[1]);
+            final DiamondColumnStore store = new DiamondColumnStore(Paths.get(args[2]));
+            final long followSeconds = args.length > 3 ? Long.parseLong(args[3]) : 0;
+            final CordaRPCClient client = new CordaRPCClient(nodeAddress, CordaRPCClientConfiguration.DEFAULT);
+
+            // Can be amended in the Main file.
+            final CordaRPCOps proxy = client.start("user1", "test").getProxy();
+            do {
+                final long produced = ingest(proxy, store, DiamondColumnStore.PRODUCED);
+                final long consumed = ingest(proxy, store, DiamondColumnStore.CONSUMED);
+                logger.info("Ingested {} produced and {} consumed DiamondAsset versions into {}", produced, consumed, args[2]);
+                Thread.sleep(followSeconds * 1000);
+            } while (followSeconds > 0);
+        } else if (args.length >= 2 && args[0].equals("query")) {
+            final DiamondColumnStore.Query query = new DiamondColumnStore.Query();
+            for (int i = 2; i < args.length; i++) {
+                final String[] option = args[i].split("=", 2);
+                switch (option[0]) {
+                    case "from": query.from(Instant.parse(option[1])); break;
+                    case "to": query.to(Instant.parse(option[1])); break;
+                    case "groupBy": query.groupBy(option[1].split(",")); break;
+                    default: query.where(option[0], option[1]);
+                }
+            }
+            final List<DiamondColumnStore.Group> groups = new DiamondColumnStore(Paths.get(args[1])).query(query);
+            System.out.println("group,count,carats,cost,box_value");
+            for (DiamondColumnStore.Group group : groups) {
+                System.out.printf("\"%s\",%d,%.4f,%.2f,%.2f%n", String.join("|", group.getKey()).replace("\"", "\"\""),
+                        group.getCount(), group.getCarats(), group.getCost(), group.getBoxValue());
+            }
+        } else {
+            throw new IllegalArgumentException("Usage: DiamondAnalyticsClient ingest <node address> <store directory> [follow seconds]\n"
+                    + "       DiamondAnalyticsClient query <store directory> [from=<instant>] [to=<instant>] [groupBy=<columns>] [<column>=<value>...]");
+        }
+    }
+
+    /**
+     * Appends the events of one kind since the store's watermark, a segment per SEGMENT_ROWS events. Returns the
+     * number of events appended.
+     */
+    public static long ingest(CordaRPCOps proxy, DiamondColumnStore store, String event) throws IOException {
+        final boolean produced = event.equals(DiamondColumnStore.PRODUCED);
+        final QueryCriteria.TimeCondition since = new QueryCriteria.TimeCondition(
+                produced ? QueryCriteria.TimeInstantType.RECORDED : QueryCriteria.TimeInstantType.CONSUMED,
+                new ColumnPredicate.BinaryComparison<>(BinaryComparisonOperator.GREATER_THAN_OR_EQUAL, store.watermark(event)));
+        final QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(
+                produced ? Vault.StateStatus.ALL : Vault.StateStatus.CONSUMED,
+                ImmutableSet.of(DiamondAssetState.class), null, null, null, since);
+        final Sort sort = new Sort(ImmutableSet.of(new Sort.SortColumn(new SortAttribute.Standard(
+                produced ? Sort.VaultStateAttribute.RECORDED_TIME : Sort.VaultStateAttribute.CONSUMED_TIME), Sort.Direction.ASC)));
+
+        long appended = 0;
+        final List<DiamondColumnStore.Event> batch = new ArrayList<>();
+        int pageNumber = DEFAULT_PAGE_NUM;
+        Vault.Page<DiamondAssetState> page;
+        do {
+            page = proxy.vaultQueryBy(criteria, new PageSpecification(pageNumber, PAGE_SIZE), sort, DiamondAssetState.class);
+            for (int i = 0; i < page.getStates().size(); i++) {
+                final StateAndRef<DiamondAssetState> stateAndRef = page.getStates().get(i);
+                final Vault.StateMetadata metadata = page.getStatesMetadata().get(i);
+                final DiamondAssetState diamond = stateAndRef.getState().getData();
+                final DiamondColumnStore.Event row = new DiamondColumnStore.Event(
+                        (produced ? metadata.getRecordedTime() : metadata.getConsumedTime()).toEpochMilli(),
+                        event,
+                        diamond.getLinearId().toString(),
+                        stateAndRef.getRef().toString(),
+                        diamond.getOwner().getName().toString(),
+                        diamond.getSource().getName().toString(),
+                        diamond.getApprover().getName().toString(),
+                        String.valueOf(diamond.getApprovalStatus()),
+                        diamond.getCarats(),
+                        diamond.getCost(),
+                        diamond.getBoxValue());
+                if (!store.isRecorded(row)) {
+                    batch.add(row);
+                }
+            }
+            if (batch.size() >= SEGMENT_ROWS) {
+                store.append(batch);
+                appended += batch.size();
+                batch.clear();
+            }
+            pageNumber++;
+        } while ((long) (pageNumber - 1) * PAGE_SIZE < page.getTotalStatesAvailable());
+        store.append(batch);
+        return appended + batch.size();
+    }
+}
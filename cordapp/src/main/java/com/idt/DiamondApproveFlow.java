@@ -2,19 +2,19 @@ package com.idt;
 
 import co.paralleluniverse.fibers.Suspendable;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
 import net.corda.core.contracts.*;
 import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
-import net.corda.core.node.services.Vault;
-import net.corda.core.node.services.vault.QueryCriteria;
 import net.corda.core.node.services.vault.QueryCriteriaUtils;
+import net.corda.core.transactions.LedgerTransaction;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
-import net.corda.core.utilities.ProgressTracker;
 
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import static com.idt.DiamondChainContract.DC_CONTRACT_ID;
 import static net.corda.core.contracts.ContractsDSL.requireThat;
@@ -25,41 +25,12 @@ public class DiamondApproveFlow {
      */
     @InitiatingFlow
     @StartableByRPC
-    public static class Initiator extends FlowLogic<SignedTransaction> {
+    public static class Initiator extends DiamondFlowBase {
         /**
          * Define the fields to be used to initialise the DiamondAssetState
          */
         private final UniqueIdentifier id;
         private final boolean approve;
-        /**
-         * The progress tracker provides checkpoints indicating the progress of the flow to observers.
-         */
-        private final ProgressTracker.Step GENERATING_TRANSACTION = new ProgressTracker.Step("Generating transaction based on new DiamondAsset.");
-        private final ProgressTracker.Step VERIFYING_TRANSACTION = new ProgressTracker.Step("Verifying contract constraints.");
-        private final ProgressTracker.Step SIGNING_TRANSACTION = new ProgressTracker.Step("Signing transaction with our private key.");
-        private final ProgressTracker.Step GATHERING_SIGS = new ProgressTracker.Step("Gathering the counterparty's signature.") {
-            @Override
-            public ProgressTracker childProgressTracker() {
-                return CollectSignaturesFlow.Companion.tracker();
-            }
-        };
-        private final ProgressTracker.Step FINALISING_TRANSACTION = new ProgressTracker.Step("Obtaining notary signature and recording transaction.") {
-            @Override
-            public ProgressTracker childProgressTracker() {
-                return FinalityFlow.Companion.tracker();
-            }
-        };
-
-        // The progress tracker checkpoints each stage of the flow and outputs the specified messages when each
-        // checkpoint is reached in the code. See the 'progressTracker.currentStep' expressions within the call()
-        // function.
-        private final ProgressTracker progressTracker = new ProgressTracker(
-                GENERATING_TRANSACTION,
-                VERIFYING_TRANSACTION,
-                SIGNING_TRANSACTION,
-                GATHERING_SIGS,
-                FINALISING_TRANSACTION
-        );
 
         /**
          * Define constructor to pass initialize DiamondAssetState object for the flow
@@ -70,56 +41,57 @@ public class DiamondApproveFlow {
             this.approve = approve;
         }
 
-        @Suspendable
-        @Override public SignedTransaction call() throws FlowException {
-            //var criteria = new QueryCriteria.LinearStateQueryCriteria()
-            QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(ImmutableList.of(getOurIdentity()), ImmutableList.of(id), Vault.StateStatus.UNCONSUMED, ImmutableSet.of(DiamondAssetState.class));
-            List<StateAndRef<DiamondAssetState>> stateAndRefs = getServiceHub().getVaultService().queryBy(DiamondAssetState.class, criteria).getStates();
-            if(stateAndRefs.size()>1){
-                throw new FlowException("External ID returned more than 1 result.");
+        @Override
+        protected UniqueIdentifier getLinearId() {
+            return id;
+        }
+
+        @Override
+        protected SignedTransaction prepare() throws FlowException {
+            final StateAndRef<DiamondAssetState> input = findUnconsumed();
+            //A retry of an earlier approval or decline returns the original transaction
+            final ApprovalStatus target = approve ? ApprovalStatus.APPROVED : ApprovalStatus.DECLINED;
+            if(input.getState().getData().getApprovalStatus()==target){
+                final SignedTransaction previous = producedBy(input, DiamondChainContract.Commands.Approve.class);
+                if(previous!=null){
+                    return previous;
+                }
             }
-            //We retrieve notary identity from the network map.
-            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
-            //Stage 1 - Generating the transaction
-            progressTracker.setCurrentStep(GENERATING_TRANSACTION);
-            //We create a transaction builder.
-            final TransactionBuilder txBuilder = new TransactionBuilder();
-            txBuilder.setNotary(notary);
+            reserve("approved");
+            final TransactionBuilder txBuilder = newTransaction();
             //We create the transaction components
-            DiamondAssetState diamondAssetState = (DiamondAssetState)stateAndRefs.get(0).getState().getData();
-            if(approve){
-                diamondAssetState.setApprovalStatus(ApprovalStatus.APPROVED);
-            }else{
-                diamondAssetState.setApprovalStatus(ApprovalStatus.DECLINED);
-            }
+            DiamondAssetState diamondAssetState = input.getState().getData().withApprovalStatus(target);
             StateAndContract outputStateAndContract = new StateAndContract(diamondAssetState, DC_CONTRACT_ID);
-            List<PublicKey> requiredSigners = ImmutableList.of(getOurIdentity().getOwningKey(), diamondAssetState.getSource().getOwningKey());
+            //With co-approvers, a quorum of the approvers signs through their composite approval key
+            final Set<PublicKey> requiredSigners = new LinkedHashSet<>(ImmutableList.of(getOurIdentity().getOwningKey(),
+                    diamondAssetState.getSource().getOwningKey(), DiamondChainContract.approvalKey(diamondAssetState)));
             final Command<DiamondChainContract.Commands.Approve> approveCmd = new Command<DiamondChainContract.Commands.Approve>(
-                    new DiamondChainContract.Commands.Approve(), requiredSigners);
+                    new DiamondChainContract.Commands.Approve(), new ArrayList<>(requiredSigners));
             //We add items to builder
-            txBuilder.withItems(stateAndRefs.get(0), outputStateAndContract, approveCmd);
-            //Stage 2 - Verify transaction
-            progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
-            //Verifying the transaction
-            txBuilder.verify(getServiceHub());
-
-            //Stage 3 - Signing transaction
-            progressTracker.setCurrentStep(SIGNING_TRANSACTION);
-            //Signing the transaction
-            final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder);
+            txBuilder.withItems(input, outputStateAndContract, approveCmd);
+            return verifyAndSign(txBuilder);
+        }
 
-            //Stage 4 - Gathering Signatures
-            progressTracker.setCurrentStep(GATHERING_SIGS);
-            //Creating a session with the other party
-            FlowSession sourcePartySession = initiateFlow(diamondAssetState.getSource());
+        @Suspendable
+        @Override
+        protected SignedTransaction gatherSignatures(SignedTransaction partSignedTx) throws FlowException {
+            //Creating a session with the source and every other approver up front
+            final List<FlowSession> sessions = new ArrayList<>();
+            for(Party counterparty : counterparties(partSignedTx)){
+                sessions.add(initiateFlow(counterparty));
+            }
+            //Obtaining the signatures concurrently, so the round takes as long as the slowest signer
+            return subFlow(new ParallelSignaturesFlow(partSignedTx, sessions));
+        }
 
-            //Obtaining Counterparty's signature
-            final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partSignedTx,
-                    ImmutableList.of(sourcePartySession), CollectSignaturesFlow.tracker()));
-            //Stage 5 - Finalising Transaction
-            progressTracker.setCurrentStep(FINALISING_TRANSACTION);
-            //Finalising the transaction
-            return subFlow(new FinalityFlow(fullySignedTx));
+        private Set<Party> counterparties(SignedTransaction partSignedTx) {
+            final DiamondAssetState diamondAssetState = partSignedTx.getTx().outputsOfType(DiamondAssetState.class).get(0);
+            final Set<Party> counterparties = new LinkedHashSet<>();
+            counterparties.add(diamondAssetState.getSource());
+            counterparties.add(diamondAssetState.getApprover());
+            counterparties.addAll(diamondAssetState.getCoApprovers());
+            counterparties.remove(getOurIdentity());
+            return counterparties;
         }
     }
 
@@ -137,23 +109,30 @@ public class DiamondApproveFlow {
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
-            class SignTxFlow extends SignTransactionFlow {
-                private SignTxFlow(FlowSession sourcePartySession, ProgressTracker progressTracker){
-                    super(sourcePartySession, progressTracker);
+            final Party me = getOurIdentity();
+            class SignTxFlow extends ParallelSignaturesFlow.Signer {
+                private SignTxFlow(FlowSession approverPartySession){
+                    super(approverPartySession);
                 }
                 @Override
-                protected void checkTransaction(SignedTransaction stx) {
+                protected void checkTransaction(SignedTransaction stx, LedgerTransaction ltx) {
                     requireThat(require->{
-                        require.using("The inputdata must be of size 1", stx.getTx().getInputs().size()==1);
-                        ContractState output = stx.getTx().getOutputs().get(0).getData();
-                        require.using("This must be a DiamondAssetState", output instanceof DiamondAssetState);
-                        DiamondAssetState diamondAsset = (DiamondAssetState) output;
+                        require.using("The inputdata must be of size 1", ltx.getInputs().size()==1);
+                        require.using("This must be a DiamondAssetState", ltx.getInputs().get(0).getState().getData() instanceof DiamondAssetState);
+                        DiamondAssetState diamondAsset = (DiamondAssetState) ltx.getInputs().get(0).getState().getData();
                         require.using("Approval status must be PENDING", diamondAsset.getApprovalStatus()==ApprovalStatus.PENDING);
+                        require.using("There must be one DiamondAssetState output", ltx.getOutputs().size()==1 && ltx.outputsOfType(DiamondAssetState.class).size()==1);
+                        final DiamondAssetState output = ltx.outputsOfType(DiamondAssetState.class).get(0);
+                        require.using("The output must be approved or declined", output.getApprovalStatus()==ApprovalStatus.APPROVED || output.getApprovalStatus()==ApprovalStatus.DECLINED);
+                        require.using("Only the approval status may change", diamondAsset.differsOnlyInApproval(output));
+                        final Party requester = approverPartySession.getCounterparty();
+                        require.using("The request must come from an approver", requester.equals(diamondAsset.getApprover()) || diamondAsset.getCoApprovers().contains(requester));
+                        require.using("We must be the source or one of the approvers", me.equals(diamondAsset.getSource()) || me.equals(diamondAsset.getApprover()) || diamondAsset.getCoApprovers().contains(me));
                         return null;
                     });
                 }
             }
-            return subFlow(new SignTxFlow(approverPartySession, SignTransactionFlow.Companion.tracker()));
+            return subFlow(new SignTxFlow(approverPartySession));
         }
     }
 }
@@ -0,0 +1,141 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableSet;
+import net.corda.client.rpc.CordaRPCClient;
+import net.corda.client.rpc.CordaRPCClientConfiguration;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+import net.corda.core.utilities.NetworkHostAndPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Exports the history of exited diamonds to a gzip compressed CSV archive.
+ *
+ * A diamond counts as exited when none of the versions of its linear id is unconsumed any more. Every consumed
+ * version of such a diamond is written to the archive, so the hot vault only needs to serve live inventory.
+ */
+public class DiamondArchiveClient {
+    private static final Logger logger = LoggerFactory.getLogger(DiamondArchiveClient.class);
+    private static final int PAGE_SIZE = 1000;
+    private static final String HEADER = "linear_id,state_ref,diamond_type,source,owner,approver,description,carats,cost,percent,box_value,approval_status,date_issued,consumed_time";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("Usage: DiamondArchiveClient <node address> <archive directory> [consumed after epoch millis]");
+        }
+
+        final NetworkHostAndPort nodeAddress = NetworkHostAndPort.parse(args[0]);
+        final Path archiveDir = Paths.get(args[1]);
+        final Instant since = args.length > 2 ? Instant.ofEpochMilli(Long.parseLong(args[2])) : Instant.EPOCH;
+        final CordaRPCClient client = new CordaRPCClient(nodeAddress, CordaRPCClientConfiguration.DEFAULT);
+
+        // Can be amended in the Main file.
+        final CordaRPCOps proxy = client.start("user1", "test").getProxy();
+
+        Files.createDirectories(archiveDir);
+        final Path archive = archiveDir.resolve(String.format("diamonds-exited-%d.csv.gz", System.currentTimeMillis()));
+        final long written = export(proxy, since, archive);
+        logger.info("Archived {} exited DiamondAsset versions to {}", written, archive);
+    }
+
+    /**
+     * Pages through the consumed DiamondAssetStates recorded after the given instant and writes the ones without a
+     * live successor to the archive. Returns the number of rows written.
+     */
+    public static long export(CordaRPCOps proxy, Instant since, Path archive) throws IOException {
+        final QueryCriteria.TimeCondition consumedSince = new QueryCriteria.TimeCondition(QueryCriteria.TimeInstantType.CONSUMED,
+                new ColumnPredicate.BinaryComparison<>(BinaryComparisonOperator.GREATER_THAN_OR_EQUAL, since));
+        final QueryCriteria consumed = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.CONSUMED,
+                ImmutableSet.of(DiamondAssetState.class), null, null, null, consumedSince);
+        final Sort sort = new Sort(ImmutableSet.of(new Sort.SortColumn(
+                new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME), Sort.Direction.ASC)));
+
+        long written = 0;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(Files.newOutputStream(archive)), StandardCharsets.UTF_8))) {
+            out.write(HEADER);
+            out.write('\n');
+            int pageNumber = DEFAULT_PAGE_NUM;
+            Vault.Page<DiamondAssetState> page;
+            do {
+                page = proxy.vaultQueryBy(consumed, new PageSpecification(pageNumber, PAGE_SIZE), sort, DiamondAssetState.class);
+                final Set<UniqueIdentifier> live = liveIds(proxy, page.getStates());
+                for (int i = 0; i < page.getStates().size(); i++) {
+                    final StateAndRef<DiamondAssetState> stateAndRef = page.getStates().get(i);
+                    if (live.contains(stateAndRef.getState().getData().getLinearId())) {
+                        continue;
+                    }
+                    writeRow(out, stateAndRef, page.getStatesMetadata().get(i).getConsumedTime());
+                    written++;
+                }
+                pageNumber++;
+            } while ((long) (pageNumber - 1) * PAGE_SIZE < page.getTotalStatesAvailable());
+        }
+        return written;
+    }
+
+    private static Set<UniqueIdentifier> liveIds(CordaRPCOps proxy, List<StateAndRef<DiamondAssetState>> states) {
+        if (states.isEmpty()) {
+            return Collections.emptySet();
+        }
+        final Set<UniqueIdentifier> ids = new HashSet<>();
+        for (StateAndRef<DiamondAssetState> stateAndRef : states) {
+            ids.add(stateAndRef.getState().getData().getLinearId());
+        }
+        final QueryCriteria unconsumed = new QueryCriteria.LinearStateQueryCriteria(null, new ArrayList<>(ids),
+                Vault.StateStatus.UNCONSUMED, ImmutableSet.of(DiamondAssetState.class));
+        final Set<UniqueIdentifier> live = new HashSet<>();
+        for (StateAndRef<DiamondAssetState> stateAndRef : proxy.vaultQueryBy(unconsumed,
+                new PageSpecification(DEFAULT_PAGE_NUM, ids.size()), new Sort(Collections.emptySet()), DiamondAssetState.class).getStates()) {
+            live.add(stateAndRef.getState().getData().getLinearId());
+        }
+        return live;
+    }
+
+    private static void writeRow(Writer out, StateAndRef<DiamondAssetState> stateAndRef, Instant consumedTime) throws IOException {
+        final DiamondAssetState diamond = stateAndRef.getState().getData();
+        final String[] columns = {
+                diamond.getLinearId().toString(),
+                stateAndRef.getRef().toString(),
+                String.valueOf(diamond.getDiamondType()),
+                diamond.getSource().getName().toString(),
+                diamond.getOwner().getName().toString(),
+                diamond.getApprover().getName().toString(),
+                diamond.getDescription(),
+                String.valueOf(diamond.getCarats()),
+                String.valueOf(diamond.getCost()),
+                String.valueOf(diamond.getPercent()),
+                String.valueOf(diamond.getBoxValue()),
+                String.valueOf(diamond.getApprovalStatus()),
+                String.valueOf(diamond.getDateIssued()),
+                String.valueOf(consumedTime)
+        };
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write(quote(columns[i]));
+        }
+        out.write('\n');
+    }
+
+    // X500 names contain commas, so every column is quoted.
+    private static String quote(String value) {
+        return value == null ? "" : '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,220 @@
+package com.idt;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.*;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.idt.DiamondChainContract.DC_CONTRACT_ID;
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * Issues several DiamondAssets with the same approver in one transaction, so that they share a single signature round
+ * and notarisation. Used by {@link CreateBatcher} to coalesce concurrent create requests.
+ */
+public class DiamondBatchCreateFlow {
+    /**
+     * The fields of one DiamondAsset to issue.
+     */
+    @CordaSerializable
+    public static class Item {
+        private final String externalId;
+        private final String description;
+        private final double carats;
+        private final double cost;
+        private final float percent;
+        private final SecureHash certificate;
+        private final String certificateEntry;
+
+        public Item(String externalId, String description, double carats, double cost, float percent) {
+            this(externalId, description, carats, cost, percent, null, null);
+        }
+
+        /**
+         * An item with its grading certificate, typically an entry of a zip attachment shared by the batch.
+         */
+        public Item(String externalId, String description, double carats, double cost, float percent,
+                    SecureHash certificate, String certificateEntry) {
+            this.externalId = externalId;
+            this.description = description;
+            this.carats = carats;
+            this.cost = cost;
+            this.percent = percent;
+            this.certificate = certificate;
+            this.certificateEntry = certificateEntry;
+        }
+
+        public String getExternalId() { return externalId; }
+        public String getDescription() { return description; }
+        public double getCarats() { return carats; }
+        public double getCost() { return cost; }
+        public float getPercent() { return percent; }
+        public SecureHash getCertificate() { return certificate; }
+        public String getCertificateEntry() { return certificateEntry; }
+    }
+
+    /**
+     * You can add a constructor to each FlowLogic subclass to pass objects into the flow.
+     */
+    @InitiatingFlow
+    @StartableByRPC
+    public static class Initiator extends FlowLogic<SignedTransaction> {
+        private final List<Item> items;
+        private final Party approver;
+        /**
+         * The progress tracker provides checkpoints indicating the progress of the flow to observers.
+         */
+        public static final ProgressTracker.Step GENERATING_TRANSACTION = new ProgressTracker.Step("Generating transaction based on the new DiamondAssets.");
+        public static final ProgressTracker.Step VERIFYING_TRANSACTION = new ProgressTracker.Step("Verifying contract constraints.");
+        public static final ProgressTracker.Step SIGNING_TRANSACTION = new ProgressTracker.Step("Signing transaction with our private key.");
+        public static final ProgressTracker.Step GATHERING_SIGS = new ProgressTracker.Step("Gathering the counterparty's signature.");
+        public static final ProgressTracker.Step FINALISING_TRANSACTION = new ProgressTracker.Step("Obtaining notary signature and recording transaction.");
+
+        public static ProgressTracker tracker() {
+            return new ProgressTracker(
+                    GENERATING_TRANSACTION,
+                    VERIFYING_TRANSACTION,
+                    SIGNING_TRANSACTION,
+                    GATHERING_SIGS,
+                    FINALISING_TRANSACTION
+            );
+        }
+
+        private final ProgressTracker progressTracker = tracker();
+
+        public Initiator(List<Item> items, Party approver){
+            this.items = items;
+            this.approver = approver;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override public SignedTransaction call() throws FlowException {
+            FlowStepEvents.track(this, progressTracker, items.stream().map(Item::getExternalId).collect(Collectors.joining(",")));
+            if(items.isEmpty()){
+                throw new FlowException("A batch must contain at least one DiamondAsset.");
+            }
+            final List<UniqueIdentifier> linearIds = new ArrayList<>();
+            for(Item item : items){
+                linearIds.add(UniqueIdentifier.Companion.fromString(item.getExternalId()));
+            }
+            //A batch never re-issues: retries of single requests are resolved by DiamondCreateFlow
+            QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(null, linearIds, Vault.StateStatus.ALL, ImmutableSet.of(DiamondAssetState.class));
+            List<StateAndRef<DiamondAssetState>> existing = getServiceHub().getVaultService().queryBy(DiamondAssetState.class, criteria).getStates();
+            if(!existing.isEmpty()){
+                throw new FlowException("External ID " + existing.get(0).getState().getData().getLinearId() + " is already in use.");
+            }
+            final DiamondLinearIdIndex index = getServiceHub().cordaService(DiamondLinearIdIndex.class);
+            final List<UniqueIdentifier> reserved = new ArrayList<>();
+            try {
+                for(UniqueIdentifier linearId : linearIds){
+                    if(!index.reserve(linearId)){
+                        throw new FlowException("DiamondAsset " + linearId + " is already being issued.");
+                    }
+                    reserved.add(linearId);
+                }
+                return issue(linearIds);
+            } finally {
+                for(UniqueIdentifier linearId : reserved){
+                    index.release(linearId);
+                }
+            }
+        }
+
+        @Suspendable
+        private SignedTransaction issue(List<UniqueIdentifier> linearIds) throws FlowException {
+            //We retrieve notary identity from the network map.
+            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+            //Stage 1 - Generating the transaction
+            progressTracker.setCurrentStep(GENERATING_TRANSACTION);
+            final TransactionBuilder txBuilder = new TransactionBuilder();
+            txBuilder.setNotary(notary);
+            final Set<SecureHash> certificates = new HashSet<>();
+            for(int i = 0; i < items.size(); i++){
+                final Item item = items.get(i);
+                DiamondAssetState diamondAssetState = new DiamondAssetState(linearIds.get(i), DiamondType.SIGHT, getOurIdentity(),
+                        item.getDescription(), item.getCarats(), item.getCost(), item.getPercent(), approver);
+                diamondAssetState.setCertificate(item.getCertificate(), item.getCertificateEntry());
+                txBuilder.addOutputState(diamondAssetState, DC_CONTRACT_ID);
+                //A zip of certificates shared by the batch is attached once
+                if(item.getCertificate()!=null && certificates.add(item.getCertificate())){
+                    txBuilder.addAttachment(item.getCertificate());
+                }
+            }
+            List<PublicKey> requiredSigners = ImmutableList.of(getOurIdentity().getOwningKey(), approver.getOwningKey());
+            txBuilder.addCommand(new DiamondChainContract.Commands.Create(), requiredSigners);
+            //Stage 2 - Verify transaction
+            progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
+            txBuilder.verify(getServiceHub());
+
+            //Stage 3 - Signing transaction
+            progressTracker.setCurrentStep(SIGNING_TRANSACTION);
+            final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder);
+
+            //Stage 4 - Gathering Signatures
+            progressTracker.setCurrentStep(GATHERING_SIGS);
+            FlowSession approverPartySession = initiateFlow(approver);
+            final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partSignedTx,
+                    ImmutableList.of(approverPartySession), CollectSignaturesFlow.tracker()));
+            //Stage 5 - Finalising Transaction
+            progressTracker.setCurrentStep(FINALISING_TRANSACTION);
+            return subFlow(new FinalityFlow(fullySignedTx));
+        }
+    }
+
+    @InitiatedBy(Initiator.class)
+    public static class Responder extends FlowLogic<SignedTransaction> {
+        private final FlowSession sourcePartySession;
+
+        public Responder(FlowSession sourcePartySession) {
+            this.sourcePartySession = sourcePartySession;
+        }
+
+        /**
+         * Signs the batch when every output is a pending DiamondAsset for us to approve.
+         */
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException{
+            final Party approver = getOurIdentity();
+            class SignTxFlow extends SignTransactionFlow{
+                private SignTxFlow(FlowSession sourcePartySession, ProgressTracker progressTracker){
+                    super(sourcePartySession, progressTracker);
+                }
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(require->{
+                        for(TransactionState<ContractState> output : stx.getTx().getOutputs()){
+                            require.using("This must be a DiamondAssetState", output.getData() instanceof DiamondAssetState);
+                            DiamondAssetState diamondAsset = (DiamondAssetState) output.getData();
+                            require.using("Approval status must be PENDING", diamondAsset.getApprovalStatus()==ApprovalStatus.PENDING);
+                            require.using("We must be the approver", diamondAsset.getApprover().equals(approver));
+                        }
+                        return null;
+                    });
+                }
+            }
+            return subFlow(new SignTxFlow(sourcePartySession, SignTransactionFlow.Companion.tracker()));
+        }
+    }
+}
@@ -1,24 +1,67 @@
 package com.idt;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowLogic;
 import net.corda.core.identity.CordaX500Name;
 import net.corda.core.identity.Party;
 import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.FlowHandle;
+import net.corda.core.messaging.FlowProgressHandle;
 import net.corda.core.node.NodeInfo;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteriaUtils.Builder;
+import net.corda.core.node.services.vault.Sort;
 import net.corda.core.transactions.SignedTransaction;
+import org.glassfish.jersey.server.ChunkedOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+import static javax.ws.rs.core.Response.Status.ACCEPTED;
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 import static javax.ws.rs.core.Response.Status.CREATED;
 import static javax.ws.rs.core.Response.Status.OK;
@@ -33,9 +76,79 @@ public class DiamondChainApi {
 
     static private final Logger logger = LoggerFactory.getLogger(DiamondChainApi.class);
 
+    // Upper bound on the number of states held by the response cache.
+    private static final long RESPONSE_CACHE_WEIGHT = Long.getLong("idt.api.responseCacheStates", 50_000L);
+
+    private static final String CLIENT_ID_HEADER = "X-Client-Id";
+    private static final String PRIORITY_HEADER = "X-Flow-Priority";
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    // Client addresses whose X-Flow-Priority may raise a request above the priority it would otherwise get.
+    private static final Set<String> TRUSTED_PRIORITY_ADDRESSES = ImmutableSet.copyOf(
+            System.getProperty("idt.dispatch.trustedAddresses", "").trim().isEmpty()
+                    ? new String[0]
+                    : System.getProperty("idt.dispatch.trustedAddresses").trim().split("\\s*,\\s*"));
+    // Flows on diamonds worth at least this much are dispatched as URGENT.
+    private static final double URGENT_BOX_VALUE = Double.parseDouble(System.getProperty("idt.dispatch.urgentBoxValue", "100000"));
+    // The dispatch priority of each flow type, unless overridden with idt.dispatch.priority.<flow type>.
+    private static final Map<String, FlowDispatcher.Priority> FLOW_PRIORITIES = ImmutableMap.of(
+            "DiamondTransferFlow", FlowDispatcher.Priority.HIGH,
+            "DiamondSaleFlow", FlowDispatcher.Priority.HIGH,
+            "DiamondCreateFlow", FlowDispatcher.Priority.BULK,
+            "DiamondBatchCreateFlow", FlowDispatcher.Priority.BULK,
+            "DiamondRevalueFlow", FlowDispatcher.Priority.BULK);
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final String SSE_MEDIA_TYPE = "text/event-stream";
+    private static final int MAX_STREAM_SNAPSHOT = Integer.getInteger("idt.stream.maxSnapshot", 10_000);
+    private static final int MAX_REVALUE_PARALLELISM = Integer.getInteger("idt.revalue.maxParallelism", 16);
+    private static final int REVALUE_LIST_PAGE_SIZE = 5_000;
+    private static final long DASHBOARD_TIMEOUT_MILLIS = Long.getLong("idt.dashboard.timeoutMillis", 2_000L);
+    private static final int MAX_DASHBOARD_DIAMONDS = 1_000;
+    private static final long MAX_CERTIFICATE_BYTES = Long.getLong("idt.certificates.maxBytes", 1L << 30);
+
+    private final LedgerChangeTracker changeTracker;
+    private final FlowAdmissionController admission = new FlowAdmissionController();
+    private final FlowDispatcher dispatcher = new FlowDispatcher();
+    private final IdempotencyRegistry idempotency = new IdempotencyRegistry();
+    private final FlowProgressHub progressHub = new FlowProgressHub();
+    private final ApproverPool approverPool = ApproverPool.fromSystemProperties();
+    private final CreateBatcher createBatcher = new CreateBatcher(this::startBatchCreate, this::startSingleCreate);
+    private final DiamondStreamHub streamHub;
+    private final Cache<String, Object> responseCache = CacheBuilder.newBuilder()
+            .maximumWeight(RESPONSE_CACHE_WEIGHT)
+            .weigher((String key, Object value) -> value instanceof List ? Math.max(((List<?>) value).size(), 1) : 1)
+            .build();
+    // Runs the sections of the dashboard. Bounded, so concurrent dashboards queue rather than flood the RPC connection.
+    private final ExecutorService dashboardExecutor = new ThreadPoolExecutor(
+            Integer.getInteger("idt.dashboard.threads", 8), Integer.getInteger("idt.dashboard.threads", 8),
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Integer.getInteger("idt.dashboard.maxQueued", 256)),
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("idt-dashboard-%d").build());
+    private final Cache<String, RevaluationJob> revaluationJobs = CacheBuilder.newBuilder()
+            .expireAfterAccess(Long.getLong("idt.revalue.retainMinutes", 60L), TimeUnit.MINUTES)
+            .build();
+
     public DiamondChainApi(CordaRPCOps services) {
         this.rpcOps = services;
         this.myLegalName = rpcOps.nodeInfo().getLegalIdentities().get(0).getName();
+        this.changeTracker = new LedgerChangeTracker(rpcOps);
+        this.streamHub = new DiamondStreamHub(changeTracker.getVaultUpdates());
+        if (Boolean.getBoolean("idt.warmup")) {
+            CompletableFuture.runAsync(this::warmUp);
+        }
+    }
+
+    /**
+     * Warms up the webserver's side of a request: RPC flow start and vault query, and their (de)serialisation.
+     */
+    private void warmUp() {
+        try {
+            final DiamondWarmupFlow.Report report = rpcOps.startFlowDynamic(DiamondWarmupFlow.Initiator.class).getReturnValue().get();
+            rpcOps.vaultQueryByWithPagingSpec(DiamondAssetState.class, new QueryCriteria.VaultQueryCriteria(),
+                    new PageSpecification(DEFAULT_PAGE_NUM, 1));
+            logger.info("Warm-up through RPC took {} ms, {} ms to a steady state", report.getTotalMillis(),
+                    report.getTimeToSteadyMillis());
+        } catch (Exception ex) {
+            logger.warn("Warm-up through RPC failed", ex);
+        }
     }
 
     /**
@@ -44,8 +157,32 @@ public class DiamondChainApi {
     @GET
     @Path("me")
     @Produces(MediaType.APPLICATION_JSON)
-    public Map<String, CordaX500Name> whoami() {
-        return ImmutableMap.of("me", myLegalName);
+    public Response whoami(@Context Request request) {
+        final EntityTag tag = new EntityTag("me-" + Integer.toHexString(myLegalName.hashCode()));
+        final Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if (notModified != null) {
+            return notModified.tag(tag).build();
+        }
+        return Response.ok(ImmutableMap.of("me", myLegalName)).tag(tag).build();
+    }
+
+    /**
+     * Answers with 304 when the client already holds the current version of the resource, otherwise with the cached
+     * or freshly loaded entity. The tag is computed before loading, so a concurrent update can only cause an extra 200.
+     */
+    private Response conditionalGet(Request request, String tagValue, Callable<Object> loader) {
+        final EntityTag tag = new EntityTag(tagValue);
+        final Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if (notModified != null) {
+            return notModified.tag(tag).build();
+        }
+        try {
+            return Response.ok(responseCache.get(tagValue, loader)).tag(tag).build();
+        } catch (ExecutionException ex) {
+            final String msg = ex.getCause().getMessage();
+            logger.error(msg, ex.getCause());
+            return Response.status(BAD_REQUEST).entity(msg).build();
+        }
     }
 
     /**
@@ -54,22 +191,8 @@ public class DiamondChainApi {
     @GET
     @Path("/approve/{id}")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response approve(@PathParam("id") String id) {
-        try{
-            final SignedTransaction signedTx = rpcOps
-                    .startTrackedFlowDynamic(DiamondApproveFlow.Initiator.class, id, true)
-                    .getReturnValue()
-                    .get();
-
-            final String msg = String.format("Transaction id %s committed to ledger.\n", signedTx.getId());
-            return Response.status(CREATED).entity(msg).build();
-
-
-        }catch (Throwable ex){
-            final String msg = ex.getMessage();
-            logger.error(msg, ex);
-            return Response.status(BAD_REQUEST).entity(msg).build();
-        }
+    public Response approve(@PathParam("id") String id, @Context HttpServletRequest httpRequest) {
+        return runFlow(httpRequest, CREATED, "approve:" + id, DiamondApproveFlow.Initiator.class, id, true);
     }
 
     /**
@@ -78,22 +201,63 @@ public class DiamondChainApi {
     @GET
     @Path("/decline/{id}")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response decline(@PathParam("id") String id) {
-        try{
-            final SignedTransaction signedTx = rpcOps
-                    .startTrackedFlowDynamic(DiamondApproveFlow.Initiator.class, id, false)
-                    .getReturnValue()
-                    .get();
+    public Response decline(@PathParam("id") String id, @Context HttpServletRequest httpRequest) {
+        return runFlow(httpRequest, CREATED, "decline:" + id, DiamondApproveFlow.Initiator.class, id, false);
+    }
 
-            final String msg = String.format("Transaction id %s committed to ledger.\n", signedTx.getId());
-            return Response.status(CREATED).entity(msg).build();
+    /**
+     * Accessible at /api/idt/exit. Several externalId query parameters exit the diamonds in a single transaction.
+     */
+    @PUT
+    @Path("exit")
+    public Response exit(@QueryParam("externalId") List<String> ids, @Context HttpServletRequest httpRequest) {
+        if (ids == null || ids.isEmpty()) {
+            return Response.status(BAD_REQUEST).entity("Query parameter 'externalId' missing.\n").build();
+        }
+        return runFlow(httpRequest, OK, "exit:" + String.join(",", new TreeSet<>(ids)), DiamondExitFlow.Initiator.class, ids);
+    }
 
+    /**
+     * Accessible at /api/idt/merge. Merges the diamonds given as externalId query parameters into one lot.
+     */
+    @PUT
+    @Path("merge")
+    public Response merge(@QueryParam("externalId") List<String> ids, @Context HttpServletRequest httpRequest) {
+        if (ids == null || ids.size() < 2) {
+            return Response.status(BAD_REQUEST).entity("At least two 'externalId' query parameters are needed.\n").build();
+        }
+        return runFlow(httpRequest, CREATED, "merge:" + String.join(",", new TreeSet<>(ids)), DiamondMergeFlow.Initiator.class, ids);
+    }
 
-        }catch (Throwable ex){
-            final String msg = ex.getMessage();
-            logger.error(msg, ex);
-            return Response.status(BAD_REQUEST).entity(msg).build();
+    /**
+     * Accessible at /api/idt/split. Splits the diamond or lot into the given number of equal pieces.
+     */
+    @PUT
+    @Path("split")
+    public Response split(@QueryParam("externalId") String id, @QueryParam("pieces") int pieces,
+                          @Context HttpServletRequest httpRequest) {
+        if (id == null) {
+            return Response.status(BAD_REQUEST).entity("Query parameter 'externalId' missing.\n").build();
+        }
+        if (pieces < 2) {
+            return Response.status(BAD_REQUEST).entity("Query parameter 'pieces' must be at least 2.\n").build();
+        }
+        return runFlow(httpRequest, CREATED, "split:" + id, DiamondSplitFlow.Initiator.class, id, pieces);
+    }
+
+    /**
+     * Accessible at /api/idt/reissue. Replaces a diamond whose transaction chain has reached idt.reissue.chainThreshold
+     * with an equivalent state with a fresh history; force=true reissues it regardless of the chain length.
+     */
+    @PUT
+    @Path("reissue")
+    public Response reissue(@QueryParam("externalId") String externalId,
+                            @QueryParam("force") @DefaultValue("false") boolean force,
+                            @Context HttpServletRequest httpRequest) {
+        if (externalId == null) {
+            return Response.status(BAD_REQUEST).entity("Query parameter 'externalId' missing.\n").build();
         }
+        return runFlow(httpRequest, CREATED, "reissue:" + externalId, DiamondReissueFlow.Initiator.class, externalId, force);
     }
 
     /**
@@ -102,8 +266,116 @@ public class DiamondChainApi {
     @GET
     @Path("diamonds")
     @Produces(MediaType.APPLICATION_JSON)
-    public List<StateAndRef<DiamondAssetState>> getDiamonds() {
-        return rpcOps.vaultQuery(DiamondAssetState.class).getStates();
+    public Response getDiamonds(@Context Request request) {
+        return conditionalGet(request, changeTracker.vaultTag("diamonds"),
+                () -> rpcOps.vaultQuery(DiamondAssetState.class).getStates());
+    }
+
+    /**
+     * Accessible at /api/idt/diamonds/stream. Sends the unconsumed diamonds matching the optional owner and status
+     * filters as "snapshot" events, up to idt.stream.maxSnapshot of them and none dropped, then pushes "produced" and
+     * "consumed" events as the vault changes. A slow client drops those by default, or gets them coalesced per stone with
+     * overflow=COALESCE.
+     */
+    @GET
+    @Path("diamonds/stream")
+    @Produces(SSE_MEDIA_TYPE)
+    public ChunkedOutput<String> streamDiamonds(@QueryParam("owner") CordaX500Name owner,
+                                                @QueryParam("status") ApprovalStatus status,
+                                                @QueryParam("overflow") @DefaultValue("DROP") DiamondStreamHub.Overflow overflow) {
+        final QueryCriteria criteria = diamondCriteria(owner, status);
+        return streamHub.open(owner, status, overflow, () -> rpcOps.vaultQueryBy(criteria,
+                new PageSpecification(DEFAULT_PAGE_NUM, MAX_STREAM_SNAPSHOT), new Sort(Collections.emptySet()),
+                DiamondAssetState.class).getStates()).getOutput();
+    }
+
+    /**
+     * Unconsumed DiamondAssetStates, optionally restricted by owner and approval status on the custom schema columns.
+     */
+    private static QueryCriteria diamondCriteria(CordaX500Name owner, ApprovalStatus status) {
+        QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, ImmutableSet.of(DiamondAssetState.class));
+        try {
+            if (owner != null) {
+                final Field ownerField = DiamondAssetSchemaV1.PersistentDiamondAsset.class.getDeclaredField("owner");
+                criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(ownerField, owner.toString())));
+            }
+            if (status != null) {
+                final Field statusField = DiamondAssetSchemaV1.PersistentDiamondAsset.class.getDeclaredField("approvalStatus");
+                criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(statusField, status)));
+            }
+        } catch (NoSuchFieldException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return criteria;
+    }
+
+    /**
+     * Accessible at /api/idt/dashboard. Returns what the landing page needs in one call: our name, the peers and
+     * notaries, the number of unconsumed diamonds per approval status and owned by us, and the first diamonds. The
+     * sections are loaded concurrently, from the response cache where they are current, and a section that fails or
+     * takes longer than timeoutMillis is listed under failed while the others are still returned.
+     */
+    @GET
+    @Path("dashboard")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getDashboard(@QueryParam("diamonds") @DefaultValue("100") int diamonds,
+                                 @QueryParam("timeoutMillis") @DefaultValue("-1") long timeoutMillis) {
+        if (diamonds < 0 || diamonds > MAX_DASHBOARD_DIAMONDS) {
+            return Response.status(BAD_REQUEST)
+                    .entity(String.format("diamonds must be between 0 and %d.%n", MAX_DASHBOARD_DIAMONDS)).build();
+        }
+        final ParallelSections sections = new ParallelSections()
+                .add("peers", () -> responseCache.get(changeTracker.networkTag("dashboard-peers"), () -> rpcOps.networkMapSnapshot()
+                        .stream()
+                        .map(node -> node.getLegalIdentities().get(0).getName().toString())
+                        .collect(toList())))
+                .add("notaries", () -> responseCache.get(changeTracker.networkTag("dashboard-notaries"), () -> rpcOps.notaryIdentities()
+                        .stream()
+                        .map(notary -> notary.getName().toString())
+                        .collect(toList())))
+                .add("owned", () -> cachedCount("owned", diamondCriteria(myLegalName, null)));
+        for (ApprovalStatus status : ApprovalStatus.values()) {
+            sections.add(status.name(), () -> cachedCount(status.name(), diamondCriteria(null, status)));
+        }
+        if (diamonds > 0) {
+            sections.add("diamonds", () -> responseCache.get(changeTracker.vaultTag("dashboard-diamonds-" + diamonds),
+                    () -> rpcOps.vaultQueryBy(diamondCriteria(null, null), new PageSpecification(DEFAULT_PAGE_NUM, diamonds),
+                            new Sort(Collections.emptySet()), DiamondAssetState.class).getStates()));
+        }
+        try {
+            final ParallelSections.Result result = sections.load(dashboardExecutor,
+                    timeoutMillis >= 0 ? timeoutMillis : DASHBOARD_TIMEOUT_MILLIS);
+            final Map<String, Object> counts = new LinkedHashMap<>();
+            if (result.getSections().containsKey("owned")) {
+                counts.put("owned", result.getSections().get("owned"));
+            }
+            for (ApprovalStatus status : ApprovalStatus.values()) {
+                if (result.getSections().containsKey(status.name())) {
+                    counts.put(status.name(), result.getSections().get(status.name()));
+                }
+            }
+            final Map<String, Object> dashboard = new LinkedHashMap<>();
+            dashboard.put("me", myLegalName.toString());
+            dashboard.put("peers", result.getSections().get("peers"));
+            dashboard.put("notaries", result.getSections().get("notaries"));
+            dashboard.put("counts", counts);
+            dashboard.put("diamonds", result.getSections().get("diamonds"));
+            dashboard.put("failed", result.getFailed());
+            dashboard.put("millis", result.getMillis());
+            return Response.ok(dashboard).build();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity("Interrupted.\n").build();
+        }
+    }
+
+    /**
+     * The number of unconsumed diamonds matching the criteria, cached until the vault changes.
+     */
+    private Object cachedCount(String name, QueryCriteria criteria) throws ExecutionException {
+        return responseCache.get(changeTracker.vaultTag("dashboard-count-" + name), () -> rpcOps.vaultQueryBy(criteria,
+                new PageSpecification(DEFAULT_PAGE_NUM, 1), new Sort(Collections.emptySet()), DiamondAssetState.class)
+                .getTotalStatesAvailable());
     }
 
     /**
@@ -113,18 +385,23 @@ public class DiamondChainApi {
     @GET
     @Path("peers")
     @Produces(MediaType.APPLICATION_JSON)
-    public Map<String, List<CordaX500Name>> getPeers() {
-        List<NodeInfo> nodeInfoSnapshot = rpcOps.networkMapSnapshot();
-        return ImmutableMap.of("peers", nodeInfoSnapshot
-                .stream()
-                .map(node -> node.getLegalIdentities().get(0).getName())
-                //.filter(name -> !name.equals(myLegalName) && !serviceNames.contains(name.getOrganisation()))
-                .collect(toList()));
+    public Response getPeers(@Context Request request) {
+        return conditionalGet(request, changeTracker.networkTag("peers"), () -> {
+            List<NodeInfo> nodeInfoSnapshot = rpcOps.networkMapSnapshot();
+            return ImmutableMap.of("peers", nodeInfoSnapshot
+                    .stream()
+                    .map(node -> node.getLegalIdentities().get(0).getName())
+                    //.filter(name -> !name.equals(myLegalName) && !serviceNames.contains(name.getOrganisation()))
+                    .collect(toList()));
+        });
     }
 
     /**
-     * Accessible at /api/idt/create.
-     *
+     * Accessible at /api/idt/create. Without an approver, the diamond is assigned one from the approver pool when
+     * idt.approverPool is configured. Repeated coApprover parameters make the approval need the signatures of quorum
+     * of the approvers, all of them by default; such creates are not batched. A certificate, uploaded through
+     * /api/idt/certificates, is attached by its hash, and certificateEntry names the stone's certificate in an archive
+     * of several.
      */
     @PUT
     @Path("create")
@@ -132,7 +409,12 @@ public class DiamondChainApi {
     public Response create(@QueryParam("externalId") String id,
                            @QueryParam("description") String description, @QueryParam("carats") double carats,
                            @QueryParam("cost") double cost, @QueryParam("percent") float percent,
-                           @QueryParam("approver") CordaX500Name approverName) throws InterruptedException, ExecutionException {
+                           @QueryParam("approver") CordaX500Name approverName,
+                           @QueryParam("coApprover") List<CordaX500Name> coApproverNames,
+                           @QueryParam("quorum") @DefaultValue("0") int quorum,
+                           @QueryParam("certificate") String certificateHash,
+                           @QueryParam("certificateEntry") String certificateEntry,
+                           @Context HttpServletRequest httpRequest) {
         System.out.println(String.format("Approver name is %s", approverName));
         if (cost <= 0) {
             return Response.status(BAD_REQUEST).entity("Query parameter 'cost' must be non-negative.\n").build();
@@ -143,6 +425,13 @@ public class DiamondChainApi {
         if (carats <= 0) {
             return Response.status(BAD_REQUEST).entity("Query parameter 'carats' must be non-negative.\n").build();
         }
+        if (approverName == null && !approverPool.isEmpty()) {
+            try {
+                approverName = approverPool.assign(UUID.fromString(id), myLegalName);
+            } catch (IllegalArgumentException | NullPointerException ex) {
+                return Response.status(BAD_REQUEST).entity("Query parameter 'externalId' must be a UUID.\n").build();
+            }
+        }
         if (approverName == null) {
             return Response.status(BAD_REQUEST).entity("Query parameter 'approverName' missing or has wrong format.\n").build();
         }
@@ -151,21 +440,182 @@ public class DiamondChainApi {
         if (approverParty == null) {
             return Response.status(BAD_REQUEST).entity("Party named " + approverName + "cannot be found.\n").build();
         }
+        SecureHash certificate = null;
+        if (certificateHash != null) {
+            try {
+                certificate = SecureHash.parse(certificateHash);
+            } catch (IllegalArgumentException ex) {
+                return Response.status(BAD_REQUEST).entity("Query parameter 'certificate' must be a SHA-256 hash.\n").build();
+            }
+            if (!rpcOps.attachmentExists(certificate)) {
+                return Response.status(BAD_REQUEST).entity("Certificate " + certificate + " has not been uploaded.\n").build();
+            }
+        } else if (certificateEntry != null) {
+            return Response.status(BAD_REQUEST).entity("Query parameter 'certificateEntry' needs 'certificate'.\n").build();
+        }
 
-        try {
-            final SignedTransaction signedTx = rpcOps
-                    .startTrackedFlowDynamic(DiamondCreateFlow.Initiator.class, id, description,
-                            carats, cost, percent, approverParty)
-                    .getReturnValue()
-                    .get();
+        if (coApproverNames != null && !coApproverNames.isEmpty()) {
+            final List<Party> coApprovers = new ArrayList<>();
+            for (CordaX500Name coApproverName : coApproverNames) {
+                final Party coApprover = rpcOps.wellKnownPartyFromX500Name(coApproverName);
+                if (coApprover == null) {
+                    return Response.status(BAD_REQUEST).entity("Party named " + coApproverName + " cannot be found.\n").build();
+                }
+                coApprovers.add(coApprover);
+            }
+            // Without an explicit quorum every approver has to sign.
+            final int required = quorum > 0 ? quorum : coApprovers.size() + 1;
+            return runFlow(httpRequest, CREATED, "create:" + id, () -> cost + percent, DiamondCreateFlow.Initiator.class, id,
+                    description, carats, cost, percent, approverParty, coApprovers, required, certificate, certificateEntry);
+        }
+        if (createBatcher.isEnabled() && !Boolean.parseBoolean(httpRequest.getParameter("async"))) {
+            return batchedCreate(new DiamondBatchCreateFlow.Item(id, description, carats, cost, percent,
+                    certificate, certificateEntry), approverParty);
+        }
+        return runFlow(httpRequest, CREATED, "create:" + id, () -> cost + percent, DiamondCreateFlow.Initiator.class, id,
+                description, carats, cost, percent, approverParty, ImmutableList.of(), 1, certificate, certificateEntry);
+    }
 
-            final String msg = String.format("Transaction id %s committed to ledger.\n", signedTx.getId());
+    /**
+     * Issues the diamond in the next batch of its approver. Retries attach to the earlier request like in runFlow.
+     */
+    private Response batchedCreate(DiamondBatchCreateFlow.Item item, Party approver) {
+        final String idempotencyKey = "create:" + item.getExternalId();
+        final IdempotencyRegistry.Entry entry = new IdempotencyRegistry.Entry();
+        final IdempotencyRegistry.Entry earlier = idempotency.register(idempotencyKey, entry);
+        try {
+            if (earlier != null) {
+                return committed(CREATED, earlier.getResult().get());
+            }
+            createBatcher.submit(approver, item).whenComplete((signedTx, error) -> {
+                if (error == null) {
+                    entry.getResult().complete(signedTx);
+                } else {
+                    idempotency.forget(idempotencyKey, entry);
+                    entry.getResult().completeExceptionally(error);
+                }
+            });
+            final SignedTransaction signedTx = entry.getResult().get();
+            final String msg = String.format("Transaction id %s committed to ledger with DiamondAsset %s.\n",
+                    signedTx.getId(), item.getExternalId());
             return Response.status(CREATED).entity(msg).build();
-
         } catch (Throwable ex) {
-            final String msg = ex.getMessage();
-            logger.error(msg, ex);
-            return Response.status(BAD_REQUEST).entity(msg).build();
+            final Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+            logger.error(cause.getMessage(), cause);
+            return Response.status(BAD_REQUEST).entity(cause.getMessage()).build();
+        }
+    }
+
+    private CompletableFuture<SignedTransaction> startBatchCreate(Party approver, List<DiamondBatchCreateFlow.Item> items) throws Exception {
+        return startAdmitted(DiamondBatchCreateFlow.Initiator.class, approver, items, approver);
+    }
+
+    private CompletableFuture<SignedTransaction> startSingleCreate(Party approver, List<DiamondBatchCreateFlow.Item> items) throws Exception {
+        final DiamondBatchCreateFlow.Item item = items.get(0);
+        return startAdmitted(DiamondCreateFlow.Initiator.class, approver, item.getExternalId(), item.getDescription(),
+                item.getCarats(), item.getCost(), item.getPercent(), approver, ImmutableList.of(), 1,
+                item.getCertificate(), item.getCertificateEntry());
+    }
+
+    /**
+     * Starts a flow on behalf of the create batcher. Admission is accounted per approver rather than per client, so the
+     * per-caller limit bounds the batches in flight for each approver.
+     */
+    private CompletableFuture<SignedTransaction> startAdmitted(Class<? extends FlowLogic<SignedTransaction>> flowClass,
+                                                              Party approver, Object... args) throws Exception {
+        final String flowType = flowClass.getEnclosingClass().getSimpleName();
+        final FlowAdmissionController.Permit permit = admission.admit(flowType, "batcher:" + approver.getName());
+        final FlowDispatcher.Slot slot;
+        try {
+            slot = dispatcher.acquire(() -> priorityOf(null, flowType, null));
+        } catch (Exception ex) {
+            permit.close();
+            throw ex;
+        }
+        final CompletableFuture<SignedTransaction> result = new CompletableFuture<>();
+        try {
+            rpcOps.startFlowDynamic(flowClass, args).getReturnValue().then(done -> {
+                slot.close();
+                permit.close();
+                try {
+                    result.complete(done.get());
+                } catch (Exception ex) {
+                    result.completeExceptionally(ex instanceof ExecutionException ? ex.getCause() : ex);
+                }
+                return null;
+            });
+        } catch (RuntimeException ex) {
+            slot.close();
+            permit.close();
+            throw ex;
+        }
+        return result;
+    }
+
+    /**
+     * Accessible at /api/idt/certificates. Uploads a grading certificate, e.g. a PDF, as an attachment and returns its
+     * hash for the certificate parameter of create. The body is streamed into the archive and hashed on the way, and
+     * the archive is only sent to the node when the node does not have it yet.
+     */
+    @POST
+    @Path("certificates")
+    @Consumes({"application/pdf", MediaType.APPLICATION_OCTET_STREAM})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response uploadCertificate(InputStream body) {
+        try {
+            return uploadArchive(CertificateArchive.single(body, MAX_CERTIFICATE_BYTES));
+        } catch (IllegalArgumentException ex) {
+            return Response.status(BAD_REQUEST).entity(ex.getMessage() + "\n").build();
+        } catch (Exception ex) {
+            logger.error(ex.getMessage(), ex);
+            return Response.status(BAD_REQUEST).entity(ex.getMessage() + "\n").build();
+        }
+    }
+
+    /**
+     * Accessible at /api/idt/certificates/batch. Packs the certificates of an uploaded zip into a single attachment,
+     * so an intake of many stones makes one upload, and returns its hash and entries for the certificate and
+     * certificateEntry parameters of create.
+     */
+    @POST
+    @Path("certificates/batch")
+    @Consumes("application/zip")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response uploadCertificates(InputStream body) {
+        try {
+            return uploadArchive(CertificateArchive.batch(body, MAX_CERTIFICATE_BYTES));
+        } catch (IllegalArgumentException ex) {
+            return Response.status(BAD_REQUEST).entity(ex.getMessage() + "\n").build();
+        } catch (Exception ex) {
+            logger.error(ex.getMessage(), ex);
+            return Response.status(BAD_REQUEST).entity(ex.getMessage() + "\n").build();
+        }
+    }
+
+    private Response uploadArchive(CertificateArchive archive) throws IOException {
+        try {
+            boolean uploaded = false;
+            if (!rpcOps.attachmentExists(archive.getHash())) {
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(archive.getFile()))) {
+                    final SecureHash hash = rpcOps.uploadAttachment(in);
+                    if (!hash.equals(archive.getHash())) {
+                        throw new IllegalStateException("The node stored the certificates as " + hash + " rather than " + archive.getHash());
+                    }
+                    uploaded = true;
+                } catch (RuntimeException ex) {
+                    // Someone else uploaded the same certificates in the meantime.
+                    if (!rpcOps.attachmentExists(archive.getHash())) {
+                        throw ex;
+                    }
+                }
+            }
+            final Map<String, Object> result = new LinkedHashMap<>();
+            result.put("certificate", archive.getHash().toString());
+            result.put("entries", archive.getEntries());
+            result.put("uploaded", uploaded);
+            return Response.status(uploaded ? CREATED : OK).entity(result).build();
+        } finally {
+            archive.delete();
         }
     }
 
@@ -176,25 +626,476 @@ public class DiamondChainApi {
     @PUT
     @Path("transfer")
     //@Produces(MediaType.APPLICATION_JSON)
-    public Response transfer(@QueryParam("externalId") String id, @QueryParam("newOwnerName") CordaX500Name newOwnerName){
+    public Response transfer(@QueryParam("externalId") String id, @QueryParam("newOwnerName") CordaX500Name newOwnerName,
+                             @Context HttpServletRequest httpRequest){
         final Party newOwnerParty = rpcOps.wellKnownPartyFromX500Name(newOwnerName);
         if (newOwnerParty == null) {
             return Response.status(BAD_REQUEST).entity("Party named " + newOwnerName + "cannot be found.\n").build();
         }
+        return runFlow(httpRequest, OK, "transfer:" + id + ":" + newOwnerName + "@" + currentRefOf(id), () -> boxValueOf(id),
+                DiamondTransferFlow.Initiator.class, id, newOwnerParty);
+    }
 
+    /**
+     * Accessible at /api/idt/sell. Transfers the diamond to the buyer against the buyer's Cash, e.g. price=5000 USD,
+     * in a single transaction. The buyer must have agreed to the purchase through its own /api/idt/buy first.
+     */
+    @PUT
+    @Path("sell")
+    public Response sell(@QueryParam("externalId") String id, @QueryParam("buyerName") CordaX500Name buyerName,
+                         @QueryParam("price") String price, @Context HttpServletRequest httpRequest){
+        final Party buyerParty = rpcOps.wellKnownPartyFromX500Name(buyerName);
+        if (buyerParty == null) {
+            return Response.status(BAD_REQUEST).entity("Party named " + buyerName + " cannot be found.\n").build();
+        }
+        if (price == null) {
+            return Response.status(BAD_REQUEST).entity("Query parameter 'price' missing.\n").build();
+        }
+        return runFlow(httpRequest, OK, "sell:" + id + ":" + buyerName + "@" + currentRefOf(id), () -> boxValueOf(id),
+                DiamondSaleFlow.Initiator.class, id, buyerParty, price);
+    }
+
+    /**
+     * Accessible at /api/idt/buy. Agrees to buy the diamond from the seller for at most maxPrice, e.g. 5000 USD. Our node
+     * pays for a sale only when it was agreed to here, and each agreement pays for one sale.
+     */
+    @PUT
+    @Path("buy")
+    public Response buy(@QueryParam("externalId") String id, @QueryParam("sellerName") CordaX500Name sellerName,
+                        @QueryParam("maxPrice") String maxPrice, @Context HttpServletRequest httpRequest){
+        final Party sellerParty = sellerName == null ? null : rpcOps.wellKnownPartyFromX500Name(sellerName);
+        if (sellerParty == null) {
+            return Response.status(BAD_REQUEST).entity("Party named " + sellerName + " cannot be found.\n").build();
+        }
+        if (id == null || maxPrice == null) {
+            return Response.status(BAD_REQUEST).entity("Query parameters 'externalId' and 'maxPrice' are required.\n").build();
+        }
+        try (FlowAdmissionController.Permit permit = admission.admit("DiamondSaleFlow.Accept", caller(httpRequest))) {
+            rpcOps.startFlowDynamic(DiamondSaleFlow.Accept.class, id, sellerParty, maxPrice).getReturnValue().get();
+            return Response.ok(String.format("Agreed to buy %s from %s for at most %s.\n", id, sellerName, maxPrice)).build();
+        } catch (FlowAdmissionController.AdmissionRejectedException ex) {
+            return tooManyRequests(ex);
+        } catch (Throwable ex) {
+            final String msg = ex.getMessage();
+            logger.error(msg, ex);
+            return Response.status(BAD_REQUEST).entity(msg).build();
+        }
+    }
+
+    /**
+     * Accessible at /api/idt/reconcile. Compares the diamonds shared with the peer by exchanging Merkle digests and
+     * returns the linear ids that only one side holds or that the two sides hold at different versions.
+     */
+    @GET
+    @Path("reconcile")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response reconcile(@QueryParam("peer") CordaX500Name peerName, @Context HttpServletRequest httpRequest) {
+        final Party peer = peerName == null ? null : rpcOps.wellKnownPartyFromX500Name(peerName);
+        if (peer == null) {
+            return Response.status(BAD_REQUEST).entity("Party named " + peerName + " cannot be found.\n").build();
+        }
+        try (FlowAdmissionController.Permit permit = admission.admit("DiamondReconcileFlow", caller(httpRequest))) {
+            return Response.ok(rpcOps.startFlowDynamic(DiamondReconcileFlow.Initiator.class, peer).getReturnValue().get()).build();
+        } catch (FlowAdmissionController.AdmissionRejectedException ex) {
+            return tooManyRequests(ex);
+        } catch (Throwable ex) {
+            final String msg = ex.getMessage();
+            logger.error(msg, ex);
+            return Response.status(BAD_REQUEST).entity(msg).build();
+        }
+    }
+
+    /**
+     * Accessible at /api/idt/inventory. Totals the unconsumed diamonds of every node by owner and approval status,
+     * optionally only those with the given statuses. A flow per peer queries them concurrently; a peer that has not
+     * answered within timeoutSeconds is reported under failedPeers and left out of the totals.
+     */
+    @GET
+    @Path("inventory")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response inventory(@QueryParam("status") List<ApprovalStatus> statuses,
+                              @QueryParam("timeoutSeconds") @DefaultValue("30") long timeoutSeconds,
+                              @Context HttpServletRequest httpRequest) {
+        try (FlowAdmissionController.Permit permit = admission.admit("DiamondInventoryFlow", caller(httpRequest))) {
+            final Party me = rpcOps.nodeInfo().getLegalIdentities().get(0);
+            final List<Party> notaries = rpcOps.notaryIdentities();
+            final List<ApprovalStatus> statusList = ImmutableList.copyOf(statuses);
+            final Map<String, FlowHandle<DiamondInventoryFlow.Report>> handles = new LinkedHashMap<>();
+            handles.put(me.getName().toString(), rpcOps.startFlowDynamic(DiamondInventoryFlow.Initiator.class,
+                    ImmutableList.of(), statusList, true));
+            // Flows cannot time out a receive in this Corda version, so each peer gets a flow of its own and the
+            // deadline is kept here.
+            for (NodeInfo node : rpcOps.networkMapSnapshot()) {
+                final Party peer = node.getLegalIdentities().get(0);
+                if (!peer.equals(me) && !notaries.contains(peer) && !serviceNames.contains(peer.getName().getOrganisation())) {
+                    handles.put(peer.getName().toString(), rpcOps.startFlowDynamic(DiamondInventoryFlow.Initiator.class,
+                            ImmutableList.of(peer), statusList, false));
+                }
+            }
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            final List<DiamondInventoryFlow.Report> reports = new ArrayList<>(handles.size());
+            final Map<String, String> failedPeers = new TreeMap<>();
+            for (Map.Entry<String, FlowHandle<DiamondInventoryFlow.Report>> entry : handles.entrySet()) {
+                final FlowHandle<DiamondInventoryFlow.Report> handle = entry.getValue();
+                try {
+                    reports.add(handle.getReturnValue().get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS));
+                } catch (TimeoutException ex) {
+                    failedPeers.put(entry.getKey(), "No answer within " + timeoutSeconds + " s");
+                    rpcOps.killFlow(handle.getId());
+                } catch (ExecutionException ex) {
+                    failedPeers.put(entry.getKey(), String.valueOf(ex.getCause().getMessage()));
+                }
+            }
+            reports.add(new DiamondInventoryFlow.Report(ImmutableList.of(), ImmutableMap.of(), failedPeers));
+            return Response.ok(DiamondInventoryFlow.Report.merge(reports)).build();
+        } catch (FlowAdmissionController.AdmissionRejectedException ex) {
+            return tooManyRequests(ex);
+        } catch (Throwable ex) {
+            final String msg = ex.getMessage();
+            logger.error(msg, ex);
+            return Response.status(BAD_REQUEST).entity(msg).build();
+        }
+    }
+
+    /**
+     * Accessible at /api/idt/revalue. Revalues every approved diamond we own at the prices of the node's price table,
+     * batchSize stones per transaction with at most parallelism transactions in flight, and returns the job to poll.
+     * Each batch is admitted like any other flow and counts against the caller's in-flight limit, so parallelism may
+     * not exceed that limit.
+     */
+    @PUT
+    @Path("revalue")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response revalue(@QueryParam("batchSize") @DefaultValue("200") int batchSize,
+                            @QueryParam("parallelism") @DefaultValue("4") int parallelism,
+                            @Context HttpServletRequest httpRequest) {
+        final int maxParallelism = Math.min(MAX_REVALUE_PARALLELISM, admission.getMaxInFlightPerCaller());
+        if (batchSize < 1 || parallelism < 1 || parallelism > maxParallelism) {
+            return Response.status(BAD_REQUEST)
+                    .entity(String.format("batchSize must be positive and parallelism between 1 and %d.%n", maxParallelism))
+                    .build();
+        }
+        final String caller = caller(httpRequest);
         try {
-            final SignedTransaction signedTx = rpcOps
-                    .startTrackedFlowDynamic(DiamondCreateFlow.Initiator.class, id, newOwnerParty)
-                    .getReturnValue()
-                    .get();
+            final QueryCriteria criteria = diamondCriteria(myLegalName, ApprovalStatus.APPROVED);
+            final List<String> externalIds = new ArrayList<>();
+            for (int page = DEFAULT_PAGE_NUM; ; page++) {
+                final Vault.Page<DiamondAssetState> results = rpcOps.vaultQueryBy(criteria,
+                        new PageSpecification(page, REVALUE_LIST_PAGE_SIZE), new Sort(Collections.emptySet()), DiamondAssetState.class);
+                for (StateAndRef<DiamondAssetState> stateAndRef : results.getStates()) {
+                    externalIds.add(stateAndRef.getState().getData().getLinearId().toString());
+                }
+                if ((long) page * REVALUE_LIST_PAGE_SIZE >= results.getTotalStatesAvailable()) {
+                    break;
+                }
+            }
+            final RevaluationJob job = new RevaluationJob(UUID.randomUUID().toString(), externalIds, batchSize, parallelism,
+                    batch -> {
+                        try (FlowAdmissionController.Permit permit = admission.admit("DiamondRevalueFlow", caller);
+                             FlowDispatcher.Slot slot = dispatcher.acquire(() -> priorityOf(null, "DiamondRevalueFlow", null))) {
+                            return rpcOps.startFlowDynamic(DiamondRevalueFlow.Initiator.class, batch).getReturnValue().get();
+                        }
+                    });
+            revaluationJobs.put(job.getId(), job);
+            return Response.status(ACCEPTED).entity(job.start().status()).build();
+        } catch (Throwable ex) {
+            final String msg = ex.getMessage();
+            logger.error(msg, ex);
+            return Response.status(BAD_REQUEST).entity(msg).build();
+        }
+    }
+
+    /**
+     * Accessible at /api/idt/revalue/{jobId}. Returns the progress of a revaluation job.
+     */
+    @GET
+    @Path("revalue/{jobId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response revaluation(@PathParam("jobId") String jobId) {
+        final RevaluationJob job = revaluationJobs.getIfPresent(jobId);
+        if (job == null) {
+            return Response.status(Response.Status.NOT_FOUND).entity("No revaluation job " + jobId + "\n").build();
+        }
+        return Response.ok(job.status()).build();
+    }
+
+    /**
+     * Accessible at /api/idt/warmup. Runs the warm-up flow on the node and returns its time per iteration by round
+     * and its time to a steady state. Nothing is recorded.
+     */
+    @PUT
+    @Path("warmup")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response warmup(@Context HttpServletRequest httpRequest) {
+        try (FlowAdmissionController.Permit permit = admission.admit("DiamondWarmupFlow", caller(httpRequest))) {
+            return Response.ok(rpcOps.startFlowDynamic(DiamondWarmupFlow.Initiator.class).getReturnValue().get()).build();
+        } catch (FlowAdmissionController.AdmissionRejectedException ex) {
+            return tooManyRequests(ex);
+        } catch (Throwable ex) {
+            final String msg = ex.getMessage();
+            logger.error(msg, ex);
+            return Response.status(BAD_REQUEST).entity(msg).build();
+        }
+    }
+
+    /**
+     * Accessible at /api/idt/approvers. Returns the approvers of the pool with their weights.
+     */
+    @GET
+    @Path("approvers")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Integer> getApproverPool() {
+        return approverPool.getWeights().entrySet().stream()
+                .collect(toMap(entry -> entry.getKey().toString(), Map.Entry::getValue, (a, b) -> a, LinkedHashMap::new));
+    }
+
+    /**
+     * Accessible at /api/idt/admission. Returns the admission control metrics of the flow-starting endpoints.
+     */
+    @GET
+    @Path("admission")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getAdmissionMetrics() {
+        return admission.metrics();
+    }
+
+    /**
+     * Accessible at /api/idt/dispatch. Returns the slots in use and the queueing of each dispatch priority.
+     */
+    @GET
+    @Path("dispatch")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getDispatchMetrics() {
+        return dispatcher.metrics();
+    }
+
+    /**
+     * Accessible at /api/idt/flows/{flowId}/events. Streams the progress tracker steps of a flow started through this
+     * API as Server-Sent Events, followed by a final "result" or "failed" event.
+     */
+    @GET
+    @Path("flows/{flowId}/events")
+    @Produces(SSE_MEDIA_TYPE)
+    public ChunkedOutput<String> flowEvents(@PathParam("flowId") String flowId) {
+        final SseSink sink = progressHub.subscribe(flowId);
+        if (sink == null) {
+            throw new NotFoundException("Unknown flow " + flowId);
+        }
+        return sink.getOutput();
+    }
+
+    /**
+     * Starts the flow once admission control lets it through. The caller is identified by the X-Client-Id header, or
+     * by the remote address when the header is absent.
+     *
+     * By default the request blocks until the flow returns the committed transaction. With the query parameter
+     * async=true it returns 202 straight away with the flow id and the URL of its progress event stream.
+     *
+     * A request with the same idempotency key as a flow started earlier, usually a client retry after a timeout,
+     * attaches to that flow and returns its result instead of starting another one. A client that sends an
+     * Idempotency-Key header has its requests keyed by that header, otherwise the key is derived from the request.
+     */
+    private Response runFlow(HttpServletRequest httpRequest, Response.Status status, String idempotencyKey,
+                             Class<? extends FlowLogic<SignedTransaction>> flowClass, Object... args) {
+        return runFlow(httpRequest, status, idempotencyKey, null, flowClass, args);
+    }
 
-            final String msg = String.format("Transaction id %s committed to ledger.\n", signedTx.getId());
-            return Response.status(OK).entity(msg).build();
+    /**
+     * Like runFlow, for a flow on a diamond whose box value raises its dispatch priority. The box value is only
+     * looked up when the flow has to queue.
+     */
+    private Response runFlow(HttpServletRequest httpRequest, Response.Status status, String derivedKey,
+                             Supplier<Double> boxValue, Class<? extends FlowLogic<SignedTransaction>> flowClass, Object... args) {
+        final String caller = caller(httpRequest);
+        final boolean async = Boolean.parseBoolean(httpRequest.getParameter("async"));
+        final String flowType = flowClass.getEnclosingClass() != null
+                ? flowClass.getEnclosingClass().getSimpleName()
+                : flowClass.getSimpleName();
+        final String clientKey = httpRequest.getHeader(IDEMPOTENCY_KEY_HEADER);
+        final String idempotencyKey = clientKey == null || clientKey.isEmpty()
+                ? derivedKey
+                : flowType + ":" + caller + ":" + clientKey;
+        final IdempotencyRegistry.Entry entry = new IdempotencyRegistry.Entry();
+        final IdempotencyRegistry.Entry earlier = idempotency.register(idempotencyKey, entry);
+        try {
+            if (earlier != null) {
+                logger.info("Attaching to the {} flow already started for {}", flowType, idempotencyKey);
+                httpRequest.setAttribute(ApiEventFilter.FLOW_ID, earlier.getFlowId());
+                if (async && earlier.getFlowId() != null) {
+                    return accepted(earlier.getFlowId());
+                }
+                return committed(status, earlier.getResult().get());
+            }
+            startFlow(entry, idempotencyKey, flowType, caller, () -> priorityOf(httpRequest, flowType, boxValue), flowClass, args);
+            httpRequest.setAttribute(ApiEventFilter.FLOW_ID, entry.getFlowId());
+            if (async) {
+                return accepted(entry.getFlowId());
+            }
+            return committed(status, entry.getResult().get());
 
+        } catch (FlowAdmissionController.AdmissionRejectedException ex) {
+            logger.warn("Rejected {} for {}: {}", flowType, caller, ex.getMessage());
+            return tooManyRequests(ex);
         } catch (Throwable ex) {
             final String msg = ex.getMessage();
             logger.error(msg, ex);
             return Response.status(BAD_REQUEST).entity(msg).build();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * The client the admission limits are accounted to: its X-Client-Id header, or else its address.
+     */
+    private static String caller(HttpServletRequest httpRequest) {
+        return httpRequest.getHeader(CLIENT_ID_HEADER) != null
+                ? httpRequest.getHeader(CLIENT_ID_HEADER)
+                : httpRequest.getRemoteAddr();
+    }
+
+    /**
+     * The dispatch priority of a request: URGENT for a diamond of at least idt.dispatch.urgentBoxValue, else the
+     * priority of its flow type. Its X-Flow-Priority header may lower that priority, and may raise it only for clients
+     * at the addresses listed in idt.dispatch.trustedAddresses, so that bulk clients cannot jump the queue.
+     */
+    private static FlowDispatcher.Priority priorityOf(HttpServletRequest httpRequest, String flowType, Supplier<Double> boxValue) {
+        final FlowDispatcher.Priority standard = standardPriorityOf(flowType, boxValue);
+        final String requested = httpRequest == null ? null : httpRequest.getHeader(PRIORITY_HEADER);
+        if (requested == null) {
+            return standard;
+        }
+        final FlowDispatcher.Priority priority;
+        try {
+            priority = FlowDispatcher.Priority.valueOf(requested.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            logger.warn("Ignoring unknown {} {}", PRIORITY_HEADER, requested);
+            return standard;
+        }
+        if (priority.compareTo(standard) < 0 && !TRUSTED_PRIORITY_ADDRESSES.contains(httpRequest.getRemoteAddr())) {
+            logger.warn("Ignoring {} {} from untrusted {}", PRIORITY_HEADER, requested, httpRequest.getRemoteAddr());
+            return standard;
+        }
+        return priority;
+    }
+
+    private static FlowDispatcher.Priority standardPriorityOf(String flowType, Supplier<Double> boxValue) {
+        if (boxValue != null) {
+            final Double value = boxValue.get();
+            if (value != null && value >= URGENT_BOX_VALUE) {
+                return FlowDispatcher.Priority.URGENT;
+            }
+        }
+        final String configured = System.getProperty("idt.dispatch.priority." + flowType);
+        if (configured != null) {
+            return FlowDispatcher.Priority.valueOf(configured.trim().toUpperCase());
+        }
+        return FLOW_PRIORITIES.getOrDefault(flowType, FlowDispatcher.Priority.NORMAL);
+    }
+
+    /**
+     * The unconsumed version of the diamond, so that requests derived from the same fields but made against different
+     * versions, e.g. a stone sent back and forth between two owners, are not taken for retries of each other.
+     */
+    private String currentRefOf(String externalId) {
+        try {
+            final QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(null,
+                    ImmutableList.of(UniqueIdentifier.Companion.fromString(externalId)), Vault.StateStatus.UNCONSUMED,
+                    ImmutableSet.of(DiamondAssetState.class));
+            final List<StateAndRef<DiamondAssetState>> states = rpcOps.vaultQueryByCriteria(criteria, DiamondAssetState.class).getStates();
+            return states.isEmpty() ? "none" : states.get(0).getRef().toString();
+        } catch (RuntimeException ex) {
+            return "none";
+        }
+    }
+
+    /**
+     * The box value of our unconsumed diamond with the given external id, or null when we do not hold it.
+     */
+    private Double boxValueOf(String externalId) {
+        try {
+            final QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(null,
+                    ImmutableList.of(UniqueIdentifier.Companion.fromString(externalId)), Vault.StateStatus.UNCONSUMED,
+                    ImmutableSet.of(DiamondAssetState.class));
+            final List<StateAndRef<DiamondAssetState>> states = rpcOps.vaultQueryByCriteria(criteria, DiamondAssetState.class).getStates();
+            return states.isEmpty() ? null : states.get(0).getState().getData().getBoxValue();
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Admits the flow, waits for a dispatch slot and starts it, registers its progress feed with the hub and completes
+     * the entry when the flow ends. The admission permit and the slot are held until then, also for asynchronous
+     * requests.
+     */
+    private void startFlow(IdempotencyRegistry.Entry entry, String idempotencyKey, String flowType, String caller,
+                           Supplier<FlowDispatcher.Priority> priority,
+                           Class<? extends FlowLogic<SignedTransaction>> flowClass, Object... args) throws Exception {
+        final FlowAdmissionController.Permit permit;
+        final FlowDispatcher.Slot slot;
+        final FlowProgressHandle<SignedTransaction> handle;
+        try {
+            permit = admission.admit(flowType, caller);
+        } catch (Exception ex) {
+            idempotency.forget(idempotencyKey, entry);
+            entry.getResult().completeExceptionally(ex);
+            throw ex;
+        }
+        try {
+            slot = dispatcher.acquire(priority);
+        } catch (Exception ex) {
+            permit.close();
+            idempotency.forget(idempotencyKey, entry);
+            entry.getResult().completeExceptionally(ex);
+            throw ex;
+        }
+        try {
+            handle = rpcOps.startTrackedFlowDynamic(flowClass, args);
+        } catch (RuntimeException ex) {
+            slot.close();
+            permit.close();
+            idempotency.forget(idempotencyKey, entry);
+            entry.getResult().completeExceptionally(ex);
+            throw ex;
+        }
+        final String flowId = handle.getId().getUuid().toString();
+        entry.setFlowId(flowId);
+        progressHub.track(flowId, handle.getProgress());
+        handle.getReturnValue().then(result -> {
+            slot.close();
+            permit.close();
+            try {
+                final SignedTransaction signedTx = result.get();
+                progressHub.finish(flowId, "result", String.format("{\"txId\":\"%s\"}", signedTx.getId()));
+                entry.getResult().complete(signedTx);
+            } catch (Exception ex) {
+                final Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+                idempotency.forget(idempotencyKey, entry);
+                progressHub.finish(flowId, "failed", String.valueOf(cause.getMessage()));
+                entry.getResult().completeExceptionally(cause);
+            }
+            return null;
+        });
+    }
+
+    private static Response committed(Response.Status status, SignedTransaction signedTx) {
+        final String msg = String.format("Transaction id %s committed to ledger.\n", signedTx.getId());
+        return Response.status(status).entity(msg).build();
+    }
+
+    /**
+     * The 429 a rejected admission is answered with, telling the client when to retry.
+     */
+    static Response tooManyRequests(FlowAdmissionController.AdmissionRejectedException ex) {
+        return Response.status(TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, ex.getRetryAfterSeconds())
+                .entity(ex.getMessage() + "\n")
+                .build();
+    }
+
+    private static Response accepted(String flowId) {
+        return Response.status(ACCEPTED)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(ImmutableMap.of("flowId", flowId, "events", "/api/idt/flows/" + flowId + "/events"))
+                .build();
+    }
+}
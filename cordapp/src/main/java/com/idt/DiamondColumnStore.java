@@ -0,0 +1,373 @@
+package com.idt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A local store of the history of DiamondAssetStates, kept in {@link ColumnSegment} files for analytics.
+ *
+ * Every version of a diamond contributes a PRODUCED event at the time it was recorded and, once spent, a CONSUMED event
+ * at the time it was consumed, each carrying the version's linear id, parties, status and figures. Events are only
+ * ever appended: each {@link #append} writes a new segment and then advances the watermarks in the store's manifest.
+ * A segment that a crash left out of the manifest is deleted when the store is opened, and its events ingested again.
+ *
+ * Queries filter and aggregate a column at a time over arrays of a segment: a selection vector of matching row numbers
+ * is narrowed by each predicate, and only the selected rows are grouped. Segments that cannot match, by the min and max
+ * of their time column or because their dictionary lacks the value asked for, are skipped without reading any column.
+ */
+public class DiamondColumnStore {
+    public static final String PRODUCED = "PRODUCED";
+    public static final String CONSUMED = "CONSUMED";
+
+    public static final String TIME = "time";
+    public static final String EVENT = "event";
+    public static final String LINEAR_ID = "linear_id";
+    public static final String OWNER = "owner";
+    public static final String SOURCE = "source";
+    public static final String APPROVER = "approver";
+    public static final String STATUS = "approval_status";
+    public static final String CARATS = "carats";
+    public static final String COST = "cost";
+    public static final String BOX_VALUE = "box_value";
+
+    /**
+     * The columns a query can group by: the STRING columns and "month", the UTC month of the event time.
+     */
+    public static final String MONTH = "month";
+    private static final Set<String> GROUP_COLUMNS = new HashSet<>(Arrays.asList(MONTH, EVENT, OWNER, SOURCE, APPROVER, STATUS));
+
+    private static final String MANIFEST = "manifest.properties";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".col";
+
+    /**
+     * One event of one version of a diamond.
+     */
+    public static class Event {
+        private final long time;
+        private final String event;
+        private final String linearId;
+        private final String stateRef;
+        private final String owner;
+        private final String source;
+        private final String approver;
+        private final String status;
+        private final double carats;
+        private final double cost;
+        private final double boxValue;
+
+        public Event(long time, String event, String linearId, String stateRef, String owner, String source,
+                     String approver, String status, double carats, double cost, double boxValue) {
+            this.time = time;
+            this.event = event;
+            this.linearId = linearId;
+            this.stateRef = stateRef;
+            this.owner = owner;
+            this.source = source;
+            this.approver = approver;
+            this.status = status;
+            this.carats = carats;
+            this.cost = cost;
+            this.boxValue = boxValue;
+        }
+
+        public long getTime() { return time; }
+        public String getEvent() { return event; }
+        public String getStateRef() { return stateRef; }
+    }
+
+    /**
+     * Which events to aggregate and how to group them. Null filters match everything.
+     */
+    public static class Query {
+        private Long fromMillis;
+        private Long toMillis;
+        private final Map<String, String> equals = new LinkedHashMap<>();
+        private final List<String> groupBy = new ArrayList<>();
+
+        /**
+         * Events at or after the instant.
+         */
+        public Query from(Instant from) {
+            this.fromMillis = from.toEpochMilli();
+            return this;
+        }
+
+        /**
+         * Events before the instant.
+         */
+        public Query to(Instant to) {
+            this.toMillis = to.toEpochMilli();
+            return this;
+        }
+
+        /**
+         * Events whose STRING column has the value, e.g. where(EVENT, CONSUMED).
+         */
+        public Query where(String column, String value) {
+            equals.put(column, value);
+            return this;
+        }
+
+        public Query groupBy(String... columns) {
+            for (String column : columns) {
+                if (!GROUP_COLUMNS.contains(column)) {
+                    throw new IllegalArgumentException("Cannot group by " + column + "; use one of " + GROUP_COLUMNS);
+                }
+                groupBy.add(column);
+            }
+            return this;
+        }
+    }
+
+    /**
+     * The aggregates of one group.
+     */
+    public static class Group {
+        private final List<String> key;
+        private long count;
+        private double carats;
+        private double cost;
+        private double boxValue;
+
+        private Group(List<String> key) {
+            this.key = key;
+        }
+
+        public List<String> getKey() { return key; }
+        public long getCount() { return count; }
+        public double getCarats() { return carats; }
+        public double getCost() { return cost; }
+        public double getBoxValue() { return boxValue; }
+    }
+
+    private final Path directory;
+    private final Properties manifest = new Properties();
+
+    public DiamondColumnStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        final Path manifestFile = directory.resolve(MANIFEST);
+        if (Files.exists(manifestFile)) {
+            try (InputStream in = Files.newInputStream(manifestFile)) {
+                manifest.load(in);
+            }
+        }
+        final int segments = Integer.parseInt(manifest.getProperty("segments", "0"));
+        for (Path segment : segments()) {
+            if (segmentNumber(segment) >= segments) {
+                Files.delete(segment);
+            }
+        }
+    }
+
+    private static int segmentNumber(Path segment) {
+        final String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * The time up to which events of the kind have been appended, or the epoch when there are none.
+     */
+    public Instant watermark(String event) {
+        return Instant.ofEpochMilli(Long.parseLong(manifest.getProperty(event + ".watermark", "0")));
+    }
+
+    /**
+     * Whether the event is already in the store. Only events at the watermark can be, since events are appended in
+     * time order; the refs at the watermark are kept in the manifest for this check.
+     */
+    public boolean isRecorded(Event event) {
+        final long watermark = watermark(event.getEvent()).toEpochMilli();
+        return event.getTime() < watermark || (event.getTime() == watermark
+                && Arrays.asList(manifest.getProperty(event.getEvent() + ".refs", "").split(" ")).contains(event.getStateRef()));
+    }
+
+    /**
+     * Writes the events, which must be of one kind and in time order, as a new segment and advances the watermark.
+     */
+    public synchronized void append(List<Event> events) throws IOException {
+        if (events.isEmpty()) {
+            return;
+        }
+        final int rows = events.size();
+        final long[] time = new long[rows];
+        final String[] event = new String[rows];
+        final String[] linearId = new String[rows];
+        final String[] owner = new String[rows];
+        final String[] source = new String[rows];
+        final String[] approver = new String[rows];
+        final String[] status = new String[rows];
+        final double[] carats = new double[rows];
+        final double[] cost = new double[rows];
+        final double[] boxValue = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            final Event e = events.get(i);
+            time[i] = e.time;
+            event[i] = e.event;
+            linearId[i] = e.linearId;
+            owner[i] = e.owner;
+            source[i] = e.source;
+            approver[i] = e.approver;
+            status[i] = e.status;
+            carats[i] = e.carats;
+            cost[i] = e.cost;
+            boxValue[i] = e.boxValue;
+        }
+        final int number = Integer.parseInt(manifest.getProperty("segments", "0"));
+        new ColumnSegment.Writer(rows)
+                .longs(TIME, time)
+                .strings(EVENT, event)
+                .strings(LINEAR_ID, linearId)
+                .strings(OWNER, owner)
+                .strings(SOURCE, source)
+                .strings(APPROVER, approver)
+                .strings(STATUS, status)
+                .doubles(CARATS, carats)
+                .doubles(COST, cost)
+                .doubles(BOX_VALUE, boxValue)
+                .write(directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX)));
+
+        final Event last = events.get(rows - 1);
+        final String refsAtWatermark = events.stream()
+                .filter(e -> e.time == last.time)
+                .map(e -> e.stateRef)
+                .collect(Collectors.joining(" "));
+        final boolean sameWatermark = last.time == watermark(last.event).toEpochMilli();
+        manifest.setProperty(last.event + ".refs", sameWatermark
+                ? (manifest.getProperty(last.event + ".refs", "") + " " + refsAtWatermark).trim()
+                : refsAtWatermark);
+        manifest.setProperty(last.event + ".watermark", String.valueOf(last.time));
+        manifest.setProperty("segments", String.valueOf(number + 1));
+        final Path tmp = directory.resolve(MANIFEST + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            manifest.store(out, "DiamondColumnStore");
+        }
+        Files.move(tmp, directory.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                    && file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Runs the query over every segment and returns the groups ordered by their key.
+     */
+    public List<Group> query(Query query) throws IOException {
+        final Map<List<String>, Group> groups = new TreeMap<>(DiamondColumnStore::compareKeys);
+        for (Path path : segments()) {
+            scan(ColumnSegment.open(path), query, groups);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    private static int compareKeys(List<String> a, List<String> b) {
+        for (int i = 0; i < a.size(); i++) {
+            final int order = a.get(i).compareTo(b.get(i));
+            if (order != 0) {
+                return order;
+            }
+        }
+        return 0;
+    }
+
+    private static void scan(ColumnSegment segment, Query query, Map<List<String>, Group> groups) throws IOException {
+        final ColumnSegment.ColumnInfo timeInfo = segment.info(TIME);
+        if ((query.fromMillis != null && timeInfo.getMax() < query.fromMillis)
+                || (query.toMillis != null && timeInfo.getMin() >= query.toMillis)) {
+            return;
+        }
+        final Map<String, Integer> wanted = new LinkedHashMap<>();
+        for (Map.Entry<String, String> predicate : query.equals.entrySet()) {
+            final int code = segment.code(predicate.getKey(), predicate.getValue());
+            if (code < 0) {
+                return;
+            }
+            wanted.put(predicate.getKey(), code);
+        }
+
+        int[] selection = new int[segment.getRows()];
+        int selected = 0;
+        for (int row = 0; row < selection.length; row++) {
+            selection[selected++] = row;
+        }
+        long[] time = null;
+        if (query.fromMillis != null || query.toMillis != null || query.groupBy.contains(MONTH)) {
+            time = segment.longs(TIME);
+        }
+        if (query.fromMillis != null || query.toMillis != null) {
+            final long from = query.fromMillis == null ? Long.MIN_VALUE : query.fromMillis;
+            final long to = query.toMillis == null ? Long.MAX_VALUE : query.toMillis;
+            int kept = 0;
+            for (int i = 0; i < selected; i++) {
+                final int row = selection[i];
+                if (time[row] >= from && time[row] < to) {
+                    selection[kept++] = row;
+                }
+            }
+            selected = kept;
+        }
+        for (Map.Entry<String, Integer> predicate : wanted.entrySet()) {
+            final int[] codes = segment.codes(predicate.getKey());
+            final int code = predicate.getValue();
+            int kept = 0;
+            for (int i = 0; i < selected; i++) {
+                final int row = selection[i];
+                if (codes[row] == code) {
+                    selection[kept++] = row;
+                }
+            }
+            selected = kept;
+        }
+        if (selected == 0) {
+            return;
+        }
+
+        final List<int[]> keyCodes = new ArrayList<>(query.groupBy.size());
+        final List<List<String>> dictionaries = new ArrayList<>(query.groupBy.size());
+        for (String column : query.groupBy) {
+            keyCodes.add(MONTH.equals(column) ? null : segment.codes(column));
+            dictionaries.add(MONTH.equals(column) ? null : segment.dictionary(column));
+        }
+        final double[] carats = segment.doubles(CARATS);
+        final double[] cost = segment.doubles(COST);
+        final double[] boxValue = segment.doubles(BOX_VALUE);
+        // Groups of this segment by their codes, so the key strings are only built once per group and segment.
+        final Map<List<Object>, Group> local = new HashMap<>();
+        for (int i = 0; i < selected; i++) {
+            final int row = selection[i];
+            final List<Object> codes = new ArrayList<>(keyCodes.size());
+            for (int k = 0; k < keyCodes.size(); k++) {
+                codes.add(keyCodes.get(k) == null
+                        ? YearMonth.from(Instant.ofEpochMilli(time[row]).atZone(ZoneOffset.UTC))
+                        : keyCodes.get(k)[row]);
+            }
+            Group group = local.get(codes);
+            if (group == null) {
+                final List<String> key = new ArrayList<>(codes.size());
+                for (int k = 0; k < codes.size(); k++) {
+                    key.add(dictionaries.get(k) == null ? codes.get(k).toString() : dictionaries.get(k).get((Integer) codes.get(k)));
+                }
+                group = groups.computeIfAbsent(key, Group::new);
+                local.put(codes, group);
+            }
+            group.count++;
+            group.carats += carats[row];
+            group.cost += cost[row];
+            group.boxValue += boxValue[row];
+        }
+    }
+}
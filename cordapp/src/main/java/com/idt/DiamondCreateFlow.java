@@ -2,9 +2,13 @@ package com.idt;
 
 import co.paralleluniverse.fibers.Suspendable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import net.corda.core.contracts.*;
+import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 import net.corda.core.utilities.ProgressTracker;
@@ -24,7 +28,7 @@ public class DiamondCreateFlow {
      */
     @InitiatingFlow
     @StartableByRPC
-    public static class Initiator extends FlowLogic<SignedTransaction> {
+    public static class Initiator extends DiamondFlowBase {
         /**
          * Define the fields to be used to initialise the DiamondAssetState
          */
@@ -35,40 +39,32 @@ public class DiamondCreateFlow {
         private final double cost;
         private final float percent;
         private final Party approver;
+        private final List<Party> coApprovers;
+        private final int quorum;
+        private final SecureHash certificate;
+        private final String certificateEntry;
+
         /**
-         * The progress tracker provides checkpoints indicating the progress of the flow to observers.
+         * Define constructor to pass initialize DiamondAssetState object for the flow
          */
-        private final ProgressTracker.Step GENERATING_TRANSACTION = new ProgressTracker.Step("Generating transaction based on new DiamondAsset.");
-        private final ProgressTracker.Step VERIFYING_TRANSACTION = new ProgressTracker.Step("Verifying contract constraints.");
-        private final ProgressTracker.Step SIGNING_TRANSACTION = new ProgressTracker.Step("Signing transaction with our private key.");
-        private final ProgressTracker.Step GATHERING_SIGS = new ProgressTracker.Step("Gathering the counterparty's signature.") {
-            @Override
-            public ProgressTracker childProgressTracker() {
-                return CollectSignaturesFlow.Companion.tracker();
-            }
-        };
-        private final ProgressTracker.Step FINALISING_TRANSACTION = new ProgressTracker.Step("Obtaining notary signature and recording transaction.") {
-            @Override
-            public ProgressTracker childProgressTracker() {
-                return FinalityFlow.Companion.tracker();
-            }
-        };
+        public Initiator(String externalId, String description, double carats, double cost, float percent, Party approver){
+            this(externalId, description, carats, cost, percent, approver, ImmutableList.of(), 1, null, null);
+        }
 
-        // The progress tracker checkpoints each stage of the flow and outputs the specified messages when each
-        // checkpoint is reached in the code. See the 'progressTracker.currentStep' expressions within the call()
-        // function.
-        private final ProgressTracker progressTracker = new ProgressTracker(
-                GENERATING_TRANSACTION,
-                VERIFYING_TRANSACTION,
-                SIGNING_TRANSACTION,
-                GATHERING_SIGS,
-                FINALISING_TRANSACTION
-        );
+        /**
+         * Issues a DiamondAsset whose approval needs the signatures of a quorum of the approver and co-approvers.
+         */
+        public Initiator(String externalId, String description, double carats, double cost, float percent, Party approver,
+                         List<Party> coApprovers, int quorum){
+            this(externalId, description, carats, cost, percent, approver, coApprovers, quorum, null, null);
+        }
 
         /**
-         * Define constructor to pass initialize DiamondAssetState object for the flow
+         * Also attaches the grading certificate: the attachment with the given hash, and the certificate's entry in it
+         * when the attachment holds several, or null.
          */
-        public Initiator(String externalId, String description, double carats, double cost, float percent, Party approver){
+        public Initiator(String externalId, String description, double carats, double cost, float percent, Party approver,
+                         List<Party> coApprovers, int quorum, SecureHash certificate, String certificateEntry){
             this.linearId = UniqueIdentifier.Companion.fromString(externalId);
             this.diamondType = DiamondType.SIGHT;
             this.description = description;
@@ -76,48 +72,73 @@ public class DiamondCreateFlow {
             this.cost=cost;
             this.percent=percent;
             this.approver=approver;
+            this.coApprovers=coApprovers;
+            this.quorum=quorum;
+            this.certificate=certificate;
+            this.certificateEntry=certificateEntry;
         }
 
-        @Suspendable
-        @Override public SignedTransaction call() throws FlowException {
-            //We retrieve notary identity from the network map.
-            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
-            //Stage 1 - Generating the transaction
-            progressTracker.setCurrentStep(GENERATING_TRANSACTION);
-            //We create a transaction builder.
-            final TransactionBuilder txBuilder = new TransactionBuilder();
-            txBuilder.setNotary(notary);
+        @Override
+        protected UniqueIdentifier getLinearId() {
+            return linearId;
+        }
+
+        @Override
+        protected SignedTransaction prepare() throws FlowException {
+            //A retry of an earlier create returns the original issuance instead of issuing the stone twice
+            final SignedTransaction issued = findIssuance();
+            if(issued!=null){
+                return issued;
+            }
+            reserve("issued");
+            final TransactionBuilder txBuilder = newTransaction();
             //We create the transaction components
             DiamondAssetState diamondAssetState = new DiamondAssetState(linearId, diamondType, getOurIdentity(),
                     description, carats, cost, percent, approver);
+            diamondAssetState.setCoApprovers(coApprovers);
+            diamondAssetState.setQuorum(quorum);
+            diamondAssetState.setCertificate(certificate, certificateEntry);
             StateAndContract outputStateAndContract = new StateAndContract(diamondAssetState, DC_CONTRACT_ID);
             List<PublicKey> requiredSigners = ImmutableList.of(getOurIdentity().getOwningKey(), approver.getOwningKey());
             final Command<DiamondChainContract.Commands.Create> createCmd = new Command<DiamondChainContract.Commands.Create>(
                     new DiamondChainContract.Commands.Create(), requiredSigners);
             //We add items to builder
             txBuilder.withItems(outputStateAndContract, createCmd);
-            //Stage 2 - Verify transaction
-            progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
-            //Verifying the transaction
-            txBuilder.verify(getServiceHub());
+            if(certificate!=null){
+                txBuilder.addAttachment(certificate);
+            }
+            return verifyAndSign(txBuilder);
+        }
 
-            //Stage 3 - Signing transaction
-            progressTracker.setCurrentStep(SIGNING_TRANSACTION);
-            //Signing the transaction
-            final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder);
+        /**
+         * Returns the transaction that issued this linear id, or null when it has not been issued yet.
+         */
+        private SignedTransaction findIssuance() throws FlowException {
+            QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(null, ImmutableList.of(linearId), Vault.StateStatus.ALL, ImmutableSet.of(DiamondAssetState.class));
+            List<StateAndRef<DiamondAssetState>> stateAndRefs = getServiceHub().getVaultService().queryBy(DiamondAssetState.class, criteria).getStates();
+            for(StateAndRef<DiamondAssetState> stateAndRef : stateAndRefs){
+                final SignedTransaction tx = getServiceHub().getValidatedTransactions().getTransaction(stateAndRef.getRef().getTxhash());
+                if(tx!=null && tx.getTx().getInputs().isEmpty()){
+                    if(!stateAndRef.getState().getData().getSource().equals(getOurIdentity())){
+                        throw new FlowException("External ID " + linearId + " was issued by another party.");
+                    }
+                    return tx;
+                }
+            }
+            if(!stateAndRefs.isEmpty()){
+                throw new FlowException("External ID " + linearId + " is already in use.");
+            }
+            return null;
+        }
 
-            //Stage 4 - Gathering Signatures
-            progressTracker.setCurrentStep(GATHERING_SIGS);
+        @Suspendable
+        @Override
+        protected SignedTransaction gatherSignatures(SignedTransaction partSignedTx) throws FlowException {
             //Creating a session with the other party
             FlowSession approverPartySession = initiateFlow(approver);
-
             //Obtaining Counterparty's signature
-            final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partSignedTx,
+            return subFlow(new CollectSignaturesFlow(partSignedTx,
                     ImmutableList.of(approverPartySession), CollectSignaturesFlow.tracker()));
-            //Stage 5 - Finalising Transaction
-            progressTracker.setCurrentStep(FINALISING_TRANSACTION);
-            //Finalising the transaction
-            return subFlow(new FinalityFlow(fullySignedTx));
         }
     }
 
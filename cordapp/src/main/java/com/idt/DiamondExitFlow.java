@@ -0,0 +1,189 @@
+package com.idt;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.*;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Retires diamonds (sold, cut, exported or consumed by manufacturing) by consuming their states without producing
+ * any outputs, so they drop out of the unconsumed vault set.
+ */
+public class DiamondExitFlow {
+    /**
+     * You can add a constructor to each FlowLogic subclass to pass objects into the flow.
+     */
+    @InitiatingFlow
+    @StartableByRPC
+    public static class Initiator extends FlowLogic<SignedTransaction> {
+        /**
+         * The linear ids of the DiamondAssetStates to exit
+         */
+        private final List<UniqueIdentifier> ids;
+        /**
+         * The progress tracker provides checkpoints indicating the progress of the flow to observers.
+         */
+        private final ProgressTracker.Step GENERATING_TRANSACTION = new ProgressTracker.Step("Generating exit transaction for the DiamondAssets.");
+        private final ProgressTracker.Step VERIFYING_TRANSACTION = new ProgressTracker.Step("Verifying contract constraints.");
+        private final ProgressTracker.Step SIGNING_TRANSACTION = new ProgressTracker.Step("Signing transaction with our private key.");
+        private final ProgressTracker.Step GATHERING_SIGS = new ProgressTracker.Step("Gathering the approvers' signatures.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return CollectSignaturesFlow.Companion.tracker();
+            }
+        };
+        private final ProgressTracker.Step FINALISING_TRANSACTION = new ProgressTracker.Step("Obtaining notary signature and recording transaction.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return FinalityFlow.Companion.tracker();
+            }
+        };
+
+        private final ProgressTracker progressTracker = new ProgressTracker(
+                GENERATING_TRANSACTION,
+                VERIFYING_TRANSACTION,
+                SIGNING_TRANSACTION,
+                GATHERING_SIGS,
+                FINALISING_TRANSACTION
+        );
+
+        /**
+         * Exits a single DiamondAssetState.
+         */
+        public Initiator(String externalId){
+            this(ImmutableList.of(externalId));
+        }
+
+        /**
+         * Bulk variant, exits all the given DiamondAssetStates in one transaction.
+         */
+        public Initiator(List<String> externalIds){
+            final List<UniqueIdentifier> ids = new ArrayList<>(externalIds.size());
+            for(String externalId : externalIds){
+                ids.add(UniqueIdentifier.Companion.fromString(externalId));
+            }
+            this.ids = ids;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override public SignedTransaction call() throws FlowException {
+            FlowStepEvents.track(this, progressTracker, ids.stream().map(UniqueIdentifier::toString).collect(Collectors.joining(",")));
+            if(ids.isEmpty()){
+                throw new FlowException("At least one External ID must be given.");
+            }
+            QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(ImmutableList.of(getOurIdentity()), ids, Vault.StateStatus.UNCONSUMED, ImmutableSet.of(DiamondAssetState.class));
+            List<StateAndRef<DiamondAssetState>> stateAndRefs = getServiceHub().getVaultService()
+                    .queryBy(DiamondAssetState.class, criteria, new PageSpecification(DEFAULT_PAGE_NUM, Math.max(ids.size(), 1)))
+                    .getStates();
+            if(stateAndRefs.size()!=ids.size()){
+                throw new FlowException(String.format("Expected %d unconsumed DiamondAssets but found %d.", ids.size(), stateAndRefs.size()));
+            }
+            //We retrieve notary identity from the network map.
+            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+            //Stage 1 - Generating the transaction
+            progressTracker.setCurrentStep(GENERATING_TRANSACTION);
+            final TransactionBuilder txBuilder = new TransactionBuilder();
+            txBuilder.setNotary(notary);
+            //The owner and every approver of the exited assets have to sign
+            final Set<Party> approvers = new LinkedHashSet<>();
+            for(StateAndRef<DiamondAssetState> stateAndRef : stateAndRefs){
+                DiamondAssetState diamondAssetState = stateAndRef.getState().getData();
+                if(!diamondAssetState.getOwner().equals(getOurIdentity())){
+                    throw new FlowException("Only the owner can exit DiamondAsset " + diamondAssetState.getLinearId());
+                }
+                approvers.add(diamondAssetState.getApprover());
+                txBuilder.addInputState(stateAndRef);
+            }
+            approvers.remove(getOurIdentity());
+            List<PublicKey> requiredSigners = new ArrayList<>();
+            requiredSigners.add(getOurIdentity().getOwningKey());
+            for(Party approver : approvers){
+                requiredSigners.add(approver.getOwningKey());
+            }
+            txBuilder.addCommand(new Command<>(new DiamondChainContract.Commands.Exit(), requiredSigners));
+            //Stage 2 - Verify transaction
+            progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
+            txBuilder.verify(getServiceHub());
+
+            //Stage 3 - Signing transaction
+            progressTracker.setCurrentStep(SIGNING_TRANSACTION);
+            final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder);
+
+            //Stage 4 - Gathering Signatures
+            progressTracker.setCurrentStep(GATHERING_SIGS);
+            List<FlowSession> approverSessions = new ArrayList<>();
+            for(Party approver : approvers){
+                approverSessions.add(initiateFlow(approver));
+            }
+            final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partSignedTx,
+                    approverSessions, CollectSignaturesFlow.tracker()));
+            //Stage 5 - Finalising Transaction
+            progressTracker.setCurrentStep(FINALISING_TRANSACTION);
+            return subFlow(new FinalityFlow(fullySignedTx));
+        }
+    }
+
+    @InitiatedBy(DiamondExitFlow.Initiator.class)
+    public static class Responder extends FlowLogic<SignedTransaction> {
+        private final FlowSession ownerPartySession;
+
+        public Responder(FlowSession ownerPartySession) {
+            this.ownerPartySession = ownerPartySession;
+        }
+
+        /**
+         * Define the acceptor's flow logic here.
+         */
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            class SignTxFlow extends SignTransactionFlow {
+                private SignTxFlow(FlowSession ownerPartySession, ProgressTracker progressTracker){
+                    super(ownerPartySession, progressTracker);
+                }
+                @Override
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
+                    final LedgerTransaction ltx;
+                    try {
+                        ltx = stx.toLedgerTransaction(getServiceHub(), false);
+                    } catch (Exception e) {
+                        throw new FlowException("Unable to resolve the exit transaction.", e);
+                    }
+                    requireThat(require->{
+                        require.using("There must be no outputs", ltx.getOutputs().isEmpty());
+                        require.using("All inputs must be DiamondAssetStates", ltx.inputsOfType(DiamondAssetState.class).size()==ltx.getInputs().size());
+                        for(DiamondAssetState diamondAsset : ltx.inputsOfType(DiamondAssetState.class)){
+                            require.using("The exiting party must own the DiamondAsset", diamondAsset.getOwner().equals(ownerPartySession.getCounterparty()));
+                        }
+                        return null;
+                    });
+                }
+            }
+            return subFlow(new SignTxFlow(ownerPartySession, SignTransactionFlow.Companion.tracker()));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.idt;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.CommandData;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FinalityFlow;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.util.List;
+
+/**
+ * The shape shared by the flows that change a single DiamondAsset with the signatures of counterparties:
+ * DiamondCreateFlow, DiamondApproveFlow and DiamondTransferFlow.
+ *
+ * A flow's fields and the locals of its suspended frames are written to its checkpoint at every suspension, so the
+ * flows keep little of either. The progress steps are static and shared, and have no child trackers of their own:
+ * subFlow attaches the tracker of CollectSignaturesFlow or FinalityFlow to the current step when that subflow starts.
+ * The vault lookups, building, verifying and signing happen in prepare(), which never suspends, so query results and
+ * the transaction builder are gone before the first message is sent. From then on a flow holds its constructor
+ * arguments, its tracker and the signed transaction.
+ */
+public abstract class DiamondFlowBase extends FlowLogic<SignedTransaction> {
+    public static final ProgressTracker.Step GENERATING_TRANSACTION = new ProgressTracker.Step("Generating the transaction.");
+    public static final ProgressTracker.Step VERIFYING_TRANSACTION = new ProgressTracker.Step("Verifying contract constraints.");
+    public static final ProgressTracker.Step SIGNING_TRANSACTION = new ProgressTracker.Step("Signing transaction with our private key.");
+    public static final ProgressTracker.Step GATHERING_SIGS = new ProgressTracker.Step("Gathering the counterparties' signatures.");
+    public static final ProgressTracker.Step FINALISING_TRANSACTION = new ProgressTracker.Step("Obtaining notary signature and recording transaction.");
+
+    public static ProgressTracker tracker() {
+        return new ProgressTracker(
+                GENERATING_TRANSACTION,
+                VERIFYING_TRANSACTION,
+                SIGNING_TRANSACTION,
+                GATHERING_SIGS,
+                FINALISING_TRANSACTION
+        );
+    }
+
+    private final ProgressTracker progressTracker = tracker();
+    /**
+     * Whether prepare() reserved the linear id, i.e. made a new transaction rather than found an earlier one.
+     */
+    private boolean reserved;
+
+    /**
+     * The DiamondAsset the flow works on.
+     */
+    protected abstract UniqueIdentifier getLinearId();
+
+    /**
+     * Returns the transaction an earlier run of the same request recorded, for a retry, or else reserves the linear
+     * id and returns the new transaction signed by us. Must not suspend.
+     */
+    protected abstract SignedTransaction prepare() throws FlowException;
+
+    /**
+     * Obtains the counterparties' signatures on the transaction.
+     */
+    @Suspendable
+    protected abstract SignedTransaction gatherSignatures(SignedTransaction partSignedTx) throws FlowException;
+
+    @Override
+    public ProgressTracker getProgressTracker() {
+        return progressTracker;
+    }
+
+    @Suspendable
+    @Override
+    public SignedTransaction call() throws FlowException {
+        FlowStepEvents.track(this, progressTracker, getLinearId().toString());
+        try {
+            return finalise(prepare());
+        } finally {
+            if (reserved) {
+                getServiceHub().cordaService(DiamondLinearIdIndex.class).release(getLinearId());
+            }
+        }
+    }
+
+    @Suspendable
+    private SignedTransaction finalise(SignedTransaction prepared) throws FlowException {
+        if (!reserved) {
+            return prepared;
+        }
+        //Stage 4 - Gathering Signatures
+        progressTracker.setCurrentStep(GATHERING_SIGS);
+        final SignedTransaction fullySignedTx = gatherSignatures(prepared);
+        //Stage 5 - Finalising Transaction
+        progressTracker.setCurrentStep(FINALISING_TRANSACTION);
+        return subFlow(new FinalityFlow(fullySignedTx));
+    }
+
+    /**
+     * Reserves the linear id in DiamondLinearIdIndex until the flow ends, so concurrent requests for the same stone
+     * fail fast instead of racing for the notary.
+     */
+    protected void reserve(String activity) throws FlowException {
+        if (!getServiceHub().cordaService(DiamondLinearIdIndex.class).reserve(getLinearId())) {
+            throw new FlowException("DiamondAsset " + getLinearId() + " is already being " + activity + ".");
+        }
+        reserved = true;
+    }
+
+    /**
+     * Starts a transaction with the notary from the network map.
+     */
+    protected TransactionBuilder newTransaction() {
+        //Stage 1 - Generating the transaction
+        progressTracker.setCurrentStep(GENERATING_TRANSACTION);
+        final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+        final TransactionBuilder txBuilder = new TransactionBuilder();
+        txBuilder.setNotary(notary);
+        return txBuilder;
+    }
+
+    protected SignedTransaction verifyAndSign(TransactionBuilder txBuilder) throws FlowException {
+        //Stage 2 - Verify transaction
+        progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
+        txBuilder.verify(getServiceHub());
+        //Stage 3 - Signing transaction
+        progressTracker.setCurrentStep(SIGNING_TRANSACTION);
+        return getServiceHub().signInitialTransaction(txBuilder);
+    }
+
+    /**
+     * Returns the unconsumed version of our DiamondAsset.
+     */
+    protected StateAndRef<DiamondAssetState> findUnconsumed() throws FlowException {
+        QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(ImmutableList.of(getOurIdentity()), ImmutableList.of(getLinearId()), Vault.StateStatus.UNCONSUMED, ImmutableSet.of(DiamondAssetState.class));
+        List<StateAndRef<DiamondAssetState>> stateAndRefs = getServiceHub().getVaultService().queryBy(DiamondAssetState.class, criteria).getStates();
+        if (stateAndRefs.size() > 1) {
+            throw new FlowException("External ID returned more than 1 result.");
+        }
+        if (stateAndRefs.isEmpty()) {
+            throw new FlowException("External ID " + getLinearId() + " not found.");
+        }
+        return stateAndRefs.get(0);
+    }
+
+    /**
+     * Returns the transaction that produced the state when it carries the command, or null.
+     */
+    protected SignedTransaction producedBy(StateAndRef<DiamondAssetState> stateAndRef, Class<? extends CommandData> command) {
+        final SignedTransaction tx = getServiceHub().getValidatedTransactions().getTransaction(stateAndRef.getRef().getTxhash());
+        if (tx != null && tx.getTx().getCommands().stream().anyMatch(cmd -> command.isInstance(cmd.getValue()))) {
+            return tx;
+        }
+        return null;
+    }
+}
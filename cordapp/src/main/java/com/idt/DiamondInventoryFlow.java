@@ -0,0 +1,228 @@
+package com.idt;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteriaUtils.Builder;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Totals the unconsumed diamonds across the network by owner and approval status.
+ *
+ * Every diamond is held by its source, owner and approvers alike, so each node only totals the diamonds it owns; the
+ * totals of different nodes then add up without counting a stone twice. A node evaluates the query with aggregate
+ * vault queries over PersistentDiamondAsset and returns only the totals. The initiator sends the query to every peer
+ * before it waits for any answer, so the peers evaluate it concurrently.
+ */
+public class DiamondInventoryFlow {
+    /**
+     * The approval statuses to total, all of them when empty.
+     */
+    @CordaSerializable
+    public static class Query {
+        private final List<ApprovalStatus> statuses;
+
+        public Query(List<ApprovalStatus> statuses) {
+            this.statuses = statuses;
+        }
+
+        public List<ApprovalStatus> getStatuses() { return statuses; }
+    }
+
+    /**
+     * The unconsumed diamonds of one owner with one approval status.
+     */
+    @CordaSerializable
+    public static class Row {
+        private final String owner;
+        private final ApprovalStatus status;
+        private final long count;
+        private final double carats;
+        private final double cost;
+
+        public Row(String owner, ApprovalStatus status, long count, double carats, double cost) {
+            this.owner = owner;
+            this.status = status;
+            this.count = count;
+            this.carats = carats;
+            this.cost = cost;
+        }
+
+        public String getOwner() { return owner; }
+        public ApprovalStatus getStatus() { return status; }
+        public long getCount() { return count; }
+        public double getCarats() { return carats; }
+        public double getCost() { return cost; }
+    }
+
+    /**
+     * The totals of the nodes that answered, and how long each took from the start of the query.
+     */
+    @CordaSerializable
+    public static class Report {
+        private final List<Row> rows;
+        private final Map<String, Long> peerMillis;
+        private final Map<String, String> failedPeers;
+
+        public Report(List<Row> rows, Map<String, Long> peerMillis, Map<String, String> failedPeers) {
+            this.rows = rows;
+            this.peerMillis = peerMillis;
+            this.failedPeers = failedPeers;
+        }
+
+        public List<Row> getRows() { return rows; }
+        public Map<String, Long> getPeerMillis() { return peerMillis; }
+        public Map<String, String> getFailedPeers() { return failedPeers; }
+
+        /**
+         * Adds up the reports of several queries, e.g. one per peer.
+         */
+        public static Report merge(List<Report> reports) {
+            final Map<String, Row> rows = new TreeMap<>();
+            final Map<String, Long> peerMillis = new TreeMap<>();
+            final Map<String, String> failedPeers = new TreeMap<>();
+            for (Report report : reports) {
+                for (Row row : report.getRows()) {
+                    rows.merge(row.getOwner() + "|" + row.getStatus(), row, (a, b) -> new Row(a.getOwner(), a.getStatus(),
+                            a.getCount() + b.getCount(), a.getCarats() + b.getCarats(), a.getCost() + b.getCost()));
+                }
+                peerMillis.putAll(report.getPeerMillis());
+                failedPeers.putAll(report.getFailedPeers());
+            }
+            return new Report(new ArrayList<>(rows.values()), peerMillis, failedPeers);
+        }
+    }
+
+    /**
+     * The totals of the unconsumed diamonds we own, one row per status that has any.
+     */
+    public static List<Row> ownedTotals(ServiceHub serviceHub, Party us, List<ApprovalStatus> statuses) {
+        final List<Row> rows = new ArrayList<>();
+        try {
+            final Field owner = DiamondAssetSchemaV1.PersistentDiamondAsset.class.getDeclaredField("owner");
+            final Field status = DiamondAssetSchemaV1.PersistentDiamondAsset.class.getDeclaredField("approvalStatus");
+            final Field carats = DiamondAssetSchemaV1.PersistentDiamondAsset.class.getDeclaredField("carats");
+            final Field cost = DiamondAssetSchemaV1.PersistentDiamondAsset.class.getDeclaredField("cost");
+            for (ApprovalStatus approvalStatus : statuses.isEmpty() ? Arrays.asList(ApprovalStatus.values()) : statuses) {
+                // Without a group by clause the other results are the aggregates in the order of the criteria.
+                final QueryCriteria criteria = new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(owner, us.getName().toString()))
+                        .and(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(status, approvalStatus)))
+                        .and(new QueryCriteria.VaultCustomQueryCriteria(Builder.count(carats)))
+                        .and(new QueryCriteria.VaultCustomQueryCriteria(Builder.sum(carats)))
+                        .and(new QueryCriteria.VaultCustomQueryCriteria(Builder.sum(cost)));
+                final List<Object> totals = serviceHub.getVaultService().queryBy(DiamondAssetState.class, criteria).getOtherResults();
+                final long count = totals.get(0) == null ? 0 : ((Number) totals.get(0)).longValue();
+                if (count > 0) {
+                    rows.add(new Row(us.getName().toString(), approvalStatus, count,
+                            ((Number) totals.get(1)).doubleValue(), ((Number) totals.get(2)).doubleValue()));
+                }
+            }
+        } catch (NoSuchFieldException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return rows;
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class Initiator extends FlowLogic<Report> {
+        private final List<Party> peers;
+        private final List<ApprovalStatus> statuses;
+        private final boolean includeOurs;
+        public static final ProgressTracker.Step QUERYING_PEERS = new ProgressTracker.Step("Sending the inventory query to the peers.");
+        public static final ProgressTracker.Step TOTALLING_OURS = new ProgressTracker.Step("Totalling the DiamondAssets we own.");
+        public static final ProgressTracker.Step RECEIVING_TOTALS = new ProgressTracker.Step("Receiving the totals of the peers.");
+
+        public static ProgressTracker tracker() {
+            return new ProgressTracker(
+                    QUERYING_PEERS,
+                    TOTALLING_OURS,
+                    RECEIVING_TOTALS
+            );
+        }
+
+        private final ProgressTracker progressTracker = tracker();
+
+        public Initiator(List<Party> peers, List<ApprovalStatus> statuses, boolean includeOurs) {
+            this.peers = peers;
+            this.statuses = statuses;
+            this.includeOurs = includeOurs;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public Report call() throws FlowException {
+            final long start = System.nanoTime();
+            progressTracker.setCurrentStep(QUERYING_PEERS);
+            final Query query = new Query(ImmutableList.copyOf(statuses));
+            final List<FlowSession> sessions = new ArrayList<>(peers.size());
+            for (Party peer : peers) {
+                if (!peer.equals(getOurIdentity())) {
+                    final FlowSession session = initiateFlow(peer);
+                    session.send(query);
+                    sessions.add(session);
+                }
+            }
+
+            progressTracker.setCurrentStep(TOTALLING_OURS);
+            final List<Row> rows = new ArrayList<>();
+            final Map<String, Long> peerMillis = new TreeMap<>();
+            final Map<String, String> failedPeers = new TreeMap<>();
+            if (includeOurs) {
+                rows.addAll(ownedTotals(getServiceHub(), getOurIdentity(), statuses));
+                peerMillis.put(getOurIdentity().getName().toString(), (System.nanoTime() - start) / 1_000_000);
+            }
+
+            progressTracker.setCurrentStep(RECEIVING_TOTALS);
+            for (FlowSession session : sessions) {
+                final String peerName = session.getCounterparty().getName().toString();
+                try {
+                    rows.addAll(session.receive(List.class).unwrap(received -> {
+                        final List<Row> peerRows = new ArrayList<>(received.size());
+                        for (Object item : received) {
+                            final Row row = (Row) item;
+                            if (!row.getOwner().equals(peerName)) {
+                                throw new IllegalArgumentException(peerName + " sent the totals of " + row.getOwner());
+                            }
+                            peerRows.add(row);
+                        }
+                        return peerRows;
+                    }));
+                    peerMillis.put(peerName, (System.nanoTime() - start) / 1_000_000);
+                } catch (FlowException | UnexpectedFlowEndException | IllegalArgumentException ex) {
+                    failedPeers.put(peerName, String.valueOf(ex.getMessage()));
+                }
+            }
+            return Report.merge(ImmutableList.of(new Report(rows, peerMillis, failedPeers)));
+        }
+    }
+
+    @InitiatedBy(DiamondInventoryFlow.Initiator.class)
+    public static class Responder extends FlowLogic<Void> {
+        private final FlowSession counterpartySession;
+
+        public Responder(FlowSession counterpartySession) {
+            this.counterpartySession = counterpartySession;
+        }
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            final Query query = counterpartySession.receive(Query.class).unwrap(received -> received);
+            counterpartySession.send(ownedTotals(getServiceHub(), getOurIdentity(), query.getStatuses()));
+            return null;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.idt;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.*;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.BeanSerializerModifier;
+import com.fasterxml.jackson.databind.ser.ResolvableSerializer;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.Party;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+
+/**
+ * Renders DiamondAssetStates, and StateAndRefs wrapping them, as a flat object instead of Jackson's default rendering
+ * of the whole TransactionState with its notary, constraint and nested parties.
+ *
+ * Parties are written as their X500 names and dates as ISO strings. The field names are part of the API contract.
+ */
+public class DiamondJsonModule extends SimpleModule {
+    public DiamondJsonModule() {
+        super("DiamondJsonModule");
+        addSerializer(DiamondAssetState.class, new DiamondAssetStateSerializer());
+        setSerializerModifier(new BeanSerializerModifier() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public JsonSerializer<?> modifySerializer(SerializationConfig config, BeanDescription beanDesc, JsonSerializer<?> serializer) {
+                if (StateAndRef.class.isAssignableFrom(beanDesc.getBeanClass())) {
+                    return new StateAndRefSerializer((JsonSerializer<Object>) serializer);
+                }
+                return serializer;
+            }
+        });
+    }
+
+    /**
+     * Writes the fields of a DiamondAssetState into an object that has already been started.
+     */
+    static void writeDiamondFields(DiamondAssetState diamond, JsonGenerator gen) throws IOException {
+        gen.writeStringField("linearId", diamond.getLinearId().getId().toString());
+        gen.writeStringField("diamondType", String.valueOf(diamond.getDiamondType()));
+        gen.writeStringField("description", diamond.getDescription());
+        writeParty("source", diamond.getSource(), gen);
+        writeParty("owner", diamond.getOwner(), gen);
+        writeParty("approver", diamond.getApprover(), gen);
+        gen.writeNumberField("carats", diamond.getCarats());
+        gen.writeNumberField("cost", diamond.getCost());
+        gen.writeNumberField("percent", diamond.getPercent());
+        gen.writeNumberField("boxValue", diamond.getBoxValue());
+        gen.writeNumberField("amount", diamond.getAmount());
+        gen.writeNumberField("creditDuration", diamond.getCreditDuration());
+        gen.writeStringField("approvalStatus", String.valueOf(diamond.getApprovalStatus()));
+        writeDate("dateIssued", diamond.getDateIssued(), gen);
+        writeDate("dateSold", diamond.getDateSold(), gen);
+        writeDate("lastPurchaseDate", diamond.getLastPurchaseDate(), gen);
+        writeDate("approvalDate", diamond.getApprovalDate(), gen);
+        if (diamond.getReissuedFrom() != null) {
+            gen.writeStringField("reissuedFrom", diamond.getReissuedFrom().toString());
+        }
+        if (!diamond.getCoApprovers().isEmpty()) {
+            gen.writeArrayFieldStart("coApprovers");
+            for (Party coApprover : diamond.getCoApprovers()) {
+                gen.writeString(coApprover.getName().toString());
+            }
+            gen.writeEndArray();
+            gen.writeNumberField("quorum", diamond.getQuorum());
+        }
+        if (diamond.getPieces() > 1) {
+            gen.writeNumberField("pieces", diamond.getPieces());
+        }
+        if (diamond.getCertificate() != null) {
+            gen.writeStringField("certificate", diamond.getCertificate().toString());
+            gen.writeStringField("certificateEntry", diamond.getCertificateEntry());
+        }
+    }
+
+    private static void writeParty(String field, Party party, JsonGenerator gen) throws IOException {
+        if (party == null) {
+            gen.writeNullField(field);
+        } else {
+            gen.writeStringField(field, party.getName().toString());
+        }
+    }
+
+    private static void writeDate(String field, LocalDateTime date, JsonGenerator gen) throws IOException {
+        if (date == null) {
+            gen.writeNullField(field);
+        } else {
+            gen.writeStringField(field, date.toString());
+        }
+    }
+
+    public static class DiamondAssetStateSerializer extends StdSerializer<DiamondAssetState> {
+        public DiamondAssetStateSerializer() {
+            super(DiamondAssetState.class);
+        }
+
+        @Override
+        public void serialize(DiamondAssetState diamond, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeStartObject();
+            writeDiamondFields(diamond, gen);
+            gen.writeEndObject();
+        }
+    }
+
+    /**
+     * Flattens StateAndRefs of DiamondAssetStates and leaves every other StateAndRef to the default serializer.
+     */
+    public static class StateAndRefSerializer extends StdSerializer<StateAndRef> implements ResolvableSerializer {
+        private final JsonSerializer<Object> defaultSerializer;
+
+        public StateAndRefSerializer(JsonSerializer<Object> defaultSerializer) {
+            super(StateAndRef.class);
+            this.defaultSerializer = defaultSerializer;
+        }
+
+        @Override
+        public void resolve(SerializerProvider provider) throws JsonMappingException {
+            if (defaultSerializer instanceof ResolvableSerializer) {
+                ((ResolvableSerializer) defaultSerializer).resolve(provider);
+            }
+        }
+
+        @Override
+        public void serialize(StateAndRef stateAndRef, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            if (!(stateAndRef.getState().getData() instanceof DiamondAssetState)) {
+                defaultSerializer.serialize(stateAndRef, gen, provider);
+                return;
+            }
+            gen.writeStartObject();
+            writeDiamondFields((DiamondAssetState) stateAndRef.getState().getData(), gen);
+            gen.writeStringField("stateRef", stateAndRef.getRef().toString());
+            gen.writeEndObject();
+        }
+    }
+}
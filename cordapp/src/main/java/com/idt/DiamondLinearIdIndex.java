@@ -0,0 +1,40 @@
+package com.idt;
+
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Node-side index of the linear ids that a diamond flow is currently working on.
+ *
+ * A flow reserves the linear id of the stone it creates or consumes before building its transaction and releases it
+ * when it finishes. A second flow for the same stone, typically a client retry, then fails fast instead of building a
+ * conflicting transaction that the notary would reject. Already issued ids are found through the vault.
+ */
+@CordaService
+public class DiamondLinearIdIndex extends SingletonSerializeAsToken {
+    private final Set<UUID> inFlight = ConcurrentHashMap.newKeySet();
+
+    public DiamondLinearIdIndex(AppServiceHub serviceHub) {
+    }
+
+    /**
+     * Returns false when another flow already holds the id.
+     */
+    public boolean reserve(UniqueIdentifier linearId) {
+        return inFlight.add(linearId.getId());
+    }
+
+    public void release(UniqueIdentifier linearId) {
+        inFlight.remove(linearId.getId());
+    }
+
+    public boolean isInFlight(UniqueIdentifier linearId) {
+        return inFlight.contains(linearId.getId());
+    }
+}
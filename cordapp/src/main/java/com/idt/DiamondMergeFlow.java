@@ -0,0 +1,208 @@
+package com.idt;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.*;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.idt.DiamondChainContract.DC_CONTRACT_ID;
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Consolidates approved diamonds of the same owner, source and approvers, typically parcels of melee stones, into a
+ * single lot state that carries their total carats, cost, box value and stones. The lot is moved, queried and exited like any other
+ * diamond, and {@link DiamondSplitFlow} divides it again.
+ */
+public class DiamondMergeFlow {
+    /**
+     * You can add a constructor to each FlowLogic subclass to pass objects into the flow.
+     */
+    @InitiatingFlow
+    @StartableByRPC
+    public static class Initiator extends FlowLogic<SignedTransaction> {
+        /**
+         * The linear ids of the DiamondAssetStates to merge
+         */
+        private final List<UniqueIdentifier> ids;
+        /**
+         * The progress tracker provides checkpoints indicating the progress of the flow to observers.
+         */
+        public static final ProgressTracker.Step GENERATING_TRANSACTION = new ProgressTracker.Step("Generating the transaction merging the DiamondAssets into a lot.");
+        public static final ProgressTracker.Step VERIFYING_TRANSACTION = new ProgressTracker.Step("Verifying contract constraints.");
+        public static final ProgressTracker.Step SIGNING_TRANSACTION = new ProgressTracker.Step("Signing transaction with our private key.");
+        public static final ProgressTracker.Step GATHERING_SIGS = new ProgressTracker.Step("Gathering the approver's signature.");
+        public static final ProgressTracker.Step FINALISING_TRANSACTION = new ProgressTracker.Step("Obtaining notary signature and recording transaction.");
+
+        public static ProgressTracker tracker() {
+            return new ProgressTracker(
+                    GENERATING_TRANSACTION,
+                    VERIFYING_TRANSACTION,
+                    SIGNING_TRANSACTION,
+                    GATHERING_SIGS,
+                    FINALISING_TRANSACTION
+            );
+        }
+
+        private final ProgressTracker progressTracker = tracker();
+
+        public Initiator(List<String> externalIds){
+            final List<UniqueIdentifier> ids = new ArrayList<>(externalIds.size());
+            for(String externalId : externalIds){
+                ids.add(UniqueIdentifier.Companion.fromString(externalId));
+            }
+            this.ids = ids;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override public SignedTransaction call() throws FlowException {
+            FlowStepEvents.track(this, progressTracker, ids.stream().map(UniqueIdentifier::toString).collect(Collectors.joining(",")));
+            if(ids.size()<2){
+                throw new FlowException("At least two External IDs must be given.");
+            }
+            QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(ImmutableList.of(getOurIdentity()), ids, Vault.StateStatus.UNCONSUMED, ImmutableSet.of(DiamondAssetState.class));
+            List<StateAndRef<DiamondAssetState>> stateAndRefs = getServiceHub().getVaultService()
+                    .queryBy(DiamondAssetState.class, criteria, new PageSpecification(DEFAULT_PAGE_NUM, ids.size()))
+                    .getStates();
+            if(stateAndRefs.size()!=ids.size()){
+                throw new FlowException(String.format("Expected %d unconsumed DiamondAssets but found %d.", ids.size(), stateAndRefs.size()));
+            }
+            //We retrieve notary identity from the network map.
+            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+            //Stage 1 - Generating the transaction
+            progressTracker.setCurrentStep(GENERATING_TRANSACTION);
+            final TransactionBuilder txBuilder = new TransactionBuilder();
+            txBuilder.setNotary(notary);
+            final DiamondAssetState first = stateAndRefs.get(0).getState().getData();
+            final Party approver = first.getApprover();
+            final Party source = first.getSource();
+            double carats = 0;
+            double cost = 0;
+            float percent = 0;
+            int pieces = 0;
+            for(StateAndRef<DiamondAssetState> stateAndRef : stateAndRefs){
+                DiamondAssetState diamondAssetState = stateAndRef.getState().getData();
+                if(!diamondAssetState.getOwner().equals(getOurIdentity())){
+                    throw new FlowException("Only the owner can merge DiamondAsset " + diamondAssetState.getLinearId());
+                }
+                if(diamondAssetState.getCertificate()!=null){
+                    throw new FlowException("A lot cannot carry the certificates of its stones, so certified DiamondAsset "
+                            + diamondAssetState.getLinearId() + " cannot be merged.");
+                }
+                if(!diamondAssetState.getApprover().equals(approver)){
+                    throw new FlowException("DiamondAssets with different approvers cannot be merged: " + diamondAssetState.getLinearId());
+                }
+                if(!diamondAssetState.getSource().equals(source)){
+                    throw new FlowException("DiamondAssets from different sources cannot be merged: " + diamondAssetState.getLinearId());
+                }
+                if(!diamondAssetState.getCoApprovers().equals(first.getCoApprovers()) || diamondAssetState.getQuorum()!=first.getQuorum()){
+                    throw new FlowException("DiamondAssets with different co-approvers or quorum cannot be merged: " + diamondAssetState.getLinearId());
+                }
+                carats += diamondAssetState.getCarats();
+                cost += diamondAssetState.getCost();
+                percent += diamondAssetState.getPercent();
+                pieces += diamondAssetState.getPieces();
+                txBuilder.addInputState(stateAndRef);
+            }
+            //The lot keeps where its stones came from and who approves them; nested lots count their stones, not the lots
+            final DiamondAssetState lot = new DiamondAssetState(new UniqueIdentifier(), first.getDiamondType(), source,
+                    String.format("Lot of %d stones", pieces), carats, cost, percent, approver);
+            lot.setOwner(getOurIdentity());
+            lot.setApprovalStatus(ApprovalStatus.APPROVED);
+            lot.setCoApprovers(first.getCoApprovers());
+            lot.setQuorum(first.getQuorum());
+            lot.setPieces(pieces);
+            txBuilder.addOutputState(lot, DC_CONTRACT_ID);
+            final List<PublicKey> requiredSigners = new ArrayList<>();
+            requiredSigners.add(getOurIdentity().getOwningKey());
+            if(!approver.equals(getOurIdentity())){
+                requiredSigners.add(approver.getOwningKey());
+            }
+            txBuilder.addCommand(new Command<>(new DiamondChainContract.Commands.Merge(), requiredSigners));
+            //Stage 2 - Verify transaction
+            progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
+            txBuilder.verify(getServiceHub());
+
+            //Stage 3 - Signing transaction
+            progressTracker.setCurrentStep(SIGNING_TRANSACTION);
+            final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder);
+
+            //Stage 4 - Gathering Signatures
+            progressTracker.setCurrentStep(GATHERING_SIGS);
+            final List<FlowSession> approverSessions = approver.equals(getOurIdentity())
+                    ? ImmutableList.of()
+                    : ImmutableList.of(initiateFlow(approver));
+            final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partSignedTx,
+                    approverSessions, CollectSignaturesFlow.tracker()));
+            //Stage 5 - Finalising Transaction
+            progressTracker.setCurrentStep(FINALISING_TRANSACTION);
+            return subFlow(new FinalityFlow(fullySignedTx));
+        }
+    }
+
+    @InitiatedBy(DiamondMergeFlow.Initiator.class)
+    public static class Responder extends FlowLogic<SignedTransaction> {
+        private final FlowSession ownerPartySession;
+
+        public Responder(FlowSession ownerPartySession) {
+            this.ownerPartySession = ownerPartySession;
+        }
+
+        /**
+         * Define the acceptor's flow logic here.
+         */
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            final Party approver = getOurIdentity();
+            class SignTxFlow extends SignTransactionFlow {
+                private SignTxFlow(FlowSession ownerPartySession, ProgressTracker progressTracker){
+                    super(ownerPartySession, progressTracker);
+                }
+                @Override
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
+                    final LedgerTransaction ltx;
+                    try {
+                        ltx = stx.toLedgerTransaction(getServiceHub(), false);
+                    } catch (Exception e) {
+                        throw new FlowException("Unable to resolve the merge transaction.", e);
+                    }
+                    requireThat(require->{
+                        require.using("There must be one lot", ltx.outputsOfType(DiamondAssetState.class).size()==1);
+                        final DiamondAssetState lot = ltx.outputsOfType(DiamondAssetState.class).get(0);
+                        require.using("We must be the approver of the lot", lot.getApprover().equals(approver));
+                        require.using("The merging party must own the lot", lot.getOwner().equals(ownerPartySession.getCounterparty()));
+                        for(DiamondAssetState diamondAsset : ltx.inputsOfType(DiamondAssetState.class)){
+                            require.using("We must have approved every merged DiamondAsset", diamondAsset.getApprover().equals(approver));
+                            require.using("The lot must keep the source and co-approvers of every merged DiamondAsset",
+                                    diamondAsset.getSource().equals(lot.getSource())
+                                            && diamondAsset.getCoApprovers().equals(lot.getCoApprovers())
+                                            && diamondAsset.getQuorum()==lot.getQuorum());
+                        }
+                        return null;
+                    });
+                }
+            }
+            return subFlow(new SignTxFlow(ownerPartySession, SignTransactionFlow.Companion.tracker()));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.idt;
+
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The node's local price feed: the {@link PriceTable} in the file named by idt.prices.file.
+ *
+ * The parsed table is kept in memory, so pricing a stone is a map lookup. At most every idt.prices.refreshSeconds
+ * (60 by default) a lookup checks the file's modification time and, when it changed, parses the file again; a file
+ * that fails to parse is logged and the previous table is kept.
+ */
+@CordaService
+public class DiamondPriceService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(DiamondPriceService.class);
+
+    private final File file;
+    private final long refreshNanos;
+    private volatile PriceTable table = PriceTable.EMPTY;
+    // Guarded by this.
+    private long lastModified = -1;
+    private long checkedAt;
+    private boolean checked;
+
+    public DiamondPriceService(AppServiceHub serviceHub) {
+        this(System.getProperty("idt.prices.file"), Long.getLong("idt.prices.refreshSeconds", 60L));
+    }
+
+    DiamondPriceService(String path, long refreshSeconds) {
+        this.file = path == null ? null : new File(path);
+        this.refreshNanos = TimeUnit.SECONDS.toNanos(refreshSeconds);
+    }
+
+    /**
+     * The current price table, empty when idt.prices.file is not set or has not been read yet.
+     */
+    public PriceTable getTable() {
+        if (file != null) {
+            refreshIfDue();
+        }
+        return table;
+    }
+
+    private synchronized void refreshIfDue() {
+        final long now = System.nanoTime();
+        if (checked && now - checkedAt < refreshNanos) {
+            return;
+        }
+        checked = true;
+        checkedAt = now;
+        final long modified = file.lastModified();
+        if (modified == lastModified) {
+            return;
+        }
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            table = PriceTable.parse(reader);
+            lastModified = modified;
+            logger.info("Loaded the price table {}", file);
+        } catch (IOException | IllegalArgumentException ex) {
+            logger.warn("Cannot load the price table {}, keeping the previous one", file, ex);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Currency;
+
+/**
+ * Node-side record of the diamonds this node's operator has agreed to buy, each from one seller up to a price.
+ *
+ * {@link DiamondSaleFlow.Responder} pays for an offered diamond only when it takes a matching offer from here, so a
+ * seller cannot spend the buyer's Cash on a sale the buyer never agreed to. An offer is taken in the paying flow's
+ * database transaction, so it is used for one sale only.
+ */
+@CordaService
+public class DiamondPurchaseRegistry extends SingletonSerializeAsToken {
+    private final AppServiceHub serviceHub;
+
+    public DiamondPurchaseRegistry(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+    }
+
+    /**
+     * Agrees to buy the diamond from the seller for at most the given price, replacing any earlier offer for it. Must
+     * be called from a flow.
+     */
+    public void accept(UniqueIdentifier diamond, Party seller, Amount<Currency> maxPrice) {
+        final Connection connection = serviceHub.jdbcSession();
+        try {
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM diamond_purchases WHERE linear_id = ?")) {
+                delete.setString(1, diamond.getId().toString());
+                delete.executeUpdate();
+            }
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO diamond_purchases (linear_id, seller, max_quantity, currency) VALUES (?, ?, ?, ?)")) {
+                insert.setString(1, diamond.getId().toString());
+                insert.setString(2, seller.getName().toString());
+                insert.setLong(3, maxPrice.getQuantity());
+                insert.setString(4, maxPrice.getToken().getCurrencyCode());
+                insert.executeUpdate();
+            }
+        } catch (SQLException ex) {
+            throw new IllegalStateException("Cannot record the offer for " + diamond, ex);
+        }
+    }
+
+    /**
+     * Takes the offer for the diamond when it names this seller and the price is within it. Returns false, and leaves
+     * the offer, otherwise. Must be called from a flow.
+     */
+    public boolean take(UniqueIdentifier diamond, Party seller, Amount<Currency> price) {
+        final Connection connection = serviceHub.jdbcSession();
+        try {
+            try (PreparedStatement select = connection.prepareStatement(
+                    "SELECT seller, max_quantity, currency FROM diamond_purchases WHERE linear_id = ?")) {
+                select.setString(1, diamond.getId().toString());
+                try (ResultSet rows = select.executeQuery()) {
+                    if (!rows.next()
+                            || !rows.getString(1).equals(seller.getName().toString())
+                            || rows.getLong(2) < price.getQuantity()
+                            || !rows.getString(3).equals(price.getToken().getCurrencyCode())) {
+                        return false;
+                    }
+                }
+            }
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM diamond_purchases WHERE linear_id = ?")) {
+                delete.setString(1, diamond.getId().toString());
+                // A concurrent sale of the same diamond took the offer first.
+                return delete.executeUpdate() == 1;
+            }
+        } catch (SQLException ex) {
+            throw new IllegalStateException("Cannot take the offer for " + diamond, ex);
+        }
+    }
+
+    /**
+     * The family of schemas for the accepted offers.
+     */
+    public static class PurchaseSchema { }
+
+    /**
+     * The table of accepted offers, created by the node with the other CorDapp schemas.
+     */
+    public static class PurchaseSchemaV1 extends MappedSchema {
+        public PurchaseSchemaV1() {
+            super(PurchaseSchema.class, 1, ImmutableList.of(PersistentPurchase.class));
+        }
+
+        @Entity
+        @Table(name = "diamond_purchases")
+        public static class PersistentPurchase {
+            @Id
+            @Column(name = "linear_id", length = 36)
+            private final String linearId;
+            @Column(name = "seller", nullable = false)
+            private final String seller;
+            @Column(name = "max_quantity", nullable = false)
+            private final long maxQuantity;
+            @Column(name = "currency", length = 3, nullable = false)
+            private final String currency;
+
+            public PersistentPurchase(String linearId, String seller, long maxQuantity, String currency) {
+                this.linearId = linearId;
+                this.seller = seller;
+                this.maxQuantity = maxQuantity;
+                this.currency = currency;
+            }
+
+            // Default constructor required by hibernate.
+            public PersistentPurchase() {
+                this.linearId = null;
+                this.seller = null;
+                this.maxQuantity = 0;
+                this.currency = null;
+            }
+
+            public String getLinearId() {
+                return linearId;
+            }
+
+            public String getSeller() {
+                return seller;
+            }
+
+            public long getMaxQuantity() {
+                return maxQuantity;
+            }
+
+            public String getCurrency() {
+                return currency;
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.idt;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.util.*;
+
+/**
+ * Compares the unconsumed diamonds we share with a counterparty without exchanging the full sets.
+ *
+ * Both sides build an {@link InventoryDigest} of their shared diamonds. The initiator sends the root; while digests
+ * differ, it sends the children of the mismatching nodes and the responder answers with those that mismatch again.
+ * Only at the mismatching leaves are the entries themselves exchanged. When the sets agree the whole check costs one
+ * digest each way. The responder returns the divergence it found as well, also from the point of view of the initiator.
+ */
+public class DiamondReconcileFlow {
+    /**
+     * The digests of a set of tree nodes at one level of the initiator's tree.
+     */
+    @CordaSerializable
+    public static class DigestRound {
+        private final int depth;
+        private final int level;
+        private final List<Integer> nodes;
+        private final List<SecureHash> digests;
+
+        public DigestRound(int depth, int level, List<Integer> nodes, List<SecureHash> digests) {
+            this.depth = depth;
+            this.level = level;
+            this.nodes = nodes;
+            this.digests = digests;
+        }
+
+        public int getDepth() { return depth; }
+        public int getLevel() { return level; }
+        public List<Integer> getNodes() { return nodes; }
+        public List<SecureHash> getDigests() { return digests; }
+    }
+
+    /**
+     * The divergence found between the initiator ("here") and the counterparty ("there"), by linear id.
+     */
+    @CordaSerializable
+    public static class Report {
+        private final String counterparty;
+        private final int sharedHere;
+        private final List<String> onlyHere;
+        private final List<String> onlyThere;
+        private final List<String> differentVersion;
+        private final int digestsExchanged;
+
+        public Report(String counterparty, int sharedHere, List<String> onlyHere, List<String> onlyThere,
+                      List<String> differentVersion, int digestsExchanged) {
+            this.counterparty = counterparty;
+            this.sharedHere = sharedHere;
+            this.onlyHere = onlyHere;
+            this.onlyThere = onlyThere;
+            this.differentVersion = differentVersion;
+            this.digestsExchanged = digestsExchanged;
+        }
+
+        public String getCounterparty() { return counterparty; }
+        public int getSharedHere() { return sharedHere; }
+        public List<String> getOnlyHere() { return onlyHere; }
+        public List<String> getOnlyThere() { return onlyThere; }
+        public List<String> getDifferentVersion() { return differentVersion; }
+        public int getDigestsExchanged() { return digestsExchanged; }
+
+        public boolean isConsistent() {
+            return onlyHere.isEmpty() && onlyThere.isEmpty() && differentVersion.isEmpty();
+        }
+    }
+
+    /**
+     * The entries of the given leaves, by linear id. A sorted map, as the AMQP whitelist rejects a HashMap.
+     */
+    private static Map<String, StateRef> entries(FlowLogic<?> flow, Party counterparty, InventoryDigest digest, Set<Integer> leaves) {
+        final Map<String, StateRef> entries = new TreeMap<>();
+        InventoryDigest.forEachShared(flow.getServiceHub(), counterparty, (linearId, ref) -> {
+            if (leaves.contains(digest.bucketOf(linearId))) {
+                entries.put(linearId.toString(), ref);
+            }
+        });
+        return entries;
+    }
+
+    private static Report compare(Party counterparty, int sharedHere, Map<String, StateRef> here, Map<String, StateRef> there, int digestsExchanged) {
+        final List<String> onlyHere = new ArrayList<>();
+        final List<String> onlyThere = new ArrayList<>();
+        final List<String> differentVersion = new ArrayList<>();
+        for (Map.Entry<String, StateRef> entry : here.entrySet()) {
+            final StateRef theirs = there.get(entry.getKey());
+            if (theirs == null) {
+                onlyHere.add(entry.getKey());
+            } else if (!theirs.equals(entry.getValue())) {
+                differentVersion.add(entry.getKey());
+            }
+        }
+        for (String linearId : there.keySet()) {
+            if (!here.containsKey(linearId)) {
+                onlyThere.add(linearId);
+            }
+        }
+        return new Report(counterparty.getName().toString(), sharedHere, onlyHere, onlyThere, differentVersion, digestsExchanged);
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class Initiator extends FlowLogic<Report> {
+        private final Party counterparty;
+        // Transient and rebuilt when the flow is restored, so the tree is not written into every checkpoint.
+        private transient InventoryDigest digest;
+        public static final ProgressTracker.Step BUILDING_DIGEST = new ProgressTracker.Step("Building the digest of the shared DiamondAssets.");
+        public static final ProgressTracker.Step COMPARING_DIGESTS = new ProgressTracker.Step("Comparing digests with the counterparty.");
+        public static final ProgressTracker.Step COMPARING_ENTRIES = new ProgressTracker.Step("Comparing the DiamondAssets of mismatching buckets.");
+
+        public static ProgressTracker tracker() {
+            return new ProgressTracker(
+                    BUILDING_DIGEST,
+                    COMPARING_DIGESTS,
+                    COMPARING_ENTRIES
+            );
+        }
+
+        private final ProgressTracker progressTracker = tracker();
+
+        public Initiator(Party counterparty) {
+            this.counterparty = counterparty;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        private InventoryDigest digest() {
+            if (digest == null) {
+                digest = InventoryDigest.of(getServiceHub(), counterparty, InventoryDigest.DEFAULT_DEPTH);
+            }
+            return digest;
+        }
+
+        @Suspendable
+        @Override
+        public Report call() throws FlowException {
+            progressTracker.setCurrentStep(BUILDING_DIGEST);
+            digest();
+
+            progressTracker.setCurrentStep(COMPARING_DIGESTS);
+            final FlowSession session = initiateFlow(counterparty);
+            List<Integer> nodes = Collections.singletonList(0);
+            int digestsExchanged = 0;
+            for (int level = 0; ; level++) {
+                final List<SecureHash> digests = new ArrayList<>(nodes.size());
+                for (int node : nodes) {
+                    digests.add(digest().digest(level, node));
+                }
+                digestsExchanged += digests.size();
+                final int sentLevel = level;
+                final List<Integer> sentNodes = nodes;
+                final List<Integer> mismatches = session.sendAndReceive(List.class,
+                        new DigestRound(digest().getDepth(), level, nodes, digests)).unwrap(reply -> {
+                    for (Object node : reply) {
+                        if (!sentNodes.contains(node)) {
+                            throw new IllegalArgumentException("Mismatch reported at level " + sentLevel + " for a node that was not sent");
+                        }
+                    }
+                    @SuppressWarnings("unchecked")
+                    final List<Integer> checked = (List<Integer>) reply;
+                    return checked;
+                });
+                if (mismatches.isEmpty()) {
+                    return new Report(counterparty.getName().toString(), digest().size(), Collections.emptyList(),
+                            Collections.emptyList(), Collections.emptyList(), digestsExchanged);
+                }
+                if (level == digest().getDepth()) {
+                    progressTracker.setCurrentStep(COMPARING_ENTRIES);
+                    final Map<String, StateRef> here = entries(this, counterparty, digest(), new HashSet<>(mismatches));
+                    @SuppressWarnings("unchecked")
+                    final Map<String, StateRef> there = session.sendAndReceive(Map.class, here).unwrap(reply -> (Map<String, StateRef>) reply);
+                    return compare(counterparty, digest().size(), here, there, digestsExchanged);
+                }
+                nodes = InventoryDigest.children(mismatches);
+            }
+        }
+    }
+
+    @InitiatedBy(DiamondReconcileFlow.Initiator.class)
+    public static class Responder extends FlowLogic<Report> {
+        private final FlowSession session;
+        // The depth of the initiator's tree; 0 until its first round arrives.
+        private int depth;
+        // Transient and rebuilt when the flow is restored, so the tree is not written into every checkpoint.
+        private transient InventoryDigest digest;
+
+        public Responder(FlowSession session) {
+            this.session = session;
+        }
+
+        private InventoryDigest digest() {
+            if (digest == null) {
+                digest = InventoryDigest.of(getServiceHub(), session.getCounterparty(), depth);
+            }
+            return digest;
+        }
+
+        @Suspendable
+        @Override
+        public Report call() throws FlowException {
+            final Party counterparty = session.getCounterparty();
+            int digestsExchanged = 0;
+            while (true) {
+                final DigestRound round = session.receive(DigestRound.class).unwrap(received -> {
+                    if (received.getNodes().size() != received.getDigests().size()) {
+                        throw new IllegalArgumentException("Every node must come with its digest");
+                    }
+                    return received;
+                });
+                if (depth == 0) {
+                    depth = round.getDepth();
+                }
+                if (round.getLevel() > digest().getDepth()) {
+                    throw new FlowException("Digest round below the leaves of the tree.");
+                }
+                digestsExchanged += round.getNodes().size();
+                final List<Integer> mismatches = digest().mismatches(round.getLevel(), round.getNodes(), round.getDigests());
+                if (mismatches.isEmpty()) {
+                    session.send(mismatches);
+                    return new Report(getOurIdentity().getName().toString(), 0, Collections.emptyList(),
+                            Collections.emptyList(), Collections.emptyList(), digestsExchanged);
+                }
+                if (round.getLevel() == digest().getDepth()) {
+                    final Map<String, StateRef> here = entries(this, counterparty, digest(), new HashSet<>(mismatches));
+                    @SuppressWarnings("unchecked")
+                    final Map<String, StateRef> there = session.sendAndReceive(Map.class, mismatches).unwrap(reply -> (Map<String, StateRef>) reply);
+                    session.send(here);
+                    // The report is from the point of view of the initiator.
+                    final Report mirrored = compare(counterparty, digest().size(), here, there, digestsExchanged);
+                    return new Report(getOurIdentity().getName().toString(), 0, mirrored.getOnlyThere(),
+                            mirrored.getOnlyHere(), mirrored.getDifferentVersion(), digestsExchanged);
+                }
+                session.send(mismatches);
+            }
+        }
+    }
+}
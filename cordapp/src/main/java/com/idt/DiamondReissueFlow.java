@@ -0,0 +1,259 @@
+package com.idt;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.*;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.idt.DiamondChainContract.DC_CONTRACT_ID;
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * Compacts the backchain of a heavily traded diamond.
+ *
+ * Every transfer adds a transaction that a new owner has to resolve and verify before signing. Once the chain of a
+ * stone reaches idt.reissue.chainThreshold transactions, its owner exits the state and, with the source and approver
+ * signing, reissues an equivalent state with no inputs. The new state points at the exited one through reissuedFrom,
+ * so anyone holding the old chain can verify the link, while new owners only resolve the reissue transaction.
+ */
+public class DiamondReissueFlow {
+    public static final int CHAIN_THRESHOLD = Integer.getInteger("idt.reissue.chainThreshold", 20);
+
+    /**
+     * Counts the transactions in the chain of the diamond at the given state ref, back to its issuance. Stops counting
+     * at the given cap, so the cost of the check stays bounded for very long chains.
+     */
+    public static int chainLength(ServiceHub serviceHub, StateRef ref, int cap) {
+        int length = 0;
+        StateRef current = ref;
+        while (current != null && length < cap) {
+            final SignedTransaction tx = serviceHub.getValidatedTransactions().getTransaction(current.getTxhash());
+            if (tx == null) {
+                break;
+            }
+            length++;
+            final UniqueIdentifier linearId = ((DiamondAssetState) tx.getTx().getOutputs().get(current.getIndex()).getData()).getLinearId();
+            current = null;
+            for (StateRef input : tx.getTx().getInputs()) {
+                final SignedTransaction inputTx = serviceHub.getValidatedTransactions().getTransaction(input.getTxhash());
+                if (inputTx == null) {
+                    continue;
+                }
+                final ContractState data = inputTx.getTx().getOutputs().get(input.getIndex()).getData();
+                if (data instanceof DiamondAssetState && ((DiamondAssetState) data).getLinearId().equals(linearId)) {
+                    current = input;
+                    break;
+                }
+            }
+        }
+        return length;
+    }
+
+    /**
+     * You can add a constructor to each FlowLogic subclass to pass objects into the flow.
+     */
+    @InitiatingFlow
+    @StartableByRPC
+    public static class Initiator extends FlowLogic<SignedTransaction> {
+        private final UniqueIdentifier id;
+        private final boolean force;
+        /**
+         * The progress tracker provides checkpoints indicating the progress of the flow to observers.
+         */
+        private final ProgressTracker.Step MEASURING_CHAIN = new ProgressTracker.Step("Measuring the transaction chain of the DiamondAsset.");
+        private final ProgressTracker.Step EXITING_STATE = new ProgressTracker.Step("Exiting the long-chain DiamondAsset.");
+        private final ProgressTracker.Step GENERATING_TRANSACTION = new ProgressTracker.Step("Generating reissue transaction.");
+        private final ProgressTracker.Step VERIFYING_TRANSACTION = new ProgressTracker.Step("Verifying contract constraints.");
+        private final ProgressTracker.Step SIGNING_TRANSACTION = new ProgressTracker.Step("Signing transaction with our private key.");
+        private final ProgressTracker.Step GATHERING_SIGS = new ProgressTracker.Step("Gathering the source's and approver's signatures.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return CollectSignaturesFlow.Companion.tracker();
+            }
+        };
+        private final ProgressTracker.Step FINALISING_TRANSACTION = new ProgressTracker.Step("Obtaining notary signature and recording transaction.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return FinalityFlow.Companion.tracker();
+            }
+        };
+
+        private final ProgressTracker progressTracker = new ProgressTracker(
+                MEASURING_CHAIN,
+                EXITING_STATE,
+                GENERATING_TRANSACTION,
+                VERIFYING_TRANSACTION,
+                SIGNING_TRANSACTION,
+                GATHERING_SIGS,
+                FINALISING_TRANSACTION
+        );
+
+        /**
+         * Reissues the diamond when its chain has reached the threshold, or regardless of its length when forced.
+         */
+        public Initiator(String externalId, boolean force){
+            this.id = UniqueIdentifier.Companion.fromString(externalId);
+            this.force = force;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override public SignedTransaction call() throws FlowException {
+            FlowStepEvents.track(this, progressTracker, id.toString());
+            QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(ImmutableList.of(getOurIdentity()), ImmutableList.of(id), Vault.StateStatus.UNCONSUMED, ImmutableSet.of(DiamondAssetState.class));
+            List<StateAndRef<DiamondAssetState>> stateAndRefs = getServiceHub().getVaultService().queryBy(DiamondAssetState.class, criteria).getStates();
+            if(stateAndRefs.size()!=1){
+                throw new FlowException("External ID " + id + " returned " + stateAndRefs.size() + " results.");
+            }
+            final StateAndRef<DiamondAssetState> input = stateAndRefs.get(0);
+            final DiamondAssetState old = input.getState().getData();
+            if(!old.getOwner().equals(getOurIdentity())){
+                throw new FlowException("Only the owner can reissue DiamondAsset " + id);
+            }
+            if(old.getApprovalStatus()!=ApprovalStatus.APPROVED){
+                throw new FlowException("Only approved DiamondAssets can be reissued.");
+            }
+            //Stage 1 - Measuring the chain
+            progressTracker.setCurrentStep(MEASURING_CHAIN);
+            final int length = chainLength(getServiceHub(), input.getRef(), CHAIN_THRESHOLD);
+            if(!force && length<CHAIN_THRESHOLD){
+                throw new FlowException(String.format("Chain of DiamondAsset %s has %d transactions, below the reissue threshold of %d.", id, length, CHAIN_THRESHOLD));
+            }
+            //Stage 2 - Exiting the old state
+            progressTracker.setCurrentStep(EXITING_STATE);
+            final SignedTransaction exitTx = subFlow(new DiamondExitFlow.Initiator(id.getId().toString()));
+            return reissue(input, exitTx);
+        }
+
+        /**
+         * Reissues the given state, which the given transaction has exited. The source and approver are sent the exit
+         * transaction before they are asked to sign.
+         */
+        @Suspendable
+        protected SignedTransaction reissue(StateAndRef<DiamondAssetState> exited, SignedTransaction exitTx) throws FlowException {
+            final DiamondAssetState old = exited.getState().getData();
+            //We retrieve notary identity from the network map.
+            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+            //Stage 3 - Generating the transaction
+            progressTracker.setCurrentStep(GENERATING_TRANSACTION);
+            final TransactionBuilder txBuilder = new TransactionBuilder();
+            txBuilder.setNotary(notary);
+            DiamondAssetState reissued = new DiamondAssetState(old.getLinearId(), old.getDiamondType(), old.getSource(),
+                    old.getDescription(), old.getCarats(), old.getCost(), old.getPercent(), old.getApprover());
+            reissued.setOwner(old.getOwner());
+            reissued.setApprovalStatus(old.getApprovalStatus());
+            reissued.setReissuedFrom(exited.getRef());
+            reissued.setCoApprovers(old.getCoApprovers());
+            reissued.setQuorum(old.getQuorum());
+            reissued.setCertificate(old.getCertificate(), old.getCertificateEntry());
+            reissued.setPieces(old.getPieces());
+            final Set<Party> counterparties = new LinkedHashSet<>(ImmutableList.of(old.getSource(), old.getApprover()));
+            counterparties.remove(getOurIdentity());
+            List<PublicKey> requiredSigners = new ArrayList<>();
+            requiredSigners.add(getOurIdentity().getOwningKey());
+            for(Party counterparty : counterparties){
+                requiredSigners.add(counterparty.getOwningKey());
+            }
+            txBuilder.withItems(new StateAndContract(reissued, DC_CONTRACT_ID),
+                    new Command<>(new DiamondChainContract.Commands.Reissue(), requiredSigners));
+            //Stage 4 - Verify transaction
+            progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
+            txBuilder.verify(getServiceHub());
+
+            //Stage 5 - Signing transaction
+            progressTracker.setCurrentStep(SIGNING_TRANSACTION);
+            final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder);
+
+            //Stage 6 - Gathering Signatures
+            progressTracker.setCurrentStep(GATHERING_SIGS);
+            List<FlowSession> sessions = new ArrayList<>();
+            for(Party counterparty : counterparties){
+                final FlowSession session = initiateFlow(counterparty);
+                subFlow(new SendTransactionFlow(session, exitTx));
+                sessions.add(session);
+            }
+            final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partSignedTx,
+                    sessions, CollectSignaturesFlow.tracker()));
+            //Stage 7 - Finalising Transaction
+            progressTracker.setCurrentStep(FINALISING_TRANSACTION);
+            return subFlow(new FinalityFlow(fullySignedTx));
+        }
+    }
+
+    @InitiatedBy(DiamondReissueFlow.Initiator.class)
+    public static class Responder extends FlowLogic<SignedTransaction> {
+        private final FlowSession ownerPartySession;
+
+        public Responder(FlowSession ownerPartySession) {
+            this.ownerPartySession = ownerPartySession;
+        }
+
+        /**
+         * Signs the reissue only when it replaces, field for field, a state that the notarised exit transaction sent
+         * with it consumed, and only once per exited state: a former owner cannot reissue a version they sold, and an
+         * exit cannot be reissued twice.
+         */
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            //Checks the notary's and the other signatures of the exit and resolves its chain
+            final SignedTransaction exitTx = subFlow(new ReceiveTransactionFlow(ownerPartySession));
+            final DiamondReissueRegistry registry = getServiceHub().cordaService(DiamondReissueRegistry.class);
+            class SignTxFlow extends SignTransactionFlow {
+                private SignTxFlow(FlowSession ownerPartySession, ProgressTracker progressTracker){
+                    super(ownerPartySession, progressTracker);
+                }
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(require->{
+                        require.using("There must be no inputs", stx.getTx().getInputs().isEmpty());
+                        require.using("This must be a reissue", stx.getTx().getCommands().size()==1
+                                && stx.getTx().getCommands().get(0).getValue() instanceof DiamondChainContract.Commands.Reissue);
+                        ContractState output = stx.getTx().getOutputs().get(0).getData();
+                        require.using("This must be a DiamondAssetState", output instanceof DiamondAssetState);
+                        DiamondAssetState reissued = (DiamondAssetState) output;
+                        StateRef reissuedFrom = reissued.getReissuedFrom();
+                        require.using("The reissued asset must reference the exited state", reissuedFrom!=null);
+                        require.using("The referenced state must have been consumed by an exit", exitTx.getTx().getInputs().contains(reissuedFrom)
+                                && exitTx.getTx().getOutputs().isEmpty()
+                                && exitTx.getTx().getCommands().stream().anyMatch(command -> command.getValue() instanceof DiamondChainContract.Commands.Exit));
+                        QueryCriteria exited = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.CONSUMED,
+                                ImmutableSet.of(DiamondAssetState.class), ImmutableList.of(reissuedFrom));
+                        List<StateAndRef<DiamondAssetState>> previous = getServiceHub().getVaultService().queryBy(DiamondAssetState.class, exited).getStates();
+                        require.using("The referenced state must have been exited", previous.size()==1);
+                        DiamondAssetState old = previous.get(0).getState().getData();
+                        require.using("The linear id must be kept", old.getLinearId().equals(reissued.getLinearId()));
+                        require.using("The parties must be kept", old.getSource().equals(reissued.getSource())
+                                && old.getOwner().equals(reissued.getOwner()) && old.getApprover().equals(reissued.getApprover())
+                                && old.getCoApprovers().equals(reissued.getCoApprovers()) && old.getQuorum()==reissued.getQuorum());
+                        require.using("The exiting owner must reissue the asset", old.getOwner().equals(ownerPartySession.getCounterparty()));
+                        require.using("The valuation must be kept", old.getCarats()==reissued.getCarats()
+                                && old.getCost()==reissued.getCost() && old.getPercent()==reissued.getPercent()
+                                && old.getPieces()==reissued.getPieces());
+                        require.using("The exited state must not have been reissued before", registry.claim(reissuedFrom, stx.getId()));
+                        return null;
+                    });
+                }
+            }
+            return subFlow(new SignTxFlow(ownerPartySession, SignTransactionFlow.Companion.tracker()));
+        }
+    }
+}
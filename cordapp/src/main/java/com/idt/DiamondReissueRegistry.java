@@ -0,0 +1,108 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Node-side record of the exited states this node has signed a reissue of.
+ *
+ * A reissue has no inputs, so the notary cannot stop an exited state from being reissued twice. The source and
+ * approver, who both sign every reissue, refuse a second one instead. A claim is written in the signing flow's
+ * database transaction, so it is committed with the checkpoint that sends the signature, and the primary key makes
+ * the second of two concurrent claims fail.
+ */
+@CordaService
+public class DiamondReissueRegistry extends SingletonSerializeAsToken {
+    private final AppServiceHub serviceHub;
+
+    public DiamondReissueRegistry(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+    }
+
+    /**
+     * Claims the exited state for the given reissue transaction. Returns false when the state has already been claimed
+     * by another reissue. Must be called from a flow.
+     */
+    public boolean claim(StateRef exited, SecureHash reissue) {
+        final Connection connection = serviceHub.jdbcSession();
+        try {
+            try (PreparedStatement select = connection.prepareStatement("SELECT reissue_tx_id FROM diamond_reissues WHERE exited_ref = ?")) {
+                select.setString(1, exited.toString());
+                try (ResultSet rows = select.executeQuery()) {
+                    if (rows.next()) {
+                        return rows.getString(1).equals(reissue.toString());
+                    }
+                }
+            }
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO diamond_reissues (exited_ref, reissue_tx_id) VALUES (?, ?)")) {
+                insert.setString(1, exited.toString());
+                insert.setString(2, reissue.toString());
+                insert.executeUpdate();
+            }
+            return true;
+        } catch (SQLException ex) {
+            // 23xxx: a concurrent claim of the same state got there first.
+            if (ex.getSQLState() != null && ex.getSQLState().startsWith("23")) {
+                return false;
+            }
+            throw new IllegalStateException("Cannot record the reissue of " + exited, ex);
+        }
+    }
+
+    /**
+     * The family of schemas for the reissue claims.
+     */
+    public static class ReissueSchema { }
+
+    /**
+     * The table of reissue claims, created by the node with the other CorDapp schemas.
+     */
+    public static class ReissueSchemaV1 extends MappedSchema {
+        public ReissueSchemaV1() {
+            super(ReissueSchema.class, 1, ImmutableList.of(PersistentReissue.class));
+        }
+
+        @Entity
+        @Table(name = "diamond_reissues")
+        public static class PersistentReissue {
+            @Id
+            @Column(name = "exited_ref", length = 80)
+            private final String exitedRef;
+            @Column(name = "reissue_tx_id", length = 64, nullable = false)
+            private final String reissueTxId;
+
+            public PersistentReissue(String exitedRef, String reissueTxId) {
+                this.exitedRef = exitedRef;
+                this.reissueTxId = reissueTxId;
+            }
+
+            // Default constructor required by hibernate.
+            public PersistentReissue() {
+                this.exitedRef = null;
+                this.reissueTxId = null;
+            }
+
+            public String getExitedRef() {
+                return exitedRef;
+            }
+
+            public String getReissueTxId() {
+                return reissueTxId;
+            }
+        }
+    }
+}
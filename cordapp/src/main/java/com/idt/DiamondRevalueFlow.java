@@ -0,0 +1,156 @@
+package com.idt;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.idt.DiamondChainContract.DC_CONTRACT_ID;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Revalues a batch of approved diamonds we own at the prices of {@link DiamondPriceService}, in one transaction with
+ * the Update command. Only the owner signs; the source and approvers receive the transaction through finality.
+ *
+ * Stones whose price has not changed are left alone, and stones that are no longer ours, e.g. transferred since the
+ * batch was put together, or that the price table does not cover are skipped. No transaction is made when nothing
+ * changes.
+ */
+public class DiamondRevalueFlow {
+    /**
+     * The number of stones of the batch that were revalued, were already at the market price and were skipped.
+     */
+    @CordaSerializable
+    public static class Result {
+        private final int revalued;
+        private final int unchanged;
+        private final int skipped;
+
+        public Result(int revalued, int unchanged, int skipped) {
+            this.revalued = revalued;
+            this.unchanged = unchanged;
+            this.skipped = skipped;
+        }
+
+        public int getRevalued() { return revalued; }
+        public int getUnchanged() { return unchanged; }
+        public int getSkipped() { return skipped; }
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class Initiator extends FlowLogic<Result> {
+        /**
+         * The linear ids of the DiamondAssetStates to revalue
+         */
+        private final List<UniqueIdentifier> ids;
+        public static final ProgressTracker.Step GENERATING_TRANSACTION = new ProgressTracker.Step("Generating the transaction revaluing the DiamondAssets.");
+        public static final ProgressTracker.Step VERIFYING_TRANSACTION = new ProgressTracker.Step("Verifying contract constraints.");
+        public static final ProgressTracker.Step SIGNING_TRANSACTION = new ProgressTracker.Step("Signing transaction with our private key.");
+        public static final ProgressTracker.Step FINALISING_TRANSACTION = new ProgressTracker.Step("Obtaining notary signature and recording transaction.");
+
+        public static ProgressTracker tracker() {
+            return new ProgressTracker(
+                    GENERATING_TRANSACTION,
+                    VERIFYING_TRANSACTION,
+                    SIGNING_TRANSACTION,
+                    FINALISING_TRANSACTION
+            );
+        }
+
+        private final ProgressTracker progressTracker = tracker();
+
+        public Initiator(List<String> externalIds) {
+            final List<UniqueIdentifier> ids = new ArrayList<>(externalIds.size());
+            for (String externalId : externalIds) {
+                ids.add(UniqueIdentifier.Companion.fromString(externalId));
+            }
+            this.ids = ids;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public Result call() throws FlowException {
+            FlowStepEvents.track(this, progressTracker, ids.stream().map(UniqueIdentifier::toString).collect(Collectors.joining(",")));
+            if (ids.isEmpty()) {
+                return new Result(0, 0, 0);
+            }
+            final PriceTable prices = getServiceHub().cordaService(DiamondPriceService.class).getTable();
+            if (prices.isEmpty()) {
+                throw new FlowException("No price table is loaded; set idt.prices.file.");
+            }
+            QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(ImmutableList.of(getOurIdentity()), ids, Vault.StateStatus.UNCONSUMED, ImmutableSet.of(DiamondAssetState.class));
+            List<StateAndRef<DiamondAssetState>> stateAndRefs = getServiceHub().getVaultService()
+                    .queryBy(DiamondAssetState.class, criteria, new PageSpecification(DEFAULT_PAGE_NUM, ids.size()))
+                    .getStates();
+            //We retrieve notary identity from the network map.
+            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+            //Stage 1 - Generating the transaction
+            progressTracker.setCurrentStep(GENERATING_TRANSACTION);
+            final TransactionBuilder txBuilder = new TransactionBuilder();
+            txBuilder.setNotary(notary);
+            int revalued = 0;
+            int unchanged = 0;
+            for (StateAndRef<DiamondAssetState> stateAndRef : stateAndRefs) {
+                final DiamondAssetState old = stateAndRef.getState().getData();
+                //A lot is priced stone by stone
+                final PriceTable.Price price = prices.priceOf(old.getDiamondType(), old.getCarats(), old.getPieces());
+                if (!old.getOwner().equals(getOurIdentity()) || old.getApprovalStatus() != ApprovalStatus.APPROVED || price == null) {
+                    continue;
+                }
+                if (price.getCost() == old.getCost() && price.getPercent() == old.getPercent()) {
+                    unchanged++;
+                    continue;
+                }
+                final DiamondAssetState repriced = new DiamondAssetState(old.getLinearId(), old.getDiamondType(), old.getSource(),
+                        old.getDescription(), old.getCarats(), price.getCost(), price.getPercent(), old.getApprover());
+                repriced.setOwner(old.getOwner());
+                repriced.setApprovalStatus(old.getApprovalStatus());
+                repriced.setReissuedFrom(old.getReissuedFrom());
+                repriced.setCoApprovers(old.getCoApprovers());
+                repriced.setQuorum(old.getQuorum());
+                repriced.setCertificate(old.getCertificate(), old.getCertificateEntry());
+                repriced.setPieces(old.getPieces());
+                txBuilder.addInputState(stateAndRef);
+                txBuilder.addOutputState(repriced, DC_CONTRACT_ID);
+                revalued++;
+            }
+            final Result result = new Result(revalued, unchanged, ids.size() - revalued - unchanged);
+            if (revalued == 0) {
+                return result;
+            }
+            txBuilder.addCommand(new DiamondChainContract.Commands.Update(), getOurIdentity().getOwningKey());
+            //Stage 2 - Verify transaction
+            progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
+            txBuilder.verify(getServiceHub());
+
+            //Stage 3 - Signing transaction
+            progressTracker.setCurrentStep(SIGNING_TRANSACTION);
+            final SignedTransaction signedTx = getServiceHub().signInitialTransaction(txBuilder);
+
+            //Stage 4 - Finalising Transaction
+            progressTracker.setCurrentStep(FINALISING_TRANSACTION);
+            subFlow(new FinalityFlow(signedTx));
+            return result;
+        }
+    }
+}
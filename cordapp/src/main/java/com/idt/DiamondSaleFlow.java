@@ -0,0 +1,242 @@
+package com.idt;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import kotlin.Pair;
+import net.corda.core.contracts.*;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.finance.contracts.asset.Cash;
+
+import java.security.PublicKey;
+import java.util.Currency;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.idt.DiamondChainContract.DC_CONTRACT_ID;
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * Sells a diamond against Cash in a single delivery-versus-payment transaction.
+ *
+ * The seller offers the diamond and a price to the buyer. The buyer builds one transaction that moves the
+ * DiamondAssetState to itself and its Cash to the seller, collects the seller's signature and finalises it, so the
+ * asset and the payment are committed by one notarisation or not at all.
+ *
+ * The buyer pays only for a sale its operator agreed to beforehand with {@link Accept}, naming the diamond, the seller
+ * and the most it will pay.
+ */
+public class DiamondSaleFlow {
+    /**
+     * You can add a constructor to each FlowLogic subclass to pass objects into the flow.
+     */
+    @InitiatingFlow
+    @StartableByRPC
+    public static class Initiator extends FlowLogic<SignedTransaction> {
+        private final UniqueIdentifier id;
+        private final Party buyer;
+        private final Amount<Currency> price;
+        /**
+         * The progress tracker provides checkpoints indicating the progress of the flow to observers.
+         */
+        public static final ProgressTracker.Step SENDING_OFFER = new ProgressTracker.Step("Sending the DiamondAsset and its price to the buyer.");
+        public static final ProgressTracker.Step SIGNING_TRANSACTION = new ProgressTracker.Step("Checking and signing the buyer's transaction.");
+        public static final ProgressTracker.Step WAITING_FOR_FINALITY = new ProgressTracker.Step("Waiting for the buyer to record the transaction.");
+
+        public static ProgressTracker tracker() {
+            return new ProgressTracker(
+                    SENDING_OFFER,
+                    SIGNING_TRANSACTION,
+                    WAITING_FOR_FINALITY
+            );
+        }
+
+        private final ProgressTracker progressTracker = tracker();
+
+        public Initiator(String externalId, Party buyer, Amount<Currency> price){
+            this.id = UniqueIdentifier.Companion.fromString(externalId);
+            this.buyer = buyer;
+            this.price = price;
+        }
+
+        /**
+         * Takes the price in the form accepted by {@link Amount#parseCurrency}, e.g. "5000 USD".
+         */
+        public Initiator(String externalId, Party buyer, String price){
+            this(externalId, buyer, Amount.parseCurrency(price));
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override public SignedTransaction call() throws FlowException {
+            FlowStepEvents.track(this, progressTracker, id.toString());
+            QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(ImmutableList.of(getOurIdentity()), ImmutableList.of(id), Vault.StateStatus.UNCONSUMED, ImmutableSet.of(DiamondAssetState.class));
+            List<StateAndRef<DiamondAssetState>> stateAndRefs = getServiceHub().getVaultService().queryBy(DiamondAssetState.class, criteria).getStates();
+            if(stateAndRefs.size()!=1){
+                throw new FlowException("External ID " + id + " returned " + stateAndRefs.size() + " results.");
+            }
+            final StateAndRef<DiamondAssetState> input = stateAndRefs.get(0);
+            if(!input.getState().getData().getOwner().equals(getOurIdentity())){
+                throw new FlowException("Only the owner can sell DiamondAsset " + id);
+            }
+            if(input.getState().getData().getApprovalStatus()!=ApprovalStatus.APPROVED){
+                throw new FlowException("Only approved DiamondAssets can be sold.");
+            }
+            final DiamondLinearIdIndex index = getServiceHub().cordaService(DiamondLinearIdIndex.class);
+            if(!index.reserve(id)){
+                throw new FlowException("DiamondAsset " + id + " is already being transferred.");
+            }
+            try {
+                return sell(input);
+            } finally {
+                index.release(id);
+            }
+        }
+
+        @Suspendable
+        private SignedTransaction sell(StateAndRef<DiamondAssetState> input) throws FlowException {
+            //Stage 1 - Sending the offer. The buyer resolves the backchain of the diamond as it receives it.
+            progressTracker.setCurrentStep(SENDING_OFFER);
+            final FlowSession buyerSession = initiateFlow(buyer);
+            subFlow(new SendStateAndRefFlow(buyerSession, ImmutableList.of(input)));
+            buyerSession.send(price);
+
+            //Stage 2 - Signing the buyer's transaction
+            progressTracker.setCurrentStep(SIGNING_TRANSACTION);
+            final Party seller = getOurIdentity();
+            class SignTxFlow extends SignTransactionFlow {
+                private SignTxFlow(FlowSession buyerSession, ProgressTracker progressTracker){
+                    super(buyerSession, progressTracker);
+                }
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(require->{
+                        require.using("The offered DiamondAsset must be consumed",
+                                stx.getTx().getInputs().contains(input.getRef()));
+                        List<DiamondAssetState> diamonds = stx.getTx().outputsOfType(DiamondAssetState.class);
+                        require.using("There must be one DiamondAssetState output", diamonds.size()==1);
+                        require.using("The buyer must become the owner", diamonds.get(0).getOwner().equals(buyer));
+                        long paid = 0;
+                        for(Cash.State cash : stx.getTx().outputsOfType(Cash.State.class)){
+                            if(cash.getOwner().equals(seller) && cash.getAmount().getToken().getProduct().equals(price.getToken())){
+                                paid += cash.getAmount().getQuantity();
+                            }
+                        }
+                        require.using("The seller must be paid the agreed price", paid>=price.getQuantity());
+                        return null;
+                    });
+                }
+            }
+            final SignedTransaction signedTx = subFlow(new SignTxFlow(buyerSession, SignTransactionFlow.Companion.tracker()));
+
+            //Stage 3 - The buyer notarises and records the transaction
+            progressTracker.setCurrentStep(WAITING_FOR_FINALITY);
+            return waitForLedgerCommit(signedTx.getId());
+        }
+    }
+
+    /**
+     * Agrees, on the buyer's node, to buy the diamond from the seller for at most the given price.
+     */
+    @StartableByRPC
+    public static class Accept extends FlowLogic<Void> {
+        private final UniqueIdentifier id;
+        private final Party seller;
+        private final Amount<Currency> maxPrice;
+
+        public Accept(String externalId, Party seller, Amount<Currency> maxPrice){
+            this.id = UniqueIdentifier.Companion.fromString(externalId);
+            this.seller = seller;
+            this.maxPrice = maxPrice;
+        }
+
+        /**
+         * Takes the price in the form accepted by {@link Amount#parseCurrency}, e.g. "5000 USD".
+         */
+        public Accept(String externalId, Party seller, String maxPrice){
+            this(externalId, seller, Amount.parseCurrency(maxPrice));
+        }
+
+        @Suspendable
+        @Override public Void call() throws FlowException {
+            if(maxPrice.getQuantity()<=0){
+                throw new FlowException("The price must be a positive amount of currency.");
+            }
+            getServiceHub().cordaService(DiamondPurchaseRegistry.class).accept(id, seller, maxPrice);
+            return null;
+        }
+    }
+
+    @InitiatedBy(DiamondSaleFlow.Initiator.class)
+    public static class Responder extends FlowLogic<SignedTransaction> {
+        private final FlowSession sellerSession;
+
+        public Responder(FlowSession sellerSession) {
+            this.sellerSession = sellerSession;
+        }
+
+        /**
+         * Pays for the offered diamond when it is approved, owned by the seller, priced at no more than its box value, and
+         * our operator has accepted buying it from the seller at that price.
+         */
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            final List<StateAndRef<DiamondAssetState>> offered = subFlow(new ReceiveStateAndRefFlow<DiamondAssetState>(sellerSession));
+            @SuppressWarnings("unchecked")
+            final Amount<Currency> price = sellerSession.receive(Amount.class).unwrap(amount -> {
+                if(!(amount.getToken() instanceof Currency) || amount.getQuantity()<=0){
+                    throw new IllegalArgumentException("The price must be a positive amount of currency");
+                }
+                return (Amount<Currency>) amount;
+            });
+            if(offered.size()!=1){
+                throw new FlowException("Exactly one DiamondAsset must be offered.");
+            }
+            final StateAndRef<DiamondAssetState> input = offered.get(0);
+            final DiamondAssetState offeredDiamond = input.getState().getData();
+            final Party seller = sellerSession.getCounterparty();
+            requireThat(require->{
+                require.using("The seller must own the DiamondAsset", offeredDiamond.getOwner().equals(seller));
+                require.using("Approval status must be APPROVED", offeredDiamond.getApprovalStatus()==ApprovalStatus.APPROVED);
+                require.using("The price must not exceed the box value", price.toDecimal().doubleValue()<=offeredDiamond.getBoxValue());
+                return null;
+            });
+            //The offer we accepted is taken, so it pays for one sale only
+            if(!getServiceHub().cordaService(DiamondPurchaseRegistry.class).take(offeredDiamond.getLinearId(), seller, price)){
+                throw new FlowException("We have not agreed to buy DiamondAsset " + offeredDiamond.getLinearId()
+                        + " from " + seller.getName() + " for " + price + ".");
+            }
+
+            //We create a transaction builder on the notary of the DiamondAsset.
+            final TransactionBuilder txBuilder = new TransactionBuilder(input.getState().getNotary());
+            DiamondAssetState diamondAssetState = input.getState().getData();
+            diamondAssetState.setOwner(getOurIdentity());
+            List<PublicKey> requiredSigners = ImmutableList.of(seller.getOwningKey(), getOurIdentity().getOwningKey());
+            txBuilder.withItems(input, new StateAndContract(diamondAssetState, DC_CONTRACT_ID),
+                    new Command<>(new DiamondChainContract.Commands.Transfer(), requiredSigners));
+            //The payment leg: our Cash to the seller, with any change back to us.
+            final Pair<TransactionBuilder, List<PublicKey>> spend = Cash.generateSpend(getServiceHub(), txBuilder, price,
+                    getOurIdentityAndCert(), seller, ImmutableSet.of());
+            txBuilder.verify(getServiceHub());
+
+            final Set<PublicKey> ourKeys = new LinkedHashSet<>(spend.getSecond());
+            ourKeys.add(getOurIdentity().getOwningKey());
+            final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder, ourKeys);
+            final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partSignedTx,
+                    ImmutableList.of(sellerSession), ourKeys, CollectSignaturesFlow.tracker()));
+            return subFlow(new FinalityFlow(fullySignedTx));
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.idt;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.*;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.idt.DiamondChainContract.DC_CONTRACT_ID;
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * Divides an approved diamond, usually a lot made by {@link DiamondMergeFlow}, into parts with the same owner and
+ * approver whose carats, cost and box value add up to those of the original.
+ */
+public class DiamondSplitFlow {
+    /**
+     * The carats, cost, percent and number of stones of one part of a split.
+     */
+    @CordaSerializable
+    public static class Part {
+        private final double carats;
+        private final double cost;
+        private final float percent;
+        private final int stones;
+
+        public Part(double carats, double cost, float percent) {
+            this(carats, cost, percent, 1);
+        }
+
+        public Part(double carats, double cost, float percent, int stones) {
+            this.carats = carats;
+            this.cost = cost;
+            this.percent = percent;
+            this.stones = stones;
+        }
+
+        public double getCarats() { return carats; }
+        public double getCost() { return cost; }
+        public float getPercent() { return percent; }
+        public int getStones() { return stones; }
+    }
+
+    /**
+     * Divides the diamond into the given number of equal parts, rounded to hundredths. The last part takes the
+     * remainder, so the totals are kept exactly. The stones of a lot are shared out the same way; the parts of a
+     * single stone, or of a lot with fewer stones than parts, are a stone each.
+     */
+    public static List<Part> equalParts(DiamondAssetState diamond, int pieces) {
+        final List<Part> parts = new ArrayList<>(pieces);
+        final boolean shareStones = diamond.getPieces() >= pieces;
+        double carats = 0;
+        double cost = 0;
+        float percent = 0;
+        int stones = 0;
+        for (int i = 0; i < pieces - 1; i++) {
+            final Part part = new Part(Math.round(diamond.getCarats() * 100 / pieces) / 100.0,
+                    Math.round(diamond.getCost() * 100 / pieces) / 100.0,
+                    Math.round(diamond.getPercent() * 100 / pieces) / 100f,
+                    shareStones ? diamond.getPieces() / pieces : 1);
+            carats += part.getCarats();
+            cost += part.getCost();
+            percent += part.getPercent();
+            stones += part.getStones();
+            parts.add(part);
+        }
+        parts.add(new Part(diamond.getCarats() - carats, diamond.getCost() - cost, diamond.getPercent() - percent,
+                shareStones ? diamond.getPieces() - stones : 1));
+        return parts;
+    }
+
+    /**
+     * You can add a constructor to each FlowLogic subclass to pass objects into the flow.
+     */
+    @InitiatingFlow
+    @StartableByRPC
+    public static class Initiator extends FlowLogic<SignedTransaction> {
+        /**
+         * The linear id of the DiamondAssetState to split
+         */
+        private final UniqueIdentifier id;
+        /**
+         * The parts to split it into, or null for equal parts
+         */
+        private final List<Part> parts;
+        private final int pieces;
+        /**
+         * The progress tracker provides checkpoints indicating the progress of the flow to observers.
+         */
+        public static final ProgressTracker.Step GENERATING_TRANSACTION = new ProgressTracker.Step("Generating the transaction splitting the DiamondAsset.");
+        public static final ProgressTracker.Step VERIFYING_TRANSACTION = new ProgressTracker.Step("Verifying contract constraints.");
+        public static final ProgressTracker.Step SIGNING_TRANSACTION = new ProgressTracker.Step("Signing transaction with our private key.");
+        public static final ProgressTracker.Step GATHERING_SIGS = new ProgressTracker.Step("Gathering the approver's signature.");
+        public static final ProgressTracker.Step FINALISING_TRANSACTION = new ProgressTracker.Step("Obtaining notary signature and recording transaction.");
+
+        public static ProgressTracker tracker() {
+            return new ProgressTracker(
+                    GENERATING_TRANSACTION,
+                    VERIFYING_TRANSACTION,
+                    SIGNING_TRANSACTION,
+                    GATHERING_SIGS,
+                    FINALISING_TRANSACTION
+            );
+        }
+
+        private final ProgressTracker progressTracker = tracker();
+
+        /**
+         * Splits the DiamondAssetState into the given parts.
+         */
+        public Initiator(String externalId, List<Part> parts){
+            this.id = UniqueIdentifier.Companion.fromString(externalId);
+            this.parts = parts;
+            this.pieces = parts.size();
+        }
+
+        /**
+         * Splits the DiamondAssetState into the given number of equal parts.
+         */
+        public Initiator(String externalId, int pieces){
+            this.id = UniqueIdentifier.Companion.fromString(externalId);
+            this.parts = null;
+            this.pieces = pieces;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override public SignedTransaction call() throws FlowException {
+            FlowStepEvents.track(this, progressTracker, id.toString());
+            if(pieces<2){
+                throw new FlowException("A DiamondAsset must be split into at least two parts.");
+            }
+            QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(ImmutableList.of(getOurIdentity()), ImmutableList.of(id), Vault.StateStatus.UNCONSUMED, ImmutableSet.of(DiamondAssetState.class));
+            List<StateAndRef<DiamondAssetState>> stateAndRefs = getServiceHub().getVaultService().queryBy(DiamondAssetState.class, criteria).getStates();
+            if(stateAndRefs.size()!=1){
+                throw new FlowException("DiamondAsset " + id + " cannot be found.");
+            }
+            final StateAndRef<DiamondAssetState> inputState = stateAndRefs.get(0);
+            final DiamondAssetState diamond = inputState.getState().getData();
+            if(!diamond.getOwner().equals(getOurIdentity())){
+                throw new FlowException("Only the owner can split DiamondAsset " + id);
+            }
+            //We retrieve notary identity from the network map.
+            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+            //Stage 1 - Generating the transaction
+            progressTracker.setCurrentStep(GENERATING_TRANSACTION);
+            final TransactionBuilder txBuilder = new TransactionBuilder();
+            txBuilder.setNotary(notary);
+            txBuilder.addInputState(inputState);
+            final List<Part> split = parts != null ? parts : equalParts(diamond, pieces);
+            for(int i = 0; i < split.size(); i++){
+                final Part part = split.get(i);
+                final DiamondAssetState out = new DiamondAssetState(new UniqueIdentifier(), diamond.getDiamondType(), diamond.getSource(),
+                        String.format("%s (part %d of %d)", diamond.getDescription(), i + 1, split.size()),
+                        part.getCarats(), part.getCost(), part.getPercent(), diamond.getApprover());
+                out.setOwner(getOurIdentity());
+                out.setApprovalStatus(ApprovalStatus.APPROVED);
+                out.setCoApprovers(diamond.getCoApprovers());
+                out.setQuorum(diamond.getQuorum());
+                out.setPieces(part.getStones());
+                //Each part is cut from the graded stone, so it keeps the stone's certificate
+                out.setCertificate(diamond.getCertificate(), diamond.getCertificateEntry());
+                txBuilder.addOutputState(out, DC_CONTRACT_ID);
+            }
+            final Party approver = diamond.getApprover();
+            final List<PublicKey> requiredSigners = new ArrayList<>();
+            requiredSigners.add(getOurIdentity().getOwningKey());
+            if(!approver.equals(getOurIdentity())){
+                requiredSigners.add(approver.getOwningKey());
+            }
+            txBuilder.addCommand(new Command<>(new DiamondChainContract.Commands.Split(), requiredSigners));
+            //Stage 2 - Verify transaction
+            progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
+            txBuilder.verify(getServiceHub());
+
+            //Stage 3 - Signing transaction
+            progressTracker.setCurrentStep(SIGNING_TRANSACTION);
+            final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder);
+
+            //Stage 4 - Gathering Signatures
+            progressTracker.setCurrentStep(GATHERING_SIGS);
+            final List<FlowSession> approverSessions = approver.equals(getOurIdentity())
+                    ? ImmutableList.of()
+                    : ImmutableList.of(initiateFlow(approver));
+            final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partSignedTx,
+                    approverSessions, CollectSignaturesFlow.tracker()));
+            //Stage 5 - Finalising Transaction
+            progressTracker.setCurrentStep(FINALISING_TRANSACTION);
+            return subFlow(new FinalityFlow(fullySignedTx));
+        }
+    }
+
+    @InitiatedBy(DiamondSplitFlow.Initiator.class)
+    public static class Responder extends FlowLogic<SignedTransaction> {
+        private final FlowSession ownerPartySession;
+
+        public Responder(FlowSession ownerPartySession) {
+            this.ownerPartySession = ownerPartySession;
+        }
+
+        /**
+         * Define the acceptor's flow logic here.
+         */
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            final Party approver = getOurIdentity();
+            class SignTxFlow extends SignTransactionFlow {
+                private SignTxFlow(FlowSession ownerPartySession, ProgressTracker progressTracker){
+                    super(ownerPartySession, progressTracker);
+                }
+                @Override
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
+                    final LedgerTransaction ltx;
+                    try {
+                        ltx = stx.toLedgerTransaction(getServiceHub(), false);
+                    } catch (Exception e) {
+                        throw new FlowException("Unable to resolve the split transaction.", e);
+                    }
+                    requireThat(require->{
+                        require.using("There must be one DiamondAsset to split", ltx.inputsOfType(DiamondAssetState.class).size()==1);
+                        final DiamondAssetState in = ltx.inputsOfType(DiamondAssetState.class).get(0);
+                        require.using("We must be the approver of the split DiamondAsset", in.getApprover().equals(approver));
+                        require.using("The splitting party must own the DiamondAsset", in.getOwner().equals(ownerPartySession.getCounterparty()));
+                        for(DiamondAssetState part : ltx.outputsOfType(DiamondAssetState.class)){
+                            require.using("Each part must keep the source and co-approvers of the split DiamondAsset",
+                                    part.getSource().equals(in.getSource())
+                                            && part.getCoApprovers().equals(in.getCoApprovers())
+                                            && part.getQuorum()==in.getQuorum());
+                        }
+                        return null;
+                    });
+                }
+            }
+            return subFlow(new SignTxFlow(ownerPartySession, SignTransactionFlow.Companion.tracker()));
+        }
+    }
+}
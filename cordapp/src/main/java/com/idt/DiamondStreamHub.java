@@ -0,0 +1,186 @@
+package com.idt;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.node.services.Vault;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Pushes DiamondAssetState changes to live clients over Server-Sent Events.
+ *
+ * Every client is served from the single vault feed of {@link LedgerChangeTracker}: a client first gets the matching
+ * states as "snapshot" events, then a "produced" or "consumed" event for each matching change. Clients can filter by
+ * owner and approval status.
+ *
+ * The snapshot, and the changes held back while it is loaded, are queued as the client's backlog and are never
+ * dropped, however many states match. After that a slow client either drops events once its queue is full (DROP), or
+ * has its pending changes coalesced to the latest one per stone and flushed every idt.stream.coalesceMillis (COALESCE).
+ */
+public class DiamondStreamHub {
+    private static final Logger logger = LoggerFactory.getLogger(DiamondStreamHub.class);
+    private static final int SINK_CAPACITY = Integer.getInteger("idt.stream.clientQueue", 1024);
+    private static final long COALESCE_MILLIS = Long.getLong("idt.stream.coalesceMillis", 250L);
+
+    public enum Overflow { DROP, COALESCE }
+
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new DiamondJsonModule());
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final Supplier<SseSink> sinks;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("idt-stream-flusher").build());
+
+    public DiamondStreamHub(Observable<Vault.Update<DiamondAssetState>> vaultUpdates) {
+        this(vaultUpdates, () -> new SseSink(SINK_CAPACITY));
+    }
+
+    DiamondStreamHub(Observable<Vault.Update<DiamondAssetState>> vaultUpdates, Supplier<SseSink> sinks) {
+        this.sinks = sinks;
+        vaultUpdates.subscribe(this::publish, error -> logger.error("Vault update feed failed", error));
+        flusher.scheduleWithFixedDelay(this::flushCoalesced, COALESCE_MILLIS, COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens a stream for a new client. The client is registered before the snapshot is loaded, and live changes that
+     * arrive in the meantime are held back and sent right after the snapshot, so no change is missed.
+     */
+    public SseSink open(CordaX500Name owner, ApprovalStatus status, Overflow overflow,
+                        Supplier<List<StateAndRef<DiamondAssetState>>> snapshot) {
+        final Client client = new Client(owner, status, overflow, sinks.get());
+        clients.add(client);
+        final List<StateAndRef<DiamondAssetState>> states;
+        try {
+            states = snapshot.get();
+        } catch (RuntimeException ex) {
+            clients.remove(client);
+            throw ex;
+        }
+        for (StateAndRef<DiamondAssetState> stateAndRef : states) {
+            if (client.matches(stateAndRef.getState().getData())) {
+                client.sink.sendBacklog("snapshot", toJson(stateAndRef));
+            }
+        }
+        client.sink.sendBacklog("live", "{}");
+        client.goLive();
+        return client.sink;
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    private void publish(Vault.Update<DiamondAssetState> update) {
+        clients.removeIf(client -> client.sink.isClosed());
+        if (clients.isEmpty()) {
+            return;
+        }
+        final Map<StateAndRef<DiamondAssetState>, String> json = new HashMap<>();
+        for (Client client : clients) {
+            for (StateAndRef<DiamondAssetState> consumed : update.getConsumed()) {
+                if (client.matches(consumed.getState().getData())) {
+                    client.offer(consumed, "consumed", json.computeIfAbsent(consumed, this::consumedJson));
+                }
+            }
+            for (StateAndRef<DiamondAssetState> produced : update.getProduced()) {
+                if (client.matches(produced.getState().getData())) {
+                    client.offer(produced, "produced", json.computeIfAbsent(produced, this::toJson));
+                }
+            }
+        }
+    }
+
+    private void flushCoalesced() {
+        for (Client client : clients) {
+            try {
+                client.flush();
+            } catch (RuntimeException ex) {
+                logger.warn("Failed to flush stream client", ex);
+            }
+        }
+    }
+
+    private String toJson(StateAndRef<DiamondAssetState> stateAndRef) {
+        try {
+            return mapper.writeValueAsString(stateAndRef);
+        } catch (JsonProcessingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private String consumedJson(StateAndRef<DiamondAssetState> stateAndRef) {
+        try {
+            return mapper.writeValueAsString(ImmutableMap.of(
+                    "linearId", stateAndRef.getState().getData().getLinearId().getId().toString(),
+                    "stateRef", stateAndRef.getRef().toString()));
+        } catch (JsonProcessingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static class Client {
+        private final CordaX500Name owner;
+        private final ApprovalStatus status;
+        private final Overflow overflow;
+        private final SseSink sink;
+        // Pending coalesced changes, keyed by linear id.
+        private final LinkedHashMap<UUID, String[]> pending = new LinkedHashMap<>();
+        // Changes held back while the snapshot is sent.
+        private final List<String[]> heldBack = new ArrayList<>();
+        private boolean live;
+
+        Client(CordaX500Name owner, ApprovalStatus status, Overflow overflow, SseSink sink) {
+            this.owner = owner;
+            this.status = status;
+            this.overflow = overflow;
+            this.sink = sink;
+        }
+
+        boolean matches(DiamondAssetState diamond) {
+            return (owner == null || diamond.getOwner().getName().equals(owner))
+                    && (status == null || diamond.getApprovalStatus() == status);
+        }
+
+        synchronized void goLive() {
+            for (String[] event : heldBack) {
+                sink.sendBacklog(event[0], event[1]);
+            }
+            heldBack.clear();
+            live = true;
+        }
+
+        synchronized void offer(StateAndRef<DiamondAssetState> stateAndRef, String event, String data) {
+            if (!live) {
+                heldBack.add(new String[]{event, data});
+            } else if (overflow == Overflow.COALESCE) {
+                final UUID linearId = stateAndRef.getState().getData().getLinearId().getId();
+                // A produced version supersedes the consumed one of the same stone.
+                pending.remove(linearId);
+                pending.put(linearId, new String[]{event, data});
+            } else {
+                sink.send(event, data);
+            }
+        }
+
+        synchronized void flush() {
+            if (pending.isEmpty() || sink.getPendingCount() >= SINK_CAPACITY / 2) {
+                return;
+            }
+            for (String[] event : pending.values()) {
+                sink.send(event[0], event[1]);
+            }
+            pending.clear();
+        }
+    }
+}
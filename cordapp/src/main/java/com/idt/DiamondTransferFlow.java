@@ -2,12 +2,9 @@ package com.idt;
 
 import co.paralleluniverse.fibers.Suspendable;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
 import net.corda.core.contracts.*;
 import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
-import net.corda.core.node.services.Vault;
-import net.corda.core.node.services.vault.QueryCriteria;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 import net.corda.core.utilities.ProgressTracker;
@@ -24,41 +21,12 @@ public class DiamondTransferFlow {
      */
     @InitiatingFlow
     @StartableByRPC
-    public static class Initiator extends FlowLogic<SignedTransaction> {
+    public static class Initiator extends DiamondFlowBase {
         /**
          * Define the fields to be used to initialise the DiamondAssetState
          */
         private final UniqueIdentifier id;
         private final Party newOwner;
-        /**
-         * The progress tracker provides checkpoints indicating the progress of the flow to observers.
-         */
-        private final ProgressTracker.Step GENERATING_TRANSACTION = new ProgressTracker.Step("Generating transaction based on new DiamondAsset.");
-        private final ProgressTracker.Step VERIFYING_TRANSACTION = new ProgressTracker.Step("Verifying contract constraints.");
-        private final ProgressTracker.Step SIGNING_TRANSACTION = new ProgressTracker.Step("Signing transaction with our private key.");
-        private final ProgressTracker.Step GATHERING_SIGS = new ProgressTracker.Step("Gathering the counterparty's signature.") {
-            @Override
-            public ProgressTracker childProgressTracker() {
-                return CollectSignaturesFlow.Companion.tracker();
-            }
-        };
-        private final ProgressTracker.Step FINALISING_TRANSACTION = new ProgressTracker.Step("Obtaining notary signature and recording transaction.") {
-            @Override
-            public ProgressTracker childProgressTracker() {
-                return FinalityFlow.Companion.tracker();
-            }
-        };
-
-        // The progress tracker checkpoints each stage of the flow and outputs the specified messages when each
-        // checkpoint is reached in the code. See the 'progressTracker.currentStep' expressions within the call()
-        // function.
-        private final ProgressTracker progressTracker = new ProgressTracker(
-                GENERATING_TRANSACTION,
-                VERIFYING_TRANSACTION,
-                SIGNING_TRANSACTION,
-                GATHERING_SIGS,
-                FINALISING_TRANSACTION
-        );
 
         /**
          * Define constructor to pass initialize DiamondAssetState object for the flow
@@ -69,52 +37,43 @@ public class DiamondTransferFlow {
             this.newOwner = newOwner;
         }
 
-        @Suspendable
-        @Override public SignedTransaction call() throws FlowException {
-            //var criteria = new QueryCriteria.LinearStateQueryCriteria()
-            QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(ImmutableList.of(getOurIdentity()), ImmutableList.of(id), Vault.StateStatus.UNCONSUMED, ImmutableSet.of(DiamondAssetState.class));
-            List<StateAndRef<DiamondAssetState>> stateAndRefs = getServiceHub().getVaultService().queryBy(DiamondAssetState.class, criteria).getStates();
-            if(stateAndRefs.size()>1){
-                throw new FlowException("External ID returned more than 1 result.");
+        @Override
+        protected UniqueIdentifier getLinearId() {
+            return id;
+        }
+
+        @Override
+        protected SignedTransaction prepare() throws FlowException {
+            final StateAndRef<DiamondAssetState> input = findUnconsumed();
+            //A retry of an earlier transfer returns the original transaction
+            if(input.getState().getData().getOwner().equals(newOwner)){
+                final SignedTransaction previous = producedBy(input, DiamondChainContract.Commands.Transfer.class);
+                if(previous!=null){
+                    return previous;
+                }
             }
-            //We retrieve notary identity from the network map.
-            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
-            //Stage 1 - Generating the transaction
-            progressTracker.setCurrentStep(GENERATING_TRANSACTION);
-            //We create a transaction builder.
-            final TransactionBuilder txBuilder = new TransactionBuilder();
-            txBuilder.setNotary(notary);
+            reserve("transferred");
+            final TransactionBuilder txBuilder = newTransaction();
             //We create the transaction components
-            DiamondAssetState diamondAssetState = (DiamondAssetState)stateAndRefs.get(0).getState().getData();
+            DiamondAssetState diamondAssetState = input.getState().getData();
             diamondAssetState.setOwner(newOwner);
             StateAndContract outputStateAndContract = new StateAndContract(diamondAssetState, DC_CONTRACT_ID);
             List<PublicKey> requiredSigners = ImmutableList.of(getOurIdentity().getOwningKey(), diamondAssetState.getOwner().getOwningKey());
             final Command<DiamondChainContract.Commands.Transfer> transferCmd = new Command<DiamondChainContract.Commands.Transfer>(
                     new DiamondChainContract.Commands.Transfer(), requiredSigners);
             //We add items to builder
-            txBuilder.withItems(stateAndRefs.get(0), outputStateAndContract, transferCmd);
-            //Stage 2 - Verify transaction
-            progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
-            //Verifying the transaction
-            txBuilder.verify(getServiceHub());
-
-            //Stage 3 - Signing transaction
-            progressTracker.setCurrentStep(SIGNING_TRANSACTION);
-            //Signing the transaction
-            final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder);
+            txBuilder.withItems(input, outputStateAndContract, transferCmd);
+            return verifyAndSign(txBuilder);
+        }
 
-            //Stage 4 - Gathering Signatures
-            progressTracker.setCurrentStep(GATHERING_SIGS);
+        @Suspendable
+        @Override
+        protected SignedTransaction gatherSignatures(SignedTransaction partSignedTx) throws FlowException {
             //Creating a session with the other party
-            FlowSession newOwnerPartySession = initiateFlow(diamondAssetState.getOwner());
-
+            FlowSession newOwnerPartySession = initiateFlow(newOwner);
             //Obtaining Counterparty's signature
-            final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partSignedTx,
+            return subFlow(new CollectSignaturesFlow(partSignedTx,
                     ImmutableList.of(newOwnerPartySession), CollectSignaturesFlow.tracker()));
-            //Stage 5 - Finalising Transaction
-            progressTracker.setCurrentStep(FINALISING_TRANSACTION);
-            //Finalising the transaction
-            return subFlow(new FinalityFlow(fullySignedTx));
         }
     }
 
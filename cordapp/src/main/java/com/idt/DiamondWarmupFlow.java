@@ -0,0 +1,167 @@
+package com.idt;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.Crypto;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteriaUtils.Builder;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SerializationContext;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.core.serialization.SerializedBytes;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.idt.DiamondChainContract.DC_CONTRACT_ID;
+
+/**
+ * Exercises the paths of a diamond transaction with synthetic data, so the first real requests after a restart do not
+ * pay for class loading, serialiser generation, Hibernate metadata and a cold JIT.
+ *
+ * Each iteration builds a create transaction for a made-up stone, verifies it against DiamondChainContract, signs it,
+ * round-trips it and the state through the serialiser, maps the state to PersistentDiamondAsset and runs the vault
+ * queries the flows and the API use. Nothing is recorded, sent or notarised. The iterations run in rounds; the report
+ * gives the mean time per iteration of each round and when it first stayed within the tolerance of the round before.
+ */
+public class DiamondWarmupFlow {
+    /**
+     * The time per iteration of each round, and when the warm-up reached a steady state.
+     */
+    @CordaSerializable
+    public static class Report {
+        private final List<Long> roundMicros;
+        private final int steadyRound;
+        private final long timeToSteadyMillis;
+        private final long totalMillis;
+
+        public Report(List<Long> roundMicros, int steadyRound, long timeToSteadyMillis, long totalMillis) {
+            this.roundMicros = roundMicros;
+            this.steadyRound = steadyRound;
+            this.timeToSteadyMillis = timeToSteadyMillis;
+            this.totalMillis = totalMillis;
+        }
+
+        public List<Long> getRoundMicros() { return roundMicros; }
+        public int getSteadyRound() { return steadyRound; }
+        public long getTimeToSteadyMillis() { return timeToSteadyMillis; }
+        public long getTotalMillis() { return totalMillis; }
+
+        public boolean isSteady() {
+            return steadyRound >= 0;
+        }
+    }
+
+    @StartableByRPC
+    @StartableByService
+    public static class Initiator extends FlowLogic<Report> {
+        private static final CordaX500Name WARMUP_APPROVER = new CordaX500Name("Warm-up Approver", "London", "GB");
+
+        private final int rounds;
+        private final int iterations;
+        private final double tolerance;
+        public static final ProgressTracker.Step WARMING_UP = new ProgressTracker.Step("Exercising the transaction paths with synthetic DiamondAssets.");
+
+        public static ProgressTracker tracker() {
+            return new ProgressTracker(
+                    WARMING_UP
+            );
+        }
+
+        private final ProgressTracker progressTracker = tracker();
+
+        public Initiator() {
+            this(Integer.getInteger("idt.warmup.rounds", 20), Integer.getInteger("idt.warmup.iterations", 50),
+                    Double.parseDouble(System.getProperty("idt.warmup.tolerance", "0.1")));
+        }
+
+        public Initiator(int rounds, int iterations, double tolerance) {
+            this.rounds = rounds;
+            this.iterations = iterations;
+            this.tolerance = tolerance;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public Report call() throws FlowException {
+            progressTracker.setCurrentStep(WARMING_UP);
+            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+            // A stand-in approver, so the synthetic stone passes the create rules without naming a real party.
+            final Party approver = new Party(WARMUP_APPROVER, Crypto.generateKeyPair().getPublic());
+            final List<Long> roundMicros = new ArrayList<>(rounds);
+            int steadyRound = -1;
+            long timeToSteady = -1;
+            final long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                final long roundStart = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    iterate(notary, approver);
+                }
+                final long micros = (System.nanoTime() - roundStart) / 1000 / Math.max(iterations, 1);
+                if (steadyRound < 0 && round > 0) {
+                    final long previous = roundMicros.get(round - 1);
+                    if (Math.abs(micros - previous) <= tolerance * previous) {
+                        steadyRound = round;
+                        timeToSteady = (System.nanoTime() - start) / 1_000_000;
+                    }
+                }
+                roundMicros.add(micros);
+            }
+            return new Report(roundMicros, steadyRound, timeToSteady, (System.nanoTime() - start) / 1_000_000);
+        }
+
+        private void iterate(Party notary, Party approver) throws FlowException {
+            final DiamondAssetState diamond = new DiamondAssetState(new UniqueIdentifier(), DiamondType.SIGHT,
+                    getOurIdentity(), "Warm-up stone", 1.01, 1000, 5, approver);
+            final TransactionBuilder txBuilder = new TransactionBuilder(notary)
+                    .addOutputState(diamond, DC_CONTRACT_ID)
+                    .addCommand(new DiamondChainContract.Commands.Create(),
+                            ImmutableList.of(getOurIdentity().getOwningKey(), approver.getOwningKey()));
+            try {
+                txBuilder.verify(getServiceHub());
+            } catch (Exception ex) {
+                throw new FlowException("The warm-up transaction failed verification.", ex);
+            }
+            final SignedTransaction signedTx = getServiceHub().signInitialTransaction(txBuilder);
+
+            final SerializationFactory factory = SerializationFactory.Companion.getDefaultFactory();
+            final SerializationContext context = factory.getDefaultContext();
+            final SerializedBytes<SignedTransaction> txBytes = factory.serialize(signedTx, context);
+            factory.deserialize(txBytes, SignedTransaction.class, context).getTx();
+            final SerializedBytes<DiamondAssetState> stateBytes = factory.serialize(diamond, context);
+            factory.deserialize(stateBytes, DiamondAssetState.class, context);
+            diamond.generateMappedObject(new DiamondAssetSchemaV1());
+
+            getServiceHub().getVaultService().queryBy(DiamondAssetState.class,
+                    new QueryCriteria.LinearStateQueryCriteria(null, ImmutableList.of(diamond.getLinearId()),
+                            Vault.StateStatus.ALL, ImmutableSet.of(DiamondAssetState.class)));
+            try {
+                final Field owner = DiamondAssetSchemaV1.PersistentDiamondAsset.class.getDeclaredField("owner");
+                getServiceHub().getVaultService().queryBy(DiamondAssetState.class,
+                        new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(owner, getOurIdentity().getName().toString())),
+                        new PageSpecification(1, 1));
+            } catch (NoSuchFieldException ex) {
+                throw new FlowException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.idt;
+
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Runs {@link DiamondWarmupFlow} once the node has started, so that its first real transactions are as fast as the
+ * ones that follow. Opt-in with -Didt.warmup=true; the rounds, iterations per round and tolerance are set with
+ * idt.warmup.rounds, idt.warmup.iterations and idt.warmup.tolerance.
+ *
+ * The warm-up starts when the node has joined the network map, runs as a flow on the node's flow threads and records
+ * nothing. Its time-to-steady-state is logged, and kept for {@link #getReport}.
+ */
+@CordaService
+public class DiamondWarmupService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(DiamondWarmupService.class);
+
+    private volatile DiamondWarmupFlow.Report report;
+
+    public DiamondWarmupService(AppServiceHub serviceHub) {
+        if (!Boolean.getBoolean("idt.warmup")) {
+            return;
+        }
+        // The flow is not started from this thread: services are created before the node can run flows.
+        serviceHub.getNetworkMapCache().getNodeReady().then(ready -> {
+            final Thread thread = new Thread(() -> warmUp(serviceHub), "idt-warmup");
+            thread.setDaemon(true);
+            thread.start();
+            return null;
+        });
+    }
+
+    private void warmUp(AppServiceHub serviceHub) {
+        try {
+            logger.info("Warming up the diamond transaction paths");
+            final DiamondWarmupFlow.Report result = serviceHub.startFlow(new DiamondWarmupFlow.Initiator()).getReturnValue().get();
+            report = result;
+            final List<Long> rounds = result.getRoundMicros();
+            if (result.isSteady()) {
+                logger.info("Warm-up reached a steady {} µs per iteration after {} ms (round {}, first round {} µs)",
+                        rounds.get(result.getSteadyRound()), result.getTimeToSteadyMillis(), result.getSteadyRound(),
+                        rounds.get(0));
+            } else {
+                logger.info("Warm-up did not reach a steady state in {} ms; rounds took {} µs per iteration",
+                        result.getTotalMillis(), rounds);
+            }
+        } catch (Exception ex) {
+            logger.warn("Warm-up failed", ex);
+        }
+    }
+
+    /**
+     * The report of the startup warm-up, or null while it has not finished or when it is off.
+     */
+    public DiamondWarmupFlow.Report getReport() {
+        return report;
+    }
+}
@@ -0,0 +1,181 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the number of flows the web API has in flight, so a burst of requests cannot fill the node's state machine
+ * with checkpoints.
+ *
+ * A request is admitted straight away while its flow type and its caller are below their in-flight limits. When the
+ * flow type is at its limit the request waits in a bounded queue for up to the configured time. A caller over its own
+ * limit, a full queue or an expired wait are rejected with {@link AdmissionRejectedException}, which the API turns into
+ * a 429 with a Retry-After header. The caller's limit is checked again once a queued request gets its slot, as the
+ * caller's other requests may have been admitted while it waited.
+ *
+ * Limits are read from system properties of the webserver JVM:
+ * idt.admission.maxInFlightPerFlow, idt.admission.maxInFlightPerCaller, idt.admission.maxQueued,
+ * idt.admission.maxWaitMillis and idt.admission.retryAfterSeconds.
+ */
+public class FlowAdmissionController {
+    private final int maxInFlightPerFlow;
+    private final int maxInFlightPerCaller;
+    private final int maxQueued;
+    private final long maxWaitMillis;
+    private final int retryAfterSeconds;
+
+    private final Map<String, Integer> inFlightByFlow = new HashMap<>();
+    private final Map<String, Integer> inFlightByCaller = new HashMap<>();
+    private int queued;
+
+    // Metrics, guarded by this.
+    private long admitted;
+    private long rejectedCaller;
+    private long rejectedQueueFull;
+    private long rejectedTimeout;
+    private long waited;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    public FlowAdmissionController() {
+        this(Integer.getInteger("idt.admission.maxInFlightPerFlow", 16),
+                Integer.getInteger("idt.admission.maxInFlightPerCaller", 4),
+                Integer.getInteger("idt.admission.maxQueued", 64),
+                Long.getLong("idt.admission.maxWaitMillis", 2_000L),
+                Integer.getInteger("idt.admission.retryAfterSeconds", 1));
+    }
+
+    public FlowAdmissionController(int maxInFlightPerFlow, int maxInFlightPerCaller, int maxQueued, long maxWaitMillis, int retryAfterSeconds) {
+        this.maxInFlightPerFlow = maxInFlightPerFlow;
+        this.maxInFlightPerCaller = maxInFlightPerCaller;
+        this.maxQueued = maxQueued;
+        this.maxWaitMillis = maxWaitMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * The most flows one caller may have in flight at once.
+     */
+    public int getMaxInFlightPerCaller() {
+        return maxInFlightPerCaller;
+    }
+
+    /**
+     * Admits a flow of the given type for the given caller, waiting in the queue if needed. The returned permit must be
+     * closed once the flow has finished.
+     */
+    public synchronized Permit admit(String flowType, String caller) throws AdmissionRejectedException, InterruptedException {
+        checkCaller(caller);
+        if (count(inFlightByFlow, flowType) < maxInFlightPerFlow) {
+            return grant(flowType, caller);
+        }
+        if (queued >= maxQueued) {
+            rejectedQueueFull++;
+            throw new AdmissionRejectedException(String.format("Too many %s requests queued.", flowType), retryAfterSeconds);
+        }
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        queued++;
+        try {
+            while (count(inFlightByFlow, flowType) >= maxInFlightPerFlow) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    rejectedTimeout++;
+                    throw new AdmissionRejectedException(String.format("Timed out waiting for a %s slot.", flowType), retryAfterSeconds);
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        } finally {
+            queued--;
+        }
+        final long waitNanos = System.nanoTime() - start;
+        waited++;
+        totalWaitNanos += waitNanos;
+        maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        checkCaller(caller);
+        return grant(flowType, caller);
+    }
+
+    private void checkCaller(String caller) throws AdmissionRejectedException {
+        if (count(inFlightByCaller, caller) >= maxInFlightPerCaller) {
+            rejectedCaller++;
+            throw new AdmissionRejectedException(String.format("Caller %s already has %d flows in flight.", caller, maxInFlightPerCaller), retryAfterSeconds);
+        }
+    }
+
+    private Permit grant(String flowType, String caller) {
+        inFlightByFlow.merge(flowType, 1, Integer::sum);
+        inFlightByCaller.merge(caller, 1, Integer::sum);
+        admitted++;
+        return new Permit(flowType, caller);
+    }
+
+    private synchronized void release(String flowType, String caller) {
+        decrement(inFlightByFlow, flowType);
+        decrement(inFlightByCaller, caller);
+        notifyAll();
+    }
+
+    private static int count(Map<String, Integer> counts, String key) {
+        return counts.getOrDefault(key, 0);
+    }
+
+    private static void decrement(Map<String, Integer> counts, String key) {
+        counts.computeIfPresent(key, (k, v) -> v > 1 ? v - 1 : null);
+    }
+
+    /**
+     * A snapshot of the admission metrics.
+     */
+    public synchronized Map<String, Object> metrics() {
+        return ImmutableMap.<String, Object>builder()
+                .put("inFlight", ImmutableMap.copyOf(inFlightByFlow))
+                .put("queued", queued)
+                .put("admitted", admitted)
+                .put("rejectedCaller", rejectedCaller)
+                .put("rejectedQueueFull", rejectedQueueFull)
+                .put("rejectedTimeout", rejectedTimeout)
+                .put("queuedRequests", waited)
+                .put("meanQueueWaitMillis", waited == 0 ? 0.0 : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos / waited) / 1000.0)
+                .put("maxQueueWaitMillis", TimeUnit.NANOSECONDS.toMicros(maxWaitNanos) / 1000.0)
+                .build();
+    }
+
+    /**
+     * An in-flight slot, released when closed.
+     */
+    public class Permit implements AutoCloseable {
+        private final String flowType;
+        private final String caller;
+        private boolean released;
+
+        private Permit(String flowType, String caller) {
+            this.flowType = flowType;
+            this.caller = caller;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(flowType, caller);
+            }
+        }
+    }
+
+    public static class AdmissionRejectedException extends Exception {
+        private final int retryAfterSeconds;
+
+        public AdmissionRejectedException(String message, int retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Orders the flows the web API starts by priority, so a transfer does not wait behind thousands of bulk creates.
+ *
+ * At most maxConcurrent flows run at a time. While there is a free slot and nobody is waiting, a flow starts straight
+ * away and its priority is never computed. Otherwise it waits in the queue of its priority, and each free slot goes
+ * to the queue with the lowest pass (stride scheduling): taking a slot advances a queue's pass by the inverse of its
+ * weight, so under load the classes share the slots in proportion to their weights. A queue that was idle starts at
+ * the current pass rather than with banked credit. A head that has waited longer than agingMillis is served first
+ * whatever its class, so bulk work still makes progress under a steady stream of urgent requests. A flow that waits
+ * longer than maxWaitMillis is rejected like an admission.
+ *
+ * Limits are read from system properties of the webserver JVM: idt.dispatch.maxConcurrent, idt.dispatch.weights
+ * (URGENT,HIGH,NORMAL,BULK), idt.dispatch.agingMillis and idt.dispatch.maxWaitMillis.
+ */
+public class FlowDispatcher {
+    public enum Priority { URGENT, HIGH, NORMAL, BULK }
+
+    private static final long STRIDE = 1L << 20;
+
+    private final int maxConcurrent;
+    private final Map<Priority, Integer> weights;
+    private final long agingNanos;
+    private final long maxWaitMillis;
+    private final int retryAfterSeconds;
+
+    // Guarded by this.
+    private final Map<Priority, ArrayDeque<Waiter>> queues = new EnumMap<>(Priority.class);
+    private final Map<Priority, Long> passes = new EnumMap<>(Priority.class);
+    private long virtualTime;
+    private int waiting;
+    private int running;
+    private final Map<Priority, long[]> stats = new EnumMap<>(Priority.class); // dispatched, aged, total and max wait nanos
+    private long immediate;
+    private long rejected;
+
+    public FlowDispatcher() {
+        this(Integer.getInteger("idt.dispatch.maxConcurrent", 32),
+                parseWeights(System.getProperty("idt.dispatch.weights", "8,4,2,1")),
+                Long.getLong("idt.dispatch.agingMillis", 5_000L),
+                Long.getLong("idt.dispatch.maxWaitMillis", 30_000L),
+                Integer.getInteger("idt.admission.retryAfterSeconds", 1));
+    }
+
+    public FlowDispatcher(int maxConcurrent, Map<Priority, Integer> weights, long agingMillis, long maxWaitMillis, int retryAfterSeconds) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be positive.");
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.weights = new EnumMap<>(weights);
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMillis);
+        this.maxWaitMillis = maxWaitMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+        for (Priority priority : Priority.values()) {
+            if (this.weights.getOrDefault(priority, 0) < 1) {
+                throw new IllegalArgumentException("Priority " + priority + " needs a positive weight.");
+            }
+            queues.put(priority, new ArrayDeque<>());
+            passes.put(priority, 0L);
+            stats.put(priority, new long[4]);
+        }
+    }
+
+    /**
+     * Parses weights given in the order of {@link Priority}, e.g. "8,4,2,1".
+     */
+    public static Map<Priority, Integer> parseWeights(String weights) {
+        final String[] parts = weights.split(",");
+        if (parts.length != Priority.values().length) {
+            throw new IllegalArgumentException("idt.dispatch.weights needs one weight per priority: " + weights);
+        }
+        final Map<Priority, Integer> result = new EnumMap<>(Priority.class);
+        for (Priority priority : Priority.values()) {
+            result.put(priority, Integer.parseInt(parts[priority.ordinal()].trim()));
+        }
+        return result;
+    }
+
+    /**
+     * Waits for a slot. The priority is only asked for when the flow has to queue. The returned slot must be closed
+     * once the flow has finished.
+     */
+    public Slot acquire(Supplier<Priority> priority) throws FlowAdmissionController.AdmissionRejectedException, InterruptedException {
+        synchronized (this) {
+            if (running < maxConcurrent && waiting == 0) {
+                running++;
+                immediate++;
+                return new Slot();
+            }
+        }
+        // Computed outside the lock, as it may look the diamond up.
+        final Waiter waiter = new Waiter(priority.get());
+        synchronized (this) {
+            final ArrayDeque<Waiter> queue = queues.get(waiter.priority);
+            if (queue.isEmpty()) {
+                passes.put(waiter.priority, Math.max(passes.get(waiter.priority), virtualTime));
+            }
+            queue.addLast(waiter);
+            waiting++;
+            dispatch();
+            final long deadline = waiter.enqueued + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            try {
+                while (!waiter.granted) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        queue.remove(waiter);
+                        waiting--;
+                        rejected++;
+                        throw new FlowAdmissionController.AdmissionRejectedException(
+                                String.format("Timed out waiting for a %s flow slot.", waiter.priority), retryAfterSeconds);
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } catch (InterruptedException ex) {
+                if (waiter.granted) {
+                    release();
+                } else {
+                    queue.remove(waiter);
+                    waiting--;
+                }
+                throw ex;
+            }
+            return new Slot();
+        }
+    }
+
+    private synchronized void release() {
+        running--;
+        dispatch();
+    }
+
+    /**
+     * Hands the free slots to waiters. Called with the lock held.
+     */
+    private void dispatch() {
+        boolean granted = false;
+        while (running < maxConcurrent) {
+            final Waiter next = next();
+            if (next == null) {
+                break;
+            }
+            next.granted = true;
+            waiting--;
+            running++;
+            granted = true;
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    private Waiter next() {
+        final long now = System.nanoTime();
+        Priority chosen = null;
+        boolean aged = false;
+        for (Priority priority : Priority.values()) {
+            final Waiter head = queues.get(priority).peekFirst();
+            if (head != null && now - head.enqueued >= agingNanos
+                    && (chosen == null || head.enqueued < queues.get(chosen).peekFirst().enqueued)) {
+                chosen = priority;
+                aged = true;
+            }
+        }
+        if (chosen == null) {
+            for (Priority priority : Priority.values()) {
+                if (!queues.get(priority).isEmpty() && (chosen == null || passes.get(priority) < passes.get(chosen))) {
+                    chosen = priority;
+                }
+            }
+        }
+        if (chosen == null) {
+            return null;
+        }
+        final long pass = passes.get(chosen);
+        virtualTime = Math.max(virtualTime, pass);
+        passes.put(chosen, pass + STRIDE / weights.get(chosen));
+        final Waiter waiter = queues.get(chosen).pollFirst();
+        final long waitNanos = now - waiter.enqueued;
+        final long[] counts = stats.get(chosen);
+        counts[0]++;
+        if (aged) {
+            counts[1]++;
+        }
+        counts[2] += waitNanos;
+        counts[3] = Math.max(counts[3], waitNanos);
+        return waiter;
+    }
+
+    /**
+     * A snapshot of the dispatch metrics.
+     */
+    public synchronized Map<String, Object> metrics() {
+        final Map<String, Object> byPriority = new LinkedHashMap<>();
+        for (Priority priority : Priority.values()) {
+            final long[] counts = stats.get(priority);
+            byPriority.put(priority.name(), ImmutableMap.of(
+                    "queued", queues.get(priority).size(),
+                    "dispatched", counts[0],
+                    "aged", counts[1],
+                    "meanWaitMillis", counts[0] == 0 ? 0.0 : TimeUnit.NANOSECONDS.toMicros(counts[2] / counts[0]) / 1000.0,
+                    "maxWaitMillis", TimeUnit.NANOSECONDS.toMicros(counts[3]) / 1000.0));
+        }
+        return ImmutableMap.of(
+                "running", running,
+                "maxConcurrent", maxConcurrent,
+                "startedImmediately", immediate,
+                "rejectedTimeout", rejected,
+                "priorities", byPriority);
+    }
+
+    private static final class Waiter {
+        private final Priority priority;
+        private final long enqueued = System.nanoTime();
+        private boolean granted;
+
+        private Waiter(Priority priority) {
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * A running flow's slot, released when closed.
+     */
+    public class Slot implements AutoCloseable {
+        private boolean released;
+
+        private Slot() {
+        }
+
+        @Override
+        public void close() {
+            synchronized (FlowDispatcher.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            release();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.idt;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fans the progress of the flows started by the web API out to any number of Server-Sent Events subscribers.
+ *
+ * Each flow's progress observable is subscribed to exactly once, when the flow is started. Its step changes, including
+ * those of the CollectSignaturesFlow and FinalityFlow child trackers, are recorded and pushed to every subscriber; a
+ * late subscriber first gets the steps it missed. Finished flows stay available for idt.sse.retainMinutes.
+ */
+public class FlowProgressHub {
+    private static final Logger logger = LoggerFactory.getLogger(FlowProgressHub.class);
+    private static final int SINK_CAPACITY = 256;
+
+    private final Cache<String, Channel> channels = CacheBuilder.newBuilder()
+            .maximumSize(Long.getLong("idt.sse.retainedFlows", 10_000L))
+            .expireAfterAccess(Long.getLong("idt.sse.retainMinutes", 10L), TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * Starts recording the progress of a flow. Must be called before the flow's result is published.
+     */
+    public void track(String flowId, Observable<String> progress) {
+        final Channel channel = new Channel();
+        channels.put(flowId, channel);
+        if (progress != null) {
+            progress.subscribe(channel::step, error -> logger.warn("Progress feed of flow {} failed", flowId, error));
+        }
+    }
+
+    /**
+     * Publishes the final result of a flow, or its error, and closes the subscriptions.
+     */
+    public void finish(String flowId, String event, String data) {
+        final Channel channel = channels.getIfPresent(flowId);
+        if (channel != null) {
+            channel.finish(event, data);
+        }
+    }
+
+    /**
+     * Opens an event stream for the flow, or returns null when the flow is unknown.
+     */
+    public SseSink subscribe(String flowId) {
+        final Channel channel = channels.getIfPresent(flowId);
+        if (channel == null) {
+            return null;
+        }
+        final SseSink sink = new SseSink(SINK_CAPACITY);
+        channel.subscribe(sink);
+        return sink;
+    }
+
+    private static class Channel {
+        private final List<String> steps = new ArrayList<>();
+        private final List<SseSink> sinks = new ArrayList<>();
+        private String[] result;
+
+        synchronized void step(String step) {
+            steps.add(step);
+            sinks.removeIf(SseSink::isClosed);
+            for (SseSink sink : sinks) {
+                sink.send("step", step);
+            }
+        }
+
+        synchronized void finish(String event, String data) {
+            result = new String[]{event, data};
+            for (SseSink sink : sinks) {
+                sink.send(event, data);
+                sink.close();
+            }
+            sinks.clear();
+        }
+
+        synchronized void subscribe(SseSink sink) {
+            for (String step : steps) {
+                sink.send("step", step);
+            }
+            if (result != null) {
+                sink.send(result[0], result[1]);
+                sink.close();
+            } else {
+                sinks.add(sink);
+            }
+        }
+    }
+}
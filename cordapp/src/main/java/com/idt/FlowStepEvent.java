@@ -0,0 +1,32 @@
+package com.idt;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The time a diamond flow spent in one step of its progress tracker.
+ */
+@Name("com.idt.FlowStep")
+@Label("Diamond Flow Step")
+@Category({"IDT", "Flow"})
+@Description("One ProgressTracker step of a diamond flow, from entering the step until the next one")
+@StackTrace(false)
+public class FlowStepEvent extends Event {
+    @Label("Flow Id")
+    @Description("The run id of the flow, as returned by the API")
+    public String flowId;
+
+    @Label("Flow")
+    public String flow;
+
+    @Label("Step")
+    public String step;
+
+    @Label("Linear Id")
+    @Description("The external id of the diamond, or the comma-separated ids when the flow handles several")
+    public String linearId;
+}
@@ -0,0 +1,73 @@
+package com.idt;
+
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.utilities.ProgressTracker;
+
+/**
+ * Emits a {@link FlowStepEvent} for each step a flow's progress tracker goes through.
+ *
+ * The events are driven by the tracker's change feed, so the flows only need to call {@link #track} once when they
+ * start. The feed is not checkpointed: a flow restored after a node restart records no further steps.
+ */
+public final class FlowStepEvents {
+    private FlowStepEvents() {
+    }
+
+    /**
+     * Records the steps of the flow's own tracker, tagged with the diamond it works on. Child trackers, such as that of
+     * CollectSignaturesFlow, are accounted to the parent step they run in.
+     */
+    public static void track(FlowLogic<?> flow, ProgressTracker tracker, String linearId) {
+        if (!JfrEvents.ENABLED || tracker == null) {
+            return;
+        }
+        final Class<?> flowClass = flow.getClass();
+        final String flowName = flowClass.getEnclosingClass() != null
+                ? flowClass.getEnclosingClass().getSimpleName() + "." + flowClass.getSimpleName()
+                : flowClass.getSimpleName();
+        final Steps steps = new Steps(flow.getRunId().getUuid().toString(), flowName, linearId);
+        tracker.getChanges().subscribe(change -> {
+            if (change instanceof ProgressTracker.Change.Position && change.getProgressTracker() == tracker) {
+                steps.enter(((ProgressTracker.Change.Position) change).getNewStep());
+            }
+        }, error -> steps.close(), steps::close);
+    }
+
+    private static final class Steps {
+        private final String flowId;
+        private final String flow;
+        private final String linearId;
+        private FlowStepEvent current;
+
+        Steps(String flowId, String flow, String linearId) {
+            this.flowId = flowId;
+            this.flow = flow;
+            this.linearId = linearId;
+        }
+
+        synchronized void enter(ProgressTracker.Step step) {
+            close();
+            if (step instanceof ProgressTracker.DONE || step instanceof ProgressTracker.UNSTARTED) {
+                return;
+            }
+            final FlowStepEvent event = new FlowStepEvent();
+            event.flowId = flowId;
+            event.flow = flow;
+            event.step = step.getLabel();
+            event.linearId = linearId;
+            event.begin();
+            current = event;
+        }
+
+        synchronized void close() {
+            if (current == null) {
+                return;
+            }
+            current.end();
+            if (current.shouldCommit()) {
+                current.commit();
+            }
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.idt;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses API responses for clients that send "Accept-Encoding: gzip".
+ *
+ * Disabled unless the webserver is started with -Didt.api.gzip=true, since the CPU cost only pays off for the larger
+ * list responses and for clients on slow links. Server-Sent Events streams are never compressed: the compressor would
+ * hold their small event writes back instead of delivering each event as it happens.
+ */
+@Provider
+public class GzipWriterInterceptor implements WriterInterceptor {
+    private static final boolean ENABLED = Boolean.getBoolean("idt.api.gzip");
+    private static final MediaType EVENT_STREAM = MediaType.valueOf("text/event-stream");
+
+    @Context
+    private HttpHeaders requestHeaders;
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+        if (!ENABLED || isEventStream(context.getMediaType()) || !acceptsGzip()) {
+            context.proceed();
+            return;
+        }
+        context.getHeaders().putSingle(HttpHeaders.CONTENT_ENCODING, "gzip");
+        context.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        final GZIPOutputStream gzip = new GZIPOutputStream(context.getOutputStream());
+        context.setOutputStream(gzip);
+        try {
+            context.proceed();
+        } finally {
+            gzip.finish();
+        }
+    }
+
+    private static boolean isEventStream(MediaType mediaType) {
+        return mediaType != null && EVENT_STREAM.isCompatible(mediaType);
+    }
+
+    private boolean acceptsGzip() {
+        final List<String> encodings = requestHeaders.getRequestHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (encodings == null) {
+            return false;
+        }
+        for (String encoding : encodings) {
+            if (encoding.toLowerCase().contains("gzip")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
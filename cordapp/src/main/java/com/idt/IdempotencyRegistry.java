@@ -0,0 +1,60 @@
+package com.idt;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import net.corda.core.transactions.SignedTransaction;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the flows the web API has started per operation and external id, so that a client retrying a request after
+ * a timeout attaches to the original flow, or gets its result, instead of starting a second one.
+ *
+ * Entries are kept for idt.api.idempotencyMinutes (15 by default). Failed flows are forgotten straight away so that a
+ * retry can try again.
+ */
+public class IdempotencyRegistry {
+    private final Cache<String, Entry> flows = CacheBuilder.newBuilder()
+            .maximumSize(Long.getLong("idt.api.idempotencyEntries", 100_000L))
+            .expireAfterWrite(Long.getLong("idt.api.idempotencyMinutes", 15L), TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * Registers the caller's entry for the key. Returns the entry of an earlier flow to attach to, or null when the
+     * caller's entry was registered and the caller must now start the flow and complete it.
+     */
+    public Entry register(String key, Entry entry) {
+        return flows.asMap().putIfAbsent(key, entry);
+    }
+
+    /**
+     * Drops the caller's entry after its flow failed, so that the next retry starts a new flow.
+     */
+    public void forget(String key, Entry entry) {
+        flows.asMap().remove(key, entry);
+    }
+
+    /**
+     * A flow started for an idempotency key.
+     */
+    public static class Entry {
+        private final CompletableFuture<SignedTransaction> result = new CompletableFuture<>();
+        private volatile String flowId;
+
+        public CompletableFuture<SignedTransaction> getResult() {
+            return result;
+        }
+
+        /**
+         * The id of the flow, or null while it is still being started.
+         */
+        public String getFlowId() {
+            return flowId;
+        }
+
+        public void setFlowId(String flowId) {
+            this.flowId = flowId;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+/**
+ * A Merkle tree over a set of diamonds, each identified by its linear id and the StateRef of its current version.
+ *
+ * Diamonds are bucketed by the hash of their linear id into FANOUT^depth leaves. A leaf digest is the XOR of the hashes
+ * of its entries, so it does not depend on the order in which the vault returns them, and every inner node is the hash
+ * of its FANOUT children. Two nodes holding the same set have the same root; when they differ, comparing children top
+ * down leads to the mismatching leaves while touching only FANOUT digests per mismatching node on the way.
+ */
+public class InventoryDigest {
+    public static final int FANOUT = 16;
+    public static final int DEFAULT_DEPTH = Integer.getInteger("idt.reconcile.depth", 3);
+    private static final int PAGE_SIZE = Integer.getInteger("idt.reconcile.pageSize", 5_000);
+    private static final byte[] EMPTY = new byte[32];
+
+    private final int depth;
+    private final byte[][] leaves;
+    // levels[0] is the root, levels[depth] the leaves.
+    private final SecureHash[][] levels;
+    private int size;
+
+    public InventoryDigest(int depth) {
+        if (depth < 1 || depth > 5) {
+            throw new IllegalArgumentException("Depth must be between 1 and 5.");
+        }
+        this.depth = depth;
+        this.leaves = new byte[pow(depth)][];
+        this.levels = new SecureHash[depth + 1][];
+    }
+
+    /**
+     * Builds the digest of the unconsumed diamonds we share with the counterparty.
+     */
+    public static InventoryDigest of(ServiceHub serviceHub, Party counterparty, int depth) {
+        final InventoryDigest digest = new InventoryDigest(depth);
+        forEachShared(serviceHub, counterparty, digest::add);
+        return digest.seal();
+    }
+
+    /**
+     * Visits, page by page, the unconsumed diamonds of which both we and the counterparty are participants.
+     */
+    public static void forEachShared(ServiceHub serviceHub, Party counterparty, BiConsumer<UUID, StateRef> visitor) {
+        final QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, ImmutableSet.of(DiamondAssetState.class));
+        final Sort sort = new Sort(ImmutableSet.of(new Sort.SortColumn(
+                new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME), Sort.Direction.ASC)));
+        for (int page = 1; ; page++) {
+            final Vault.Page<DiamondAssetState> results = serviceHub.getVaultService().queryBy(DiamondAssetState.class,
+                    criteria, new PageSpecification(page, PAGE_SIZE), sort);
+            for (StateAndRef<DiamondAssetState> stateAndRef : results.getStates()) {
+                final DiamondAssetState diamond = stateAndRef.getState().getData();
+                if (diamond.getParticipants().contains(counterparty)) {
+                    visitor.accept(diamond.getLinearId().getId(), stateAndRef.getRef());
+                }
+            }
+            if ((long) page * PAGE_SIZE >= results.getTotalStatesAvailable()) {
+                return;
+            }
+        }
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The leaf a diamond falls into.
+     */
+    public int bucketOf(UUID linearId) {
+        final byte[] hash = SecureHash.sha256(linearId.toString()).getBytes();
+        final int bits = 4 * depth;
+        final int prefix = ((hash[0] & 0xff) << 16) | ((hash[1] & 0xff) << 8) | (hash[2] & 0xff);
+        return prefix >>> (24 - bits);
+    }
+
+    public void add(UUID linearId, StateRef ref) {
+        if (levels[0] != null) {
+            throw new IllegalStateException("The digest is sealed.");
+        }
+        final int bucket = bucketOf(linearId);
+        final byte[] entry = SecureHash.sha256(linearId + "|" + ref).getBytes();
+        if (leaves[bucket] == null) {
+            leaves[bucket] = new byte[32];
+        }
+        for (int i = 0; i < 32; i++) {
+            leaves[bucket][i] ^= entry[i];
+        }
+        size++;
+    }
+
+    /**
+     * Computes the inner nodes. No entries can be added afterwards.
+     */
+    public InventoryDigest seal() {
+        final SecureHash[] leafLevel = new SecureHash[leaves.length];
+        for (int i = 0; i < leaves.length; i++) {
+            leafLevel[i] = new SecureHash.SHA256(leaves[i] != null ? leaves[i] : EMPTY);
+        }
+        levels[depth] = leafLevel;
+        for (int level = depth - 1; level >= 0; level--) {
+            final SecureHash[] below = levels[level + 1];
+            final SecureHash[] nodes = new SecureHash[below.length / FANOUT];
+            for (int i = 0; i < nodes.length; i++) {
+                final byte[] children = new byte[32 * FANOUT];
+                for (int child = 0; child < FANOUT; child++) {
+                    System.arraycopy(below[i * FANOUT + child].getBytes(), 0, children, 32 * child, 32);
+                }
+                nodes[i] = SecureHash.sha256(children);
+            }
+            levels[level] = nodes;
+        }
+        return this;
+    }
+
+    public SecureHash getRoot() {
+        return digest(0, 0);
+    }
+
+    public SecureHash digest(int level, int index) {
+        if (levels[0] == null) {
+            throw new IllegalStateException("The digest is not sealed.");
+        }
+        return levels[level][index];
+    }
+
+    /**
+     * The indexes, one level down, of the children of the given nodes.
+     */
+    public static List<Integer> children(List<Integer> nodes) {
+        final List<Integer> children = new ArrayList<>(nodes.size() * FANOUT);
+        for (int node : nodes) {
+            for (int child = 0; child < FANOUT; child++) {
+                children.add(node * FANOUT + child);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * The subset of the given nodes at which the other side's digests differ from ours.
+     */
+    public List<Integer> mismatches(int level, List<Integer> nodes, List<SecureHash> theirs) {
+        final List<Integer> mismatches = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (nodes.get(i) < 0 || nodes.get(i) >= levels[level].length) {
+                throw new IllegalArgumentException("No node " + nodes.get(i) + " at level " + level + ".");
+            }
+            if (!digest(level, nodes.get(i)).equals(theirs.get(i))) {
+                mismatches.add(nodes.get(i));
+            }
+        }
+        return mismatches;
+    }
+
+    private static int pow(int depth) {
+        int leaves = 1;
+        for (int i = 0; i < depth; i++) {
+            leaves *= FANOUT;
+        }
+        return leaves;
+    }
+}
@@ -0,0 +1,132 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.functions.Action1;
+import rx.subjects.PublishSubject;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Keeps version counters that advance whenever the node's DiamondAssetStates or its network map change.
+ *
+ * The read endpoints of {@link DiamondChainApi} derive their ETags from these counters, so a poll that finds nothing
+ * changed can be answered without an RPC round trip. The epoch distinguishes counters of different webserver runs.
+ * The vault updates themselves are republished for the live diamond stream.
+ *
+ * A feed that fails or completes is subscribed to again after idt.changes.resubscribeMillis. Changes made while it is
+ * down are not seen, so until it is back every tag of that feed is new, which turns off 304s and cached responses for
+ * it, and the counter is advanced once more when it is back.
+ */
+public class LedgerChangeTracker {
+    private static final Logger logger = LoggerFactory.getLogger(LedgerChangeTracker.class);
+    private static final long RESUBSCRIBE_MILLIS = Long.getLong("idt.changes.resubscribeMillis", 1_000L);
+
+    private final long epoch = System.currentTimeMillis();
+    private final AtomicLong vaultVersion = new AtomicLong();
+    private final AtomicLong networkVersion = new AtomicLong();
+    private final AtomicBoolean vaultLive = new AtomicBoolean();
+    private final AtomicBoolean networkLive = new AtomicBoolean();
+    private final PublishSubject<Vault.Update<DiamondAssetState>> vaultUpdates = PublishSubject.create();
+    private final ScheduledExecutorService resubscriber = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("idt-change-resubscriber").build());
+
+    public LedgerChangeTracker(CordaRPCOps rpcOps) {
+        // Only the updates are of interest, so the snapshot is limited to a single state.
+        final QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL, ImmutableSet.of(DiamondAssetState.class));
+        track("Vault update", () -> rpcOps.vaultTrackBy(criteria, new PageSpecification(DEFAULT_PAGE_NUM, 1),
+                new Sort(Collections.emptySet()), DiamondAssetState.class).getUpdates(),
+                update -> {
+                    vaultVersion.incrementAndGet();
+                    vaultUpdates.onNext(update);
+                }, vaultVersion, vaultLive);
+        track("Network map", () -> rpcOps.networkMapFeed().getUpdates(),
+                change -> networkVersion.incrementAndGet(), networkVersion, networkLive);
+    }
+
+    /**
+     * Subscribes to a feed, and subscribes again after a delay when that fails or the feed ends.
+     */
+    private <T> void track(String name, Supplier<Observable<T>> feed, Action1<T> onUpdate, AtomicLong version, AtomicBoolean live) {
+        final Observable<T> updates;
+        try {
+            updates = feed.get();
+        } catch (RuntimeException ex) {
+            logger.error("Cannot subscribe to the {} feed, retrying in {} ms", name, RESUBSCRIBE_MILLIS, ex);
+            resubscribe(name, feed, onUpdate, version, live);
+            return;
+        }
+        // Tags handed out while the feed was down may hide changes it missed.
+        version.incrementAndGet();
+        live.set(true);
+        updates.subscribe(onUpdate, error -> {
+            logger.error("{} feed failed, resubscribing in {} ms", name, RESUBSCRIBE_MILLIS, error);
+            ended(name, feed, onUpdate, version, live);
+        }, () -> {
+            logger.warn("{} feed completed, resubscribing in {} ms", name, RESUBSCRIBE_MILLIS);
+            ended(name, feed, onUpdate, version, live);
+        });
+    }
+
+    private <T> void ended(String name, Supplier<Observable<T>> feed, Action1<T> onUpdate, AtomicLong version, AtomicBoolean live) {
+        live.set(false);
+        version.incrementAndGet();
+        resubscribe(name, feed, onUpdate, version, live);
+    }
+
+    private <T> void resubscribe(String name, Supplier<Observable<T>> feed, Action1<T> onUpdate, AtomicLong version, AtomicBoolean live) {
+        resubscriber.schedule(() -> track(name, feed, onUpdate, version, live), RESUBSCRIBE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The DiamondAssetState vault updates, shared by every consumer in the webserver over the single RPC feed.
+     */
+    public Observable<Vault.Update<DiamondAssetState>> getVaultUpdates() {
+        return vaultUpdates;
+    }
+
+    public long getVaultVersion() {
+        return vaultVersion.get();
+    }
+
+    public long getNetworkVersion() {
+        return networkVersion.get();
+    }
+
+    /**
+     * Strong entity tag value for a resource that depends on the vault.
+     */
+    public String vaultTag(String resource) {
+        return String.format("%s-%x-v%d", resource, epoch, current(vaultVersion, vaultLive));
+    }
+
+    /**
+     * Strong entity tag value for a resource that depends on the network map.
+     */
+    public String networkTag(String resource) {
+        return String.format("%s-%x-n%d", resource, epoch, current(networkVersion, networkLive));
+    }
+
+    /**
+     * The version a tag is made from: the counter while its feed is live, a new value on every call while it is down.
+     */
+    private static long current(AtomicLong version, AtomicBoolean live) {
+        return live.get() ? version.get() : version.incrementAndGet();
+    }
+}
@@ -0,0 +1,76 @@
+package com.idt;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Loads the independent sections of a composite response concurrently, e.g. the vault queries and network map lookups
+ * of the dashboard, so the response takes as long as its slowest section rather than the sum of them.
+ *
+ * All sections share one deadline. A section that fails, is still running at the deadline or finds the executor full
+ * is left out of the sections and reported under failed with the reason, so the caller still gets the others.
+ */
+public class ParallelSections {
+    private final Map<String, Callable<?>> loaders = new LinkedHashMap<>();
+
+    public ParallelSections add(String name, Callable<?> loader) {
+        loaders.put(name, loader);
+        return this;
+    }
+
+    /**
+     * The loaded sections, their load times and the sections that could not be loaded.
+     */
+    public static class Result {
+        private final Map<String, Object> sections = new LinkedHashMap<>();
+        private final Map<String, String> failed = new LinkedHashMap<>();
+        private final Map<String, Long> millis = new LinkedHashMap<>();
+
+        public Map<String, Object> getSections() { return sections; }
+        public Map<String, String> getFailed() { return failed; }
+        public Map<String, Long> getMillis() { return millis; }
+    }
+
+    public Result load(ExecutorService executor, long timeoutMillis) throws InterruptedException {
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        final Map<String, Future<?>> futures = new LinkedHashMap<>();
+        final Map<String, Long> finished = new ConcurrentHashMap<>();
+        final Result result = new Result();
+        for (Map.Entry<String, Callable<?>> loader : loaders.entrySet()) {
+            try {
+                futures.put(loader.getKey(), executor.submit(() -> {
+                    try {
+                        return loader.getValue().call();
+                    } finally {
+                        finished.put(loader.getKey(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    }
+                }));
+            } catch (RejectedExecutionException ex) {
+                result.failed.put(loader.getKey(), "busy");
+            }
+        }
+        for (Map.Entry<String, Future<?>> future : futures.entrySet()) {
+            final String name = future.getKey();
+            try {
+                result.sections.put(name, future.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                result.millis.put(name, finished.get(name));
+            } catch (TimeoutException ex) {
+                future.getValue().cancel(true);
+                result.failed.put(name, "timed out after " + timeoutMillis + " ms");
+            } catch (ExecutionException ex) {
+                result.failed.put(name, String.valueOf(ex.getCause().getMessage()));
+                result.millis.put(name, finished.get(name));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,115 @@
+package com.idt;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.FlowSession;
+import net.corda.core.flows.UnexpectedFlowEndException;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collects the counterparties' signatures in one round: the transaction goes out on every session before any reply is
+ * awaited, so the signers check and sign it concurrently and the round takes about as long as the slowest of them.
+ * CollectSignaturesFlow asks one session after the other.
+ *
+ * A counterparty may refuse. That is fine as long as the signatures received still fulfil every required key, e.g. a
+ * k-of-n composite key of approvers; otherwise the flow fails with the keys that are missing. The counterparties must
+ * already hold the transaction's dependencies, as the participants of its input states do, since nothing is resolved.
+ */
+public class ParallelSignaturesFlow extends FlowLogic<SignedTransaction> {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelSignaturesFlow.class);
+
+    private final SignedTransaction partSignedTx;
+    private final List<FlowSession> sessions;
+
+    public ParallelSignaturesFlow(SignedTransaction partSignedTx, List<FlowSession> sessions) {
+        this.partSignedTx = partSignedTx;
+        this.sessions = sessions;
+    }
+
+    @Suspendable
+    @Override
+    public SignedTransaction call() throws FlowException {
+        for (FlowSession session : sessions) {
+            session.send(partSignedTx);
+        }
+        final SecureHash txId = partSignedTx.getId();
+        final List<TransactionSignature> signatures = new ArrayList<>();
+        for (FlowSession session : sessions) {
+            try {
+                signatures.addAll(session.receive(List.class).unwrap(received -> {
+                    final List<TransactionSignature> valid = new ArrayList<>();
+                    for (Object item : received) {
+                        final TransactionSignature signature = (TransactionSignature) item;
+                        if (!session.getCounterparty().getOwningKey().equals(signature.getBy())) {
+                            throw new IllegalArgumentException("Signature not made by " + session.getCounterparty());
+                        }
+                        try {
+                            signature.verify(txId);
+                        } catch (SignatureException ex) {
+                            throw new IllegalArgumentException("Invalid signature from " + session.getCounterparty(), ex);
+                        }
+                        valid.add(signature);
+                    }
+                    return valid;
+                }));
+            } catch (FlowException | UnexpectedFlowEndException ex) {
+                logger.info("{} did not sign {}: {}", session.getCounterparty().getName(), txId, ex.getMessage());
+            }
+        }
+        final SignedTransaction signedTx = partSignedTx.withAdditionalSignatures(signatures);
+        final Set<PublicKey> missing = new HashSet<>(signedTx.getMissingSigners());
+        missing.remove(partSignedTx.getTx().getNotary().getOwningKey());
+        if (!missing.isEmpty()) {
+            throw new FlowException("Not enough signatures were collected for " + txId + ", missing " + missing);
+        }
+        return signedTx;
+    }
+
+    /**
+     * The counterpart of {@link ParallelSignaturesFlow}: checks the transaction and, unless the check throws, returns
+     * a signature with our legal identity key.
+     */
+    public abstract static class Signer extends FlowLogic<SignedTransaction> {
+        private final FlowSession otherSideSession;
+
+        protected Signer(FlowSession otherSideSession) {
+            this.otherSideSession = otherSideSession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            final SignedTransaction stx = otherSideSession.receive(SignedTransaction.class).unwrap(received -> received);
+            final LedgerTransaction ltx;
+            try {
+                stx.checkSignaturesAreValid();
+                ltx = stx.toLedgerTransaction(getServiceHub(), false);
+                ltx.verify();
+            } catch (Exception ex) {
+                throw new FlowException("The transaction to sign cannot be verified: " + ex.getMessage(), ex);
+            }
+            checkTransaction(stx, ltx);
+            otherSideSession.send(ImmutableList.of(getServiceHub().createSignature(stx)));
+            return stx;
+        }
+
+        /**
+         * Throws when we should not sign the transaction.
+         */
+        protected abstract void checkTransaction(SignedTransaction stx, LedgerTransaction ltx) throws FlowException;
+    }
+}
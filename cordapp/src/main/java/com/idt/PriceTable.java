@@ -0,0 +1,98 @@
+package com.idt;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+/**
+ * Market prices of diamonds per carat, by type and carat band.
+ *
+ * Each line of a table is "type,minCarats,pricePerCarat,percent", e.g. "SIGHT,1.0,6500,8"; blank lines and lines
+ * starting with '#' are skipped. A stone is priced with the band of its type with the largest minCarats not above its
+ * carats: its cost is carats * pricePerCarat and its percent that of the band.
+ */
+public class PriceTable {
+    /**
+     * The price of one stone.
+     */
+    public static class Price {
+        private final double cost;
+        private final float percent;
+
+        public Price(double cost, float percent) {
+            this.cost = cost;
+            this.percent = percent;
+        }
+
+        public double getCost() { return cost; }
+        public float getPercent() { return percent; }
+    }
+
+    private static class Band {
+        private final double pricePerCarat;
+        private final float percent;
+
+        private Band(double pricePerCarat, float percent) {
+            this.pricePerCarat = pricePerCarat;
+            this.percent = percent;
+        }
+    }
+
+    public static final PriceTable EMPTY = new PriceTable(Collections.emptyMap());
+
+    private final Map<DiamondType, TreeMap<Double, Band>> bands;
+
+    private PriceTable(Map<DiamondType, TreeMap<Double, Band>> bands) {
+        this.bands = bands;
+    }
+
+    public static PriceTable parse(Reader reader) throws IOException {
+        final Map<DiamondType, TreeMap<Double, Band>> bands = new EnumMap<>(DiamondType.class);
+        final BufferedReader lines = new BufferedReader(reader);
+        String line;
+        for (int number = 1; (line = lines.readLine()) != null; number++) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final String[] fields = line.split(",");
+            if (fields.length != 4) {
+                throw new IllegalArgumentException("Line " + number + " of the price table does not have 4 fields: " + line);
+            }
+            final double pricePerCarat = Double.parseDouble(fields[2].trim());
+            if (pricePerCarat < 0) {
+                throw new IllegalArgumentException("Line " + number + " of the price table has a negative price: " + line);
+            }
+            bands.computeIfAbsent(DiamondType.valueOf(fields[0].trim()), type -> new TreeMap<>())
+                    .put(Double.parseDouble(fields[1].trim()), new Band(pricePerCarat, Float.parseFloat(fields[3].trim())));
+        }
+        return new PriceTable(bands);
+    }
+
+    public boolean isEmpty() {
+        return bands.isEmpty();
+    }
+
+    /**
+     * The market price of a stone, or null when no band of the table covers it.
+     */
+    public Price priceOf(DiamondType type, double carats) {
+        final TreeMap<Double, Band> typeBands = bands.get(type);
+        if (typeBands == null) {
+            return null;
+        }
+        final Map.Entry<Double, Band> band = typeBands.floorEntry(carats);
+        return band == null ? null : new Price(carats * band.getValue().pricePerCarat, band.getValue().percent);
+    }
+
+    /**
+     * The market price of a lot of the given number of stones, or null when no band covers them. Each stone is priced
+     * at the lot's average carats, so the band is that of a stone rather than of the lot's total carats, and the lot's
+     * percent is the total of its stones', as a merge adds them up.
+     */
+    public Price priceOf(DiamondType type, double carats, int pieces) {
+        final Price stone = priceOf(type, carats / pieces);
+        return stone == null ? null : new Price(stone.getCost() * pieces, stone.getPercent() * pieces);
+    }
+}
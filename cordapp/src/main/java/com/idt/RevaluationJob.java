@@ -0,0 +1,126 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Revalues a book of diamonds in batches of {@link DiamondRevalueFlow}, with at most parallelism flows running at once.
+ *
+ * The batches are disjoint, so concurrent flows never compete for the same states. A failed batch is counted and its
+ * error kept, and the job carries on with the others. {@link #status} reports the progress while the job runs.
+ */
+public class RevaluationJob {
+    private static final Logger logger = LoggerFactory.getLogger(RevaluationJob.class);
+    private static final int MAX_ERRORS = 20;
+
+    /**
+     * Runs the revaluation flow for one batch of external ids.
+     */
+    public interface Starter {
+        DiamondRevalueFlow.Result revalue(List<String> externalIds) throws Exception;
+    }
+
+    public enum State { RUNNING, DONE }
+
+    private final String id;
+    private final List<List<String>> batches;
+    private final int stones;
+    private final ExecutorService executor;
+    private final Starter starter;
+    private final long start = System.nanoTime();
+    private final AtomicInteger batchesDone = new AtomicInteger();
+    private final AtomicInteger batchesFailed = new AtomicInteger();
+    private final AtomicInteger revalued = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final List<String> errors = new CopyOnWriteArrayList<>();
+    private volatile long finishedAt = -1;
+
+    public RevaluationJob(String id, List<String> externalIds, int batchSize, int parallelism, Starter starter) {
+        if (batchSize < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("The batch size and parallelism must be positive.");
+        }
+        this.id = id;
+        this.batches = new ArrayList<>();
+        for (int from = 0; from < externalIds.size(); from += batchSize) {
+            batches.add(new ArrayList<>(externalIds.subList(from, Math.min(from + batchSize, externalIds.size()))));
+        }
+        this.stones = externalIds.size();
+        this.starter = starter;
+        this.executor = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("idt-revalue-" + id + "-%d").build());
+    }
+
+    /**
+     * Submits every batch and returns straight away.
+     */
+    public RevaluationJob start() {
+        final AtomicInteger remaining = new AtomicInteger(batches.size());
+        if (batches.isEmpty()) {
+            finish();
+        }
+        for (List<String> batch : batches) {
+            executor.execute(() -> {
+                try {
+                    final DiamondRevalueFlow.Result result = starter.revalue(batch);
+                    revalued.addAndGet(result.getRevalued());
+                    unchanged.addAndGet(result.getUnchanged());
+                    skipped.addAndGet(result.getSkipped());
+                } catch (Exception ex) {
+                    final Throwable cause = ex instanceof ExecutionException && ex.getCause() != null ? ex.getCause() : ex;
+                    logger.warn("Revaluation job {}: a batch of {} stones failed", id, batch.size(), cause);
+                    batchesFailed.incrementAndGet();
+                    if (errors.size() < MAX_ERRORS) {
+                        errors.add(String.valueOf(cause.getMessage()));
+                    }
+                } finally {
+                    batchesDone.incrementAndGet();
+                    if (remaining.decrementAndGet() == 0) {
+                        finish();
+                    }
+                }
+            });
+        }
+        return this;
+    }
+
+    private void finish() {
+        finishedAt = System.nanoTime();
+        executor.shutdown();
+        logger.info("Revaluation job {} finished: {} revalued, {} unchanged, {} skipped, {} of {} batches failed",
+                id, revalued.get(), unchanged.get(), skipped.get(), batchesFailed.get(), batches.size());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public State getState() {
+        return finishedAt < 0 ? State.RUNNING : State.DONE;
+    }
+
+    public Map<String, Object> status() {
+        final long end = finishedAt < 0 ? System.nanoTime() : finishedAt;
+        return ImmutableMap.<String, Object>builder()
+                .put("id", id)
+                .put("state", getState())
+                .put("stones", stones)
+                .put("batches", batches.size())
+                .put("batchesDone", batchesDone.get())
+                .put("batchesFailed", batchesFailed.get())
+                .put("revalued", revalued.get())
+                .put("unchanged", unchanged.get())
+                .put("skipped", skipped.get())
+                .put("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(end - start))
+                .put("errors", new ArrayList<>(errors))
+                .build();
+    }
+}
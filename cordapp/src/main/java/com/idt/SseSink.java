@@ -0,0 +1,154 @@
+package com.idt;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.glassfish.jersey.server.ChunkedOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One Server-Sent Events client connection.
+ *
+ * Events are queued and written to the client's ChunkedOutput by a small shared writer pool, so neither the RPC
+ * observer threads that produce events nor a request thread per client is held while a client is slow. A client that
+ * falls more than the queue capacity behind loses events instead of growing the queue. The backlog a client starts
+ * from, e.g. a snapshot, is queued ahead of the other events and never dropped; the capacity applies to the events
+ * queued after it.
+ */
+public class SseSink {
+    private static final Logger logger = LoggerFactory.getLogger(SseSink.class);
+    private static final ExecutorService WRITERS = Executors.newFixedThreadPool(Integer.getInteger("idt.sse.writerThreads", 4),
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("idt-sse-writer-%d").build());
+
+    private final ChunkedOutput<String> output;
+    private final Queue<String> backlog = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger backlogCount = new AtomicInteger();
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    private final int capacity;
+    private volatile boolean closeRequested;
+    private volatile boolean closed;
+
+    public SseSink(int capacity) {
+        this(capacity, new ChunkedOutput<>(String.class));
+    }
+
+    SseSink(int capacity, ChunkedOutput<String> output) {
+        this.capacity = capacity;
+        this.output = output;
+    }
+
+    public ChunkedOutput<String> getOutput() {
+        return output;
+    }
+
+    /**
+     * Queues an event for the client. Returns false when the event was dropped because the client is too far behind
+     * or already gone.
+     */
+    public boolean send(String event, String data) {
+        if (isClosed() || closeRequested) {
+            return false;
+        }
+        if (pendingCount.incrementAndGet() > capacity) {
+            pendingCount.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        pending.add(frame(event, data));
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Queues an event of the backlog the client starts from. Backlog events are written before any event queued with
+     * {@link #send} and are never dropped, so the caller must bound them. Returns false when the client is gone.
+     */
+    public boolean sendBacklog(String event, String data) {
+        if (isClosed() || closeRequested) {
+            return false;
+        }
+        backlogCount.incrementAndGet();
+        backlog.add(frame(event, data));
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Closes the connection once the queued events have been written.
+     */
+    public void close() {
+        closeRequested = true;
+        scheduleDrain();
+    }
+
+    public boolean isClosed() {
+        return closed || output.isClosed();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    protected int getPendingCount() {
+        return backlogCount.get() + pendingCount.get();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            WRITERS.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            String frame;
+            while ((frame = backlog.poll()) != null) {
+                backlogCount.decrementAndGet();
+                output.write(frame);
+            }
+            while ((frame = pending.poll()) != null) {
+                pendingCount.decrementAndGet();
+                output.write(frame);
+            }
+            if (closeRequested && !closed) {
+                closed = true;
+                output.close();
+            }
+        } catch (IOException ex) {
+            logger.debug("SSE client went away", ex);
+            closed = true;
+            backlog.clear();
+            backlogCount.set(0);
+            pending.clear();
+            pendingCount.set(0);
+        } finally {
+            draining.set(false);
+        }
+        if (!closed && (!backlog.isEmpty() || !pending.isEmpty() || closeRequested)) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Formats one event in the text/event-stream wire format.
+     */
+    static String frame(String event, String data) {
+        final StringBuilder frame = new StringBuilder();
+        frame.append("event: ").append(event).append('\n');
+        for (String line : data.split("\n", -1)) {
+            frame.append("data: ").append(line).append('\n');
+        }
+        return frame.append('\n').toString();
+    }
+}
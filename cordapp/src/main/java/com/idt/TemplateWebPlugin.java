@@ -13,12 +13,14 @@ import java.util.function.Function;
 
 public class TemplateWebPlugin implements WebServerPluginRegistry {
     /**
-     * A list of classes that expose web APIs.
+     * A list of classes that expose web APIs. JAX-RS providers such as the gzip interceptor and the JFR request filter
+     * are registered here too.
      */
     @NotNull
     @Override
     public List<Function<CordaRPCOps, ?>> getWebApis() {
-        return ImmutableList.of(DiamondChainApi::new);
+        return ImmutableList.of(DiamondChainApi::new, rpcOps -> new GzipWriterInterceptor(),
+                rpcOps -> new ApiEventFilter());
     }
 
     /**
@@ -35,6 +37,6 @@ public class TemplateWebPlugin implements WebServerPluginRegistry {
 
     @Override
     public void customizeJSONSerialization(ObjectMapper objectMapper) {
-
+        objectMapper.registerModule(new DiamondJsonModule());
     }
 }
\ No newline at end of file
@@ -0,0 +1,70 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.identity.CordaX500Name;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ApproverPoolTest {
+    private static final CordaX500Name B = CordaX500Name.parse("O=PartyB,L=New York,C=US");
+    private static final CordaX500Name D = CordaX500Name.parse("O=ApproverD,L=Antwerp,C=BE");
+    private static final CordaX500Name E = CordaX500Name.parse("O=ApproverE,L=Dubai,C=AE");
+    private static final int STONES = 30_000;
+
+    private static List<UUID> stones() {
+        final Random random = new Random(42);
+        final List<UUID> stones = new ArrayList<>(STONES);
+        for (int i = 0; i < STONES; i++) {
+            stones.add(new UUID(random.nextLong(), random.nextLong()));
+        }
+        return stones;
+    }
+
+    @Test
+    public void parsesNamesAndWeights() {
+        ApproverPool pool = ApproverPool.parse("O=PartyB,L=New York,C=US; O=ApproverE,L=Dubai,C=AE@3");
+        assertEquals(ImmutableMap.of(B, 1, E, 3), pool.getWeights());
+        assertTrue(ApproverPool.parse(null).isEmpty());
+    }
+
+    @Test
+    public void sharesFollowTheWeights() {
+        ApproverPool pool = new ApproverPool(ImmutableMap.of(B, 1, D, 1, E, 2));
+        final Map<CordaX500Name, Integer> counts = new HashMap<>();
+        for (UUID stone : stones()) {
+            counts.merge(pool.assign(stone), 1, Integer::sum);
+        }
+        assertEquals(0.25, counts.get(B) / (double) STONES, 0.05);
+        assertEquals(0.25, counts.get(D) / (double) STONES, 0.05);
+        assertEquals(0.50, counts.get(E) / (double) STONES, 0.05);
+    }
+
+    @Test
+    public void addingAnApproverOnlyMovesStonesToIt() {
+        ApproverPool before = new ApproverPool(ImmutableMap.of(B, 1, D, 1));
+        ApproverPool after = new ApproverPool(ImmutableMap.of(B, 1, D, 1, E, 1));
+        int moved = 0;
+        for (UUID stone : stones()) {
+            final CordaX500Name previous = before.assign(stone);
+            final CordaX500Name current = after.assign(stone);
+            if (!previous.equals(current)) {
+                assertEquals(E, current);
+                moved++;
+            }
+        }
+        assertEquals(1.0 / 3, moved / (double) STONES, 0.05);
+    }
+
+    @Test
+    public void neverAssignsTheExcludedParty() {
+        ApproverPool pool = new ApproverPool(ImmutableMap.of(B, 1, D, 1));
+        for (UUID stone : stones().subList(0, 1_000)) {
+            assertNotEquals(B, pool.assign(stone, B));
+        }
+    }
+}
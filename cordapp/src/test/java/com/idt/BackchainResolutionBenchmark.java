@@ -0,0 +1,91 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.StartedMockNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures how long a fresh owner takes to accept a diamond that has changed hands idt.bench.hops times, before and
+ * after the diamond is reissued with {@link DiamondReissueFlow}. The receiving node has never seen the diamond, so
+ * the transfer includes resolving and verifying its whole backchain.
+ */
+public class BackchainResolutionBenchmark {
+    private static final int HOPS = Integer.getInteger("idt.bench.hops", 50);
+
+    private MockNetwork network;
+    private StartedMockNode source;
+    private StartedMockNode approver;
+    private StartedMockNode trader;
+    private StartedMockNode firstBuyer;
+    private StartedMockNode secondBuyer;
+
+    @Before
+    public void setup() {
+        network = new MockNetwork(ImmutableList.of("com.idt"));
+        source = network.createNode();
+        approver = network.createNode();
+        trader = network.createNode();
+        firstBuyer = network.createNode();
+        secondBuyer = network.createNode();
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private SignedTransaction run(StartedMockNode node, FlowLogic<SignedTransaction> flow) throws Exception {
+        final CordaFuture<SignedTransaction> future = node.startFlow(flow);
+        network.runNetwork();
+        return future.get();
+    }
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private long timeTransfer(String externalId, StartedMockNode from, StartedMockNode to) throws Exception {
+        final long start = System.nanoTime();
+        run(from, new DiamondTransferFlow.Initiator(externalId, party(to)));
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void reissueShortensResolutionForANewOwner() throws Exception {
+        final String externalId = new UniqueIdentifier().getId().toString();
+        run(source, new DiamondCreateFlow.Initiator(externalId, "Round brilliant", 1.2, 5000, 10, party(approver)));
+        run(approver, new DiamondApproveFlow.Initiator(externalId, true));
+        StartedMockNode owner = source;
+        for (int i = 0; i < HOPS; i++) {
+            final StartedMockNode next = owner == source ? trader : source;
+            run(owner, new DiamondTransferFlow.Initiator(externalId, party(next)));
+            owner = next;
+        }
+
+        final long before = timeTransfer(externalId, owner, firstBuyer);
+        final int chainBefore = firstBuyer.transaction(() -> DiamondReissueFlow.chainLength(firstBuyer.getServices(),
+                firstBuyer.getServices().getVaultService().queryBy(DiamondAssetState.class).getStates().get(0).getRef(), Integer.MAX_VALUE));
+
+        run(firstBuyer, new DiamondReissueFlow.Initiator(externalId, true));
+        final long after = timeTransfer(externalId, firstBuyer, secondBuyer);
+        final int chainAfter = secondBuyer.transaction(() -> DiamondReissueFlow.chainLength(secondBuyer.getServices(),
+                secondBuyer.getServices().getVaultService().queryBy(DiamondAssetState.class).getStates().get(0).getRef(), Integer.MAX_VALUE));
+
+        System.out.println(String.format("hops=%d before: chain=%d %8.1f ms  after reissue: chain=%d %8.1f ms",
+                HOPS, chainBefore, before / 1e6, chainAfter, after / 1e6));
+        assertEquals(2, chainAfter);
+        assertTrue(chainAfter < chainBefore);
+    }
+}
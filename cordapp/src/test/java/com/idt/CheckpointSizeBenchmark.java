@@ -0,0 +1,232 @@
+package com.idt;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.StateAndContract;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.CollectSignaturesFlow;
+import net.corda.core.flows.FinalityFlow;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.FlowSession;
+import net.corda.core.flows.InitiatedBy;
+import net.corda.core.flows.InitiatingFlow;
+import net.corda.core.flows.SignTransactionFlow;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.StartedMockNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.idt.DiamondChainContract.DC_CONTRACT_ID;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the checkpoints written while DiamondCreateFlow, DiamondApproveFlow and DiamondTransferFlow run, by
+ * reading every node's checkpoint table after each round of messages, i.e. at every point where the flows are
+ * suspended waiting for a counterparty.
+ *
+ * It compares the checkpoint bytes of DiamondCreateFlow with those of {@link LegacyCreate}, the layout the flow had
+ * before {@link DiamondFlowBase}, issuing a diamond each way on the same nodes, so both are measured by the same
+ * sampling rather than by their trackers alone.
+ */
+public class CheckpointSizeBenchmark {
+    private MockNetwork network;
+    private StartedMockNode source;
+    private StartedMockNode approver;
+    private StartedMockNode buyer;
+
+    @Before
+    public void setup() {
+        network = new MockNetwork(ImmutableList.of("com.idt"));
+        source = network.createNode();
+        approver = network.createNode();
+        buyer = network.createNode();
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    /**
+     * DiamondCreateFlow as it was before DiamondFlowBase: per-instance steps whose child trackers are built up front,
+     * and the builder, state and signers held in the frame that suspends.
+     */
+    @InitiatingFlow
+    public static class LegacyCreate extends FlowLogic<SignedTransaction> {
+        private final UniqueIdentifier linearId;
+        private final DiamondType diamondType;
+        private final String description;
+        private final double carats;
+        private final double cost;
+        private final float percent;
+        private final Party approver;
+        private final ProgressTracker.Step GENERATING_TRANSACTION = new ProgressTracker.Step("Generating transaction based on new DiamondAsset.");
+        private final ProgressTracker.Step VERIFYING_TRANSACTION = new ProgressTracker.Step("Verifying contract constraints.");
+        private final ProgressTracker.Step SIGNING_TRANSACTION = new ProgressTracker.Step("Signing transaction with our private key.");
+        private final ProgressTracker.Step GATHERING_SIGS = new ProgressTracker.Step("Gathering the counterparty's signature.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return CollectSignaturesFlow.Companion.tracker();
+            }
+        };
+        private final ProgressTracker.Step FINALISING_TRANSACTION = new ProgressTracker.Step("Obtaining notary signature and recording transaction.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return FinalityFlow.Companion.tracker();
+            }
+        };
+        private final ProgressTracker progressTracker = new ProgressTracker(
+                GENERATING_TRANSACTION,
+                VERIFYING_TRANSACTION,
+                SIGNING_TRANSACTION,
+                GATHERING_SIGS,
+                FINALISING_TRANSACTION
+        );
+
+        public LegacyCreate(String externalId, String description, double carats, double cost, float percent, Party approver) {
+            this.linearId = UniqueIdentifier.Companion.fromString(externalId);
+            this.diamondType = DiamondType.SIGHT;
+            this.description = description;
+            this.carats = carats;
+            this.cost = cost;
+            this.percent = percent;
+            this.approver = approver;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            FlowStepEvents.track(this, progressTracker, linearId.toString());
+            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+            progressTracker.setCurrentStep(GENERATING_TRANSACTION);
+            final TransactionBuilder txBuilder = new TransactionBuilder();
+            txBuilder.setNotary(notary);
+            final DiamondAssetState diamondAssetState = new DiamondAssetState(linearId, diamondType, getOurIdentity(),
+                    description, carats, cost, percent, approver);
+            final StateAndContract outputStateAndContract = new StateAndContract(diamondAssetState, DC_CONTRACT_ID);
+            final List<PublicKey> requiredSigners = ImmutableList.of(getOurIdentity().getOwningKey(), approver.getOwningKey());
+            final Command<DiamondChainContract.Commands.Create> createCmd = new Command<>(
+                    new DiamondChainContract.Commands.Create(), requiredSigners);
+            txBuilder.withItems(outputStateAndContract, createCmd);
+            progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
+            txBuilder.verify(getServiceHub());
+            progressTracker.setCurrentStep(SIGNING_TRANSACTION);
+            final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder);
+            progressTracker.setCurrentStep(GATHERING_SIGS);
+            final FlowSession approverPartySession = initiateFlow(approver);
+            final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partSignedTx,
+                    ImmutableList.of(approverPartySession), CollectSignaturesFlow.tracker()));
+            progressTracker.setCurrentStep(FINALISING_TRANSACTION);
+            return subFlow(new FinalityFlow(fullySignedTx));
+        }
+    }
+
+    @InitiatedBy(LegacyCreate.class)
+    public static class LegacyCreateResponder extends FlowLogic<SignedTransaction> {
+        private final FlowSession session;
+
+        public LegacyCreateResponder(FlowSession session) {
+            this.session = session;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            return subFlow(new SignTransactionFlow(session, SignTransactionFlow.Companion.tracker()) {
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                }
+            });
+        }
+    }
+
+    /**
+     * The sizes of the checkpoints that changed since the last sample, across the nodes.
+     */
+    private List<Integer> sampleCheckpoints(Set<String> seen) {
+        final List<Integer> sizes = new ArrayList<>();
+        for (StartedMockNode node : ImmutableList.of(source, approver, buyer)) {
+            node.transaction(() -> {
+                final Connection connection = node.getServices().jdbcSession();
+                try (Statement statement = connection.createStatement();
+                     ResultSet rows = statement.executeQuery("SELECT checkpoint_id, checkpoint_value FROM node_checkpoints")) {
+                    while (rows.next()) {
+                        final byte[] value = rows.getBytes(2);
+                        if (seen.add(rows.getString(1) + ":" + Arrays.hashCode(value))) {
+                            sizes.add(value.length);
+                        }
+                    }
+                } catch (SQLException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                return null;
+            });
+        }
+        return sizes;
+    }
+
+    private List<Integer> run(StartedMockNode node, FlowLogic<SignedTransaction> flow) throws Exception {
+        final Set<String> seen = new HashSet<>();
+        final CordaFuture<SignedTransaction> future = node.startFlow(flow);
+        final List<Integer> sizes = new ArrayList<>(sampleCheckpoints(seen));
+        while (!future.isDone()) {
+            network.runNetwork(1);
+            sizes.addAll(sampleCheckpoints(seen));
+        }
+        future.get();
+        return sizes;
+    }
+
+    /**
+     * Prints the checkpoints of a flow and returns their mean size.
+     */
+    private static double report(String flow, List<Integer> sizes) {
+        final long total = sizes.stream().mapToLong(Integer::longValue).sum();
+        final int max = sizes.stream().mapToInt(Integer::intValue).max().orElse(0);
+        final double mean = sizes.isEmpty() ? 0.0 : (double) total / sizes.size();
+        System.out.println(String.format("%-9s checkpoints=%3d  mean=%8.0f bytes  max=%8d bytes", flow, sizes.size(), mean, max));
+        return mean;
+    }
+
+    @Test
+    public void checkpointBytesPerSuspension() throws Exception {
+        final double legacy = report("legacy", run(source, new LegacyCreate(new UniqueIdentifier().getId().toString(),
+                "Round brilliant", 1.2, 5000, 10, party(approver))));
+
+        final String externalId = new UniqueIdentifier().getId().toString();
+        final double create = report("create", run(source, new DiamondCreateFlow.Initiator(externalId, "Round brilliant", 1.2, 5000, 10, party(approver))));
+        report("approve", run(approver, new DiamondApproveFlow.Initiator(externalId, true)));
+        report("transfer", run(source, new DiamondTransferFlow.Initiator(externalId, party(buyer))));
+
+        assertTrue(create < legacy);
+    }
+}
@@ -1,13 +1,489 @@
 package com.idt;
 
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.testing.core.TestIdentity;
 import net.corda.testing.node.MockServices;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.idt.DiamondChainContract.DC_CONTRACT_ID;
+import static net.corda.testing.node.NodeTestUtils.ledger;
+import static org.junit.Assert.assertEquals;
+
 public class ContractTests {
-    MockServices ledgerServices = new MockServices();
+    private final TestIdentity source = new TestIdentity(new CordaX500Name("Source", "London", "GB"));
+    private final TestIdentity approver = new TestIdentity(new CordaX500Name("Approver", "New York", "US"));
+    private final TestIdentity coApproverA = new TestIdentity(new CordaX500Name("CoApproverA", "Antwerp", "BE"));
+    private final TestIdentity coApproverB = new TestIdentity(new CordaX500Name("CoApproverB", "Mumbai", "IN"));
+    MockServices ledgerServices = new MockServices(ImmutableList.of("com.idt"));
+
+    private DiamondAssetState approvedDiamond() {
+        DiamondAssetState diamond = new DiamondAssetState(new UniqueIdentifier(), DiamondType.SIGHT, source.getParty(),
+                "Round brilliant", 1.2, 5000, 10, approver.getParty());
+        diamond.setApprovalStatus(ApprovalStatus.APPROVED);
+        return diamond;
+    }
 
     @Test
     public void dummyTest() {
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void exitConsumesApprovedDiamondsWithoutOutputs() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, approvedDiamond());
+                tx.input(DC_CONTRACT_ID, approvedDiamond());
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Exit());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void exitMustNotProduceOutputs() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, approvedDiamond());
+                tx.output(DC_CONTRACT_ID, approvedDiamond());
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Exit());
+                return tx.fails();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void exitMustBeSignedByTheApprover() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, approvedDiamond());
+                tx.command(source.getPublicKey(), new DiamondChainContract.Commands.Exit());
+                return tx.fails();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void reissueIssuesAnApprovedDiamondLinkedToTheExitedOne() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                DiamondAssetState reissued = approvedDiamond();
+                reissued.setReissuedFrom(new StateRef(SecureHash.randomSHA256(), 0));
+                tx.output(DC_CONTRACT_ID, reissued);
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Reissue());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void reissueMustReferenceTheExitedState() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(DC_CONTRACT_ID, approvedDiamond());
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Reissue());
+                return tx.fails();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void createMayIssueSeveralDiamondsInOneTransaction() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(DC_CONTRACT_ID, new DiamondAssetState(new UniqueIdentifier(), DiamondType.SIGHT, source.getParty(),
+                        "Round brilliant", 1.2, 5000, 10, approver.getParty()));
+                tx.output(DC_CONTRACT_ID, new DiamondAssetState(new UniqueIdentifier(), DiamondType.SIGHT, source.getParty(),
+                        "Princess cut", 0.8, 3000, 10, approver.getParty()));
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Create());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void createMustNotIssueTheSameLinearIdTwice() {
+        final UniqueIdentifier linearId = new UniqueIdentifier();
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(DC_CONTRACT_ID, new DiamondAssetState(linearId, DiamondType.SIGHT, source.getParty(),
+                        "Round brilliant", 1.2, 5000, 10, approver.getParty()));
+                tx.output(DC_CONTRACT_ID, new DiamondAssetState(linearId, DiamondType.SIGHT, source.getParty(),
+                        "Round brilliant", 1.2, 5000, 10, approver.getParty()));
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Create());
+                return tx.fails();
+            });
+            return null;
+        });
+    }
+
+    private DiamondAssetState approvedDiamond(String description, double carats, double cost, float percent) {
+        DiamondAssetState diamond = new DiamondAssetState(new UniqueIdentifier(), DiamondType.SIGHT, source.getParty(),
+                description, carats, cost, percent, approver.getParty());
+        diamond.setApprovalStatus(ApprovalStatus.APPROVED);
+        return diamond;
+    }
+
+    private DiamondAssetState lot(String description, double carats, double cost, float percent, int pieces) {
+        final DiamondAssetState lot = approvedDiamond(description, carats, cost, percent);
+        lot.setPieces(pieces);
+        return lot;
+    }
+
+    private static byte[] certificateArchive(String entry) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry(entry));
+            zip.write("%PDF-1.4".getBytes(StandardCharsets.US_ASCII));
+            zip.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void createMustAttachTheCertificate() throws IOException {
+        final byte[] archive = certificateArchive("GIA-2141438171.pdf");
+        ledger(ledgerServices, l -> {
+            final SecureHash certificate = l.attachment(new ByteArrayInputStream(archive));
+            l.transaction(tx -> {
+                DiamondAssetState diamond = new DiamondAssetState(new UniqueIdentifier(), DiamondType.SIGHT, source.getParty(),
+                        "Round brilliant", 1.2, 5000, 10, approver.getParty());
+                diamond.setCertificate(certificate, "GIA-2141438171.pdf");
+                tx.output(DC_CONTRACT_ID, diamond);
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Create());
+                tx.fails();
+                tx.attachment(certificate);
+                return tx.verifies();
+            });
+            l.transaction(tx -> {
+                DiamondAssetState diamond = new DiamondAssetState(new UniqueIdentifier(), DiamondType.SIGHT, source.getParty(),
+                        "Round brilliant", 1.2, 5000, 10, approver.getParty());
+                diamond.setCertificate(certificate, "GIA-0000000000.pdf");
+                tx.output(DC_CONTRACT_ID, diamond);
+                tx.attachment(certificate);
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Create());
+                return tx.fails();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void createMayAttachTheCertificatesOfTwoSingleUploads() throws IOException {
+        final CertificateArchive first = CertificateArchive.single(new ByteArrayInputStream("%PDF-1.4 first".getBytes(StandardCharsets.US_ASCII)), 1024);
+        final CertificateArchive second = CertificateArchive.single(new ByteArrayInputStream("%PDF-1.4 second".getBytes(StandardCharsets.US_ASCII)), 1024);
+        try {
+            ledger(ledgerServices, l -> {
+                final List<SecureHash> certificates = new ArrayList<>();
+                for (CertificateArchive archive : ImmutableList.of(first, second)) {
+                    try (InputStream in = Files.newInputStream(archive.getFile())) {
+                        certificates.add(l.attachment(in));
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                    assertEquals(archive.getHash(), certificates.get(certificates.size() - 1));
+                }
+                l.transaction(tx -> {
+                    for (CertificateArchive archive : ImmutableList.of(first, second)) {
+                        DiamondAssetState diamond = new DiamondAssetState(new UniqueIdentifier(), DiamondType.SIGHT, source.getParty(),
+                                "Round brilliant", 1.2, 5000, 10, approver.getParty());
+                        diamond.setCertificate(archive.getHash(), archive.getEntries().get(0));
+                        tx.output(DC_CONTRACT_ID, diamond);
+                        tx.attachment(archive.getHash());
+                    }
+                    tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Create());
+                    return tx.verifies();
+                });
+                return null;
+            });
+        } finally {
+            first.delete();
+            second.delete();
+        }
+    }
+
+    private DiamondAssetState certified(DiamondAssetState diamond) {
+        diamond.setCertificate(SecureHash.randomSHA256(), "GIA-2141438171.pdf");
+        return diamond;
+    }
+
+    @Test
+    public void certifiedStonesAreSplitWithTheirCertificateButNotMerged() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, certified(approvedDiamond()));
+                tx.input(DC_CONTRACT_ID, approvedDiamond());
+                tx.output(DC_CONTRACT_ID, lot("Lot of 2 stones", 2.4, 10000, 20, 2));
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Merge());
+                return tx.fails();
+            });
+            final DiamondAssetState stone = certified(approvedDiamond("Rough", 2.4, 10000, 20));
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, stone);
+                tx.output(DC_CONTRACT_ID, approvedDiamond("Part", 1.2, 5000, 10));
+                tx.output(DC_CONTRACT_ID, approvedDiamond("Part", 1.2, 5000, 10));
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Split());
+                return tx.fails();
+            });
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, stone);
+                for (int i = 0; i < 2; i++) {
+                    final DiamondAssetState part = approvedDiamond("Part", 1.2, 5000, 10);
+                    part.setCertificate(stone.getCertificate(), stone.getCertificateEntry());
+                    tx.output(DC_CONTRACT_ID, part);
+                }
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Split());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void mergeKeepsTheTotals() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, approvedDiamond());
+                tx.input(DC_CONTRACT_ID, approvedDiamond());
+                tx.output(DC_CONTRACT_ID, lot("Lot of 2 stones", 2.4, 10000, 20, 1));
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Merge());
+                return tx.fails();
+            });
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, approvedDiamond());
+                tx.input(DC_CONTRACT_ID, approvedDiamond());
+                tx.output(DC_CONTRACT_ID, lot("Lot of 2 stones", 2.4, 10000, 20, 2));
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Merge());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void mergeMustKeepTheCarats() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, approvedDiamond());
+                tx.input(DC_CONTRACT_ID, approvedDiamond());
+                tx.output(DC_CONTRACT_ID, lot("Lot of 2 stones", 2.5, 10000, 20, 2));
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Merge());
+                return tx.fails();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void mergeAndSplitKeepTheSourceAndApprovers() {
+        final TestIdentity otherSource = new TestIdentity(new CordaX500Name("OtherSource", "Tel Aviv", "IL"));
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, approvedDiamond());
+                tx.input(DC_CONTRACT_ID, approvedDiamond());
+                final DiamondAssetState lot = lot("Lot of 2 stones", 2.4, 10000, 20, 2);
+                final DiamondAssetState ownedBySource = new DiamondAssetState(new UniqueIdentifier(), DiamondType.SIGHT, otherSource.getParty(),
+                        lot.getDescription(), lot.getCarats(), lot.getCost(), lot.getPercent(), approver.getParty());
+                ownedBySource.setOwner(source.getParty());
+                ownedBySource.setApprovalStatus(ApprovalStatus.APPROVED);
+                ownedBySource.setPieces(2);
+                tx.output(DC_CONTRACT_ID, ownedBySource);
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Merge());
+                return tx.fails();
+            });
+            l.transaction(tx -> {
+                final DiamondAssetState coApproved = approvedDiamond();
+                coApproved.setCoApprovers(ImmutableList.of(coApproverA.getParty()));
+                coApproved.setQuorum(2);
+                tx.input(DC_CONTRACT_ID, coApproved);
+                tx.input(DC_CONTRACT_ID, approvedDiamond());
+                tx.output(DC_CONTRACT_ID, lot("Lot of 2 stones", 2.4, 10000, 20, 2));
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Merge());
+                return tx.fails();
+            });
+            l.transaction(tx -> {
+                final DiamondAssetState coApproved = approvedDiamond("Rough", 2.4, 10000, 20);
+                coApproved.setCoApprovers(ImmutableList.of(coApproverA.getParty()));
+                coApproved.setQuorum(2);
+                tx.input(DC_CONTRACT_ID, coApproved);
+                tx.output(DC_CONTRACT_ID, approvedDiamond("Part", 1.2, 5000, 10));
+                tx.output(DC_CONTRACT_ID, approvedDiamond("Part", 1.2, 5000, 10));
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Split());
+                return tx.fails();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void splitIntoEqualPartsKeepsTheTotals() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                DiamondAssetState lot = approvedDiamond("Lot of 7 stones", 3.5, 10000.01, 7);
+                tx.input(DC_CONTRACT_ID, lot);
+                for (DiamondSplitFlow.Part part : DiamondSplitFlow.equalParts(lot, 3)) {
+                    tx.output(DC_CONTRACT_ID, approvedDiamond("Part", part.getCarats(), part.getCost(), part.getPercent()));
+                }
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Split());
+                return tx.verifies();
+            });
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, approvedDiamond("Lot of 2 stones", 2.4, 10000, 20));
+                tx.output(DC_CONTRACT_ID, approvedDiamond("Part", 1.2, 5000, 10));
+                tx.output(DC_CONTRACT_ID, approvedDiamond("Part", 1.2, 4000, 10));
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Split());
+                return tx.fails();
+            });
+            return null;
+        });
+    }
+
+    private DiamondAssetState pendingQuorumDiamond() {
+        DiamondAssetState diamond = new DiamondAssetState(new UniqueIdentifier(), DiamondType.SIGHT, source.getParty(),
+                "Fancy vivid blue", 5.1, 900000, 10, approver.getParty());
+        diamond.setCoApprovers(ImmutableList.of(coApproverA.getParty(), coApproverB.getParty()));
+        diamond.setQuorum(2);
+        return diamond;
+    }
+
+    private DiamondAssetState approved(DiamondAssetState pending) {
+        return pending.withApprovalStatus(ApprovalStatus.APPROVED);
+    }
+
+    @Test
+    public void quorumApprovalIsSignedWithTheCompositeApprovalKey() {
+        final DiamondAssetState pending = pendingQuorumDiamond();
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, pending);
+                tx.output(DC_CONTRACT_ID, approved(pending));
+                tx.command(ImmutableList.of(approver.getPublicKey(), source.getPublicKey(),
+                        DiamondChainContract.approvalKey(pending)), new DiamondChainContract.Commands.Approve());
+                return tx.verifies();
+            });
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, pending);
+                tx.output(DC_CONTRACT_ID, approved(pending));
+                tx.command(ImmutableList.of(approver.getPublicKey(), source.getPublicKey()), new DiamondChainContract.Commands.Approve());
+                return tx.fails();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void approvalMustOnlyChangeTheStatus() {
+        final DiamondAssetState pending = pendingQuorumDiamond();
+        final DiamondAssetState sold = approved(pending);
+        sold.setOwner(approver.getParty());
+        final DiamondAssetState unlocked = approved(pending);
+        unlocked.setQuorum(1);
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, pending);
+                tx.output(DC_CONTRACT_ID, pending.withApprovalStatus(ApprovalStatus.DECLINED));
+                tx.command(ImmutableList.of(approver.getPublicKey(), source.getPublicKey(),
+                        DiamondChainContract.approvalKey(pending)), new DiamondChainContract.Commands.Approve());
+                return tx.verifies();
+            });
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, pending);
+                tx.output(DC_CONTRACT_ID, sold);
+                tx.command(ImmutableList.of(approver.getPublicKey(), source.getPublicKey(),
+                        DiamondChainContract.approvalKey(pending)), new DiamondChainContract.Commands.Approve());
+                return tx.fails();
+            });
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, pending);
+                tx.output(DC_CONTRACT_ID, unlocked);
+                tx.command(ImmutableList.of(approver.getPublicKey(), source.getPublicKey(),
+                        DiamondChainContract.approvalKey(pending)), new DiamondChainContract.Commands.Approve());
+                return tx.fails();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void quorumCannotExceedTheApprovers() {
+        final DiamondAssetState pending = pendingQuorumDiamond();
+        pending.setQuorum(4);
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(DC_CONTRACT_ID, pending);
+                tx.command(ImmutableList.of(source.getPublicKey(), approver.getPublicKey()), new DiamondChainContract.Commands.Create());
+                return tx.fails();
+            });
+            return null;
+        });
+    }
+
+    private DiamondAssetState repriced(DiamondAssetState diamond, double cost) {
+        DiamondAssetState repriced = new DiamondAssetState(diamond.getLinearId(), diamond.getDiamondType(), diamond.getSource(),
+                diamond.getDescription(), diamond.getCarats(), cost, diamond.getPercent(), diamond.getApprover());
+        repriced.setApprovalStatus(diamond.getApprovalStatus());
+        return repriced;
+    }
+
+    @Test
+    public void updateRevaluesSeveralDiamondsAtOnce() {
+        final DiamondAssetState first = approvedDiamond();
+        final DiamondAssetState second = approvedDiamond();
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, first);
+                tx.input(DC_CONTRACT_ID, second);
+                tx.output(DC_CONTRACT_ID, repriced(first, 6200));
+                tx.output(DC_CONTRACT_ID, repriced(second, 4800));
+                tx.command(source.getPublicKey(), new DiamondChainContract.Commands.Update());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void updateMustOnlyChangeThePrice() {
+        final DiamondAssetState diamond = approvedDiamond();
+        final DiamondAssetState heavier = new DiamondAssetState(diamond.getLinearId(), diamond.getDiamondType(), diamond.getSource(),
+                diamond.getDescription(), diamond.getCarats() + 1, 9000, diamond.getPercent(), diamond.getApprover());
+        heavier.setApprovalStatus(ApprovalStatus.APPROVED);
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, diamond);
+                tx.output(DC_CONTRACT_ID, heavier);
+                tx.command(source.getPublicKey(), new DiamondChainContract.Commands.Update());
+                return tx.fails();
+            });
+            l.transaction(tx -> {
+                tx.input(DC_CONTRACT_ID, diamond);
+                tx.output(DC_CONTRACT_ID, repriced(diamond, 9000));
+                tx.command(approver.getPublicKey(), new DiamondChainContract.Commands.Update());
+                return tx.fails();
+            });
+            return null;
+        });
+    }
+}
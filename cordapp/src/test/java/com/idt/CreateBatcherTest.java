@@ -0,0 +1,90 @@
+package com.idt;
+
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.core.TestIdentity;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CreateBatcherTest {
+    private final Party approverB = new TestIdentity(new CordaX500Name("PartyB", "New York", "US")).getParty();
+    private final Party approverD = new TestIdentity(new CordaX500Name("ApproverD", "Antwerp", "BE")).getParty();
+
+    // Batch sizes seen by the starters; the starters complete with null as a stand-in for the transaction.
+    private final List<Integer> batches = new CopyOnWriteArrayList<>();
+    private final List<Integer> singles = new CopyOnWriteArrayList<>();
+
+    private static DiamondBatchCreateFlow.Item item(int i) {
+        return new DiamondBatchCreateFlow.Item("00000000-0000-0000-0000-00000000000" + i, "Stone " + i, 1, 100, 1);
+    }
+
+    private CompletableFuture<SignedTransaction> record(List<Integer> starts, int size) {
+        starts.add(size);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Test
+    public void coalescesRequestsPerApproverWithinTheWindow() throws Exception {
+        final CreateBatcher batcher = new CreateBatcher(200, 10,
+                (approver, items) -> record(batches, items.size()),
+                (approver, items) -> record(singles, items.size()));
+        final List<CompletableFuture<SignedTransaction>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(batcher.submit(approverB, item(i)));
+        }
+        results.add(batcher.submit(approverD, item(3)));
+        for (CompletableFuture<SignedTransaction> result : results) {
+            result.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(1, batches.size());
+        assertEquals(3, (int) batches.get(0));
+        assertEquals(1, singles.size());
+    }
+
+    @Test
+    public void dispatchesAsSoonAsTheBatchIsFull() throws Exception {
+        final CreateBatcher batcher = new CreateBatcher(60_000, 2,
+                (approver, items) -> record(batches, items.size()),
+                (approver, items) -> record(singles, items.size()));
+        final CompletableFuture<SignedTransaction> first = batcher.submit(approverB, item(0));
+        batcher.submit(approverB, item(1)).get(5, TimeUnit.SECONDS);
+        assertTrue(first.isDone());
+        assertEquals(2, (int) batches.get(0));
+    }
+
+    @Test
+    public void failedBatchFallsBackToSingleCreates() throws Exception {
+        final CreateBatcher batcher = new CreateBatcher(100, 10,
+                (approver, items) -> {
+                    final CompletableFuture<SignedTransaction> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(new IllegalStateException("External ID already in use"));
+                    return failed;
+                },
+                (approver, items) -> {
+                    if (items.get(0).getExternalId().endsWith("1")) {
+                        throw new IllegalStateException("External ID already in use");
+                    }
+                    return record(singles, items.size());
+                });
+        final CompletableFuture<SignedTransaction> good = batcher.submit(approverB, item(0));
+        final CompletableFuture<SignedTransaction> bad = batcher.submit(approverB, item(1));
+        good.get(5, TimeUnit.SECONDS);
+        try {
+            bad.get(5, TimeUnit.SECONDS);
+            throw new AssertionError("The duplicate create should fail");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1, singles.size());
+    }
+}
@@ -0,0 +1,137 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.Party;
+import net.corda.core.utilities.OpaqueBytes;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.finance.flows.CashIssueFlow;
+import net.corda.finance.flows.CashPaymentFlow;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.StartedMockNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static net.corda.finance.Currencies.DOLLARS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares selling idt.bench.sales diamonds with {@link DiamondSaleFlow}, one transaction and one notarisation per
+ * sale, against the two-step process of a {@link DiamondTransferFlow} followed by a separate CashPaymentFlow.
+ */
+public class DeliveryVersusPaymentBenchmark {
+    private static final int SALES = Integer.getInteger("idt.bench.sales", 20);
+    private static final Amount<Currency> PRICE = DOLLARS(5000);
+
+    private MockNetwork network;
+    private StartedMockNode seller;
+    private StartedMockNode approver;
+    private StartedMockNode buyer;
+
+    @Before
+    public void setup() throws Exception {
+        network = new MockNetwork(ImmutableList.of("com.idt", "net.corda.finance.contracts.asset", "net.corda.finance.schemas"));
+        seller = network.createNode();
+        approver = network.createNode();
+        buyer = network.createNode();
+        network.runNetwork();
+        final Party notary = network.getDefaultNotaryIdentity();
+        run(buyer, new CashIssueFlow(DOLLARS(5000L * SALES * 2), OpaqueBytes.of((byte) 1), notary));
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private <T> T run(StartedMockNode node, FlowLogic<T> flow) throws Exception {
+        final CordaFuture<T> future = node.startFlow(flow);
+        network.runNetwork();
+        return future.get();
+    }
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private List<String> approvedDiamonds() throws Exception {
+        final List<String> ids = new ArrayList<>(SALES);
+        for (int i = 0; i < SALES; i++) {
+            final String externalId = new UniqueIdentifier().getId().toString();
+            run(seller, new DiamondCreateFlow.Initiator(externalId, "Round brilliant " + i, 1.2, 5000, 10, party(approver)));
+            run(approver, new DiamondApproveFlow.Initiator(externalId, true));
+            ids.add(externalId);
+        }
+        return ids;
+    }
+
+    private static void report(String label, long nanos) {
+        System.out.println(String.format("%-10s %8.1f ms/sale %8.2f sales/s", label, nanos / 1e6 / SALES, SALES / (nanos / 1e9)));
+    }
+
+    private long sellerCash() {
+        return seller.transaction(() -> seller.getServices().getVaultService().queryBy(Cash.State.class).getStates().stream()
+                .mapToLong(cash -> cash.getState().getData().getAmount().getQuantity()).sum());
+    }
+
+    @Test
+    public void deliveryVersusPaymentAgainstTransferThenPay() throws Exception {
+        final List<String> twoStep = approvedDiamonds();
+        final long twoStepStart = System.nanoTime();
+        for (String externalId : twoStep) {
+            run(seller, new DiamondTransferFlow.Initiator(externalId, party(buyer)));
+            run(buyer, new CashPaymentFlow(PRICE, party(seller), false));
+        }
+        final long twoStepNanos = System.nanoTime() - twoStepStart;
+
+        final List<String> dvp = approvedDiamonds();
+        for (String externalId : dvp) {
+            run(buyer, new DiamondSaleFlow.Accept(externalId, party(seller), PRICE));
+        }
+        final long dvpStart = System.nanoTime();
+        for (String externalId : dvp) {
+            run(seller, new DiamondSaleFlow.Initiator(externalId, party(buyer), PRICE));
+        }
+        final long dvpNanos = System.nanoTime() - dvpStart;
+
+        report("two-step", twoStepNanos);
+        report("dvp", dvpNanos);
+        assertEquals(PRICE.getQuantity() * SALES * 2, sellerCash());
+    }
+
+    @Test
+    public void theBuyerPaysOnlyForASaleItAccepted() throws Exception {
+        final String externalId = new UniqueIdentifier().getId().toString();
+        run(seller, new DiamondCreateFlow.Initiator(externalId, "Round brilliant", 1.2, 5000, 10, party(approver)));
+        run(approver, new DiamondApproveFlow.Initiator(externalId, true));
+
+        try {
+            run(seller, new DiamondSaleFlow.Initiator(externalId, party(buyer), PRICE));
+            fail("The buyer paid for a sale it never accepted");
+        } catch (ExecutionException ex) {
+            // The buyer has no offer for the diamond.
+        }
+        run(buyer, new DiamondSaleFlow.Accept(externalId, party(seller), DOLLARS(4000)));
+        try {
+            run(seller, new DiamondSaleFlow.Initiator(externalId, party(buyer), PRICE));
+            fail("The buyer paid more than it accepted");
+        } catch (ExecutionException ex) {
+            // The price is over the buyer's limit.
+        }
+        assertEquals(0, sellerCash());
+
+        run(buyer, new DiamondSaleFlow.Accept(externalId, party(seller), PRICE));
+        run(seller, new DiamondSaleFlow.Initiator(externalId, party(buyer), PRICE));
+        assertEquals(PRICE.getQuantity(), sellerCash());
+    }
+}
@@ -0,0 +1,77 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DiamondColumnStoreTest {
+    private static final String A = "O=PartyA,L=London,C=GB";
+    private static final String B = "O=PartyB,L=New York,C=US";
+    private static final String C = "O=PartyC,L=Paris,C=FR";
+    private static final long JAN = Instant.parse("2018-01-15T10:00:00Z").toEpochMilli();
+    private static final long FEB = Instant.parse("2018-02-15T10:00:00Z").toEpochMilli();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static DiamondColumnStore.Event consumed(long time, String ref, String owner, double carats) {
+        return new DiamondColumnStore.Event(time, DiamondColumnStore.CONSUMED, "id-" + ref, ref, owner, A, B,
+                "APPROVED", carats, carats * 1000, carats * 1000 + 5);
+    }
+
+    @Test
+    public void aggregatesCaratsPerMonthPerOwner() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final DiamondColumnStore store = new DiamondColumnStore(directory);
+        store.append(ImmutableList.of(consumed(JAN, "r1", A, 1.0), consumed(JAN + 1, "r2", C, 2.0), consumed(JAN + 2, "r3", A, 0.5)));
+        store.append(ImmutableList.of(consumed(FEB, "r4", A, 3.0)));
+
+        final List<DiamondColumnStore.Group> groups = new DiamondColumnStore(directory).query(new DiamondColumnStore.Query()
+                .where(DiamondColumnStore.EVENT, DiamondColumnStore.CONSUMED)
+                .groupBy(DiamondColumnStore.MONTH, DiamondColumnStore.OWNER));
+
+        assertEquals(3, groups.size());
+        assertEquals(ImmutableList.of("2018-01", A), groups.get(0).getKey());
+        assertEquals(2, groups.get(0).getCount());
+        assertEquals(1.5, groups.get(0).getCarats(), 1e-9);
+        assertEquals(ImmutableList.of("2018-01", C), groups.get(1).getKey());
+        assertEquals(ImmutableList.of("2018-02", A), groups.get(2).getKey());
+        assertEquals(3000, groups.get(2).getCost(), 1e-9);
+    }
+
+    @Test
+    public void filtersByTimeAndParty() throws Exception {
+        final DiamondColumnStore store = new DiamondColumnStore(folder.getRoot().toPath());
+        store.append(ImmutableList.of(consumed(JAN, "r1", A, 1.0), consumed(JAN + 1, "r2", C, 2.0)));
+        store.append(ImmutableList.of(consumed(FEB, "r3", C, 4.0)));
+
+        final List<DiamondColumnStore.Group> groups = store.query(new DiamondColumnStore.Query()
+                .from(Instant.ofEpochMilli(FEB))
+                .where(DiamondColumnStore.OWNER, C));
+        assertEquals(1, groups.size());
+        assertEquals(4.0, groups.get(0).getCarats(), 1e-9);
+        assertTrue(store.query(new DiamondColumnStore.Query().where(DiamondColumnStore.OWNER, "O=Nobody,L=Nowhere,C=GB")).isEmpty());
+    }
+
+    @Test
+    public void remembersWhatWasIngested() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        new DiamondColumnStore(directory).append(ImmutableList.of(consumed(JAN, "r1", A, 1.0), consumed(FEB, "r2", A, 1.0)));
+
+        final DiamondColumnStore reopened = new DiamondColumnStore(directory);
+        assertEquals(Instant.ofEpochMilli(FEB), reopened.watermark(DiamondColumnStore.CONSUMED));
+        assertTrue(reopened.isRecorded(consumed(JAN, "r1", A, 1.0)));
+        assertTrue(reopened.isRecorded(consumed(FEB, "r2", A, 1.0)));
+        assertFalse(reopened.isRecorded(consumed(FEB, "r5", A, 1.0)));
+        assertEquals(Instant.EPOCH, reopened.watermark(DiamondColumnStore.PRODUCED));
+    }
+}
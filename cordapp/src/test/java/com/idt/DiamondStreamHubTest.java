@@ -0,0 +1,85 @@
+package com.idt;
+
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.TransactionState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.testing.core.TestIdentity;
+import org.glassfish.jersey.server.ChunkedOutput;
+import org.junit.Test;
+import rx.Observable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.idt.DiamondChainContract.DC_CONTRACT_ID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class DiamondStreamHubTest {
+    private final TestIdentity source = new TestIdentity(new CordaX500Name("Source", "London", "GB"));
+    private final TestIdentity approver = new TestIdentity(new CordaX500Name("Approver", "New York", "US"));
+    private final TestIdentity notary = new TestIdentity(new CordaX500Name("Notary", "Zurich", "CH"));
+
+    /**
+     * A client connection that holds every write until it is released, like a client that has not read anything yet.
+     */
+    private static class StalledOutput extends ChunkedOutput<String> {
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final List<String> written = new CopyOnWriteArrayList<>();
+
+        StalledOutput() {
+            super(String.class);
+        }
+
+        @Override
+        public void write(String chunk) {
+            try {
+                released.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            written.add(chunk);
+        }
+
+        long count(String event) {
+            return written.stream().filter(frame -> frame.startsWith("event: " + event + "\n")).count();
+        }
+    }
+
+    private List<StateAndRef<DiamondAssetState>> diamonds(int count) {
+        final List<StateAndRef<DiamondAssetState>> diamonds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final DiamondAssetState diamond = new DiamondAssetState(new UniqueIdentifier(), DiamondType.SIGHT, source.getParty(),
+                    "Melee", 0.1, 100, 1, approver.getParty());
+            diamonds.add(new StateAndRef<>(new TransactionState<>(diamond, DC_CONTRACT_ID, notary.getParty()),
+                    new StateRef(SecureHash.randomSHA256(), 0)));
+        }
+        return diamonds;
+    }
+
+    @Test
+    public void sendsTheWholeSnapshotToAClientThatHasNotReadYet() throws Exception {
+        final StalledOutput output = new StalledOutput();
+        final SseSink sink = new SseSink(1024, output);
+        final DiamondStreamHub hub = new DiamondStreamHub(Observable.never(), () -> sink);
+
+        hub.open(null, null, DiamondStreamHub.Overflow.DROP, () -> diamonds(3000));
+        output.released.countDown();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (output.count("live") == 0) {
+            if (System.nanoTime() > deadline) {
+                fail("Only " + output.written.size() + " events written");
+            }
+            Thread.sleep(5);
+        }
+
+        assertEquals(3000, output.count("snapshot"));
+        assertEquals(0, sink.getDropped());
+    }
+}
@@ -0,0 +1,141 @@
+package com.idt;
+
+import org.junit.Test;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FlowAdmissionControllerTest {
+    // Permits and rejections of the requests queued on other threads.
+    private final List<FlowAdmissionController.Permit> permits = new CopyOnWriteArrayList<>();
+    private final List<FlowAdmissionController.AdmissionRejectedException> rejections = new CopyOnWriteArrayList<>();
+
+    private Thread queue(FlowAdmissionController controller, String flowType, String caller) {
+        final Thread thread = new Thread(() -> {
+            try {
+                permits.add(controller.admit(flowType, caller));
+            } catch (FlowAdmissionController.AdmissionRejectedException ex) {
+                rejections.add(ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static long metric(FlowAdmissionController controller, String name) {
+        return ((Number) controller.metrics().get(name)).longValue();
+    }
+
+    private static void awaitQueued(FlowAdmissionController controller, int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (metric(controller, "queued") < count) {
+            if (System.nanoTime() > deadline) {
+                fail("Only " + metric(controller, "queued") + " requests queued");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void queuesAFlowTypeAtItsLimitUntilASlotFrees() throws Exception {
+        final FlowAdmissionController controller = new FlowAdmissionController(1, 4, 8, 5_000, 1);
+        final FlowAdmissionController.Permit held = controller.admit("DiamondCreateFlow", "alice");
+        final Thread waiting = queue(controller, "DiamondCreateFlow", "bob");
+        awaitQueued(controller, 1);
+        // Other flow types are not held up.
+        controller.admit("DiamondTransferFlow", "bob").close();
+
+        held.close();
+        waiting.join(5_000);
+
+        assertEquals(1, permits.size());
+        assertTrue(rejections.isEmpty());
+        assertEquals(1, metric(controller, "queuedRequests"));
+        assertEquals(0, metric(controller, "queued"));
+    }
+
+    @Test
+    public void rejectsACallerAtItsLimit() throws Exception {
+        final FlowAdmissionController controller = new FlowAdmissionController(16, 2, 8, 5_000, 1);
+        controller.admit("DiamondCreateFlow", "alice");
+        controller.admit("DiamondTransferFlow", "alice");
+        try {
+            controller.admit("DiamondCreateFlow", "alice");
+            fail("Expected a rejection");
+        } catch (FlowAdmissionController.AdmissionRejectedException ex) {
+            assertTrue(ex.getMessage().contains("alice"));
+        }
+        controller.admit("DiamondCreateFlow", "bob").close();
+        assertEquals(1, metric(controller, "rejectedCaller"));
+    }
+
+    @Test
+    public void checksTheCallerLimitAgainAfterTheWait() throws Exception {
+        final FlowAdmissionController controller = new FlowAdmissionController(2, 1, 8, 5_000, 1);
+        final FlowAdmissionController.Permit bob = controller.admit("DiamondCreateFlow", "bob");
+        final FlowAdmissionController.Permit carol = controller.admit("DiamondCreateFlow", "carol");
+        // Both pass alice's limit on the way in, as alice has nothing in flight yet.
+        final List<Thread> threads = new ArrayList<>();
+        threads.add(queue(controller, "DiamondCreateFlow", "alice"));
+        threads.add(queue(controller, "DiamondCreateFlow", "alice"));
+        awaitQueued(controller, 2);
+
+        bob.close();
+        carol.close();
+        for (Thread thread : threads) {
+            thread.join(5_000);
+        }
+
+        assertEquals(1, permits.size());
+        assertEquals(1, rejections.size());
+        assertEquals(1, metric(controller, "rejectedCaller"));
+    }
+
+    @Test
+    public void rejectsWithRetryAfterWhenTheQueueIsFull() throws Exception {
+        final FlowAdmissionController controller = new FlowAdmissionController(1, 4, 1, 5_000, 3);
+        final FlowAdmissionController.Permit held = controller.admit("DiamondCreateFlow", "alice");
+        final Thread waiting = queue(controller, "DiamondCreateFlow", "bob");
+        awaitQueued(controller, 1);
+        try {
+            controller.admit("DiamondCreateFlow", "carol");
+            fail("Expected a rejection");
+        } catch (FlowAdmissionController.AdmissionRejectedException ex) {
+            final Response response = DiamondChainApi.tooManyRequests(ex);
+            assertEquals(429, response.getStatus());
+            assertEquals(3, response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        }
+        assertEquals(1, metric(controller, "rejectedQueueFull"));
+
+        held.close();
+        waiting.join(5_000);
+        assertEquals(1, permits.size());
+    }
+
+    @Test
+    public void rejectsAfterTheMaximumWait() throws Exception {
+        final FlowAdmissionController controller = new FlowAdmissionController(1, 4, 8, 50, 2);
+        try (FlowAdmissionController.Permit held = controller.admit("DiamondCreateFlow", "alice")) {
+            final long start = System.nanoTime();
+            try {
+                controller.admit("DiamondCreateFlow", "bob");
+                fail("Expected a rejection");
+            } catch (FlowAdmissionController.AdmissionRejectedException ex) {
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+                assertEquals(2, ex.getRetryAfterSeconds());
+            }
+        }
+        assertEquals(1, metric(controller, "rejectedTimeout"));
+        assertEquals(0, metric(controller, "queued"));
+    }
+}
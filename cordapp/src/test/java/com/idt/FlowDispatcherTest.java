@@ -0,0 +1,116 @@
+package com.idt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FlowDispatcherTest {
+    private static final Map<FlowDispatcher.Priority, Integer> WEIGHTS = FlowDispatcher.parseWeights("4,2,2,1");
+
+    // Priorities in the order their flows got a slot.
+    private final List<FlowDispatcher.Priority> granted = new CopyOnWriteArrayList<>();
+
+    /**
+     * Queues a flow that records when it gets its slot and finishes straight away.
+     */
+    private Thread queue(FlowDispatcher dispatcher, FlowDispatcher.Priority priority) {
+        final Thread thread = new Thread(() -> {
+            try (FlowDispatcher.Slot slot = dispatcher.acquire(() -> priority)) {
+                granted.add(priority);
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int queued(FlowDispatcher dispatcher, FlowDispatcher.Priority priority) {
+        final Map<String, Object> priorities = (Map<String, Object>) dispatcher.metrics().get("priorities");
+        return (Integer) ((Map<String, Object>) priorities.get(priority.name())).get("queued");
+    }
+
+    private static void awaitQueued(FlowDispatcher dispatcher, FlowDispatcher.Priority priority, int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (queued(dispatcher, priority) < count) {
+            if (System.nanoTime() > deadline) {
+                fail("Only " + queued(dispatcher, priority) + " " + priority + " flows queued");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void startsWithoutAPriorityWhileSlotsAreFree() throws Exception {
+        final FlowDispatcher dispatcher = new FlowDispatcher(2, WEIGHTS, 60_000, 1_000, 1);
+        try (FlowDispatcher.Slot first = dispatcher.acquire(() -> { throw new AssertionError("Priority computed"); });
+             FlowDispatcher.Slot second = dispatcher.acquire(() -> { throw new AssertionError("Priority computed"); })) {
+            assertEquals(2, dispatcher.metrics().get("running"));
+        }
+        assertEquals(0, dispatcher.metrics().get("running"));
+    }
+
+    @Test
+    public void sharesSlotsInProportionToTheWeights() throws Exception {
+        final FlowDispatcher dispatcher = new FlowDispatcher(1, WEIGHTS, 60_000, 10_000, 1);
+        final List<Thread> threads = new ArrayList<>();
+        final FlowDispatcher.Slot held = dispatcher.acquire(() -> FlowDispatcher.Priority.NORMAL);
+        for (int i = 0; i < 10; i++) {
+            threads.add(queue(dispatcher, FlowDispatcher.Priority.BULK));
+        }
+        awaitQueued(dispatcher, FlowDispatcher.Priority.BULK, 10);
+        for (int i = 0; i < 10; i++) {
+            threads.add(queue(dispatcher, FlowDispatcher.Priority.URGENT));
+        }
+        awaitQueued(dispatcher, FlowDispatcher.Priority.URGENT, 10);
+        held.close();
+        for (Thread thread : threads) {
+            thread.join(5_000);
+        }
+
+        assertEquals(20, granted.size());
+        // URGENT weighs 4 to BULK's 1, so the first ten slots go 8 to 2.
+        assertEquals(8, granted.subList(0, 10).stream().filter(p -> p == FlowDispatcher.Priority.URGENT).count());
+    }
+
+    @Test
+    public void servesAStarvedRequestFirst() throws Exception {
+        final FlowDispatcher dispatcher = new FlowDispatcher(1, FlowDispatcher.parseWeights("1000,2,2,1"), 50, 10_000, 1);
+        final List<Thread> threads = new ArrayList<>();
+        final FlowDispatcher.Slot held = dispatcher.acquire(() -> FlowDispatcher.Priority.NORMAL);
+        threads.add(queue(dispatcher, FlowDispatcher.Priority.BULK));
+        awaitQueued(dispatcher, FlowDispatcher.Priority.BULK, 1);
+        Thread.sleep(100);
+        for (int i = 0; i < 3; i++) {
+            threads.add(queue(dispatcher, FlowDispatcher.Priority.URGENT));
+        }
+        awaitQueued(dispatcher, FlowDispatcher.Priority.URGENT, 3);
+        held.close();
+        for (Thread thread : threads) {
+            thread.join(5_000);
+        }
+
+        assertEquals(FlowDispatcher.Priority.BULK, granted.get(0));
+        assertEquals(4, granted.size());
+    }
+
+    @Test
+    public void rejectsAfterTheMaximumWait() throws Exception {
+        final FlowDispatcher dispatcher = new FlowDispatcher(1, WEIGHTS, 60_000, 50, 1);
+        try (FlowDispatcher.Slot held = dispatcher.acquire(() -> FlowDispatcher.Priority.NORMAL)) {
+            dispatcher.acquire(() -> FlowDispatcher.Priority.BULK);
+            fail("Expected a rejection");
+        } catch (FlowAdmissionController.AdmissionRejectedException ex) {
+            assertEquals(1, ex.getRetryAfterSeconds());
+        }
+        assertEquals(0, queued(dispatcher, FlowDispatcher.Priority.BULK));
+    }
+}
@@ -1,6 +1,23 @@
 package com.idt;
 
+import co.paralleluniverse.fibers.Suspendable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.SerializationContext;
+import net.corda.core.serialization.SerializationDefaults;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
 import net.corda.testing.node.MockNetwork;
 import net.corda.testing.node.StartedMockNode;
 import org.junit.After;
@@ -9,13 +26,31 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+
+import static com.idt.DiamondChainContract.DC_CONTRACT_ID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 public class FlowTests {
     private MockNetwork network;
     private StartedMockNode a;
     private StartedMockNode b;
+    private File prices;
 
     @Before
-    public void setup() {
+    public void setup() throws IOException {
+        // Read by DiamondPriceService when the nodes start.
+        prices = File.createTempFile("prices", ".csv");
+        Files.write(prices.toPath(), "SIGHT,0.5,4000,5\nSIGHT,1.0,6500,8\n".getBytes(StandardCharsets.UTF_8));
+        System.setProperty("idt.prices.file", prices.getAbsolutePath());
         network = new MockNetwork(ImmutableList.of("com.idt"));
         a = network.createNode();
         b = network.createNode();
@@ -27,13 +62,285 @@ public class FlowTests {
     @After
     public void tearDown() {
         network.stopNodes();
+        System.clearProperty("idt.prices.file");
+        prices.delete();
     }
 
     @Rule
     public final ExpectedException exception = ExpectedException.none();
 
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private <T> T run(StartedMockNode node, FlowLogic<T> flow) throws Exception {
+        final CordaFuture<T> future = node.startFlow(flow);
+        network.runNetwork();
+        return future.get();
+    }
+
+    /**
+     * Issues a diamond at a, approved by b.
+     */
+    private String approvedDiamond() throws Exception {
+        final String externalId = UUID.randomUUID().toString();
+        run(a, new DiamondCreateFlow.Initiator(externalId, "Round brilliant", 1.2, 5000, 10, party(b)));
+        run(b, new DiamondApproveFlow.Initiator(externalId, true));
+        return externalId;
+    }
+
+    private static List<StateAndRef<DiamondAssetState>> diamonds(StartedMockNode node, String externalId, Vault.StateStatus status) {
+        return node.transaction(() -> node.getServices().getVaultService().queryBy(DiamondAssetState.class,
+                new QueryCriteria.LinearStateQueryCriteria(null, ImmutableList.of(UniqueIdentifier.Companion.fromString(externalId)),
+                        status, ImmutableSet.of(DiamondAssetState.class))).getStates());
+    }
+
+    /**
+     * Reissues a given state from a given exit transaction, without the checks the owner's flow makes first.
+     */
+    public static class ForgedReissue extends DiamondReissueFlow.Initiator {
+        private final StateAndRef<DiamondAssetState> exited;
+        private final SignedTransaction exitTx;
+
+        public ForgedReissue(StateAndRef<DiamondAssetState> exited, SignedTransaction exitTx) {
+            super(exited.getState().getData().getLinearId().getId().toString(), true);
+            this.exited = exited;
+            this.exitTx = exitTx;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            return reissue(exited, exitTx);
+        }
+    }
+
     @Test
     public void test() throws Exception {
 
     }
+
+    @Test
+    public void warmupRecordsNothing() throws Exception {
+        final CordaFuture<DiamondWarmupFlow.Report> future = a.startFlow(new DiamondWarmupFlow.Initiator(3, 5, 0.5));
+        network.runNetwork();
+        final DiamondWarmupFlow.Report report = future.get();
+
+        assertEquals(3, report.getRoundMicros().size());
+        a.transaction(() -> {
+            assertTrue(a.getServices().getVaultService().queryBy(DiamondAssetState.class,
+                    new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL)).getStates().isEmpty());
+            return null;
+        });
+    }
+
+    @Test
+    public void inventoryCountsEachDiamondOnceAtItsOwner() throws Exception {
+        final CordaFuture<?> created = a.startFlow(new DiamondCreateFlow.Initiator(UUID.randomUUID().toString(),
+                "Inventory stone", 2.5, 8000, 5, b.getInfo().getLegalIdentities().get(0)));
+        network.runNetwork();
+        created.get();
+
+        final CordaFuture<DiamondInventoryFlow.Report> future = b.startFlow(new DiamondInventoryFlow.Initiator(
+                ImmutableList.of(a.getInfo().getLegalIdentities().get(0)), ImmutableList.of(), true));
+        network.runNetwork();
+        final DiamondInventoryFlow.Report report = future.get();
+
+        assertEquals(1, report.getRows().size());
+        final DiamondInventoryFlow.Row row = report.getRows().get(0);
+        assertEquals(a.getInfo().getLegalIdentities().get(0).getName().toString(), row.getOwner());
+        assertEquals(ApprovalStatus.PENDING, row.getStatus());
+        assertEquals(1, row.getCount());
+        assertEquals(2.5, row.getCarats(), 1e-9);
+        assertEquals(2, report.getPeerMillis().size());
+        assertTrue(report.getFailedPeers().isEmpty());
+    }
+
+    @Test
+    public void retriesReturnTheOriginalTransaction() throws Exception {
+        final StartedMockNode c = network.createNode();
+        network.runNetwork();
+        final String externalId = UUID.randomUUID().toString();
+
+        final SignedTransaction createTx = run(a, new DiamondCreateFlow.Initiator(externalId, "Round brilliant", 1.2, 5000, 10, party(b)));
+        assertEquals(createTx.getId(), run(a, new DiamondCreateFlow.Initiator(externalId, "Round brilliant", 1.2, 5000, 10, party(b))).getId());
+
+        final SignedTransaction approveTx = run(b, new DiamondApproveFlow.Initiator(externalId, true));
+        assertEquals(approveTx.getId(), run(b, new DiamondApproveFlow.Initiator(externalId, true)).getId());
+
+        final SignedTransaction transferTx = run(a, new DiamondTransferFlow.Initiator(externalId, party(c)));
+        assertEquals(transferTx.getId(), run(a, new DiamondTransferFlow.Initiator(externalId, party(c))).getId());
+
+        // Each retry found its change already made and recorded nothing new.
+        assertEquals(3, diamonds(a, externalId, Vault.StateStatus.ALL).size());
+        assertEquals(party(c), diamonds(c, externalId, Vault.StateStatus.UNCONSUMED).get(0).getState().getData().getOwner());
+    }
+
+    @Test
+    public void aCreateIsRefusedForAnExternalIdIssuedByAnotherParty() throws Exception {
+        final String externalId = approvedDiamond();
+        try {
+            run(b, new DiamondCreateFlow.Initiator(externalId, "Round brilliant", 1.2, 5000, 10, party(a)));
+            fail("The approver issued an external id the source had issued");
+        } catch (ExecutionException ex) {
+            assertEquals("External ID " + externalId + " was issued by another party.", ex.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void aCreateIsRefusedForAnExternalIdAlreadyInUse() throws Exception {
+        final StartedMockNode c = network.createNode();
+        network.runNetwork();
+        final String externalId = approvedDiamond();
+        run(a, new DiamondTransferFlow.Initiator(externalId, party(c)));
+
+        // The buyer holds a later version of the stone but not its issuance.
+        try {
+            run(c, new DiamondCreateFlow.Initiator(externalId, "Round brilliant", 1.2, 5000, 10, party(b)));
+            fail("The buyer issued an external id already in use");
+        } catch (ExecutionException ex) {
+            assertEquals("External ID " + externalId + " is already in use.", ex.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void aFormerOwnerCannotReissueTheVersionTheySold() throws Exception {
+        final StartedMockNode c = network.createNode();
+        network.runNetwork();
+        final String externalId = approvedDiamond();
+        final StateAndRef<DiamondAssetState> sold = diamonds(a, externalId, Vault.StateStatus.UNCONSUMED).get(0);
+        final SignedTransaction transferTx = run(a, new DiamondTransferFlow.Initiator(externalId, party(c)));
+
+        try {
+            run(a, new ForgedReissue(sold, transferTx));
+            fail("The approver signed the reissue of a sold state");
+        } catch (ExecutionException ex) {
+            // The approver refuses: the state was transferred, not exited.
+        }
+        assertEquals(1, diamonds(b, externalId, Vault.StateStatus.UNCONSUMED).size());
+        assertEquals(party(c), diamonds(b, externalId, Vault.StateStatus.UNCONSUMED).get(0).getState().getData().getOwner());
+    }
+
+    @Test
+    public void anExitIsReissuedOnlyOnce() throws Exception {
+        final String externalId = approvedDiamond();
+        final StateAndRef<DiamondAssetState> exited = diamonds(a, externalId, Vault.StateStatus.UNCONSUMED).get(0);
+        final SignedTransaction exitTx = run(a, new DiamondExitFlow.Initiator(externalId));
+
+        final SignedTransaction reissueTx = run(a, new ForgedReissue(exited, exitTx));
+        assertEquals(exited.getRef(), ((DiamondAssetState) reissueTx.getTx().getOutputs().get(0).getData()).getReissuedFrom());
+        try {
+            run(a, new ForgedReissue(exited, exitTx));
+            fail("The approver signed a second reissue of the same exit");
+        } catch (ExecutionException ex) {
+            // The approver has already signed a reissue of this exit.
+        }
+        assertEquals(1, diamonds(b, externalId, Vault.StateStatus.UNCONSUMED).size());
+    }
+
+    @Test
+    public void everyFieldSurvivesAnAmqpRoundTrip() {
+        final DiamondAssetState diamond = new DiamondAssetState(new UniqueIdentifier(), DiamondType.SIGHT, party(a),
+                "Fancy vivid blue", 5.1, 900000, 10, party(b));
+        diamond.setOwner(party(b));
+        diamond.setApprovalStatus(ApprovalStatus.APPROVED);
+        diamond.setReissuedFrom(new StateRef(SecureHash.randomSHA256(), 1));
+        diamond.setCoApprovers(ImmutableList.of(party(a), party(b)));
+        diamond.setQuorum(2);
+        diamond.setCertificate(SecureHash.randomSHA256(), "GIA-2141438171.pdf");
+        diamond.setPieces(3);
+
+        final SerializationFactory factory = SerializationFactory.Companion.getDefaultFactory();
+        final SerializationContext context = SerializationDefaults.INSTANCE.getP2P_CONTEXT();
+        final DiamondAssetState copy = factory.deserialize(factory.serialize(diamond, context), DiamondAssetState.class, context);
+
+        assertTrue(diamond.differsOnlyInApproval(copy));
+        assertEquals(ApprovalStatus.APPROVED, copy.getApprovalStatus());
+        assertEquals(3, copy.getPieces());
+    }
+
+    @Test
+    public void aQuorumApprovalKeepsTheApproversAndQuorum() throws Exception {
+        final StartedMockNode c = network.createNode();
+        final StartedMockNode d = network.createNode();
+        network.runNetwork();
+        final String externalId = UUID.randomUUID().toString();
+        run(a, new DiamondCreateFlow.Initiator(externalId, "Fancy vivid blue", 5.1, 900000, 10, party(b),
+                ImmutableList.of(party(c), party(d)), 2));
+        run(b, new DiamondApproveFlow.Initiator(externalId, true));
+
+        for (StartedMockNode node : ImmutableList.of(a, b, c, d)) {
+            final DiamondAssetState approved = diamonds(node, externalId, Vault.StateStatus.UNCONSUMED).get(0).getState().getData();
+            assertEquals(ApprovalStatus.APPROVED, approved.getApprovalStatus());
+            assertEquals(ImmutableList.of(party(c), party(d)), approved.getCoApprovers());
+            assertEquals(2, approved.getQuorum());
+        }
+    }
+
+    @Test
+    public void reconcileDrillsDownToADiamondOnlyOneSideRecorded() throws Exception {
+        approvedDiamond();
+        // Recorded at a alone, as if b had missed the transaction.
+        final DiamondAssetState missed = new DiamondAssetState(new UniqueIdentifier(), DiamondType.SIGHT, party(a),
+                "Missed stone", 0.8, 3000, 5, party(b));
+        a.transaction(() -> {
+            final TransactionBuilder builder = new TransactionBuilder(network.getDefaultNotaryIdentity())
+                    .addOutputState(missed, DC_CONTRACT_ID)
+                    .addCommand(new DiamondChainContract.Commands.Create(), party(a).getOwningKey());
+            a.getServices().recordTransactions(a.getServices().signInitialTransaction(builder));
+            return null;
+        });
+
+        final DiamondReconcileFlow.Report report = run(a, new DiamondReconcileFlow.Initiator(party(b)));
+
+        assertEquals(2, report.getSharedHere());
+        assertEquals(ImmutableList.of(missed.getLinearId().getId().toString()), report.getOnlyHere());
+        assertTrue(report.getOnlyThere().isEmpty());
+        assertTrue(report.getDifferentVersion().isEmpty());
+        // The root and one mismatching node per level below it.
+        assertEquals(1 + InventoryDigest.FANOUT * InventoryDigest.DEFAULT_DEPTH, report.getDigestsExchanged());
+    }
+
+    @Test
+    public void aLotKeepsTheSourceOfItsStonesAndCountsNestedStones() throws Exception {
+        final StartedMockNode c = network.createNode();
+        network.runNetwork();
+        final List<String> stones = ImmutableList.of(approvedDiamond(), approvedDiamond(), approvedDiamond());
+        for (String externalId : stones) {
+            run(a, new DiamondTransferFlow.Initiator(externalId, party(c)));
+        }
+
+        final SignedTransaction pairTx = run(c, new DiamondMergeFlow.Initiator(stones.subList(0, 2)));
+        final DiamondAssetState pair = (DiamondAssetState) pairTx.getTx().getOutputs().get(0).getData();
+        final SignedTransaction lotTx = run(c, new DiamondMergeFlow.Initiator(
+                ImmutableList.of(pair.getLinearId().getId().toString(), stones.get(2))));
+        final DiamondAssetState lot = (DiamondAssetState) lotTx.getTx().getOutputs().get(0).getData();
+
+        assertEquals(party(a), lot.getSource());
+        assertEquals(party(c), lot.getOwner());
+        assertEquals(3, lot.getPieces());
+        assertEquals("Lot of 3 stones", lot.getDescription());
+    }
+
+    @Test
+    public void revaluesALotStoneByStone() throws Exception {
+        final List<String> stones = ImmutableList.of(UUID.randomUUID().toString(), UUID.randomUUID().toString());
+        for (String externalId : stones) {
+            run(a, new DiamondCreateFlow.Initiator(externalId, "Melee", 0.6, 2000, 5, party(b)));
+            run(b, new DiamondApproveFlow.Initiator(externalId, true));
+        }
+        final SignedTransaction mergeTx = run(a, new DiamondMergeFlow.Initiator(stones));
+        final DiamondAssetState lot = (DiamondAssetState) mergeTx.getTx().getOutputs().get(0).getData();
+        assertEquals(2, lot.getPieces());
+
+        final DiamondRevalueFlow.Result result = run(a, new DiamondRevalueFlow.Initiator(
+                ImmutableList.of(lot.getLinearId().getId().toString())));
+
+        assertEquals(1, result.getRevalued());
+        final DiamondAssetState revalued = diamonds(a, lot.getLinearId().getId().toString(), Vault.StateStatus.UNCONSUMED).get(0).getState().getData();
+        // Two 0.6 ct stones at 4000 per carat, not one 1.2 ct stone at 6500.
+        assertEquals(2 * 0.6 * 4000, revalued.getCost(), 1e-9);
+        assertEquals(10f, revalued.getPercent(), 0f);
+        assertEquals(2, revalued.getPieces());
+    }
 }
@@ -0,0 +1,86 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.crypto.SecureHash;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class InventoryDigestTest {
+    private static Map<UUID, StateRef> inventory(int size) {
+        final Map<UUID, StateRef> inventory = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            inventory.put(UUID.randomUUID(), new StateRef(SecureHash.randomSHA256(), 0));
+        }
+        return inventory;
+    }
+
+    private static InventoryDigest digest(Map<UUID, StateRef> inventory) {
+        final InventoryDigest digest = new InventoryDigest(3);
+        inventory.forEach(digest::add);
+        return digest.seal();
+    }
+
+    /**
+     * Walks down the two trees the way the reconciliation flow does, returning the mismatching leaves.
+     */
+    private static List<Integer> mismatchingLeaves(InventoryDigest ours, InventoryDigest theirs) {
+        List<Integer> nodes = ImmutableList.of(0);
+        for (int level = 0; ; level++) {
+            final List<SecureHash> digests = new ArrayList<>();
+            for (int node : nodes) {
+                digests.add(theirs.digest(level, node));
+            }
+            final List<Integer> mismatches = ours.mismatches(level, nodes, digests);
+            if (mismatches.isEmpty() || level == ours.getDepth()) {
+                return mismatches;
+            }
+            nodes = InventoryDigest.children(mismatches);
+        }
+    }
+
+    @Test
+    public void rootDoesNotDependOnInsertionOrder() {
+        final Map<UUID, StateRef> inventory = inventory(1_000);
+        final List<Map.Entry<UUID, StateRef>> shuffled = new ArrayList<>(inventory.entrySet());
+        Collections.shuffle(shuffled, new Random(7));
+        final InventoryDigest reordered = new InventoryDigest(3);
+        shuffled.forEach(entry -> reordered.add(entry.getKey(), entry.getValue()));
+        assertEquals(digest(inventory).getRoot(), reordered.seal().getRoot());
+    }
+
+    @Test
+    public void agreeingInventoriesCompareOnlyTheRoot() {
+        final Map<UUID, StateRef> inventory = inventory(1_000);
+        assertEquals(ImmutableList.of(), mismatchingLeaves(digest(inventory), digest(inventory)));
+    }
+
+    @Test
+    public void divergenceIsNarrowedToTheAffectedLeaves() {
+        final Map<UUID, StateRef> ours = inventory(1_000);
+        final Map<UUID, StateRef> theirs = new LinkedHashMap<>(ours);
+        final UUID missing = ours.keySet().iterator().next();
+        theirs.remove(missing);
+        final UUID extra = UUID.randomUUID();
+        theirs.put(extra, new StateRef(SecureHash.randomSHA256(), 0));
+
+        final InventoryDigest ourDigest = digest(ours);
+        assertNotEquals(ourDigest.getRoot(), digest(theirs).getRoot());
+        final Set<Integer> expected = new HashSet<>(ImmutableList.of(ourDigest.bucketOf(missing), ourDigest.bucketOf(extra)));
+        assertEquals(expected, new HashSet<>(mismatchingLeaves(ourDigest, digest(theirs))));
+    }
+
+    @Test
+    public void aNewVersionOfADiamondChangesItsLeaf() {
+        final Map<UUID, StateRef> ours = inventory(100);
+        final Map<UUID, StateRef> theirs = new LinkedHashMap<>(ours);
+        final UUID moved = ours.keySet().iterator().next();
+        theirs.put(moved, new StateRef(SecureHash.randomSHA256(), 0));
+        final InventoryDigest ourDigest = digest(ours);
+        assertEquals(ImmutableList.of(ourDigest.bucketOf(moved)), mismatchingLeaves(ourDigest, digest(theirs)));
+    }
+}
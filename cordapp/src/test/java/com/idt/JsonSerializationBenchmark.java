@@ -0,0 +1,70 @@
+package com.idt;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.corda.client.jackson.JacksonSupport;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.TransactionState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.testing.core.TestIdentity;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.idt.DiamondChainContract.DC_CONTRACT_ID;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares payload size and serialisation throughput of the /diamonds response between Jackson's default rendering
+ * and the flat rendering of {@link DiamondJsonModule}.
+ */
+public class JsonSerializationBenchmark {
+    private static final int STATES = Integer.getInteger("idt.bench.states", 1_000);
+    private static final int ROUNDS = Integer.getInteger("idt.bench.rounds", 20);
+
+    private final TestIdentity notary = new TestIdentity(new CordaX500Name("Notary", "London", "GB"));
+    private final TestIdentity source = new TestIdentity(new CordaX500Name("PartyA", "London", "GB"));
+    private final TestIdentity approver = new TestIdentity(new CordaX500Name("PartyB", "New York", "US"));
+
+    private List<StateAndRef<DiamondAssetState>> diamonds() {
+        final List<StateAndRef<DiamondAssetState>> diamonds = new ArrayList<>(STATES);
+        for (int i = 0; i < STATES; i++) {
+            DiamondAssetState diamond = new DiamondAssetState(new UniqueIdentifier(), DiamondType.SIGHT, source.getParty(),
+                    "Round brilliant " + i, 0.5 + i % 7, 1000 + i, 12, approver.getParty());
+            diamonds.add(new StateAndRef<>(new TransactionState<>(diamond, DC_CONTRACT_ID, notary.getParty()),
+                    new StateRef(SecureHash.randomSHA256(), 0)));
+        }
+        return diamonds;
+    }
+
+    private static long measure(String label, ObjectMapper mapper, List<StateAndRef<DiamondAssetState>> diamonds) throws Exception {
+        long bytes = mapper.writeValueAsBytes(diamonds).length;
+        // Warm up the serializers before timing.
+        for (int i = 0; i < ROUNDS; i++) {
+            mapper.writeValueAsBytes(diamonds);
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            mapper.writeValueAsBytes(diamonds);
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%-8s %8d bytes/state %12.0f states/s", label, bytes / diamonds.size(),
+                ROUNDS * diamonds.size() / seconds));
+        return bytes;
+    }
+
+    @Test
+    public void flatRenderingIsSmallerThanDefault() throws Exception {
+        final List<StateAndRef<DiamondAssetState>> diamonds = diamonds();
+        final ObjectMapper defaultMapper = JacksonSupport.createNonRpcMapper();
+        final ObjectMapper flatMapper = JacksonSupport.createNonRpcMapper();
+        new TemplateWebPlugin().customizeJSONSerialization(flatMapper);
+
+        final long defaultBytes = measure("default", defaultMapper, diamonds);
+        final long flatBytes = measure("flat", flatMapper, diamonds);
+        assertTrue("Flat rendering should be smaller than the default", flatBytes < defaultBytes);
+    }
+}
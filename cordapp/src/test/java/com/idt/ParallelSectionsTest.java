@@ -0,0 +1,56 @@
+package com.idt;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelSectionsTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static String slow(String value, long millis) throws InterruptedException {
+        Thread.sleep(millis);
+        return value;
+    }
+
+    @Test
+    public void takesAsLongAsTheSlowestSection() throws Exception {
+        final long start = System.nanoTime();
+        final ParallelSections.Result result = new ParallelSections()
+                .add("peers", () -> slow("p", 200))
+                .add("counts", () -> slow("c", 200))
+                .add("diamonds", () -> slow("d", 200))
+                .load(executor, 5_000);
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(3, result.getSections().size());
+        assertTrue(result.getFailed().isEmpty());
+        assertTrue("Took " + elapsed + " ms", elapsed < 550);
+    }
+
+    @Test
+    public void returnsTheOtherSectionsWhenOneFailsOrTimesOut() throws Exception {
+        final ParallelSections.Result result = new ParallelSections()
+                .add("peers", () -> "p")
+                .add("counts", () -> { throw new IllegalStateException("Vault unavailable"); })
+                .add("diamonds", () -> slow("d", 5_000))
+                .load(executor, 100);
+
+        assertEquals("p", result.getSections().get("peers"));
+        assertFalse(result.getSections().containsKey("counts"));
+        assertFalse(result.getSections().containsKey("diamonds"));
+        assertEquals("Vault unavailable", result.getFailed().get("counts"));
+        assertTrue(result.getFailed().get("diamonds").startsWith("timed out"));
+    }
+}
@@ -0,0 +1,37 @@
+package com.idt;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PriceTableTest {
+    private static PriceTable table(String lines) throws Exception {
+        return PriceTable.parse(new StringReader(lines));
+    }
+
+    @Test
+    public void pricesWithTheBandBelowTheCarats() throws Exception {
+        final PriceTable prices = table("# type,minCarats,pricePerCarat,percent\nSIGHT,0.5,2800,6\n\nSIGHT,1.0,6500,8\n");
+        assertEquals(2.0 * 6500, prices.priceOf(DiamondType.SIGHT, 2.0).getCost(), 1e-9);
+        assertEquals(8f, prices.priceOf(DiamondType.SIGHT, 1.0).getPercent(), 0f);
+        assertEquals(0.9 * 2800, prices.priceOf(DiamondType.SIGHT, 0.9).getCost(), 1e-9);
+        assertNull(prices.priceOf(DiamondType.SIGHT, 0.3));
+    }
+
+    @Test
+    public void pricesALotStoneByStone() throws Exception {
+        final PriceTable prices = table("SIGHT,0.5,4000,5\nSIGHT,1.0,6500,8\n");
+        final PriceTable.Price lot = prices.priceOf(DiamondType.SIGHT, 1.2, 2);
+        assertEquals(2 * 0.6 * 4000, lot.getCost(), 1e-9);
+        assertEquals(10f, lot.getPercent(), 0f);
+        assertNull(prices.priceOf(DiamondType.SIGHT, 1.2, 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedLines() throws Exception {
+        table("SIGHT,1.0,6500\n");
+    }
+}
@@ -0,0 +1,214 @@
+package com.idt;
+
+import net.corda.core.contracts.CommandData;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.TransactionState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.nodeapi.internal.persistence.CordaPersistence;
+import net.corda.testing.node.MockServices;
+
+import java.security.PublicKey;
+import java.util.*;
+
+import static com.idt.DiamondChainContract.DC_CONTRACT_ID;
+
+/**
+ * Fills the vault of a {@link MockServices} node with synthetic diamonds, for benchmarking queries at scale.
+ *
+ * Diamonds are issued in multi-output transactions, then approved or declined, and the approved ones change hands a
+ * few times, so the vault holds unconsumed states alongside their consumed histories. The node is the source of
+ * about half the stones, the approver of about a third and a later owner of the rest.
+ *
+ * Transactions are recorded directly, without contract verification, signature collection or notarisation, which is
+ * what makes millions of states feasible. For the same reason each history transaction changes up to
+ * idt.gen.txSize stones at once; the states themselves are the same as those the flows produce.
+ */
+public class SyntheticLedgerGenerator {
+    private static final String[] CUTS = {"Round brilliant", "Princess", "Cushion", "Emerald", "Oval", "Radiant",
+            "Asscher", "Marquise", "Pear", "Heart"};
+    private static final int TX_SIZE = Integer.getInteger("idt.gen.txSize", 100);
+    private static final int CHUNK = 10_000;
+    private static final int MAX_TRANSFERS = Integer.getInteger("idt.gen.maxTransfers", 4);
+
+    private final CordaPersistence database;
+    private final MockServices services;
+    private final Party me;
+    private final List<Party> others;
+    private final Party notary;
+    private final Random random;
+    // A sample of the generated linear ids, for lookups by id.
+    private final List<UniqueIdentifier> sample = new ArrayList<>();
+    private long generated;
+
+    public SyntheticLedgerGenerator(CordaPersistence database, MockServices services, Party me, List<Party> others,
+                                    Party notary, long seed) {
+        if (others.size() < 2) {
+            throw new IllegalArgumentException("At least two other parties are needed.");
+        }
+        this.database = database;
+        this.services = services;
+        this.me = me;
+        this.others = others;
+        this.notary = notary;
+        this.random = new Random(seed);
+    }
+
+    public long getGenerated() {
+        return generated;
+    }
+
+    public List<UniqueIdentifier> getSample() {
+        return sample;
+    }
+
+    /**
+     * Generates the given number of additional diamonds, with their histories.
+     */
+    public void generate(int stones) {
+        for (int done = 0; done < stones; done += CHUNK) {
+            generateChunk(Math.min(CHUNK, stones - done));
+        }
+    }
+
+    private void generateChunk(int stones) {
+        final List<StateAndRef<DiamondAssetState>> current = new ArrayList<>(stones);
+        final List<DiamondAssetState> issued = new ArrayList<>(stones);
+        final List<Party> finalOwners = new ArrayList<>(stones);
+        for (int i = 0; i < stones; i++) {
+            final double role = random.nextDouble();
+            final Party source = role < 0.5 ? me : other(null);
+            final Party approver = role >= 0.5 && role < 0.8 ? me : other(source);
+            issued.add(new DiamondAssetState(new UniqueIdentifier(), DiamondType.SIGHT, source,
+                    CUTS[random.nextInt(CUTS.length)] + " " + (generated + i), carats(), 500 + random.nextInt(50_000),
+                    5 + random.nextInt(20), approver));
+            // Stones we neither issue nor approve end up owned by us, or we would not hold them at all.
+            finalOwners.add(role >= 0.8 ? me : null);
+        }
+        record(issued, null, new DiamondChainContract.Commands.Create(), current);
+
+        // Approval round: 75% approved, 10% declined, the rest stays pending.
+        final List<StateAndRef<DiamondAssetState>> approvedIn = new ArrayList<>();
+        final List<StateAndRef<DiamondAssetState>> declinedIn = new ArrayList<>();
+        for (int i = 0; i < current.size(); i++) {
+            final double outcome = random.nextDouble();
+            if (outcome < 0.75 || finalOwners.get(i) != null) {
+                approvedIn.add(current.get(i));
+            } else if (outcome < 0.85) {
+                declinedIn.add(current.get(i));
+            }
+        }
+        final Map<UniqueIdentifier, Party> finalOwnerById = new HashMap<>();
+        for (int i = 0; i < issued.size(); i++) {
+            if (finalOwners.get(i) != null) {
+                finalOwnerById.put(issued.get(i).getLinearId(), finalOwners.get(i));
+            }
+        }
+        record(nextVersions(declinedIn, ApprovalStatus.DECLINED, null), declinedIn, new DiamondChainContract.Commands.Decline(), null);
+        List<StateAndRef<DiamondAssetState>> live = new ArrayList<>();
+        record(nextVersions(approvedIn, ApprovalStatus.APPROVED, null), approvedIn, new DiamondChainContract.Commands.Approve(), live);
+
+        // Transfer rounds: each approved stone changes hands a geometric number of times.
+        for (int round = 1; round <= MAX_TRANSFERS && !live.isEmpty(); round++) {
+            final List<StateAndRef<DiamondAssetState>> moving = new ArrayList<>();
+            final List<Party> newOwners = new ArrayList<>();
+            for (StateAndRef<DiamondAssetState> stateAndRef : live) {
+                final DiamondAssetState diamond = stateAndRef.getState().getData();
+                final Party forcedOwner = finalOwnerById.get(diamond.getLinearId());
+                if (forcedOwner != null && round == 1) {
+                    moving.add(stateAndRef);
+                    newOwners.add(forcedOwner);
+                } else if (forcedOwner == null && random.nextDouble() < 0.4) {
+                    moving.add(stateAndRef);
+                    newOwners.add(nextOwner(diamond.getOwner()));
+                }
+            }
+            live = new ArrayList<>();
+            record(nextVersions(moving, ApprovalStatus.APPROVED, newOwners), moving, new DiamondChainContract.Commands.Transfer(), live);
+        }
+        for (int i = 0; i < Math.min(stones, 100); i++) {
+            sample.add(issued.get(random.nextInt(stones)).getLinearId());
+        }
+        generated += stones;
+    }
+
+    /**
+     * The next version of each input with the given status and, when given, the new owner at the same index.
+     */
+    private List<DiamondAssetState> nextVersions(List<StateAndRef<DiamondAssetState>> inputs, ApprovalStatus status, List<Party> newOwners) {
+        final List<DiamondAssetState> outputs = new ArrayList<>(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            final DiamondAssetState previous = inputs.get(i).getState().getData();
+            final Party newOwner = newOwners != null ? newOwners.get(i) : null;
+            final DiamondAssetState next = new DiamondAssetState(previous.getLinearId(), previous.getDiamondType(),
+                    previous.getSource(), previous.getDescription(), previous.getCarats(), previous.getCost(),
+                    previous.getPercent(), previous.getApprover());
+            next.setOwner(newOwner != null ? newOwner : previous.getOwner());
+            next.setApprovalStatus(status);
+            outputs.add(next);
+        }
+        return outputs;
+    }
+
+    /**
+     * Records the outputs in transactions of up to TX_SIZE states, consuming the matching inputs, and collects the
+     * recorded outputs.
+     */
+    private void record(List<DiamondAssetState> outputs, List<StateAndRef<DiamondAssetState>> inputs, CommandData command,
+                        List<StateAndRef<DiamondAssetState>> recorded) {
+        final List<SignedTransaction> transactions = new ArrayList<>();
+        for (int from = 0; from < outputs.size(); from += TX_SIZE) {
+            final int to = Math.min(from + TX_SIZE, outputs.size());
+            final TransactionBuilder builder = new TransactionBuilder(notary);
+            final Set<PublicKey> signers = new LinkedHashSet<>();
+            signers.add(me.getOwningKey());
+            for (int i = from; i < to; i++) {
+                if (inputs != null) {
+                    builder.addInputState(inputs.get(i));
+                }
+                builder.addOutputState(outputs.get(i), DC_CONTRACT_ID);
+                signers.add(outputs.get(i).getOwner().getOwningKey());
+            }
+            builder.addCommand(command, new ArrayList<>(signers));
+            final SignedTransaction signedTx = services.signInitialTransaction(builder);
+            transactions.add(signedTx);
+            if (recorded != null) {
+                for (int i = from; i < to; i++) {
+                    recorded.add(new StateAndRef<>(new TransactionState<>(outputs.get(i), DC_CONTRACT_ID, notary),
+                            new StateRef(signedTx.getId(), i - from)));
+                }
+            }
+        }
+        database.transaction(tx -> {
+            services.recordTransactions(transactions);
+            return null;
+        });
+    }
+
+    /**
+     * One of the other parties, other than the excluded one.
+     */
+    private Party other(Party excluded) {
+        final List<Party> candidates = new ArrayList<>(others);
+        candidates.remove(excluded);
+        return candidates.get(random.nextInt(candidates.size()));
+    }
+
+    /**
+     * Any party, including us, other than the current owner.
+     */
+    private Party nextOwner(Party owner) {
+        final List<Party> candidates = new ArrayList<>(others);
+        candidates.add(me);
+        candidates.remove(owner);
+        return candidates.get(random.nextInt(candidates.size()));
+    }
+
+    private double carats() {
+        // Mostly small stones, with a long tail of large ones.
+        return Math.round(Math.exp(random.nextGaussian() * 0.6 - 0.3) * 100) / 100.0;
+    }
+}
@@ -0,0 +1,146 @@
+package com.idt;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import kotlin.Pair;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteriaUtils.Builder;
+import net.corda.nodeapi.internal.persistence.CordaPersistence;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.node.MockServices;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.function.IntFunction;
+
+import static net.corda.testing.node.MockServicesKt.makeTestIdentityService;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fills a vault with {@link SyntheticLedgerGenerator} up to each of the sizes in idt.bench.vaultSizes, and at each size
+ * times the queries the flows and the web API issue. Latencies are printed and written as CSV to idt.bench.out.
+ */
+public class VaultScaleBenchmark {
+    private static final String SIZES = System.getProperty("idt.bench.vaultSizes", "1000,10000,100000");
+    private static final int REPEATS = Integer.getInteger("idt.bench.queryRepeats", 50);
+    private static final int PAGE_SIZE = 200;
+    private static final String OUT = System.getProperty("idt.bench.out", "build/vault-scale.csv");
+
+    private final TestIdentity me = new TestIdentity(new CordaX500Name("PartyA", "London", "GB"));
+    private final TestIdentity partyB = new TestIdentity(new CordaX500Name("PartyB", "New York", "US"));
+    private final TestIdentity partyC = new TestIdentity(new CordaX500Name("PartyC", "Paris", "FR"));
+    private final TestIdentity approverD = new TestIdentity(new CordaX500Name("ApproverD", "Antwerp", "BE"));
+    private final TestIdentity notary = new TestIdentity(new CordaX500Name("Notary", "London", "GB"));
+
+    private CordaPersistence database;
+    private MockServices services;
+
+    @Before
+    public void setup() {
+        final Pair<CordaPersistence, MockServices> node = MockServices.makeTestDatabaseAndMockServices(
+                ImmutableList.of("com.idt"),
+                makeTestIdentityService(me.getIdentity(), partyB.getIdentity(), partyC.getIdentity(),
+                        approverD.getIdentity(), notary.getIdentity()),
+                me);
+        database = node.getFirst();
+        services = node.getSecond();
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+    }
+
+    private static QueryCriteria custom(String column, Object value) {
+        try {
+            final Field field = DiamondAssetSchemaV1.PersistentDiamondAsset.class.getDeclaredField(column);
+            return new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, ImmutableSet.of(DiamondAssetState.class))
+                    .and(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(field, value)));
+        } catch (NoSuchFieldException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Runs the query REPEATS times, the i-th run with argument i, and returns the p50 and p99 latency in milliseconds.
+     */
+    private double[] time(IntFunction<Integer> query) {
+        final long[] nanos = new long[REPEATS];
+        for (int i = 0; i < REPEATS; i++) {
+            final int run = i;
+            final long start = System.nanoTime();
+            final int results = database.transaction(tx -> query.apply(run));
+            nanos[i] = System.nanoTime() - start;
+            assertTrue(results >= 0);
+        }
+        Arrays.sort(nanos);
+        return new double[]{nanos[REPEATS / 2] / 1e6, nanos[Math.min(REPEATS - 1, REPEATS * 99 / 100)] / 1e6};
+    }
+
+    @Test
+    public void queryLatencyByVaultSize() throws Exception {
+        final SyntheticLedgerGenerator generator = new SyntheticLedgerGenerator(database, services, me.getParty(),
+                ImmutableList.of(partyB.getParty(), partyC.getParty(), approverD.getParty()), notary.getParty(), 42);
+        final File out = new File(OUT);
+        if (out.getParentFile() != null) {
+            out.getParentFile().mkdirs();
+        }
+        try (PrintWriter csv = new PrintWriter(out)) {
+            csv.println("stones,unconsumed,query,p50_ms,p99_ms");
+            for (String size : SIZES.split(",")) {
+                final int target = Integer.parseInt(size.trim());
+                final long start = System.nanoTime();
+                generator.generate((int) (target - generator.getGenerated()));
+                System.out.println(String.format("Generated %d stones in %.1f s", target, (System.nanoTime() - start) / 1e9));
+
+                final long unconsumed = database.transaction(tx -> services.getVaultService().queryBy(DiamondAssetState.class,
+                        new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, ImmutableSet.of(DiamondAssetState.class)),
+                        new PageSpecification(1, 1)).getTotalStatesAvailable());
+                final List<UniqueIdentifier> sample = generator.getSample();
+                final int pages = (int) Math.max(1, unconsumed / PAGE_SIZE);
+
+                final Map<String, IntFunction<Integer>> queries = new LinkedHashMap<>();
+                // Transfer, approve and exit look their diamond up among our unconsumed states.
+                queries.put("linearIdUnconsumed", i -> services.getVaultService().queryBy(DiamondAssetState.class,
+                        new QueryCriteria.LinearStateQueryCriteria(ImmutableList.of(me.getParty()),
+                                ImmutableList.of(sample.get(i % sample.size())), Vault.StateStatus.UNCONSUMED,
+                                ImmutableSet.of(DiamondAssetState.class))).getStates().size());
+                // Create looks for an earlier issuance among all versions.
+                queries.put("linearIdAll", i -> services.getVaultService().queryBy(DiamondAssetState.class,
+                        new QueryCriteria.LinearStateQueryCriteria(null, ImmutableList.of(sample.get(i % sample.size())),
+                                Vault.StateStatus.ALL, ImmutableSet.of(DiamondAssetState.class))).getStates().size());
+                // The live stream and the owner / status filters of the API.
+                queries.put("customOwner", i -> services.getVaultService().queryBy(DiamondAssetState.class,
+                        custom("owner", me.getName().toString()), new PageSpecification(1, PAGE_SIZE)).getStates().size());
+                queries.put("customStatus", i -> services.getVaultService().queryBy(DiamondAssetState.class,
+                        custom("approvalStatus", ApprovalStatus.PENDING), new PageSpecification(1, PAGE_SIZE)).getStates().size());
+                // /diamonds, first and a deep page.
+                queries.put("firstPage", i -> services.getVaultService().queryBy(DiamondAssetState.class,
+                        new QueryCriteria.VaultQueryCriteria(), new PageSpecification(1, PAGE_SIZE)).getStates().size());
+                queries.put("deepPage", i -> services.getVaultService().queryBy(DiamondAssetState.class,
+                        new QueryCriteria.VaultQueryCriteria(), new PageSpecification(Math.max(1, pages / 2), PAGE_SIZE)).getStates().size());
+                // The archive client reads consumed history.
+                queries.put("consumedPage", i -> services.getVaultService().queryBy(DiamondAssetState.class,
+                        new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.CONSUMED, ImmutableSet.of(DiamondAssetState.class)),
+                        new PageSpecification(1, PAGE_SIZE)).getStates().size());
+
+                for (Map.Entry<String, IntFunction<Integer>> query : queries.entrySet()) {
+                    final double[] latency = time(query.getValue());
+                    System.out.println(String.format("%8d stones %8d unconsumed  %-20s p50 %8.2f ms  p99 %8.2f ms",
+                            target, unconsumed, query.getKey(), latency[0], latency[1]));
+                    csv.println(String.format(Locale.ROOT, "%d,%d,%s,%.3f,%.3f", target, unconsumed, query.getKey(), latency[0], latency[1]));
+                }
+                csv.flush();
+            }
+        }
+    }
+}